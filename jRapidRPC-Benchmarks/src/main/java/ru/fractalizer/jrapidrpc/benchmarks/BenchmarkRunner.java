@@ -0,0 +1,59 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.benchmarks;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks with GC profiler, end-to-end and in-JVM ones at 1, 4 and 16 client threads. When started with
+ * arguments, passes them to the standard JMH command line instead, e.g. {@code -prof gc -t 8 EndToEndBenchmark.echo}
+ */
+public final class BenchmarkRunner {
+
+    private static final int[] CLIENT_THREADS = {1, 4, 16};
+
+    private BenchmarkRunner() {
+        super();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            Main.main(args);
+            return;
+        }
+
+        new Runner(new OptionsBuilder()
+                .include(SerializerBenchmark.class.getName())
+                .include(DispatchBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+
+        for (int threads : CLIENT_THREADS) {
+            new Runner(new OptionsBuilder()
+                    .include(EndToEndBenchmark.class.getName())
+                    .include(InJvmBenchmark.class.getName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.benchmarks;
+
+import ru.fractalizer.jrapidrpc.api.RpcMethod;
+
+/**
+ * Service interface used by benchmarks. Covers a call without payload, a string round trip and a round trip of a
+ * typical business object
+ */
+public interface BenchmarkService {
+
+    @RpcMethod(methodId = 1)
+    void ping();
+
+    @RpcMethod(methodId = 2)
+    String echo(String text);
+
+    @RpcMethod(methodId = 3)
+    Order process(Order order);
+}
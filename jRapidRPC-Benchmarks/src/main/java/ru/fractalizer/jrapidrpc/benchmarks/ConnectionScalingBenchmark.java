@@ -0,0 +1,180 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.benchmarks;
+
+import ru.fractalizer.jrapidrpc.client.simple.SimpleTCPClient;
+import ru.fractalizer.jrapidrpc.metrics.LatencyHistogram;
+import ru.fractalizer.jrapidrpc.metrics.LatencySnapshot;
+import ru.fractalizer.jrapidrpc.serializer.protostuff.SerializerCore;
+import ru.fractalizer.jrapidrpc.server.simple.SimpleTCPServer;
+import ru.fractalizer.jrapidrpc.server.simple.ThreadModelType;
+import ru.fractalizer.jrapidrpc.server.simple.ThreadPoolOverflowPolicy;
+import ru.fractalizer.jrapidrpc.tools.VirtualThreads;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares {@link SimpleTCPServer} serving every connection on a platform thread with serving it on a virtual thread
+ * at thousands of connections. Every connection is driven by a client thread of its own, calling ping in a loop, so
+ * all connections are busy. Client threads are virtual whenever JVM supports them, so that both server modes face the
+ * same load. Reports connect time, throughput, round trip latency, peak number of platform threads and heap used.
+ * <p>
+ * Not a JMH benchmark: JMH thread per connection would not scale to this number of connections. Run with
+ * <pre>
+ * java -cp benchmarks.jar ru.fractalizer.jrapidrpc.benchmarks.ConnectionScalingBenchmark [connections] [seconds]
+ * </pre>
+ * Defaults are 10000 connections measured for 10 seconds. Client and server run in the same JVM, so open file limit
+ * (<code>ulimit -n</code>) must exceed twice the number of connections. Virtual thread mode is skipped before Java 21.
+ */
+public final class ConnectionScalingBenchmark {
+
+    private static final int  PORT                = 47101;
+    private static final int  DEFAULT_CONNECTIONS = 10000;
+    private static final int  DEFAULT_SECONDS     = 10;
+    private static final long WARMUP_MILLIS       = 3000;
+    private static final long START_POLL_MILLIS   = 1000;
+
+    /**
+     * Stack size of platform client threads, small enough to start tens of thousands of them
+     */
+    private static final long CLIENT_STACK_SIZE = 256 * 1024;
+
+    private ConnectionScalingBenchmark() {
+        super();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONNECTIONS;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+
+        System.out.println("Connections: " + connections + ", measured for " + seconds + " s, client threads are " +
+                (VirtualThreads.isSupported() ? "virtual" : "platform"));
+        run("platform", Executors.newCachedThreadPool(), connections, seconds);
+        if (VirtualThreads.isSupported()) {
+            run("virtual", VirtualThreads.newThreadPerTaskExecutor("SimpleTCPServer Worker "), connections, seconds);
+        } else {
+            System.out.println("virtual: skipped, virtual threads need Java 21 or later");
+        }
+    }
+
+    private static void run(String mode, ExecutorService executorService, int connections, int seconds)
+            throws Exception {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        SerializerCore serializer = new SerializerCore(BenchmarkService.class, 4096);
+        SimpleTCPServer server = new SimpleTCPServer(serializer, PORT, ThreadModelType.Singleton, executorService,
+                ThreadPoolOverflowPolicy.Terminate, connections);
+        server.start(BenchmarkService.class, BenchmarkServiceImpl.class);
+        threadMXBean.resetPeakThreadCount();
+
+        //Connecting
+        long connectStart = System.nanoTime();
+        List<SimpleTCPClient> clients = new ArrayList<SimpleTCPClient>(connections);
+        List<BenchmarkService> services = new ArrayList<BenchmarkService>(connections);
+        for (int i = 0; i < connections; i++) {
+            SimpleTCPClient client = new SimpleTCPClient("localhost", PORT, serializer);
+            services.add(client.connect(BenchmarkService.class));
+            clients.add(client);
+        }
+        long connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart);
+
+        //Calling. Clients start together once all their threads are up. Threads do not wait on a latch: releasing
+        //thousands of them one by one takes ages when released ones already compete for CPU
+        final AtomicLong callStart = new AtomicLong(Long.MAX_VALUE);
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicLong measureStart = new AtomicLong(Long.MAX_VALUE);
+        final AtomicLong measureEnd = new AtomicLong(Long.MAX_VALUE);
+        final CountDownLatch finished = new CountDownLatch(connections);
+        final AtomicInteger failures = new AtomicInteger(0);
+        ThreadFactory clientThreads = newClientThreadFactory();
+        for (final BenchmarkService service : services) {
+            clientThreads.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long now;
+                        while ((now = System.nanoTime()) < callStart.get()) {
+                            Thread.sleep(Math.min(TimeUnit.NANOSECONDS.toMillis(callStart.get() - now) + 1,
+                                    START_POLL_MILLIS));
+                        }
+                        while (now < measureEnd.get()) {
+                            service.ping();
+                            long callEnd = System.nanoTime();
+                            if (now >= measureStart.get()) {
+                                histogram.record(callEnd - now);
+                            }
+                            now = callEnd;
+                        }
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }).start();
+        }
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(START_POLL_MILLIS);
+        measureStart.set(start + TimeUnit.MILLISECONDS.toNanos(WARMUP_MILLIS));
+        measureEnd.set(measureStart.get() + TimeUnit.SECONDS.toNanos(seconds));
+        callStart.set(start);
+        finished.await();
+        int peakThreads = threadMXBean.getPeakThreadCount();
+        System.gc();
+        long heapUsedMegabytes = memoryMXBean.getHeapMemoryUsage().getUsed() / (1024 * 1024);
+
+        for (SimpleTCPClient client : clients) {
+            client.disconnect();
+        }
+        server.shutdown(5000);
+
+        LatencySnapshot latency = histogram.getSnapshot(TimeUnit.MICROSECONDS);
+        System.out.println(String.format("%s: connect %d ms, %.0f calls/s, round trip us p50 %.0f p99 %.0f " +
+                "p99.9 %.0f max %.0f, peak platform threads %d, heap used %d MB, failed connections %d", mode,
+                connectMillis, latency.getCount() / (double) seconds, latency.getP50(), latency.getP99(),
+                latency.getP999(), latency.getMax(), peakThreads, heapUsedMegabytes, failures.get()));
+    }
+
+    private static ThreadFactory newClientThreadFactory() {
+        if (VirtualThreads.isSupported()) {
+            return VirtualThreads.newThreadFactory("Benchmark client ");
+        }
+        return new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(null, runnable, "Benchmark client " + threadNumber.incrementAndGet(),
+                        CLIENT_STACK_SIZE);
+            }
+        };
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcRequest;
+import ru.fractalizer.jrapidrpc.server.RequestDispatcher;
+import ru.fractalizer.jrapidrpc.tools.MethodInvoker;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side method lookup and invocation, without any I/O. Plain reflective call is measured as a baseline
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    private ReflectionCache      reflectionCache;
+    private RequestDispatcher    requestDispatcher;
+    private BenchmarkServiceImpl serviceObject;
+    private MethodInvoker        invoker;
+    private Method               method;
+    private Object[]             args;
+    private MsgRpcRequest        requestById;
+    private MsgRpcRequest        requestByName;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        reflectionCache = new ReflectionCache(BenchmarkService.class);
+        requestDispatcher = new RequestDispatcher(reflectionCache);
+        serviceObject = new BenchmarkServiceImpl();
+        invoker = reflectionCache.getMethodInvoker("echo");
+        method = BenchmarkService.class.getMethod("echo", String.class);
+        args = new Object[]{"Hello, world!"};
+        requestById = new MsgRpcRequest(1, (short) 2, "echo", args);
+        requestByName = new MsgRpcRequest(1, "echo", args);
+    }
+
+    @Benchmark
+    public MethodInvoker lookupById() {
+        return reflectionCache.getMethodInvoker((short) 2);
+    }
+
+    @Benchmark
+    public MethodInvoker lookupByName() {
+        return reflectionCache.getMethodInvoker("echo");
+    }
+
+    @Benchmark
+    public Object invokeReflective() throws Exception {
+        return method.invoke(serviceObject, args);
+    }
+
+    @Benchmark
+    public Object invokeInvoker() throws Throwable {
+        return invoker.invoke(serviceObject, args);
+    }
+
+    @Benchmark
+    public MsgRpcReply dispatchById() {
+        return requestDispatcher.dispatch(serviceObject, requestById);
+    }
+
+    @Benchmark
+    public MsgRpcReply dispatchByName() {
+        return requestDispatcher.dispatch(serviceObject, requestByName);
+    }
+}
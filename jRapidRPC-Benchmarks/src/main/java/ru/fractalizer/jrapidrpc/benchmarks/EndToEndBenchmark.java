@@ -0,0 +1,126 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.fractalizer.jrapidrpc.api.ServerStartupException;
+import ru.fractalizer.jrapidrpc.client.simple.SimpleTCPClient;
+import ru.fractalizer.jrapidrpc.serializer.protostuff.SerializerCore;
+import ru.fractalizer.jrapidrpc.server.simple.SimpleTCPServer;
+import ru.fractalizer.jrapidrpc.server.simple.ThreadModelType;
+import ru.fractalizer.jrapidrpc.server.simple.ThreadPoolOverflowPolicy;
+import ru.fractalizer.jrapidrpc.transport.SharedMemorySockets;
+import ru.fractalizer.jrapidrpc.transport.UnixDomainSockets;
+
+import javax.net.ServerSocketFactory;
+import javax.net.SocketFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback calls of {@link SimpleTCPClient} to {@link SimpleTCPServer}. Every benchmark thread has a connection of its
+ * own, so concurrency is controlled with JMH thread count (-t). Server runs in the same JVM, so GC profiler reports
+ * allocations of both sides.
+ * <p>
+ * Transport parameter compares TCP loopback with Unix domain sockets, which need Java 16 or later, and with shared
+ * memory rings in <code>/dev/shm</code> (or the temporary directory where there is none).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+
+    private static final int PORT = 47100;
+
+    private static final File SHM_DIRECTORY = new File("/dev/shm");
+
+    @Param({"tcp", "unix", "shm"})
+    private String transport;
+
+    private SimpleTCPServer server;
+    private SocketFactory   socketFactory;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException, ServerStartupException {
+        ServerSocketFactory serverSocketFactory = null;
+        if ("unix".equals(transport)) {
+            File socketFile = File.createTempFile("EndToEndBenchmark", ".sock");
+            serverSocketFactory = UnixDomainSockets.newServerSocketFactory(socketFile);
+            socketFactory = UnixDomainSockets.newSocketFactory(socketFile);
+        } else if ("shm".equals(transport)) {
+            File directory = new File(SHM_DIRECTORY.isDirectory() ? SHM_DIRECTORY.getPath() :
+                    System.getProperty("java.io.tmpdir"), "EndToEndBenchmark");
+            serverSocketFactory = SharedMemorySockets.newServerSocketFactory(directory);
+            socketFactory = SharedMemorySockets.newSocketFactory(directory);
+        }
+        server = new SimpleTCPServer(new SerializerCore(BenchmarkService.class, 4096), PORT, ThreadModelType.Singleton,
+                Executors.newCachedThreadPool(), ThreadPoolOverflowPolicy.Terminate);
+        server.setServerSocketFactory(serverSocketFactory);
+        server.start(BenchmarkService.class, BenchmarkServiceImpl.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException, InterruptedException {
+        server.shutdown(1000);
+    }
+
+    /**
+     * Connection of a single benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        private SimpleTCPClient  client;
+        private BenchmarkService service;
+        private Order            order;
+
+        @Setup(Level.Trial)
+        public void connect(EndToEndBenchmark benchmark) throws IOException {
+            client = new SimpleTCPClient("localhost", PORT, new SerializerCore(BenchmarkService.class, 4096), 0, null,
+                    0, benchmark.socketFactory);
+            service = client.connect(BenchmarkService.class);
+            order = Order.sample(20);
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            client.disconnect();
+        }
+    }
+
+    @Benchmark
+    public void ping(Client client) {
+        client.service.ping();
+    }
+
+    @Benchmark
+    public String echo(Client client) {
+        return client.service.echo("Hello, world!");
+    }
+
+    @Benchmark
+    public Order process(Client client) {
+        return client.service.process(client.order);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.fractalizer.jrapidrpc.api.ServerStartupException;
+import ru.fractalizer.jrapidrpc.client.injvm.InJvmClient;
+import ru.fractalizer.jrapidrpc.serializer.protostuff.SerializerCore;
+import ru.fractalizer.jrapidrpc.server.injvm.InJvmServer;
+import ru.fractalizer.jrapidrpc.server.simple.ThreadModelType;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls of {@link InJvmClient} to {@link InJvmServer}, to be compared with {@link EndToEndBenchmark}. Mode parameter
+ * chooses between copying requests and replies with the serializer and passing them by reference.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InJvmBenchmark {
+
+    private static final String ADDRESS = "InJvmBenchmark";
+
+    @Param({"copy", "reference"})
+    private String mode;
+
+    private InJvmServer server;
+
+    @Setup(Level.Trial)
+    public void startServer() throws ServerStartupException {
+        server = new InJvmServer(ADDRESS, ThreadModelType.Singleton);
+        server.start(BenchmarkService.class, BenchmarkServiceImpl.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws InterruptedException {
+        server.shutdown(1000);
+    }
+
+    /**
+     * Connection of a single benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        private InJvmClient      client;
+        private BenchmarkService service;
+        private Order            order;
+
+        @Setup(Level.Trial)
+        public void connect(InJvmBenchmark benchmark) throws IOException {
+            client = new InJvmClient(ADDRESS, "copy".equals(benchmark.mode) ?
+                    new SerializerCore(BenchmarkService.class, 4096) : null);
+            service = client.connect(BenchmarkService.class);
+            order = Order.sample(20);
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() {
+            client.disconnect();
+        }
+    }
+
+    @Benchmark
+    public void ping(Client client) {
+        client.service.ping();
+    }
+
+    @Benchmark
+    public String echo(Client client) {
+        return client.service.echo("Hello, world!");
+    }
+
+    @Benchmark
+    public Order process(Client client) {
+        return client.service.process(client.order);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Payload of a realistic size: a handful of scalar fields, a couple of strings and a short list
+ */
+public class Order {
+
+    private long         id;
+    private String       customer;
+    private String       address;
+    private int          quantity;
+    private double       price;
+    private boolean      confirmed;
+    private List<String> items;
+
+    /**
+     * Default constructor
+     */
+    public Order() {
+        super();
+    }
+
+    /**
+     * Creates an order filled with sample data
+     *
+     * @param itemCount Number of items in the order
+     * @return Sample order
+     */
+    public static Order sample(int itemCount) {
+        Order order = new Order();
+        order.id = 1234567890123L;
+        order.customer = "John Smith";
+        order.address = "221B Baker Street, London NW1 6XE";
+        order.quantity = itemCount;
+        order.price = 99.95;
+        order.items = new ArrayList<String>(itemCount);
+        for (int i = 0; i < itemCount; i++) {
+            order.items.add("SKU-" + (100000 + i));
+        }
+        return order;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getCustomer() {
+        return customer;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    public boolean isConfirmed() {
+        return confirmed;
+    }
+
+    public void setConfirmed(boolean confirmed) {
+        this.confirmed = confirmed;
+    }
+
+    public List<String> getItems() {
+        return items;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcRequest;
+import ru.fractalizer.jrapidrpc.api.ProtocolDataException;
+import ru.fractalizer.jrapidrpc.serializer.protostuff.SerializerCore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of requests and replies by {@link SerializerCore}, both through buffer and stream SPI
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializerBenchmark {
+
+    /**
+     * Method called: no payload, short string or an order with 20 items
+     */
+    @Param({"ping", "echo", "process"})
+    public String method;
+
+    private SerializerCore        serializer;
+    private MsgRpcRequest         request;
+    private MsgRpcReply           reply;
+    private ByteBuffer            buffer;
+    private ByteBuffer            encodedRequest;
+    private ByteBuffer            encodedReply;
+    private byte[]                encodedRequestBytes;
+    private ByteArrayOutputStream stream;
+
+    @Setup
+    public void setUp() throws IOException {
+        serializer = new SerializerCore(BenchmarkService.class, 4096);
+        if (method.equals("ping")) {
+            request = new MsgRpcRequest(1, (short) 1, "ping", new Object[0]);
+            reply = new MsgRpcReply(1, (short) 1, null, null);
+        } else if (method.equals("echo")) {
+            request = new MsgRpcRequest(1, (short) 2, "echo", new Object[]{"Hello, world!"});
+            reply = new MsgRpcReply(1, (short) 2, null, "Hello, world!");
+        } else {
+            Order order = Order.sample(20);
+            request = new MsgRpcRequest(1, (short) 3, "process", new Object[]{order});
+            reply = new MsgRpcReply(1, (short) 3, null, order);
+        }
+
+        buffer = ByteBuffer.allocate(4096);
+        encodedRequest = serializer.encodeRpcRequest(request, ByteBuffer.allocate(4096));
+        encodedRequest.flip();
+        encodedReply = serializer.encodeRpcReply(reply, ByteBuffer.allocate(4096));
+        encodedReply.flip();
+        encodedRequestBytes = new byte[encodedRequest.remaining()];
+        encodedRequest.duplicate().get(encodedRequestBytes);
+        stream = new ByteArrayOutputStream(4096);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeRequest() throws IOException {
+        buffer.clear();
+        return serializer.encodeRpcRequest(request, buffer);
+    }
+
+    @Benchmark
+    public MsgRpcRequest decodeRequest() throws ProtocolDataException {
+        encodedRequest.rewind();
+        return serializer.decodeRpcRequest(encodedRequest);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeReply() throws IOException {
+        buffer.clear();
+        return serializer.encodeRpcReply(reply, buffer);
+    }
+
+    @Benchmark
+    public MsgRpcReply decodeReply() throws ProtocolDataException {
+        encodedReply.rewind();
+        return serializer.decodeRpcReply(encodedReply);
+    }
+
+    @Benchmark
+    public int sendRequestToStream() throws IOException {
+        stream.reset();
+        serializer.sendRpcRequest(request, stream);
+        return stream.size();
+    }
+
+    @Benchmark
+    public MsgRpcRequest receiveRequestFromStream() throws IOException, ProtocolDataException {
+        return serializer.receiveRpcRequest(new ByteArrayInputStream(encodedRequestBytes));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrcdemo;
+
+import ru.fractalizer.jrapidrpc.tools.MethodInvoker;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import java.lang.reflect.Method;
+
+/**
+ * Compares server-side dispatch through {@link Method#invoke(Object, Object...)} with dispatch through invokers built
+ * by {@link ReflectionCache}. Calls go round-robin over methods of {@link ServiceInterface}, so that the call site is
+ * as polymorphic as the one in the server. Run with {@code java -cp jRapidRPC-Demo.jar
+ * ru.fractalizer.jrapidrcdemo.InvokerBenchmark}.
+ */
+public class InvokerBenchmark {
+
+    /**
+     * How many calls to make in each round
+     */
+    private static final int BENCHMARK_CYCLES = 20000000;
+
+    /**
+     * How many rounds to make. The first ones are JIT warm-up
+     */
+    private static final int BENCHMARK_ROUNDS = 5;
+
+    /**
+     * Main application entry method
+     *
+     * @param args Arguments (not used).
+     * @throws Throwable Is thrown in case something went wrong
+     */
+    public static void main(String[] args) throws Throwable {
+        ReflectionCache reflectionCache = new ReflectionCache(ServiceInterface.class);
+        ServiceObject serviceObject = new ServiceObject();
+
+        String[] methodNames = {"voidMethod", "mirror", "complexTypeMethod"};
+        Object[][] methodArgs = {null, new Object[]{"Here was Vasya!"}, new Object[]{new ComplexType()}};
+
+        Method[] methods = new Method[methodNames.length];
+        MethodInvoker[] invokers = new MethodInvoker[methodNames.length];
+        for (int i = 0; i < methodNames.length; i++) {
+            methods[i] = reflectionCache.getMethodMethod(methodNames[i]);
+            invokers[i] = reflectionCache.getMethodInvoker(methodNames[i]);
+        }
+
+        for (int round = 1; round <= BENCHMARK_ROUNDS; round++) {
+            Object blackhole = null;
+
+            long startTime = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_CYCLES; i++) {
+                int index = i % methods.length;
+                blackhole = methods[index].invoke(serviceObject, methodArgs[index]);
+            }
+            long reflectionTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_CYCLES; i++) {
+                int index = i % invokers.length;
+                blackhole = invokers[index].invoke(serviceObject, methodArgs[index]);
+            }
+            long invokerTime = System.nanoTime() - startTime;
+
+            System.out.printf("Round %d: Method.invoke %8.2f ns/call, MethodInvoker %8.2f ns/call (%s)%n", round,
+                    reflectionTime * 1.0 / BENCHMARK_CYCLES, invokerTime * 1.0 / BENCHMARK_CYCLES,
+                    blackhole != null ? "ok" : "null");
+        }
+    }
+}
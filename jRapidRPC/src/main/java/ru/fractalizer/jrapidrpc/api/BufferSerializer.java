@@ -0,0 +1,75 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Serializer able to encode messages into and decode them from {@link ByteBuffer}s directly, without stream
+ * wrapping. Frames have the same layout as the ones {@link Serializer} methods produce, so both kinds of peers can talk
+ * to each other. Buffers can be heap or direct ones.
+ * <p>
+ * Decoding methods support incremental frame assembly: if buffer does not contain a complete frame yet, they return
+ * null and leave buffer untouched, so that the caller can read more data into the buffer and try again.
+ */
+public interface BufferSerializer extends Serializer {
+
+    /**
+     * Method should append serialized RPC request frame to a given buffer
+     *
+     * @param msg    Message to serialize
+     * @param buffer Buffer in write mode. Frame is put at its position
+     * @return The buffer holding the frame. It is the given buffer if frame fits into its remaining space, otherwise a
+     *         larger buffer of the same kind (heap or direct) containing data of the given buffer followed by the
+     *         frame. Position of the returned buffer is right after the frame
+     * @throws IOException Is thrown if message cannot be serialized
+     */
+    ByteBuffer encodeRpcRequest(MsgRpcRequest msg, ByteBuffer buffer) throws IOException;
+
+    /**
+     * Method should deserialize RPC request from a given buffer
+     *
+     * @param buffer Buffer in read mode
+     * @return Deserialized message or null if buffer does not contain a complete frame yet. In the former case buffer
+     *         position is moved right after the frame, in the latter it is left untouched
+     * @throws ProtocolDataException If something is wrong with protocol data on request
+     */
+    MsgRpcRequest decodeRpcRequest(ByteBuffer buffer) throws ProtocolDataException;
+
+    /**
+     * Method should append serialized RPC reply frame to a given buffer
+     *
+     * @param msg    Message to serialize
+     * @param buffer Buffer in write mode. Frame is put at its position
+     * @return The buffer holding the frame. See {@link #encodeRpcRequest(MsgRpcRequest, ByteBuffer)}
+     * @throws IOException Is thrown if message cannot be serialized
+     */
+    ByteBuffer encodeRpcReply(MsgRpcReply msg, ByteBuffer buffer) throws IOException;
+
+    /**
+     * Method should deserialize RPC reply from a given buffer
+     *
+     * @param buffer Buffer in read mode
+     * @return Deserialized message or null if buffer does not contain a complete frame yet. See
+     *         {@link #decodeRpcRequest(ByteBuffer)}
+     * @throws ProtocolDataException If something is wrong with protocol data on reply
+     */
+    MsgRpcReply decodeRpcReply(ByteBuffer buffer) throws ProtocolDataException;
+}
@@ -0,0 +1,111 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Serializer able to handle encoded messages as opaque frames. Servers use it to cache encoded replies of
+ * {@link RpcCacheable} methods and send them again without invoking the method or encoding the reply. Clients use it
+ * to cache replies locally. Frames include their length prefix and have the same layout as the ones
+ * {@link Serializer} methods produce.
+ */
+public interface FrameSerializer extends Serializer {
+
+    /**
+     * Method should serialize RPC request into a frame
+     *
+     * @param msg Message to serialize
+     * @return Frame. It can be written to a stream as is
+     * @throws IOException Is thrown if message cannot be serialized
+     */
+    byte[] encodeRpcRequestFrame(MsgRpcRequest msg) throws IOException;
+
+    /**
+     * Method should read a single RPC request frame from the stream without deserializing it
+     *
+     * @param inputStream Stream to read frame from
+     * @return Frame read
+     * @throws IOException           Is thrown if there is a problem reading from stream
+     * @throws ProtocolDataException If frame is malformed
+     */
+    byte[] receiveRpcRequestFrame(InputStream inputStream) throws IOException, ProtocolDataException;
+
+    /**
+     * Method should deserialize RPC request frame
+     *
+     * @param frame Frame read by {@link #receiveRpcRequestFrame(InputStream)}
+     * @return Deserialized message
+     * @throws ProtocolDataException If something is wrong with protocol data on request
+     */
+    MsgRpcRequest decodeRpcRequestFrame(byte[] frame) throws ProtocolDataException;
+
+    /**
+     * Method should return part of the request frame identifying the call: method and encoded parameters, but not the
+     * call ID. Requests calling the same method with equal parameters should have equal keys.
+     *
+     * @param frame Frame read by {@link #receiveRpcRequestFrame(InputStream)}
+     * @return Buffer sharing content with the frame
+     * @throws ProtocolDataException If frame is malformed
+     */
+    ByteBuffer getRpcRequestKey(byte[] frame) throws ProtocolDataException;
+
+    /**
+     * Method should serialize RPC reply into a frame
+     *
+     * @param msg Message to serialize
+     * @return Frame
+     * @throws IOException Is thrown if message cannot be serialized
+     */
+    byte[] encodeRpcReplyFrame(MsgRpcReply msg) throws IOException;
+
+    /**
+     * Method should read a single RPC reply frame from the stream without deserializing it
+     *
+     * @param inputStream Stream to read frame from
+     * @return Frame read
+     * @throws IOException           Is thrown if there is a problem reading from stream
+     * @throws ProtocolDataException If frame is malformed
+     */
+    byte[] receiveRpcReplyFrame(InputStream inputStream) throws IOException, ProtocolDataException;
+
+    /**
+     * Method should deserialize RPC reply frame
+     *
+     * @param frame Frame read by {@link #receiveRpcReplyFrame(InputStream)} or encoded by
+     *              {@link #encodeRpcReplyFrame(MsgRpcReply)}
+     * @return Deserialized message
+     * @throws ProtocolDataException If something is wrong with protocol data on reply
+     */
+    MsgRpcReply decodeRpcReplyFrame(byte[] frame) throws ProtocolDataException;
+
+    /**
+     * Method should write RPC reply frame to the stream, replacing call ID the frame was encoded with. Frame itself
+     * must stay unchanged, because it can be written by several threads at once.
+     *
+     * @param frame        Frame encoded by {@link #encodeRpcReplyFrame(MsgRpcReply)}
+     * @param callId       Call ID of the request being replied to
+     * @param outputStream Stream to write frame to
+     * @throws IOException Is thrown if there is a problem writing to stream
+     */
+    void sendRpcReplyFrame(byte[] frame, int callId, OutputStream outputStream) throws IOException;
+}
@@ -0,0 +1,74 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.api;
+
+/**
+ * Class incapsulates cache invalidation message. Server pushes it to subscribed clients to drop cached replies of
+ * {@link RpcCacheable} methods: either all replies of a method or the reply to a single call. Invalidations travel as
+ * replies with {@link #CALL_ID}, see {@link MsgRpcReply#getCacheInvalidation()}.
+ */
+public final class MsgCacheInvalidation {
+
+    /**
+     * Call ID of replies carrying invalidations
+     */
+    public static final int CALL_ID = -1;
+
+    /**
+     * Reserved method ID. Request to this method subscribes connection to invalidations. It is answered with an empty
+     * reply and is never dispatched to the service object
+     */
+    public static final short SUBSCRIBE_METHOD_ID = Short.MIN_VALUE;
+
+    private final short  methodId;
+    private final byte[] key;
+
+    /**
+     * Constructor invalidating all replies of a method
+     *
+     * @param methodId ID of the method
+     */
+    public MsgCacheInvalidation(short methodId) {
+        this(methodId, null);
+    }
+
+    /**
+     * Constructor invalidating reply to a single call
+     *
+     * @param methodId ID of the method
+     * @param key      Request key of the call, see {@link FrameSerializer#getRpcRequestKey(byte[])}. Null
+     *                 invalidates all replies of the method
+     */
+    public MsgCacheInvalidation(short methodId, byte[] key) {
+        super();
+        this.methodId = methodId;
+        this.key = key;
+    }
+
+    public short getMethodId() {
+        return methodId;
+    }
+
+    /**
+     * @return Request key of the call or null if all replies of the method are invalidated
+     */
+    public byte[] getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.api;
+
+/**
+ * Class incapsulates compression codecs client offers to server right after connecting. Offer travels as a request to
+ * the reserved {@link #METHOD_ID}, see {@link MsgRpcRequest#getCompressionOffer()}. Server answers with a reply which
+ * return value is the name of the codec it picked or null. Servers which do not support compression answer with an
+ * error, as for any unknown method. Once the reply is sent, both sides compress frames with the codec picked.
+ */
+public final class MsgCompressionOffer {
+
+    /**
+     * Reserved method ID of compression offers. Offer is never dispatched to the service object
+     */
+    public static final short METHOD_ID = Short.MIN_VALUE + 1;
+
+    private final String[] codecNames;
+
+    /**
+     * Default constructor
+     *
+     * @param codecNames Names of codecs client supports, most preferred first
+     */
+    public MsgCompressionOffer(String[] codecNames) {
+        super();
+        this.codecNames = codecNames;
+    }
+
+    public String[] getCodecNames() {
+        return codecNames;
+    }
+}
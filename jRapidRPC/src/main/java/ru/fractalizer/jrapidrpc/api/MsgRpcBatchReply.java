@@ -0,0 +1,42 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.api;
+
+/**
+ * Class incapsulates replies to a {@link MsgRpcBatchRequest}. Every call has its own reply, so an error in one of them
+ * does not affect the others. Batch replies travel inside of replies, see {@link MsgRpcReply#getBatch()}.
+ */
+public final class MsgRpcBatchReply {
+
+    private final MsgRpcReply[] replies;
+
+    /**
+     * Default constructor
+     *
+     * @param replies Replies in the order of batched requests
+     */
+    public MsgRpcBatchReply(MsgRpcReply[] replies) {
+        super();
+        this.replies = replies;
+    }
+
+    public MsgRpcReply[] getReplies() {
+        return replies;
+    }
+}
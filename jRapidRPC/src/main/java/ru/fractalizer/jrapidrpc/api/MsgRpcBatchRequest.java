@@ -0,0 +1,53 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.api;
+
+/**
+ * Class incapsulates batch of RPC requests sent in a single frame. Server executes all calls and answers with a single
+ * {@link MsgRpcBatchReply}. Batches travel inside of requests, see {@link MsgRpcRequest#getBatch()}.
+ */
+public final class MsgRpcBatchRequest {
+
+    private final MsgRpcRequest[] requests;
+    private final boolean         parallel;
+
+    /**
+     * Default constructor
+     *
+     * @param requests Calls to execute. Batches cannot be nested
+     * @param parallel True if server may execute calls in parallel, false if they must run one by one in order
+     */
+    public MsgRpcBatchRequest(MsgRpcRequest[] requests, boolean parallel) {
+        super();
+        this.requests = requests;
+        this.parallel = parallel;
+    }
+
+    public MsgRpcRequest[] getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return True if server may execute calls in parallel. Server still runs them one by one if service object is
+     *         not shared between connections
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+}
@@ -23,8 +23,17 @@ package ru.fractalizer.jrapidrpc.api;
  */
 public final class MsgRpcReply {
 
-    private final String errorMessage;
-    private final Object methodReturnValue;
+    private final int     callId;
+    private final short   methodId;
+    private final boolean methodIdResolved;
+    private final String  errorMessage;
+    private final Object  methodReturnValue;
+    private final boolean overloaded;
+    private final boolean deadlineExceeded;
+
+    private final MsgCacheInvalidation cacheInvalidation;
+    private final MsgRpcBatchReply     batch;
+    private final MsgRpcStreamChunk    streamChunk;
 
     /**
      * Default constructor.
@@ -33,9 +42,126 @@ public final class MsgRpcReply {
      * @param methodReturnValue The return value of the RPC method we called
      */
     public MsgRpcReply(String errorMessage, Object methodReturnValue) {
+        this(0, errorMessage, methodReturnValue);
+    }
+
+    /**
+     * Constructor for multiplexed connections
+     *
+     * @param callId            ID of the request this reply answers, see {@link MsgRpcRequest#getCallId()}
+     * @param errorMessage      Error message if an error occured, null otherwise
+     * @param methodReturnValue The return value of the RPC method we called
+     */
+    public MsgRpcReply(int callId, String errorMessage, Object methodReturnValue) {
+        this(callId, (short) 0, false, errorMessage, methodReturnValue);
+    }
+
+    /**
+     * Constructor for replies to requests with known method ID. Serializer may use the ID to encode return value with
+     * the schema of the method return type
+     *
+     * @param callId            ID of the request this reply answers, see {@link MsgRpcRequest#getCallId()}
+     * @param methodId          ID of the method called, see {@link MsgRpcRequest#getMethodId()}
+     * @param errorMessage      Error message if an error occured, null otherwise
+     * @param methodReturnValue The return value of the RPC method we called
+     */
+    public MsgRpcReply(int callId, short methodId, String errorMessage, Object methodReturnValue) {
+        this(callId, methodId, true, errorMessage, methodReturnValue);
+    }
+
+    /**
+     * Constructor for errors. Server refusing a call because it is overloaded did not execute it, so client may retry
+     * it later, see {@link RpcOverloadedException}
+     *
+     * @param callId       ID of the request this reply answers, see {@link MsgRpcRequest#getCallId()}
+     * @param errorMessage Error message
+     * @param overloaded   True if call was refused because server is overloaded
+     */
+    public MsgRpcReply(int callId, String errorMessage, boolean overloaded) {
+        this(callId, errorMessage, overloaded, false);
+    }
+
+    /**
+     * Constructor for errors of calls refused without being executed
+     *
+     * @param callId           ID of the request this reply answers, see {@link MsgRpcRequest#getCallId()}
+     * @param errorMessage     Error message
+     * @param overloaded       True if call was refused because server is overloaded
+     * @param deadlineExceeded True if call was refused because its deadline had passed, see
+     *                         {@link RpcDeadlineExceededException}
+     */
+    public MsgRpcReply(int callId, String errorMessage, boolean overloaded, boolean deadlineExceeded) {
+        this(callId, (short) 0, false, errorMessage, null, overloaded, deadlineExceeded, null, null, null);
+    }
+
+    /**
+     * Constructor for cache invalidations pushed by server. Such replies do not answer any request
+     *
+     * @param cacheInvalidation Invalidation to push
+     */
+    public MsgRpcReply(MsgCacheInvalidation cacheInvalidation) {
+        this(MsgCacheInvalidation.CALL_ID, (short) 0, false, null, null, false, false, cacheInvalidation, null, null);
+    }
+
+    /**
+     * Constructor for replies to batches of calls
+     *
+     * @param callId ID of the request this reply answers, see {@link MsgRpcRequest#getCallId()}
+     * @param batch  Replies to batched calls
+     */
+    public MsgRpcReply(int callId, MsgRpcBatchReply batch) {
+        this(callId, (short) 0, false, null, null, false, false, null, batch, null);
+    }
+
+    /**
+     * Constructor for chunks of streams returned by streaming methods
+     *
+     * @param callId      ID of the request this reply answers, see {@link MsgRpcRequest#getCallId()}
+     * @param methodId    ID of the method called. Serializer may use it to encode elements with the schema of the
+     *                    stream element type
+     * @param streamChunk Elements of the chunk
+     */
+    public MsgRpcReply(int callId, short methodId, MsgRpcStreamChunk streamChunk) {
+        this(callId, methodId, true, null, null, false, false, null, null, streamChunk);
+    }
+
+    private MsgRpcReply(int callId, short methodId, boolean methodIdResolved, String errorMessage,
+                        Object methodReturnValue) {
+        this(callId, methodId, methodIdResolved, errorMessage, methodReturnValue, false, false, null, null, null);
+    }
+
+    private MsgRpcReply(int callId, short methodId, boolean methodIdResolved, String errorMessage,
+                        Object methodReturnValue, boolean overloaded, boolean deadlineExceeded,
+                        MsgCacheInvalidation cacheInvalidation, MsgRpcBatchReply batch, MsgRpcStreamChunk streamChunk) {
         super();
+        this.callId = callId;
+        this.methodId = methodId;
+        this.methodIdResolved = methodIdResolved;
         this.errorMessage = errorMessage;
         this.methodReturnValue = methodReturnValue;
+        this.overloaded = overloaded;
+        this.deadlineExceeded = deadlineExceeded;
+        this.cacheInvalidation = cacheInvalidation;
+        this.batch = batch;
+        this.streamChunk = streamChunk;
+    }
+
+    public int getCallId() {
+        return callId;
+    }
+
+    /**
+     * @return True if reply carries ID of the method called
+     */
+    public boolean hasMethodId() {
+        return methodIdResolved;
+    }
+
+    /**
+     * @return ID of the method called. Meaningful only if {@link #hasMethodId()} is true
+     */
+    public short getMethodId() {
+        return methodId;
     }
 
     public String getErrorMessage() {
@@ -45,4 +171,39 @@ public final class MsgRpcReply {
     public Object getMethodReturnValue() {
         return methodReturnValue;
     }
+
+    /**
+     * @return True if call was refused without being executed because server is overloaded
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * @return True if call was refused without being executed because its deadline had passed
+     */
+    public boolean isDeadlineExceeded() {
+        return deadlineExceeded;
+    }
+
+    /**
+     * @return Cache invalidation pushed by server or null if this is a reply to a request
+     */
+    public MsgCacheInvalidation getCacheInvalidation() {
+        return cacheInvalidation;
+    }
+
+    /**
+     * @return Replies to batched calls or null if this is a reply to a single call
+     */
+    public MsgRpcBatchReply getBatch() {
+        return batch;
+    }
+
+    /**
+     * @return Chunk of a stream or null if this reply is not a part of a stream
+     */
+    public MsgRpcStreamChunk getStreamChunk() {
+        return streamChunk;
+    }
 }
@@ -23,15 +23,138 @@ package ru.fractalizer.jrapidrpc.api;
  */
 public final class MsgRpcRequest {
 
+    private int      callId           = 0;
+    private short    methodId         = 0;
+    private boolean  methodIdResolved = false;
     private String   methodName       = null;
     private Object[] methodParameters = null;
 
+    private MsgRpcBatchRequest batch       = null;
+    private MsgStreamCredit    streamCredit = null;
+
+    private MsgCompressionOffer compressionOffer = null;
+
+    private boolean hasDeadline   = false;
+    private long    deadlineNanos = 0;
+
     public MsgRpcRequest(String methodName, Object[] methodParameters) {
+        this(0, methodName, methodParameters);
+    }
+
+    /**
+     * Constructor for multiplexed connections
+     *
+     * @param callId           ID correlating the reply with this request. 0 means there is no more than one call in
+     *                         flight on the connection and the reply is matched by order
+     * @param methodName       The name of the method to call
+     * @param methodParameters Method call arguments
+     */
+    public MsgRpcRequest(int callId, String methodName, Object[] methodParameters) {
         super();
+        this.callId = callId;
         this.methodName = methodName;
         this.methodParameters = methodParameters;
     }
 
+    /**
+     * Constructor for callers which already know method ID, so that serializer and server do not have to look it up
+     * by name
+     *
+     * @param callId           ID correlating the reply with this request. 0 means there is no more than one call in
+     *                         flight on the connection and the reply is matched by order
+     * @param methodId         ID of the method to call, as set by {@link RpcMethod} annotation
+     * @param methodName       The name of the method to call
+     * @param methodParameters Method call arguments
+     */
+    public MsgRpcRequest(int callId, short methodId, String methodName, Object[] methodParameters) {
+        this(callId, methodName, methodParameters);
+        this.methodId = methodId;
+        this.methodIdResolved = true;
+    }
+
+    /**
+     * Constructor for calls with a deadline, see {@link RpcTimeout}
+     *
+     * @param callId           ID correlating the reply with this request. 0 means there is no more than one call in
+     *                         flight on the connection and the reply is matched by order
+     * @param methodId         ID of the method to call, as set by {@link RpcMethod} annotation
+     * @param methodName       The name of the method to call
+     * @param methodParameters Method call arguments
+     * @param deadlineNanos    {@link System#nanoTime()} of this process by which the call must complete
+     */
+    public MsgRpcRequest(int callId, short methodId, String methodName, Object[] methodParameters,
+                         long deadlineNanos) {
+        this(callId, methodId, methodName, methodParameters);
+        this.hasDeadline = true;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Constructor for batches of calls
+     *
+     * @param callId ID correlating the reply with this request. 0 means there is no more than one call in flight on
+     *               the connection and the reply is matched by order
+     * @param batch  Calls to execute
+     */
+    public MsgRpcRequest(int callId, MsgRpcBatchRequest batch) {
+        this(callId, null, null);
+        this.batch = batch;
+    }
+
+    /**
+     * Constructor for batches of calls with a deadline. It applies to every call of the batch
+     *
+     * @param callId        ID correlating the reply with this request. 0 means there is no more than one call in
+     *                      flight on the connection and the reply is matched by order
+     * @param batch         Calls to execute
+     * @param deadlineNanos {@link System#nanoTime()} of this process by which the batch must complete
+     */
+    public MsgRpcRequest(int callId, MsgRpcBatchRequest batch, long deadlineNanos) {
+        this(callId, batch);
+        this.hasDeadline = true;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Constructor for credits granted to a stream
+     *
+     * @param callId       ID of the streaming call
+     * @param streamCredit Credit granted
+     */
+    public MsgRpcRequest(int callId, MsgStreamCredit streamCredit) {
+        this(callId, null, null);
+        this.streamCredit = streamCredit;
+    }
+
+    /**
+     * Constructor for compression offers
+     *
+     * @param callId           ID correlating the reply with this request
+     * @param compressionOffer Codecs offered
+     */
+    public MsgRpcRequest(int callId, MsgCompressionOffer compressionOffer) {
+        this(callId, MsgCompressionOffer.METHOD_ID, null, null);
+        this.compressionOffer = compressionOffer;
+    }
+
+    public int getCallId() {
+        return callId;
+    }
+
+    /**
+     * @return True if request carries method ID, false if method is known by name only
+     */
+    public boolean hasMethodId() {
+        return methodIdResolved;
+    }
+
+    /**
+     * @return ID of the method to call. Meaningful only if {@link #hasMethodId()} is true
+     */
+    public short getMethodId() {
+        return methodId;
+    }
+
     public String getMethodName() {
         return methodName;
     }
@@ -39,4 +162,41 @@ public final class MsgRpcRequest {
     public Object[] getMethodParameters() {
         return methodParameters;
     }
+
+    /**
+     * @return Batch of calls or null if this is a single call
+     */
+    public MsgRpcBatchRequest getBatch() {
+        return batch;
+    }
+
+    /**
+     * @return Credit granted to a stream or null if this is a call
+     */
+    public MsgStreamCredit getStreamCredit() {
+        return streamCredit;
+    }
+
+    /**
+     * @return True if call has a deadline
+     */
+    public boolean hasDeadline() {
+        return hasDeadline;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} of this process by which the call must complete. Meaningful only if
+     *         {@link #hasDeadline()} is true. Serializers send the time left, so that clocks of client and server need
+     *         not agree
+     */
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    /**
+     * @return Compression offer or null if this is a call
+     */
+    public MsgCompressionOffer getCompressionOffer() {
+        return compressionOffer;
+    }
 }
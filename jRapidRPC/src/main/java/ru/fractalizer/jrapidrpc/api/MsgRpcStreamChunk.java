@@ -0,0 +1,51 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.api;
+
+/**
+ * Class incapsulates a chunk of elements of {@link RpcStream} returned by a streaming method. Chunks travel as replies
+ * with the call ID of the request, see {@link MsgRpcReply#getStreamChunk()}. The last chunk may be empty. If
+ * method fails while elements are produced, stream ends with an ordinary reply carrying the error instead of the
+ * last chunk.
+ */
+public final class MsgRpcStreamChunk {
+
+    private final Object[] elements;
+    private final boolean  last;
+
+    /**
+     * Default constructor
+     *
+     * @param elements Elements of the chunk
+     * @param last     True if there are no more elements in the stream
+     */
+    public MsgRpcStreamChunk(Object[] elements, boolean last) {
+        super();
+        this.elements = elements;
+        this.last = last;
+    }
+
+    public Object[] getElements() {
+        return elements;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+}
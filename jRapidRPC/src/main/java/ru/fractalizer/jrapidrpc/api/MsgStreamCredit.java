@@ -0,0 +1,61 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.api;
+
+/**
+ * Class incapsulates credit granted by client to the stream it reads. Each credit allows server to send one more
+ * {@link MsgRpcStreamChunk}. Server starts every stream with {@link #INITIAL_CREDITS}, client grants more as it
+ * consumes chunks. Credits travel as requests with the call ID of the streaming call, see
+ * {@link MsgRpcRequest#getStreamCredit()}, and are never answered.
+ */
+public final class MsgStreamCredit {
+
+    /**
+     * Number of chunks server may send before the first credit arrives
+     */
+    public static final int INITIAL_CREDITS = 4;
+
+    /**
+     * Credit value cancelling the stream. Server stops producing elements and sends an empty last chunk
+     */
+    public static final int CANCEL = -1;
+
+    private final int credits;
+
+    /**
+     * Default constructor
+     *
+     * @param credits Number of chunks server may send in addition to already granted ones or {@link #CANCEL}
+     */
+    public MsgStreamCredit(int credits) {
+        super();
+        this.credits = credits;
+    }
+
+    public int getCredits() {
+        return credits;
+    }
+
+    /**
+     * @return True if client cancels the stream
+     */
+    public boolean isCancel() {
+        return credits == CANCEL;
+    }
+}
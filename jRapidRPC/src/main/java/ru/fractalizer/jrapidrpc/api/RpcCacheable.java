@@ -0,0 +1,50 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.api;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This annotation marks an RPC method as idempotent and side-effect free, so that server can cache its replies. Calls
+ * with equal encoded parameters get the cached reply until it expires. Replies with errors are never cached. Server
+ * needs a {@link FrameSerializer} to cache replies. Streaming methods are never cached, see {@link RpcStream}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface RpcCacheable {
+
+    /**
+     * @return Time a reply stays in the cache
+     */
+    long ttl() default 60;
+
+    /**
+     * @return Time unit of ttl
+     */
+    TimeUnit unit() default TimeUnit.SECONDS;
+
+    /**
+     * @return Maximum number of cached replies of the method. Least recently used replies are evicted first
+     */
+    int maxEntries() default 1024;
+}
@@ -0,0 +1,31 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.api;
+
+/**
+ * Exception is thrown when RPC call did not complete before its deadline, see {@link RpcTimeout}. If server refused
+ * the call because its deadline had passed on arrival, method was not called. If client gave up waiting for reply,
+ * method may have been called or may still be running, and the connection the reply was due on is closed
+ */
+public class RpcDeadlineExceededException extends RpcMethodInvocationException {
+
+    public RpcDeadlineExceededException(String message) {
+        super(message);
+    }
+}
@@ -32,6 +32,9 @@ import java.lang.annotation.Target;
 public @interface RpcMethod {
 
     /**
+     * IDs {@link MsgCacheInvalidation#SUBSCRIBE_METHOD_ID} and {@link MsgCompressionOffer#METHOD_ID}, the two lowest
+     * values of short, are reserved for protocol messages. Interfaces using them are rejected
+     *
      * @return The ID of the RPC method for communication
      */
     short methodId();
@@ -26,4 +26,22 @@ public class RpcMethodInvocationException extends Exception {
     public RpcMethodInvocationException(String message) {
         super(message);
     }
+
+    /**
+     * Creates exception reporting error of a call to the caller
+     *
+     * @param msgRpcReply Reply carrying error message
+     * @return {@link RpcOverloadedException} if server refused the call being overloaded,
+     *         {@link RpcDeadlineExceededException} if it refused the call as expired, RpcMethodInvocationException
+     *         otherwise
+     */
+    public static RpcMethodInvocationException forReply(MsgRpcReply msgRpcReply) {
+        if (msgRpcReply.isOverloaded()) {
+            return new RpcOverloadedException(msgRpcReply.getErrorMessage());
+        }
+        if (msgRpcReply.isDeadlineExceeded()) {
+            return new RpcDeadlineExceededException(msgRpcReply.getErrorMessage());
+        }
+        return new RpcMethodInvocationException(msgRpcReply.getErrorMessage());
+    }
 }
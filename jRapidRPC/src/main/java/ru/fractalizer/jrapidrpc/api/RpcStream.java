@@ -0,0 +1,41 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.api;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Sequence of values returned by an {@link RpcMethod} piece by piece. Methods returning {@link Iterator},
+ * {@link java.util.stream.Stream} or RpcStream are streaming methods: server sends their elements in chunks as client
+ * consumes them, so neither side holds the whole sequence in memory. Server closes the stream returned by service
+ * object when it is fully sent or cancelled. On client, closing the stream before its end cancels it.
+ * <p>
+ * Errors are thrown as {@link RpcStreamException}, since iterator methods cannot throw checked exceptions.
+ *
+ * @param <T> Type of elements
+ */
+public interface RpcStream<T> extends Iterator<T>, Closeable {
+
+    /**
+     * Releases resources of the stream. Does not throw, unlike {@link Closeable#close()}
+     */
+    @Override
+    void close();
+}
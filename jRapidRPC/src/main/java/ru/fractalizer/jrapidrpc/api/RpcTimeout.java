@@ -0,0 +1,47 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.api;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This annotation sets the time clients wait for replies to calls of an RPC method. Placed on the service interface,
+ * it applies to all methods not annotated themselves. It takes precedence over the default timeout of the client.
+ * Deadline of the call is sent to the server, which does not execute calls whose deadline has passed, see
+ * {@link RpcDeadlineExceededException}. Service code can check the time left with
+ * {@link ru.fractalizer.jrapidrpc.server.RpcDeadline}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface RpcTimeout {
+
+    /**
+     * @return Time to wait for reply. Zero means calls have no deadline, whatever the default of the client is
+     */
+    long value();
+
+    /**
+     * @return Time unit of value
+     */
+    TimeUnit unit() default TimeUnit.MILLISECONDS;
+}
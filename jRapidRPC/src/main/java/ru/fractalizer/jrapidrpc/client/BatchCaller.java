@@ -0,0 +1,42 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.client;
+
+import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcRequest;
+import ru.fractalizer.jrapidrpc.api.ProtocolDataException;
+
+import java.io.IOException;
+
+/**
+ * Client able to send a batch of calls to the server in a single frame, see {@link RpcBatch}
+ */
+public interface BatchCaller {
+
+    /**
+     * Sends batch request and waits for the reply
+     *
+     * @param msgRpcRequest Request carrying {@link ru.fractalizer.jrapidrpc.api.MsgRpcBatchRequest}
+     * @return Reply carrying {@link ru.fractalizer.jrapidrpc.api.MsgRpcBatchReply} or an error if server could not
+     *         execute the batch
+     * @throws IOException           Is thrown on any connection problem
+     * @throws ProtocolDataException If something is wrong with protocol data on reply
+     */
+    MsgRpcReply callBatch(MsgRpcRequest msgRpcRequest) throws IOException, ProtocolDataException;
+}
@@ -0,0 +1,153 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.client;
+
+import ru.fractalizer.jrapidrpc.api.MsgRpcBatchReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcBatchRequest;
+import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcRequest;
+import ru.fractalizer.jrapidrpc.api.ProtocolDataException;
+import ru.fractalizer.jrapidrpc.api.RpcMethodInvocationException;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records calls made to its proxy and sends them to the server in a single frame on {@link #execute()}. Proxy methods
+ * return nothing meaningful (null, zero or false), results are read from {@link RpcBatchResult} instead. Batch is not
+ * thread-safe.
+ * <pre>
+ * RpcBatch&lt;Service&gt; batch = client.newBatch(true);
+ * batch.getProxy().findCustomer(1);
+ * batch.getProxy().findCustomer(2);
+ * RpcBatchResult result = batch.execute();
+ * Customer first = result.get(0);
+ * </pre>
+ */
+@SuppressWarnings({"unchecked"})
+public final class RpcBatch<T> implements InvocationHandler {
+
+    private final ReflectionCache     reflectionCache;
+    private final BatchCaller         caller;
+    private final boolean             parallel;
+    private final T                   proxy;
+    private final List<MsgRpcRequest> requests;
+
+    /**
+     * Default constructor. Clients create batches with their newBatch() method
+     *
+     * @param serviceInterface RPC interface calls are recorded against
+     * @param reflectionCache  Reflection cache of the interface
+     * @param caller           Client to send batch with
+     * @param parallel         True if server may execute calls in parallel, false if they must run one by one in order
+     */
+    public RpcBatch(Class<T> serviceInterface, ReflectionCache reflectionCache, BatchCaller caller, boolean parallel) {
+        super();
+        this.reflectionCache = reflectionCache;
+        this.caller = caller;
+        this.parallel = parallel;
+        this.proxy = (T) Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class[]{serviceInterface},
+                this);
+        this.requests = new ArrayList<MsgRpcRequest>();
+    }
+
+    /**
+     * @return Proxy recording calls to the batch
+     */
+    public T getProxy() {
+        return proxy;
+    }
+
+    /**
+     * @return Number of calls recorded
+     */
+    public int size() {
+        return requests.size();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        short methodId = reflectionCache.getMethodId(method);
+        if (reflectionCache.isStreaming(methodId)) {
+            throw new UnsupportedOperationException("Method '" + method.getName() + "' returns a stream, which " +
+                    "cannot be batched");
+        }
+        requests.add(new MsgRpcRequest(0, methodId, method.getName(), args));
+        return defaultValue(method.getReturnType());
+    }
+
+    /**
+     * Sends recorded calls to the server and waits for their results. Batch is empty afterwards and can be reused
+     *
+     * @return Results in the order of calls
+     * @throws RpcMethodInvocationException If server could not execute the batch at all. Errors of single calls are
+     *                                      reported by {@link RpcBatchResult}
+     * @throws IOException                  Is thrown on any connection problem
+     * @throws ProtocolDataException        If something is wrong with protocol data on reply
+     */
+    public RpcBatchResult execute() throws RpcMethodInvocationException, IOException, ProtocolDataException {
+        MsgRpcRequest[] batch = requests.toArray(new MsgRpcRequest[requests.size()]);
+        requests.clear();
+        if (batch.length == 0) {
+            return new RpcBatchResult(new MsgRpcReply[0]);
+        }
+        MsgRpcReply msgRpcReply = caller.callBatch(new MsgRpcRequest(0, new MsgRpcBatchRequest(batch, parallel)));
+        if (msgRpcReply.getErrorMessage() != null) {
+            throw RpcMethodInvocationException.forReply(msgRpcReply);
+        }
+        MsgRpcBatchReply batchReply = msgRpcReply.getBatch();
+        if (batchReply == null || batchReply.getReplies().length != batch.length) {
+            throw new ProtocolDataException("Reply does not match batch of " + batch.length + " calls", null);
+        }
+        return new RpcBatchResult(batchReply.getReplies());
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == char.class) {
+            return (char) 0;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0F;
+        }
+        return 0D;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.client;
+
+import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
+import ru.fractalizer.jrapidrpc.api.RpcMethodInvocationException;
+
+/**
+ * Results of calls executed by {@link RpcBatch}, in the order calls were recorded. Every call succeeds or fails on its
+ * own
+ */
+@SuppressWarnings({"unchecked"})
+public final class RpcBatchResult {
+
+    private final MsgRpcReply[] replies;
+
+    RpcBatchResult(MsgRpcReply[] replies) {
+        super();
+        this.replies = replies;
+    }
+
+    /**
+     * @return Number of calls
+     */
+    public int size() {
+        return replies.length;
+    }
+
+    /**
+     * Returns return value of a call
+     *
+     * @param index Index of the call in batch
+     * @return Return value of the method
+     * @throws RpcMethodInvocationException If the call failed
+     */
+    public <V> V get(int index) throws RpcMethodInvocationException {
+        if (replies[index].getErrorMessage() != null) {
+            throw RpcMethodInvocationException.forReply(replies[index]);
+        }
+        return (V) replies[index].getMethodReturnValue();
+    }
+
+    /**
+     * @param index Index of the call in batch
+     * @return True if the call failed
+     */
+    public boolean isFailed(int index) {
+        return replies[index].getErrorMessage() != null;
+    }
+
+    /**
+     * @param index Index of the call in batch
+     * @return Reply to the call
+     */
+    public MsgRpcReply getReply(int index) {
+        return replies[index];
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.client.balanced;
+
+import ru.fractalizer.jrapidrpc.api.*;
+import ru.fractalizer.jrapidrpc.client.BatchCaller;
+import ru.fractalizer.jrapidrpc.client.RpcBatch;
+import ru.fractalizer.jrapidrpc.client.pooled.PooledTCPClient;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client spreading calls across several servers exposing the same service. Every server endpoint gets a pool of
+ * connections, see {@link PooledTCPClient}, so a single proxy can be shared by any number of threads.
+ * <p>
+ * Each call goes to the better of two endpoints picked at random. Endpoint is better if it has lower average latency
+ * multiplied by the number of calls in progress, so slow or busy servers get less load without all callers rushing to
+ * the same one. Calls that could not connect or were refused by an overloaded server are tried on another endpoint,
+ * since server did not execute them, with whatever is left of their timeout. Endpoint failing several calls in a row,
+ * by connection problems or missed deadlines, is ejected for a while. When ejection ends, endpoint gets calls again,
+ * and its first failure ejects it for twice as long. If all endpoints are ejected, calls go to the one whose ejection
+ * ends first.
+ */
+@SuppressWarnings({"unchecked"})
+public class BalancedTCPClient implements InvocationHandler, BatchCaller {
+
+    /**
+     * Default number of failed calls in a row after which endpoint is ejected
+     */
+    public static final int DEFAULT_MAX_FAILURES = 3;
+
+    /**
+     * Default time in milliseconds ejected endpoint gets no calls for
+     */
+    public static final long DEFAULT_EJECTION_MILLIS = 5000;
+
+    private List<InetSocketAddress> addresses;
+    private Serializer              serializer;
+    private int                     maxConnectionsPerEndpoint;
+    private long                    timeoutMillis;
+    private int                     maxFailures;
+    private long                    ejectionMillis;
+    private Endpoint[]              endpoints;
+    private Class<?>                serviceInterface;
+    private ReflectionCache         reflectionCache;
+
+    /**
+     * Default constructor
+     *
+     * @param addresses                 Addresses of the servers
+     * @param serializer                Serializer to use. Must be thread-safe.
+     * @param maxConnectionsPerEndpoint Maximum number of connections to each server
+     * @param timeoutMillis             Time to wait for replies to calls of methods without {@link RpcTimeout} and to
+     *                                  batches. Zero means no deadline
+     * @param maxFailures               Number of failed calls in a row after which endpoint is ejected
+     * @param ejectionMillis            Time ejected endpoint gets no calls for
+     */
+    public BalancedTCPClient(List<InetSocketAddress> addresses, Serializer serializer, int maxConnectionsPerEndpoint,
+                             long timeoutMillis, int maxFailures, long ejectionMillis) {
+        super();
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("addresses must not be empty!");
+        }
+        if (maxFailures < 1) {
+            throw new IllegalArgumentException("maxFailures must be positive!");
+        }
+        this.addresses = new ArrayList<InetSocketAddress>(addresses);
+        this.serializer = serializer;
+        this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+        this.timeoutMillis = timeoutMillis;
+        this.maxFailures = maxFailures;
+        this.ejectionMillis = ejectionMillis;
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param addresses     Addresses of the servers
+     * @param serializer    Serializer to use. Must be thread-safe.
+     * @param timeoutMillis Time to wait for replies to calls of methods without {@link RpcTimeout} and to batches.
+     *                      Zero means no deadline
+     */
+    public BalancedTCPClient(List<InetSocketAddress> addresses, Serializer serializer, long timeoutMillis) {
+        this(addresses, serializer, PooledTCPClient.DEFAULT_MAX_TOTAL, timeoutMillis, DEFAULT_MAX_FAILURES,
+                DEFAULT_EJECTION_MILLIS);
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param addresses  Addresses of the servers
+     * @param serializer Serializer to use. Must be thread-safe.
+     */
+    public BalancedTCPClient(List<InetSocketAddress> addresses, Serializer serializer) {
+        this(addresses, serializer, 0);
+    }
+
+    /**
+     * Creates connection pools of all endpoints. Connections are opened by calls, so servers down at this point only
+     * get ejected once calls fail to reach them. Returns an RPC object which methods you can call from any number of
+     * threads. All calls will be forwarded to the servers
+     *
+     * @param serviceInterface An RPC interface, defining methods of RPC communication
+     * @return A proxy object which methods you can call. All calls will be forwarded to servers
+     * @throws IOException Is thrown on any connection problem
+     */
+    public <T> T connect(Class<T> serviceInterface) throws IOException {
+        if (!serviceInterface.isInterface()) {
+            throw new IllegalArgumentException("serviceInterface must be of interface type!");
+        }
+        this.serviceInterface = serviceInterface;
+        reflectionCache = new ReflectionCache(serviceInterface);
+        Endpoint[] connected = new Endpoint[addresses.size()];
+        for (int i = 0; i < connected.length; i++) {
+            InetSocketAddress address = addresses.get(i);
+            PooledTCPClient client = new PooledTCPClient(address.getHostString(), address.getPort(), serializer, 0,
+                    maxConnectionsPerEndpoint, PooledTCPClient.DEFAULT_MAX_WAIT_MILLIS, timeoutMillis);
+            connected[i] = new Endpoint(address, client, client.connect(serviceInterface), maxFailures,
+                    ejectionMillis);
+        }
+        endpoints = connected;
+        return (T) Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class[]{serviceInterface}, this);
+    }
+
+    /**
+     * Closes idle connections to all servers. Calls in progress complete, then their connections are closed too. Any
+     * calls to proxy object after this call will result in IOException.
+     */
+    public void disconnect() {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.getClient().disconnect();
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+        short methodId = reflectionCache.getMethodId(method);
+        if (reflectionCache.isStreaming(methodId)) {
+            throw new UnsupportedOperationException("Method '" + method.getName() + "' returns a stream, which is " +
+                    "only supported by SimpleTCPClient");
+        }
+        return route(method, args, null);
+    }
+
+    /**
+     * Creates a batch of calls to send in a single frame to one of the servers. Batch itself is not thread-safe, but
+     * any number of batches may be executed concurrently
+     *
+     * @param parallel True if server may execute calls in parallel, false if they must run one by one in order
+     * @return Empty batch
+     */
+    public <T> RpcBatch<T> newBatch(boolean parallel) {
+        if (serviceInterface == null) {
+            throw new IllegalStateException("Client is not connected!");
+        }
+        return new RpcBatch<T>((Class<T>) serviceInterface, reflectionCache, this, parallel);
+    }
+
+    /**
+     * Sends batch to one of the servers with the default timeout of the client
+     */
+    @Override
+    public MsgRpcReply callBatch(MsgRpcRequest msgRpcRequest) throws IOException, ProtocolDataException {
+        try {
+            return (MsgRpcReply) route(null, null, msgRpcRequest);
+        } catch (IOException e) {
+            throw e;
+        } catch (ProtocolDataException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            //Pooled client throws nothing else for batches
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Sends call or batch to the chosen endpoint, trying other endpoints as long as it was not executed and its
+     * deadline has not passed. All attempts share the timeout of the call
+     *
+     * @param method       Method to call or null if batch is sent
+     * @param args         Arguments of the method
+     * @param batchRequest Batch to send if method is null
+     * @return Return value of the method or reply to the batch
+     */
+    private Object route(Method method, Object[] args, MsgRpcRequest batchRequest) throws Exception {
+        //Deadline is set once, so that retries get only the time left instead of the whole timeout each
+        long callTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (method != null) {
+            callTimeoutNanos = reflectionCache.getTimeoutNanos(reflectionCache.getMethodId(method), callTimeoutNanos);
+        }
+        long deadlineNanos = System.nanoTime() + callTimeoutNanos;
+        List<Endpoint> tried = null;
+        while (true) {
+            Endpoint endpoint = choose(tried);
+            long startNanos = System.nanoTime();
+            endpoint.callStarted();
+            Exception retriable;
+            try {
+                Object result;
+                if (method == null) {
+                    result = callTimeoutNanos > 0 ? endpoint.getClient().callBatch(batchRequest, deadlineNanos) :
+                            endpoint.getClient().callBatch(batchRequest);
+                } else {
+                    result = callTimeoutNanos > 0 ? endpoint.getClient().call(method, args, deadlineNanos) :
+                            invoke(endpoint, method, args);
+                }
+                endpoint.callSucceeded(System.nanoTime() - startNanos);
+                return result;
+            } catch (ConnectException e) {
+                endpoint.callFailed();
+                retriable = e;
+            } catch (RpcOverloadedException e) {
+                endpoint.callRefused();
+                retriable = e;
+            } catch (RpcDeadlineExceededException e) {
+                //Server that does not reply in time is as good as a dead one for the caller
+                endpoint.callFailed();
+                throw e;
+            } catch (RpcMethodInvocationException e) {
+                endpoint.callSucceeded(System.nanoTime() - startNanos);
+                throw e;
+            } catch (Exception e) {
+                endpoint.callFailed();
+                throw e;
+            }
+
+            if (tried == null) {
+                tried = new ArrayList<Endpoint>(2);
+            }
+            tried.add(endpoint);
+            if (tried.size() == endpoints.length) {
+                throw retriable;
+            }
+            if (callTimeoutNanos > 0 && deadlineNanos - System.nanoTime() <= 0) {
+                if (method == null) {
+                    //Batch callers get the same exception as when pooled client does not get reply in time
+                    throw new SocketTimeoutException(String.format("Batch did not complete within %d ms",
+                            timeoutMillis));
+                }
+                throw new RpcDeadlineExceededException(String.format("Call of '%s' did not complete within %d ms",
+                        method.getName(), TimeUnit.NANOSECONDS.toMillis(callTimeoutNanos)));
+            }
+        }
+    }
+
+    /**
+     * Picks two distinct endpoints at random and returns the one with lower cost. Falls back to a scan of all
+     * endpoints if either of them is ejected or already tried
+     *
+     * @param tried Endpoints the call was already sent to or null
+     * @return Endpoint to send the call to
+     */
+    private Endpoint choose(List<Endpoint> tried) {
+        Endpoint[] endpoints = this.endpoints;
+        if (endpoints.length == 1) {
+            return endpoints[0];
+        }
+        long nowNanos = System.nanoTime();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(endpoints.length);
+        int second = random.nextInt(endpoints.length - 1);
+        if (second >= first) {
+            second++;
+        }
+        if (tried == null && endpoints[first].isAvailable(nowNanos) && endpoints[second].isAvailable(nowNanos)) {
+            return cheaper(endpoints[first], endpoints[second]);
+        }
+
+        //Two of the candidates left are picked by reservoir sampling
+        Endpoint firstCandidate = null;
+        Endpoint secondCandidate = null;
+        Endpoint ejectedCandidate = null;
+        int candidateCount = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (tried != null && tried.contains(endpoint)) {
+                continue;
+            }
+            if (!endpoint.isAvailable(nowNanos)) {
+                if (ejectedCandidate == null ||
+                        endpoint.getEjectedUntilNanos() - ejectedCandidate.getEjectedUntilNanos() < 0) {
+                    ejectedCandidate = endpoint;
+                }
+                continue;
+            }
+            candidateCount++;
+            if (candidateCount == 1) {
+                firstCandidate = endpoint;
+            } else if (candidateCount == 2) {
+                secondCandidate = endpoint;
+            } else {
+                int index = random.nextInt(candidateCount);
+                if (index == 0) {
+                    firstCandidate = endpoint;
+                } else if (index == 1) {
+                    secondCandidate = endpoint;
+                }
+            }
+        }
+        if (firstCandidate == null) {
+            return ejectedCandidate;
+        }
+        return secondCandidate == null ? firstCandidate : cheaper(firstCandidate, secondCandidate);
+    }
+
+    private static Endpoint cheaper(Endpoint first, Endpoint second) {
+        return second.getCost() < first.getCost() ? second : first;
+    }
+
+    /**
+     * Calls method on the proxy of the endpoint, throwing whatever the proxy throws
+     */
+    private static Object invoke(Endpoint endpoint, Method method, Object[] args) throws Exception {
+        try {
+            return method.invoke(endpoint.getService(), args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            //Proxy wraps checked exceptions not declared by the service interface
+            if (cause instanceof UndeclaredThrowableException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        }
+    }
+
+    /**
+     * Returns client status
+     *
+     * @return True, if client is connected and not disconnected yet, false otherwise
+     */
+    public boolean isConnected() {
+        return (endpoints != null) && endpoints[0].getClient().isConnected();
+    }
+
+    /**
+     * Returns counters of every endpoint, in the order addresses were given
+     *
+     * @return Snapshots of endpoint counters
+     */
+    public List<EndpointStatistics> getEndpointStatistics() {
+        List<EndpointStatistics> statistics = new ArrayList<EndpointStatistics>(endpoints.length);
+        for (Endpoint endpoint : endpoints) {
+            statistics.add(endpoint.getStatistics());
+        }
+        return statistics;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.client.balanced;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.fractalizer.jrapidrpc.client.pooled.PooledTCPClient;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server endpoint of {@link BalancedTCPClient}: pooled client connected to the server, load it carries and its health.
+ * It is thread-safe.
+ */
+class Endpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(Endpoint.class);
+
+    /**
+     * Each latency sample moves the average by this fraction of the difference, so a few slow calls are enough to
+     * steer load away, and a few fast ones to bring it back
+     */
+    private static final int EWMA_DIVISOR = 4;
+
+    /**
+     * Average latency halves every this many nanoseconds without samples, so an endpoint which was slow gets calls
+     * again once the average drops below the ones of the others
+     */
+    private static final long LATENCY_HALF_LIFE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Ejection time doubles for every ejection in a row, but not beyond this many times the configured one
+     */
+    private static final int MAX_EJECTION_MULTIPLIER = 16;
+
+    private final InetSocketAddress address;
+    private final PooledTCPClient   client;
+    private final Object            service;
+    private final int               maxFailures;
+    private final long              ejectionNanos;
+
+    private final AtomicInteger inFlight            = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong    callCount           = new AtomicLong();
+    private final AtomicLong    failureCount        = new AtomicLong();
+    private final AtomicLong    ejectionCount       = new AtomicLong();
+
+    private volatile long latencyNanos;
+    private volatile long latencySampleNanos;
+    private volatile long ejectedUntilNanos;
+
+    /**
+     * Ejections since the last successful call. Guarded by this
+     */
+    private int ejectionsInRow;
+
+    /**
+     * Default constructor
+     *
+     * @param address        Address of the server
+     * @param client         Client connected to the server
+     * @param service        Proxy returned by the client
+     * @param maxFailures    Number of failed calls in a row after which endpoint is ejected
+     * @param ejectionMillis Time ejected endpoint gets no calls for
+     */
+    Endpoint(InetSocketAddress address, PooledTCPClient client, Object service, int maxFailures,
+             long ejectionMillis) {
+        super();
+        this.address = address;
+        this.client = client;
+        this.service = service;
+        this.maxFailures = maxFailures;
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+        this.latencySampleNanos = System.nanoTime();
+        this.ejectedUntilNanos = latencySampleNanos;
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    PooledTCPClient getClient() {
+        return client;
+    }
+
+    Object getService() {
+        return service;
+    }
+
+    /**
+     * @param nowNanos Current value of {@link System#nanoTime()}
+     * @return False if endpoint is ejected
+     */
+    boolean isAvailable(long nowNanos) {
+        return ejectedUntilNanos - nowNanos <= 0;
+    }
+
+    /**
+     * @return Value of {@link System#nanoTime()} ejection ends at, in the past if endpoint is not ejected
+     */
+    long getEjectedUntilNanos() {
+        return ejectedUntilNanos;
+    }
+
+    /**
+     * Expected cost of one more call: average latency scaled by the number of calls in progress, so that both a slow
+     * and a busy endpoint get fewer calls. Lower is better
+     *
+     * @return Cost in nanoseconds
+     */
+    long getCost() {
+        return (getLatencyNanos(System.nanoTime()) + 1) * (inFlight.get() + 1);
+    }
+
+    /**
+     * Marks call as started. Every call must be followed by {@link #callSucceeded(long)}, {@link #callRefused()} or
+     * {@link #callFailed()}
+     */
+    void callStarted() {
+        inFlight.incrementAndGet();
+        callCount.incrementAndGet();
+    }
+
+    /**
+     * Records call the server replied to, whether method failed or not
+     *
+     * @param nanos Time call took
+     */
+    void callSucceeded(long nanos) {
+        inFlight.decrementAndGet();
+        recordLatency(nanos);
+        if (consecutiveFailures.getAndSet(0) >= maxFailures) {
+            synchronized (this) {
+                ejectionsInRow = 0;
+            }
+            logger.info("Endpoint {} is healthy again", address);
+        }
+    }
+
+    /**
+     * Records call refused by an overloaded server. Server is alive, but latency of the refusal is not recorded, since
+     * refusing is much faster than executing and would attract even more calls
+     */
+    void callRefused() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Records call that failed to reach the server or to get its reply. Endpoint is ejected after too many failures
+     * in a row. Endpoint back from ejection is ejected again on its first failure, for twice as long. Latency of
+     * failed calls is not recorded, it says nothing about how the endpoint will do once it is back
+     */
+    void callFailed() {
+        inFlight.decrementAndGet();
+        failureCount.incrementAndGet();
+        if (consecutiveFailures.incrementAndGet() >= maxFailures) {
+            long nowNanos = System.nanoTime();
+            long until;
+            synchronized (this) {
+                //Calls that were in progress when endpoint got ejected do not extend the ejection
+                if (!isAvailable(nowNanos)) {
+                    return;
+                }
+                ejectionsInRow++;
+                long multiplier = Math.min(1L << Math.min(ejectionsInRow - 1, 30), MAX_EJECTION_MULTIPLIER);
+                until = nowNanos + ejectionNanos * multiplier;
+                ejectedUntilNanos = until;
+            }
+            ejectionCount.incrementAndGet();
+            logger.warn("Endpoint {} is ejected for {} ms after {} failed calls in a row", new Object[]{address,
+                    TimeUnit.NANOSECONDS.toMillis(until - nowNanos), consecutiveFailures.get()});
+        }
+    }
+
+    private void recordLatency(long nanos) {
+        long nowNanos = System.nanoTime();
+        long average = getLatencyNanos(nowNanos);
+        //Racing updates may lose a sample, which does not matter for an average
+        latencyNanos = average == 0 ? nanos : average + (nanos - average) / EWMA_DIVISOR;
+        latencySampleNanos = nowNanos;
+    }
+
+    /**
+     * @return Average latency decayed by the time passed since the last sample
+     */
+    private long getLatencyNanos(long nowNanos) {
+        long halvings = (nowNanos - latencySampleNanos) / LATENCY_HALF_LIFE_NANOS;
+        return halvings < 63 ? latencyNanos >> halvings : 0;
+    }
+
+    /**
+     * @return Snapshot of endpoint counters
+     */
+    EndpointStatistics getStatistics() {
+        long nowNanos = System.nanoTime();
+        return new EndpointStatistics(address, isAvailable(nowNanos), inFlight.get(), getLatencyNanos(nowNanos),
+                callCount.get(), failureCount.get(), ejectionCount.get());
+    }
+}
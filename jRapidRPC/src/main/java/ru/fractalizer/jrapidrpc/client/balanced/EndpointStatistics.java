@@ -0,0 +1,105 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.client.balanced;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of counters of a single endpoint of {@link BalancedTCPClient}. Counters are cumulative since the client
+ * was created.
+ */
+public final class EndpointStatistics {
+
+    private final InetSocketAddress address;
+    private final boolean           available;
+    private final int               inFlightCount;
+    private final long              latencyNanos;
+    private final long              callCount;
+    private final long              failureCount;
+    private final long              ejectionCount;
+
+    EndpointStatistics(InetSocketAddress address, boolean available, int inFlightCount, long latencyNanos,
+                       long callCount, long failureCount, long ejectionCount) {
+        super();
+        this.address = address;
+        this.available = available;
+        this.inFlightCount = inFlightCount;
+        this.latencyNanos = latencyNanos;
+        this.callCount = callCount;
+        this.failureCount = failureCount;
+        this.ejectionCount = ejectionCount;
+    }
+
+    /**
+     * @return Address of the server
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return False if endpoint is ejected and gets no calls
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * @return Number of calls in progress
+     */
+    public int getInFlightCount() {
+        return inFlightCount;
+    }
+
+    /**
+     * @param unit Time unit of the result
+     * @return Exponentially weighted moving average of call latency
+     */
+    public long getLatency(TimeUnit unit) {
+        return unit.convert(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return Number of calls routed to the endpoint
+     */
+    public long getCallCount() {
+        return callCount;
+    }
+
+    /**
+     * @return Number of calls which failed to reach the server or to get its reply
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * @return Number of times endpoint was ejected
+     */
+    public long getEjectionCount() {
+        return ejectionCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: available=%b, inFlight=%d, latency=%.3fms, calls=%d, failures=%d, ejections=%d",
+                address, available, inFlightCount, latencyNanos / 1e6, callCount, failureCount, ejectionCount);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.client.injvm;
+
+import ru.fractalizer.jrapidrpc.api.*;
+import ru.fractalizer.jrapidrpc.client.BatchCaller;
+import ru.fractalizer.jrapidrpc.client.RpcBatch;
+import ru.fractalizer.jrapidrpc.server.injvm.InJvmConnection;
+import ru.fractalizer.jrapidrpc.server.injvm.InJvmServer;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client of {@link InJvmServer} running in the same JVM. Calls bypass sockets and are executed on the calling thread.
+ * Proxy may be shared by any number of threads.
+ * <p>
+ * With a serializer, requests and replies are encoded and decoded on their way, so service object and caller never
+ * share argument or return value objects, just like with a remote server. Streaming methods are not supported then.
+ * Without a serializer, objects are passed by reference, which is the fastest, but both sides must not modify them
+ * afterwards. Streams service object returns are then handed to the caller as they are.
+ * <p>
+ * Calls with a timeout, set for the client or by {@link RpcTimeout}, pass their deadline to the server, see
+ * {@link ru.fractalizer.jrapidrpc.server.RpcDeadline}. Since call runs on the calling thread, caller is never left
+ * waiting for it.
+ */
+@SuppressWarnings({"unchecked"})
+public class InJvmClient implements InvocationHandler, BatchCaller {
+
+    private String          serverAddress;
+    private Serializer      serializer;
+    private long            timeoutNanos;
+    private InJvmConnection connection;
+    private Class<?>        serviceInterface;
+    private ReflectionCache reflectionCache;
+
+    /**
+     * Default constructor
+     *
+     * @param serverAddress Logical address of the server, see {@link InJvmServer}
+     * @param serializer    Serializer to copy requests and replies with or null to pass them by reference. Must be
+     *                      thread-safe.
+     * @param timeoutMillis Timeout of calls of methods without {@link RpcTimeout} and of batches. Zero means no
+     *                      deadline
+     */
+    public InJvmClient(String serverAddress, Serializer serializer, long timeoutMillis) {
+        super();
+        this.serverAddress = serverAddress;
+        this.serializer = serializer;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param serverAddress Logical address of the server, see {@link InJvmServer}
+     * @param serializer    Serializer to copy requests and replies with or null to pass them by reference. Must be
+     *                      thread-safe.
+     */
+    public InJvmClient(String serverAddress, Serializer serializer) {
+        this(serverAddress, serializer, 0);
+    }
+
+    /**
+     * Connects to the server. If successful, returns an RPC object which methods you can call. All calls will be
+     * forwarded to the server
+     *
+     * @param serviceInterface An RPC interface, defining methods of RPC communication
+     * @return A proxy object which methods you can call. All calls will be forwarded to server
+     * @throws IOException Is thrown if there is no server at the address or it refused connection
+     */
+    public <T> T connect(Class<T> serviceInterface) throws IOException {
+        if (!serviceInterface.isInterface()) {
+            throw new IllegalArgumentException("serviceInterface must be of interface type!");
+        }
+        this.serviceInterface = serviceInterface;
+        reflectionCache = new ReflectionCache(serviceInterface);
+        connection = InJvmServer.connect(serverAddress);
+        return (T) Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class[]{serviceInterface}, this);
+    }
+
+    /**
+     * Disconnects from server. Any calls to proxy object after this call will result in IOException.
+     */
+    public void disconnect() {
+        connection.close();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws RpcMethodInvocationException, IOException, ProtocolDataException {
+        short methodId = reflectionCache.getMethodId(method);
+        if (serializer != null && reflectionCache.isStreaming(methodId)) {
+            //Elements would be passed by reference, which is not what copying client promises
+            throw new UnsupportedOperationException("Method '" + method.getName() + "' returns a stream, which is " +
+                    "only supported by InJvmClient passing objects by reference");
+        }
+        long callTimeoutNanos = reflectionCache.getTimeoutNanos(methodId, timeoutNanos);
+        MsgRpcRequest msgRpcRequest = callTimeoutNanos > 0 ?
+                new MsgRpcRequest(0, methodId, method.getName(), args, System.nanoTime() + callTimeoutNanos) :
+                new MsgRpcRequest(0, methodId, method.getName(), args);
+        MsgRpcReply msgRpcReply = call(msgRpcRequest);
+        if (msgRpcReply.getErrorMessage() != null) {
+            throw RpcMethodInvocationException.forReply(msgRpcReply);
+        }
+        return msgRpcReply.getMethodReturnValue();
+    }
+
+    /**
+     * Creates a batch of calls to send at once. Batch itself is not thread-safe, but any number of batches may be
+     * executed concurrently
+     *
+     * @param parallel True if server may execute calls in parallel, false if they must run one by one in order
+     * @return Empty batch
+     */
+    public <T> RpcBatch<T> newBatch(boolean parallel) {
+        if (serviceInterface == null) {
+            throw new IllegalStateException("Client is not connected!");
+        }
+        return new RpcBatch<T>((Class<T>) serviceInterface, reflectionCache, this, parallel);
+    }
+
+    /**
+     * Sends batch with the default timeout of the client
+     */
+    @Override
+    public MsgRpcReply callBatch(MsgRpcRequest msgRpcRequest) throws IOException, ProtocolDataException {
+        if (timeoutNanos > 0) {
+            msgRpcRequest = new MsgRpcRequest(0, msgRpcRequest.getBatch(), System.nanoTime() + timeoutNanos);
+        }
+        return call(msgRpcRequest);
+    }
+
+    private MsgRpcReply call(MsgRpcRequest msgRpcRequest) throws IOException, ProtocolDataException {
+        if (serializer == null) {
+            return connection.call(msgRpcRequest);
+        }
+        return copy(connection.call(copy(msgRpcRequest)));
+    }
+
+    /**
+     * Encodes and decodes request, so that server gets objects of its own
+     */
+    private MsgRpcRequest copy(MsgRpcRequest msgRpcRequest) throws IOException, ProtocolDataException {
+        if (serializer instanceof FrameSerializer) {
+            FrameSerializer frameSerializer = (FrameSerializer) serializer;
+            return frameSerializer.decodeRpcRequestFrame(frameSerializer.encodeRpcRequestFrame(msgRpcRequest));
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        serializer.sendRpcRequest(msgRpcRequest, outputStream);
+        return serializer.receiveRpcRequest(new ByteArrayInputStream(outputStream.toByteArray()));
+    }
+
+    /**
+     * Encodes and decodes reply, so that caller gets objects of its own
+     */
+    private MsgRpcReply copy(MsgRpcReply msgRpcReply) throws IOException, ProtocolDataException {
+        if (serializer instanceof FrameSerializer) {
+            FrameSerializer frameSerializer = (FrameSerializer) serializer;
+            return frameSerializer.decodeRpcReplyFrame(frameSerializer.encodeRpcReplyFrame(msgRpcReply));
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        serializer.sendRpcReply(msgRpcReply, outputStream);
+        return serializer.receiveRpcReply(new ByteArrayInputStream(outputStream.toByteArray()));
+    }
+
+    /**
+     * Returns client status
+     *
+     * @return True, if client is connected and not disconnected yet, false otherwise
+     */
+    public boolean isConnected() {
+        return (connection != null) && !connection.isClosed();
+    }
+}
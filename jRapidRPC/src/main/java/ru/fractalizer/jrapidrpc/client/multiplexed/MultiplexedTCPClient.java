@@ -0,0 +1,504 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.client.multiplexed;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.fractalizer.jrapidrpc.api.*;
+import ru.fractalizer.jrapidrpc.client.BatchCaller;
+import ru.fractalizer.jrapidrpc.client.RpcBatch;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * TCP client multiplexing calls of many threads over a single connection. Every request carries a call ID, a reader
+ * thread matches replies to waiting callers by it, so replies may arrive in any order. Proxy is thread-safe.
+ * <p>
+ * Besides the blocking proxy, the same connection can be used through an asynchronous view, see
+ * {@link #getAsyncProxy(Class)}.
+ * <p>
+ * Calls with a timeout, set for the client or by {@link RpcTimeout}, send their deadline to the server. Blocking calls
+ * stop waiting for reply once the deadline passes and throw {@link RpcDeadlineExceededException}, connection stays
+ * open and late reply is dropped. Asynchronous calls send the deadline too, but their futures are only failed by
+ * server refusing an expired call.
+ */
+@SuppressWarnings({"unchecked"})
+public class MultiplexedTCPClient implements InvocationHandler, BatchCaller {
+
+    private static final Logger logger = LoggerFactory.getLogger(MultiplexedTCPClient.class);
+
+    /**
+     * Initial size of the reader buffer. It grows on demand to fit the largest reply
+     */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private String          serverHost;
+    private int             serverPort;
+    private Serializer      serializer;
+    private Socket          socket;
+    private OutputStream    outputStream;
+    private InputStream     inputStream;
+    private Thread          readerThread;
+    private Class<?>        serviceInterface;
+    private ReflectionCache reflectionCache;
+    private long            timeoutNanos;
+
+    private final AtomicInteger nextCallId = new AtomicInteger(0);
+
+    private final ConcurrentHashMap<Integer, CompletableFuture<MsgRpcReply>> pendingCalls =
+            new ConcurrentHashMap<Integer, CompletableFuture<MsgRpcReply>>();
+
+    /**
+     * Guards outputStream, so frames of concurrent callers do not interleave. Not a monitor, so that callers on
+     * virtual threads are not pinned to their carriers while writing
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * Set by reader thread when connection is broken. No new calls are accepted after that
+     */
+    private volatile IOException connectionFailure;
+
+    /**
+     * Default constructor
+     *
+     * @param serverHost    Host to use as a server
+     * @param serverPort    Port to use at host
+     * @param serializer    Serializer to use. Must be thread-safe.
+     * @param timeoutMillis Time to wait for replies to calls of methods without {@link RpcTimeout} and to batches.
+     *                      Zero means no deadline
+     */
+    public MultiplexedTCPClient(String serverHost, int serverPort, Serializer serializer, long timeoutMillis) {
+        super();
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.serializer = serializer;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param serverHost Host to use as a server
+     * @param serverPort Port to use at host
+     * @param serializer Serializer to use. Must be thread-safe.
+     */
+    public MultiplexedTCPClient(String serverHost, int serverPort, Serializer serializer) {
+        this(serverHost, serverPort, serializer, 0);
+    }
+
+    /**
+     * Creates a client socket, connects to the server and starts reader thread. If successful, returns an RPC object
+     * which methods you can call from any number of threads. All calls will be forwarded to the server
+     *
+     * @param serviceInterface An RPC interface, defining methods of RPC communication
+     * @return A proxy object which methods you can call. All calls will be forwarded to server
+     * @throws IOException Is thrown on any connection problem
+     */
+    public <T> T connect(Class<T> serviceInterface) throws IOException {
+        if (!serviceInterface.isInterface()) {
+            throw new IllegalArgumentException("serviceInterface must be of interface type!");
+        }
+        try {
+            socket = new Socket(this.serverHost, this.serverPort);
+            //Buffered, so that each request leaves in a single write and does not get stuck in Nagle's algorithm
+            outputStream = new BufferedOutputStream(socket.getOutputStream());
+            inputStream = socket.getInputStream();
+        } catch (IOException e) {
+            if (inputStream != null) {inputStream.close();}
+            if (outputStream != null) {outputStream.close();}
+            if (socket != null) {socket.close();}
+
+            throw e;
+        }
+        this.serviceInterface = serviceInterface;
+        this.reflectionCache = new ReflectionCache(serviceInterface);
+        connectionFailure = null;
+        readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readReplies();
+            }
+        }, "MultiplexedTCPClient Reader Thread");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        return (T) Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class[]{serviceInterface}, this);
+    }
+
+    /**
+     * Returns asynchronous view of the connection. Asynchronous interface is a companion of the service interface
+     * passed to {@link #connect(Class)}: for every its method service interface must have an RPC method with the same
+     * name and parameter types, and return type must be {@link CompletableFuture} (or one of its supertypes, such as
+     * {@link java.util.concurrent.CompletionStage}), parametrized with the (boxed) return type of the RPC method.
+     * <p>
+     * Calls of the view return immediately. Futures are completed by reader thread, so dependent actions registered
+     * with non-async methods of CompletableFuture run on reader thread too and must not block. If RPC method threw
+     * exception on server side, future completes exceptionally with {@link RpcMethodInvocationException}.
+     *
+     * @param asyncInterface Companion interface with asynchronous versions of RPC methods
+     * @return A proxy object which methods you can call from any number of threads
+     */
+    public <A> A getAsyncProxy(Class<A> asyncInterface) {
+        if (serviceInterface == null) {
+            throw new IllegalStateException("Client is not connected!");
+        }
+        if (!asyncInterface.isInterface()) {
+            throw new IllegalArgumentException("asyncInterface must be of interface type!");
+        }
+        final HashMap<Method, Short> methodIds = new HashMap<Method, Short>();
+        for (Method method : asyncInterface.getMethods()) {
+            if (!method.getReturnType().isAssignableFrom(CompletableFuture.class)) {
+                throw new IllegalArgumentException(String.format("Method '%s' of '%s' must return CompletableFuture",
+                        method.getName(), asyncInterface.getName()));
+            }
+            Method rpcMethod;
+            try {
+                rpcMethod = serviceInterface.getMethod(method.getName(), method.getParameterTypes());
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(String.format("Interface '%s' has no method '%s' with the same " +
+                        "parameters", serviceInterface.getName(), method.getName()), e);
+            }
+            if (rpcMethod.getAnnotation(RpcMethod.class) == null) {
+                throw new IllegalArgumentException(String.format("Method '%s' of '%s' is not an RPC method",
+                        rpcMethod.getName(), serviceInterface.getName()));
+            }
+            methodIds.put(method, reflectionCache.getMethodId(rpcMethod));
+        }
+
+        return (A) Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class[]{asyncInterface},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return toReturnValue(send(newRequest(methodIds.get(method), method.getName(), args)));
+                    }
+                });
+    }
+
+    /**
+     * Sends request to the server without waiting for reply
+     *
+     * @param methodName Name of RPC method to call
+     * @param args       Call arguments
+     * @return Future completed with method return value when reply arrives
+     */
+    public CompletableFuture<Object> callAsync(String methodName, Object... args) {
+        return toReturnValue(send(newRequest(reflectionCache.getMethodId(methodName), methodName, args)));
+    }
+
+    /**
+     * Converts reply future to the future of method return value
+     */
+    private static CompletableFuture<Object> toReturnValue(CompletableFuture<MsgRpcReply> replyFuture) {
+        final CompletableFuture<Object> result = new CompletableFuture<Object>();
+        replyFuture.whenComplete(new BiConsumer<MsgRpcReply, Throwable>() {
+            @Override
+            public void accept(MsgRpcReply msgRpcReply, Throwable failure) {
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                } else if (msgRpcReply.getErrorMessage() != null) {
+                    result.completeExceptionally(RpcMethodInvocationException.forReply(msgRpcReply));
+                } else {
+                    result.complete(msgRpcReply.getMethodReturnValue());
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Closes socket and disconnects from server. Calls still waiting for replies fail with IOException, as well as any
+     * calls to proxy object after this call.
+     *
+     * @throws IOException Is thrown on any connection problem
+     */
+    public void disconnect() throws IOException {
+        if (!socket.isClosed()) {
+            socket.close();
+        }
+        try {
+            readerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws RpcMethodInvocationException, IOException, ProtocolDataException {
+        MsgRpcRequest msgRpcRequest = newRequest(reflectionCache.getMethodId(method), method.getName(), args);
+        MsgRpcReply msgRpcReply;
+        try {
+            msgRpcReply = await(send(msgRpcRequest), msgRpcRequest);
+        } catch (SocketTimeoutException e) {
+            throw new RpcDeadlineExceededException(String.format("Call of '%s' did not complete within %d ms",
+                    method.getName(), TimeUnit.NANOSECONDS.toMillis(
+                            reflectionCache.getTimeoutNanos(msgRpcRequest.getMethodId(), timeoutNanos))));
+        }
+        if (msgRpcReply.getErrorMessage() != null) {
+            throw RpcMethodInvocationException.forReply(msgRpcReply);
+        }
+        return msgRpcReply.getMethodReturnValue();
+    }
+
+    /**
+     * Creates a batch of calls to send in a single frame. Batch itself is not thread-safe, but any number of batches
+     * may be in flight on the connection together with single calls
+     *
+     * @param parallel True if server may execute calls in parallel, false if they must run one by one in order
+     * @return Empty batch
+     */
+    public <T> RpcBatch<T> newBatch(boolean parallel) {
+        if (serviceInterface == null) {
+            throw new IllegalStateException("Client is not connected!");
+        }
+        return new RpcBatch<T>((Class<T>) serviceInterface, reflectionCache, this, parallel);
+    }
+
+    /**
+     * Sends batch with the default timeout of the client. If reply does not arrive in time, SocketTimeoutException is
+     * thrown
+     */
+    @Override
+    public MsgRpcReply callBatch(MsgRpcRequest msgRpcRequest) throws IOException {
+        MsgRpcRequest batchRequest = timeoutNanos > 0 ?
+                new MsgRpcRequest(newCallId(), msgRpcRequest.getBatch(), System.nanoTime() + timeoutNanos) :
+                new MsgRpcRequest(newCallId(), msgRpcRequest.getBatch());
+        return await(send(batchRequest), batchRequest);
+    }
+
+    /**
+     * Waits for reply to the request until its deadline if it has one
+     *
+     * @throws SocketTimeoutException If deadline passes first. Call is forgotten, so its late reply is dropped
+     */
+    private MsgRpcReply await(CompletableFuture<MsgRpcReply> pendingCall, MsgRpcRequest msgRpcRequest)
+            throws IOException {
+        try {
+            if (!msgRpcRequest.hasDeadline()) {
+                return pendingCall.get();
+            }
+            try {
+                return pendingCall.get(msgRpcRequest.getDeadlineNanos() - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (pendingCalls.remove(msgRpcRequest.getCallId()) != null) {
+                    throw new SocketTimeoutException("Reply did not arrive before deadline");
+                }
+                //Reader thread took the call right after the deadline and is about to complete it
+                return pendingCall.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for reply");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Connection failed while waiting for reply", e.getCause());
+        }
+    }
+
+    /**
+     * Returns socket connection status
+     *
+     * @return True, if socket is connected and reader thread is alive, false otherwise
+     */
+    public boolean isConnected() {
+        return (socket != null) && (!socket.isClosed()) && socket.isConnected() && (connectionFailure == null);
+    }
+
+    /**
+     * Returns the number of calls waiting for their replies
+     *
+     * @return Number of calls in flight
+     */
+    public int getPendingCallCount() {
+        return pendingCalls.size();
+    }
+
+    /**
+     * Creates request of a call under a new call ID, with deadline if the method has a timeout
+     *
+     * @param methodId   ID of RPC method to call
+     * @param methodName Name of RPC method to call
+     * @param args       Call arguments
+     * @return Request to send
+     */
+    private MsgRpcRequest newRequest(short methodId, String methodName, Object[] args) {
+        if (reflectionCache.isStreaming(methodId)) {
+            throw new UnsupportedOperationException("Method '" + methodName + "' returns a stream, which is only " +
+                    "supported by SimpleTCPClient");
+        }
+        long callTimeoutNanos = reflectionCache.getTimeoutNanos(methodId, timeoutNanos);
+        if (callTimeoutNanos > 0) {
+            return new MsgRpcRequest(newCallId(), methodId, methodName, args, System.nanoTime() + callTimeoutNanos);
+        }
+        return new MsgRpcRequest(newCallId(), methodId, methodName, args);
+    }
+
+    /**
+     * Registers the call under call ID of the request and sends it to the server. Never throws, connection problems
+     * complete returned future exceptionally.
+     *
+     * @param msgRpcRequest Request with a call ID from {@link #newCallId()}
+     * @return Future completed by reader thread when reply arrives
+     */
+    private CompletableFuture<MsgRpcReply> send(MsgRpcRequest msgRpcRequest) {
+        if (connectionFailure != null) {
+            return failedCall(new IOException("Connection is broken", connectionFailure));
+        }
+
+        CompletableFuture<MsgRpcReply> pendingCall = new CompletableFuture<MsgRpcReply>();
+        int callId = msgRpcRequest.getCallId();
+        pendingCalls.put(callId, pendingCall);
+        try {
+            writeLock.lock();
+            try {
+                serializer.sendRpcRequest(msgRpcRequest, outputStream);
+                outputStream.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            pendingCalls.remove(callId);
+            return failedCall(e);
+        }
+
+        //Reader might have failed and drained pending calls before we registered ours
+        if (connectionFailure != null && pendingCalls.remove(callId) != null) {
+            return failedCall(new IOException("Connection is broken", connectionFailure));
+        }
+        return pendingCall;
+    }
+
+    private static CompletableFuture<MsgRpcReply> failedCall(IOException failure) {
+        CompletableFuture<MsgRpcReply> call = new CompletableFuture<MsgRpcReply>();
+        call.completeExceptionally(failure);
+        return call;
+    }
+
+    /**
+     * @return Positive call ID. Zero is reserved for non-multiplexed clients and negative IDs for messages server sends
+     * unasked, such as {@link MsgCacheInvalidation#CALL_ID}
+     */
+    private int newCallId() {
+        int callId;
+        do {
+            callId = nextCallId.incrementAndGet() & Integer.MAX_VALUE;
+        } while (callId == 0);
+        return callId;
+    }
+
+    /**
+     * Reader thread body. Completes pending calls until connection breaks
+     */
+    private void readReplies() {
+        try {
+            if (serializer instanceof BufferSerializer) {
+                readReplies((BufferSerializer) serializer);
+            } else {
+                while (true) {
+                    completeCall(serializer.receiveRpcReply(inputStream));
+                }
+            }
+        } catch (Exception e) {
+            if (!socket.isClosed()) {
+                logger.error("Error receiving RPC reply stream", e);
+            }
+            failPendingCalls(e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e));
+        }
+    }
+
+    /**
+     * Reads socket in chunks and decodes every complete reply of a chunk, so a burst of pipelined replies costs a
+     * single read
+     */
+    private void readReplies(BufferSerializer bufferSerializer) throws IOException, ProtocolDataException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        while (true) {
+            int bytesRead = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            if (bytesRead < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+            buffer.position(buffer.position() + bytesRead);
+
+            buffer.flip();
+            MsgRpcReply msgRpcReply;
+            while ((msgRpcReply = bufferSerializer.decodeRpcReply(buffer)) != null) {
+                completeCall(msgRpcReply);
+            }
+
+            //Making room for the rest of incomplete frame
+            if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+                ByteBuffer newBuffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                newBuffer.put(buffer);
+                buffer = newBuffer;
+            } else {
+                buffer.compact();
+            }
+        }
+    }
+
+    private void completeCall(MsgRpcReply msgRpcReply) {
+        CompletableFuture<MsgRpcReply> pendingCall = pendingCalls.remove(msgRpcReply.getCallId());
+        if (pendingCall == null) {
+            //Caller gave up waiting for it
+            logger.debug("Received reply for unknown call ID {}", msgRpcReply.getCallId());
+            return;
+        }
+        pendingCall.complete(msgRpcReply);
+    }
+
+    private void failPendingCalls(IOException failure) {
+        connectionFailure = failure;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.warn("Unable to properly close client socket", e);
+        }
+        for (Integer callId : pendingCalls.keySet()) {
+            CompletableFuture<MsgRpcReply> pendingCall = pendingCalls.remove(callId);
+            if (pendingCall != null) {
+                pendingCall.completeExceptionally(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.client.pooled;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of connections to a single server. Leases are granted first-come first-served, so under contention
+ * no caller starves while others keep re-leasing. Idle connections are reused most-recently-used first, so the ones
+ * beyond what current load needs stay idle and the hot ones stay warm.
+ */
+class ConnectionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final String serverHost;
+    private final int    serverPort;
+    private final int    minIdle;
+    private final int    maxTotal;
+    private final long   maxWaitNanos;
+
+    /**
+     * One permit per connection slot. A caller holds a permit for the whole time it holds a connection
+     */
+    private final Semaphore leases;
+
+    /**
+     * Connections not leased by anyone. Guarded by itself
+     */
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+
+    private volatile boolean closed;
+
+    /**
+     * Counters below are guarded by this
+     */
+    private long borrowCount;
+    private long waitCount;
+    private long timeoutCount;
+    private long totalWaitNanos;
+    private long maxWaitNanosSeen;
+    private long createdCount;
+    private long destroyedCount;
+
+    /**
+     * Refill state, guarded by this. Refill thread runs while refilling is set and goes another round if refill was
+     * requested meanwhile
+     */
+    private boolean refilling;
+    private boolean refillRequested;
+
+    /**
+     * Default constructor
+     *
+     * @param serverHost    Host to use as a server
+     * @param serverPort    Port to use at host
+     * @param minIdle       Number of idle connections to keep ready
+     * @param maxTotal      Maximum number of connections, leased and idle together
+     * @param maxWaitMillis How long a caller may wait for a connection when all of them are leased
+     */
+    ConnectionPool(String serverHost, int serverPort, int minIdle, int maxTotal, long maxWaitMillis) {
+        super();
+        if (maxTotal < 1) {
+            throw new IllegalArgumentException("maxTotal must be positive!");
+        }
+        if (minIdle < 0 || minIdle > maxTotal) {
+            throw new IllegalArgumentException("minIdle must be between 0 and maxTotal!");
+        }
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.minIdle = minIdle;
+        this.maxTotal = maxTotal;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.leases = new Semaphore(maxTotal, true);
+        this.closed = false;
+    }
+
+    /**
+     * Leases a connection. Waits until some connection slot is free, then reuses a valid idle connection or opens
+     * a new one.
+     *
+     * @return Connection for exclusive use until {@link #release(PooledConnection)}
+     * @throws IOException Is thrown if pool is closed, wait timed out or new connection failed
+     */
+    PooledConnection borrow() throws IOException {
+        return borrow(false, 0);
+    }
+
+    /**
+     * Leases a connection for a call with a deadline. Waits no longer than the deadline allows
+     *
+     * @param deadlineNanos {@link System#nanoTime()} by which the call must complete
+     * @return Connection for exclusive use until {@link #release(PooledConnection)}
+     * @throws SocketTimeoutException Is thrown if deadline passed while waiting for a connection
+     * @throws IOException            Is thrown if pool is closed, wait timed out or new connection failed
+     */
+    PooledConnection borrow(long deadlineNanos) throws IOException {
+        return borrow(true, deadlineNanos);
+    }
+
+    private PooledConnection borrow(boolean hasDeadline, long deadlineNanos) throws IOException {
+        if (closed) {
+            throw new IOException("Connection pool is closed");
+        }
+
+        long startTime = System.nanoTime();
+        boolean waited = false;
+        try {
+            //Zero timeout instead of tryAcquire(), which would barge ahead of waiting callers
+            if (!leases.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                waited = true;
+                long waitNanos = maxWaitNanos;
+                boolean deadlineFirst = hasDeadline && deadlineNanos - startTime < maxWaitNanos;
+                if (deadlineFirst) {
+                    waitNanos = deadlineNanos - startTime;
+                }
+                if (!leases.tryAcquire(waitNanos, TimeUnit.NANOSECONDS)) {
+                    synchronized (this) {
+                        timeoutCount++;
+                    }
+                    if (deadlineFirst) {
+                        throw new SocketTimeoutException("Deadline passed while waiting for a pooled connection, " +
+                                "all " + maxTotal + " connections are in use");
+                    }
+                    throw new IOException("Timed out waiting for a pooled connection, all " + maxTotal +
+                            " connections are in use");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a pooled connection");
+        }
+        long waitNanos = System.nanoTime() - startTime;
+        synchronized (this) {
+            borrowCount++;
+            if (waited) {
+                waitCount++;
+            }
+            totalWaitNanos += waitNanos;
+            if (waitNanos > maxWaitNanosSeen) {
+                maxWaitNanosSeen = waitNanos;
+            }
+        }
+
+        try {
+            if (closed) {
+                throw new IOException("Connection pool is closed");
+            }
+            while (true) {
+                PooledConnection connection;
+                synchronized (idle) {
+                    connection = idle.pollLast();
+                }
+                if (connection == null) {
+                    return create();
+                }
+                if (connection.isValid()) {
+                    return connection;
+                }
+                logger.debug("Discarding invalid pooled connection");
+                destroy(connection);
+            }
+        } catch (IOException e) {
+            leases.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns leased connection to the pool. Connections broken during the call are discarded
+     *
+     * @param connection Connection received from {@link #borrow()}
+     */
+    void release(PooledConnection connection) {
+        boolean reused = false;
+        if (!closed && connection.isValid()) {
+            synchronized (idle) {
+                //Rechecking under lock, so that close() cannot miss it
+                if (!closed) {
+                    idle.addLast(connection);
+                    reused = true;
+                }
+            }
+        }
+        if (!reused) {
+            destroy(connection);
+        }
+        leases.release();
+        if (!reused && minIdle > 0) {
+            scheduleRefill();
+        }
+    }
+
+    /**
+     * Opens connections until there are at least minIdle idle ones. Gives up silently if leased and idle connections
+     * together reach maxTotal
+     *
+     * @throws IOException Is thrown if new connection failed
+     */
+    void ensureMinIdle() throws IOException {
+        while (!closed) {
+            synchronized (idle) {
+                if (idle.size() >= minIdle) {
+                    return;
+                }
+            }
+            if (!leases.tryAcquire()) {
+                return;
+            }
+            try {
+                //Idle connections hold no permit. Permit taken above is counted as the connection to be created
+                synchronized (idle) {
+                    if (maxTotal - leases.availablePermits() + idle.size() > maxTotal) {
+                        return;
+                    }
+                }
+                PooledConnection connection = create();
+                synchronized (idle) {
+                    if (!closed) {
+                        idle.addLast(connection);
+                        connection = null;
+                    }
+                }
+                if (connection != null) {
+                    destroy(connection);
+                }
+            } finally {
+                leases.release();
+            }
+        }
+    }
+
+    /**
+     * Closes idle connections. Leased ones are closed when released. Pool cannot be used after this call
+     */
+    void close() {
+        PooledConnection[] toClose;
+        synchronized (idle) {
+            closed = true;
+            toClose = idle.toArray(new PooledConnection[idle.size()]);
+            idle.clear();
+        }
+        for (PooledConnection connection : toClose) {
+            destroy(connection);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return Snapshot of pool counters
+     */
+    PoolStatistics getStatistics() {
+        int idleCount;
+        synchronized (idle) {
+            idleCount = idle.size();
+        }
+        synchronized (this) {
+            return new PoolStatistics(maxTotal - leases.availablePermits(), idleCount, borrowCount, waitCount,
+                    timeoutCount, totalWaitNanos, maxWaitNanosSeen, createdCount, destroyedCount);
+        }
+    }
+
+    /**
+     * Refills pool on a thread of its own, so that caller releasing a broken connection does not wait for a new one
+     * to connect
+     */
+    private void scheduleRefill() {
+        synchronized (this) {
+            refillRequested = true;
+            if (refilling) {
+                return;
+            }
+            refilling = true;
+        }
+        Thread refillThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (ConnectionPool.this) {
+                        if (!refillRequested) {
+                            refilling = false;
+                            return;
+                        }
+                        refillRequested = false;
+                    }
+                    try {
+                        ensureMinIdle();
+                    } catch (IOException e) {
+                        logger.warn("Unable to refill connection pool", e);
+                    }
+                }
+            }
+        }, "ConnectionPool refill " + serverHost + ":" + serverPort);
+        refillThread.setDaemon(true);
+        refillThread.start();
+    }
+
+    private PooledConnection create() throws IOException {
+        PooledConnection connection = new PooledConnection(serverHost, serverPort);
+        synchronized (this) {
+            createdCount++;
+        }
+        return connection;
+    }
+
+    private void destroy(PooledConnection connection) {
+        connection.close();
+        synchronized (this) {
+            destroyedCount++;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.client.pooled;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of connection pool counters. Counters are cumulative since the client was created.
+ */
+public final class PoolStatistics {
+
+    private final int  activeCount;
+    private final int  idleCount;
+    private final long borrowCount;
+    private final long waitCount;
+    private final long timeoutCount;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+    private final long createdCount;
+    private final long destroyedCount;
+
+    PoolStatistics(int activeCount, int idleCount, long borrowCount, long waitCount, long timeoutCount,
+                   long totalWaitNanos, long maxWaitNanos, long createdCount, long destroyedCount) {
+        super();
+        this.activeCount = activeCount;
+        this.idleCount = idleCount;
+        this.borrowCount = borrowCount;
+        this.waitCount = waitCount;
+        this.timeoutCount = timeoutCount;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.createdCount = createdCount;
+        this.destroyedCount = destroyedCount;
+    }
+
+    /**
+     * @return Number of leased connection slots, including callers opening a new connection right now
+     */
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * @return Number of connections waiting in the pool
+     */
+    public int getIdleCount() {
+        return idleCount;
+    }
+
+    /**
+     * @return Number of successful connection leases
+     */
+    public long getBorrowCount() {
+        return borrowCount;
+    }
+
+    /**
+     * @return Number of leases which had to wait for a connection to be released
+     */
+    public long getWaitCount() {
+        return waitCount;
+    }
+
+    /**
+     * @return Number of calls which failed because no connection was released in time
+     */
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * @param unit Time unit of the result
+     * @return Time spent by all successful leases waiting for the pool
+     */
+    public long getTotalWaitTime(TimeUnit unit) {
+        return unit.convert(totalWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit Time unit of the result
+     * @return The longest time a single lease waited for the pool
+     */
+    public long getMaxWaitTime(TimeUnit unit) {
+        return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit Time unit of the result
+     * @return Average time a lease waited for the pool
+     */
+    public double getAverageWaitTime(TimeUnit unit) {
+        if (borrowCount == 0) {
+            return 0;
+        }
+        return (double) totalWaitNanos / unit.toNanos(1) / borrowCount;
+    }
+
+    /**
+     * @return Number of connections opened
+     */
+    public long getCreatedCount() {
+        return createdCount;
+    }
+
+    /**
+     * @return Number of connections closed, because they were broken or pool was closed
+     */
+    public long getDestroyedCount() {
+        return destroyedCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("active=%d, idle=%d, borrowed=%d, waited=%d, timedOut=%d, avgWait=%.3fms, " +
+                "maxWait=%.3fms, created=%d, destroyed=%d", activeCount, idleCount, borrowCount, waitCount,
+                timeoutCount, getAverageWaitTime(TimeUnit.MILLISECONDS), maxWaitNanos / 1e6, createdCount,
+                destroyedCount);
+    }
+}
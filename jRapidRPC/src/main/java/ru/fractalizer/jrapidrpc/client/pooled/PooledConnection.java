@@ -0,0 +1,131 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.client.pooled;
+
+import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcRequest;
+import ru.fractalizer.jrapidrpc.api.ProtocolDataException;
+import ru.fractalizer.jrapidrpc.api.Serializer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single connection of the pool. Used by one thread at a time, so request and reply exchange is lockstep, as in
+ * {@link ru.fractalizer.jrapidrpc.client.simple.SimpleTCPClient}.
+ */
+class PooledConnection {
+
+    private final Socket       socket;
+    private final OutputStream outputStream;
+    private final InputStream  inputStream;
+
+    /**
+     * Set when exchange failed halfway, so connection state is unknown
+     */
+    private boolean broken;
+
+    /**
+     * Connects to the server
+     *
+     * @param serverHost Host to use as a server
+     * @param serverPort Port to use at host
+     * @throws IOException Is thrown on any connection problem
+     */
+    PooledConnection(String serverHost, int serverPort) throws IOException {
+        super();
+        socket = new Socket(serverHost, serverPort);
+        try {
+            //Buffered, so that each request leaves in a single write and does not get stuck in Nagle's algorithm
+            outputStream = new BufferedOutputStream(socket.getOutputStream());
+            inputStream = socket.getInputStream();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        broken = false;
+    }
+
+    /**
+     * Sends request and waits for its reply. Request with a deadline is not sent if the deadline has already passed,
+     * e.g. while waiting for a free connection
+     *
+     * @param serializer    Serializer to use
+     * @param msgRpcRequest Request to send
+     * @return Reply from the server
+     * @throws SocketTimeoutException If deadline of the request passes before reply arrives. Connection is broken then
+     *                                unless request was not sent at all
+     * @throws IOException            Is thrown on any connection problem
+     * @throws ProtocolDataException  If something is wrong with protocol data on reply
+     */
+    MsgRpcReply call(Serializer serializer, MsgRpcRequest msgRpcRequest) throws IOException, ProtocolDataException {
+        if (msgRpcRequest.hasDeadline() && msgRpcRequest.getDeadlineNanos() - System.nanoTime() <= 0) {
+            throw new SocketTimeoutException("Deadline passed before request was sent");
+        }
+        broken = true;
+        serializer.sendRpcRequest(msgRpcRequest, outputStream);
+        outputStream.flush();
+        if (msgRpcRequest.hasDeadline()) {
+            long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(msgRpcRequest.getDeadlineNanos() - System.nanoTime());
+            //Zero would mean no timeout at all
+            socket.setSoTimeout((int) Math.max(1, Math.min(timeoutMillis + 1, Integer.MAX_VALUE)));
+        }
+        MsgRpcReply msgRpcReply = serializer.receiveRpcReply(inputStream);
+        if (msgRpcRequest.hasDeadline()) {
+            socket.setSoTimeout(0);
+        }
+        broken = false;
+        return msgRpcReply;
+    }
+
+    /**
+     * Cheap check whether connection can be reused. Does not detect a peer that closed connection quietly, such
+     * connection fails on the first call and is discarded.
+     *
+     * @return True if connection looks healthy
+     */
+    boolean isValid() {
+        if (broken || socket.isClosed() || !socket.isConnected() || socket.isInputShutdown() ||
+                socket.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            //Nobody is waiting for data on an idle connection. Anything unread means the stream is out of sync
+            return inputStream.available() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes connection socket
+     */
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //Nothing to do with it, connection is discarded anyway
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.client.pooled;
+
+import ru.fractalizer.jrapidrpc.api.*;
+import ru.fractalizer.jrapidrpc.client.BatchCaller;
+import ru.fractalizer.jrapidrpc.client.RpcBatch;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCP client keeping a bounded pool of connections to the server. Every call leases a connection for the time of
+ * request and reply exchange, so a single proxy can be shared by any number of threads. When all connections are
+ * leased, callers wait for one to be released.
+ * <p>
+ * Calls with a timeout, set for the client or by {@link RpcTimeout}, send their deadline to the server. Time spent
+ * waiting for a free connection counts too. If reply does not arrive in time, connection it was due on is discarded and
+ * {@link RpcDeadlineExceededException} is thrown.
+ */
+@SuppressWarnings({"unchecked"})
+public class PooledTCPClient implements InvocationHandler, BatchCaller {
+
+    /**
+     * Default number of idle connections kept ready
+     */
+    public static final int DEFAULT_MIN_IDLE = 1;
+
+    /**
+     * Default maximum number of connections
+     */
+    public static final int DEFAULT_MAX_TOTAL = 8;
+
+    /**
+     * Default time in milliseconds a call may wait for a free connection
+     */
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 30000;
+
+    private String          serverHost;
+    private int             serverPort;
+    private Serializer      serializer;
+    private int             minIdle;
+    private int             maxTotal;
+    private long            maxWaitMillis;
+    private long            timeoutNanos;
+    private ConnectionPool  connectionPool;
+    private Class<?>        serviceInterface;
+    private ReflectionCache reflectionCache;
+
+    /**
+     * Default constructor
+     *
+     * @param serverHost    Host to use as a server
+     * @param serverPort    Port to use at host
+     * @param serializer    Serializer to use. Must be thread-safe.
+     * @param minIdle       Number of idle connections to keep ready. They are opened on connect and reopened
+     *                      whenever a broken connection is discarded
+     * @param maxTotal      Maximum number of connections to the server
+     * @param maxWaitMillis How long a call may wait for a free connection before failing with IOException
+     * @param timeoutMillis Time to wait for replies to calls of methods without {@link RpcTimeout} and to batches.
+     *                      Zero means no deadline
+     */
+    public PooledTCPClient(String serverHost, int serverPort, Serializer serializer, int minIdle, int maxTotal,
+                           long maxWaitMillis, long timeoutMillis) {
+        super();
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.serializer = serializer;
+        this.minIdle = minIdle;
+        this.maxTotal = maxTotal;
+        this.maxWaitMillis = maxWaitMillis;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param serverHost    Host to use as a server
+     * @param serverPort    Port to use at host
+     * @param serializer    Serializer to use. Must be thread-safe.
+     * @param minIdle       Number of idle connections to keep ready. They are opened on connect and reopened
+     *                      whenever a broken connection is discarded
+     * @param maxTotal      Maximum number of connections to the server
+     * @param maxWaitMillis How long a call may wait for a free connection before failing with IOException
+     */
+    public PooledTCPClient(String serverHost, int serverPort, Serializer serializer, int minIdle, int maxTotal,
+                           long maxWaitMillis) {
+        this(serverHost, serverPort, serializer, minIdle, maxTotal, maxWaitMillis, 0);
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param serverHost Host to use as a server
+     * @param serverPort Port to use at host
+     * @param serializer Serializer to use. Must be thread-safe.
+     */
+    public PooledTCPClient(String serverHost, int serverPort, Serializer serializer) {
+        this(serverHost, serverPort, serializer, DEFAULT_MIN_IDLE, DEFAULT_MAX_TOTAL, DEFAULT_MAX_WAIT_MILLIS);
+    }
+
+    /**
+     * Creates connection pool and opens minIdle connections to the server. If successful, returns an RPC object which
+     * methods you can call from any number of threads. All calls will be forwarded to the server
+     *
+     * @param serviceInterface An RPC interface, defining methods of RPC communication
+     * @return A proxy object which methods you can call. All calls will be forwarded to server
+     * @throws IOException Is thrown on any connection problem
+     */
+    public <T> T connect(Class<T> serviceInterface) throws IOException {
+        if (!serviceInterface.isInterface()) {
+            throw new IllegalArgumentException("serviceInterface must be of interface type!");
+        }
+        this.serviceInterface = serviceInterface;
+        reflectionCache = new ReflectionCache(serviceInterface);
+        connectionPool = new ConnectionPool(serverHost, serverPort, minIdle, maxTotal, maxWaitMillis);
+        try {
+            connectionPool.ensureMinIdle();
+        } catch (IOException e) {
+            connectionPool.close();
+            throw e;
+        }
+        return (T) Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class[]{serviceInterface}, this);
+    }
+
+    /**
+     * Closes idle connections. Calls in progress complete, then their connections are closed too. Any calls to proxy
+     * object after this call will result in IOException.
+     */
+    public void disconnect() {
+        connectionPool.close();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws RpcMethodInvocationException, IOException, ProtocolDataException {
+        short methodId = reflectionCache.getMethodId(method);
+        if (reflectionCache.isStreaming(methodId)) {
+            //Stream would hold the leased connection for as long as caller keeps it open
+            throw new UnsupportedOperationException("Method '" + method.getName() + "' returns a stream, which is " +
+                    "only supported by SimpleTCPClient");
+        }
+        long callTimeoutNanos = reflectionCache.getTimeoutNanos(methodId, timeoutNanos);
+        if (callTimeoutNanos > 0) {
+            return call(method, args, System.nanoTime() + callTimeoutNanos);
+        }
+        return call(new MsgRpcRequest(0, methodId, method.getName(), args), method, callTimeoutNanos);
+    }
+
+    /**
+     * Calls method with the given deadline instead of the timeout of the client or {@link RpcTimeout}. Lets callers
+     * retrying a call fit all of its attempts into one timeout
+     *
+     * @param method        Method of the service interface to call
+     * @param args          Arguments of the method
+     * @param deadlineNanos {@link System#nanoTime()} by which the call must complete
+     * @return Return value of the method
+     */
+    public Object call(Method method, Object[] args, long deadlineNanos)
+            throws RpcMethodInvocationException, IOException, ProtocolDataException {
+        short methodId = reflectionCache.getMethodId(method);
+        if (reflectionCache.isStreaming(methodId)) {
+            throw new UnsupportedOperationException("Method '" + method.getName() + "' returns a stream, which is " +
+                    "only supported by SimpleTCPClient");
+        }
+        return call(new MsgRpcRequest(0, methodId, method.getName(), args, deadlineNanos), method,
+                deadlineNanos - System.nanoTime());
+    }
+
+    private Object call(MsgRpcRequest msgRpcRequest, Method method, long callTimeoutNanos)
+            throws RpcMethodInvocationException, IOException, ProtocolDataException {
+        MsgRpcReply msgRpcReply;
+        try {
+            msgRpcReply = call(msgRpcRequest);
+        } catch (SocketTimeoutException e) {
+            throw new RpcDeadlineExceededException(String.format("Call of '%s' did not complete within %d ms",
+                    method.getName(), TimeUnit.NANOSECONDS.toMillis(callTimeoutNanos)));
+        }
+        if (msgRpcReply.getErrorMessage() != null) {
+            throw RpcMethodInvocationException.forReply(msgRpcReply);
+        }
+        return msgRpcReply.getMethodReturnValue();
+    }
+
+    /**
+     * Creates a batch of calls to send in a single frame over one leased connection. Batch itself is not
+     * thread-safe, but any number of batches may be executed concurrently
+     *
+     * @param parallel True if server may execute calls in parallel, false if they must run one by one in order
+     * @return Empty batch
+     */
+    public <T> RpcBatch<T> newBatch(boolean parallel) {
+        if (serviceInterface == null) {
+            throw new IllegalStateException("Client is not connected!");
+        }
+        return new RpcBatch<T>((Class<T>) serviceInterface, reflectionCache, this, parallel);
+    }
+
+    /**
+     * Sends batch with the default timeout of the client. If reply does not arrive in time, SocketTimeoutException is
+     * thrown
+     */
+    @Override
+    public MsgRpcReply callBatch(MsgRpcRequest msgRpcRequest) throws IOException, ProtocolDataException {
+        if (timeoutNanos > 0) {
+            return callBatch(msgRpcRequest, System.nanoTime() + timeoutNanos);
+        }
+        return call(msgRpcRequest);
+    }
+
+    /**
+     * Sends batch with the given deadline instead of the timeout of the client. If reply does not arrive in time,
+     * SocketTimeoutException is thrown
+     *
+     * @param msgRpcRequest Batch to send
+     * @param deadlineNanos {@link System#nanoTime()} by which the batch must complete
+     * @return Reply to the batch
+     */
+    public MsgRpcReply callBatch(MsgRpcRequest msgRpcRequest, long deadlineNanos)
+            throws IOException, ProtocolDataException {
+        return call(new MsgRpcRequest(0, msgRpcRequest.getBatch(), deadlineNanos));
+    }
+
+    private MsgRpcReply call(MsgRpcRequest msgRpcRequest) throws IOException, ProtocolDataException {
+        PooledConnection connection = msgRpcRequest.hasDeadline() ?
+                connectionPool.borrow(msgRpcRequest.getDeadlineNanos()) : connectionPool.borrow();
+        try {
+            return connection.call(serializer, msgRpcRequest);
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
+
+    /**
+     * Returns client status
+     *
+     * @return True, if client is connected and not disconnected yet, false otherwise
+     */
+    public boolean isConnected() {
+        return (connectionPool != null) && !connectionPool.isClosed();
+    }
+
+    /**
+     * Returns pool counters, including time calls spent waiting for a free connection
+     *
+     * @return Snapshot of pool counters
+     */
+    public PoolStatistics getPoolStatistics() {
+        return connectionPool.getStatistics();
+    }
+}
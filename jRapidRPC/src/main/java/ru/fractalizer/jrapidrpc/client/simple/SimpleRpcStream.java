@@ -0,0 +1,157 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.client.simple;
+
+import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcStreamChunk;
+import ru.fractalizer.jrapidrpc.api.MsgStreamCredit;
+import ru.fractalizer.jrapidrpc.api.ProtocolDataException;
+import ru.fractalizer.jrapidrpc.api.RpcStream;
+import ru.fractalizer.jrapidrpc.api.RpcStreamException;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * Stream of elements returned by a streaming method, read from the connection of {@link SimpleTCPClient} chunk by
+ * chunk. Consumed chunks are granted back to server as credits, so at most {@link MsgStreamCredit#INITIAL_CREDITS}
+ * chunks are ever waiting on the connection. Connection cannot be used for other calls until the stream ends or is
+ * closed.
+ *
+ * @param <T> Type of elements
+ */
+@SuppressWarnings({"unchecked"})
+class SimpleRpcStream<T> implements RpcStream<T> {
+
+    //Chunks consumed but not granted back to server yet are granted in batches of this size
+    private static final int CREDIT_BATCH = MsgStreamCredit.INITIAL_CREDITS / 2;
+
+    private final SimpleTCPClient client;
+
+    private Object[] elements;
+    private int      position;
+    private boolean  finished;
+    private boolean  closed;
+    private int      consumedChunks;
+
+    /**
+     * Default constructor
+     *
+     * @param client     Client which connection carries the stream
+     * @param firstChunk First chunk of the stream, already received
+     */
+    SimpleRpcStream(SimpleTCPClient client, MsgRpcStreamChunk firstChunk) {
+        super();
+        this.client = client;
+        accept(firstChunk);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            throw new IllegalStateException("Stream is closed");
+        }
+        while (position == elements.length) {
+            if (finished) {
+                return false;
+            }
+            try {
+                consumedChunks++;
+                if (consumedChunks >= CREDIT_BATCH) {
+                    client.sendStreamCredit(consumedChunks);
+                    consumedChunks = 0;
+                }
+                accept(receiveChunk());
+            } catch (IOException e) {
+                finished = true;
+                throw new RpcStreamException("Connection failed while reading stream", e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T element = (T) elements[position];
+        //Released, so that consumed elements can be collected before the chunk ends
+        elements[position++] = null;
+        return element;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Elements cannot be removed from RPC stream");
+    }
+
+    /**
+     * Cancels the stream if it has not ended yet and skips chunks server sent before noticing that
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        elements = null;
+        try {
+            if (!finished) {
+                client.sendStreamCredit(MsgStreamCredit.CANCEL);
+                while (!finished) {
+                    try {
+                        receiveChunk();
+                    } catch (RpcStreamException e) {
+                        //Stream failed before server noticed cancellation
+                    }
+                }
+            }
+        } catch (IOException e) {
+            finished = true;
+            throw new RpcStreamException("Connection failed while cancelling stream", e);
+        } finally {
+            client.streamClosed(this);
+        }
+    }
+
+    private MsgRpcStreamChunk receiveChunk() throws IOException {
+        MsgRpcReply msgRpcReply;
+        try {
+            msgRpcReply = client.receiveStreamReply();
+        } catch (ProtocolDataException e) {
+            finished = true;
+            throw new RpcStreamException("Malformed chunk of stream", e);
+        }
+        MsgRpcStreamChunk chunk = msgRpcReply.getStreamChunk();
+        if (chunk == null) {
+            finished = true;
+            String errorMessage = msgRpcReply.getErrorMessage();
+            throw new RpcStreamException(errorMessage != null ? errorMessage : "Stream ended without its last chunk");
+        }
+        finished = chunk.isLast();
+        return chunk;
+    }
+
+    private void accept(MsgRpcStreamChunk chunk) {
+        elements = chunk.getElements();
+        position = 0;
+        finished = chunk.isLast();
+    }
+}
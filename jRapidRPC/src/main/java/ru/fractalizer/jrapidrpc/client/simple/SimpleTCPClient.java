@@ -19,7 +19,23 @@
 package ru.fractalizer.jrapidrpc.client.simple;
 
 import ru.fractalizer.jrapidrpc.api.*;
+import ru.fractalizer.jrapidrpc.client.BatchCaller;
+import ru.fractalizer.jrapidrpc.client.RpcBatch;
+import ru.fractalizer.jrapidrpc.compression.CompressingOutputStream;
+import ru.fractalizer.jrapidrpc.compression.Compression;
+import ru.fractalizer.jrapidrpc.compression.CompressionCodec;
+import ru.fractalizer.jrapidrpc.compression.DecompressingInputStream;
+import ru.fractalizer.jrapidrpc.metrics.CountingInputStream;
+import ru.fractalizer.jrapidrpc.metrics.CountingOutputStream;
+import ru.fractalizer.jrapidrpc.metrics.MethodMetrics;
+import ru.fractalizer.jrapidrpc.metrics.RpcMetrics;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+import ru.fractalizer.jrapidrpc.tools.ResultCache;
+import ru.fractalizer.jrapidrpc.tools.ResultCacheStatistics;
 
+import javax.net.SocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -27,32 +43,143 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
- * Simple TCP client
+ * Simple TCP client. If constructed with a cache size and serializer is a {@link FrameSerializer}, replies of
+ * {@link RpcCacheable} methods are cached locally and repeated calls are answered without touching the socket. Client
+ * subscribes to cache invalidations of the server, which are applied before every call. If constructed with
+ * {@link Compression}, client offers it to the server when connecting and compresses frames with the codec server
+ * picks.
+ * <p>
+ * Calls with a timeout, set for the client or by {@link RpcTimeout}, send their deadline to the server. If reply does
+ * not arrive in time, client closes the connection, since a late reply could not be told apart from replies to further
+ * calls, and throws {@link RpcDeadlineExceededException}.
+ * <p>
+ * Streaming methods return a stream reading the connection as it is consumed. Any other call closes the stream still
+ * open, cancelling the rest of it.
+ * <p>
+ * Client connects over TCP unless constructed with a socket factory, such as the one of
+ * {@link ru.fractalizer.jrapidrpc.transport.UnixDomainSockets} for a server on the same host.
  */
 @SuppressWarnings({"unchecked"})
-public class SimpleTCPClient implements InvocationHandler {
+public class SimpleTCPClient implements InvocationHandler, BatchCaller {
 
-    private String       serverHost;
-    private int          serverPort;
-    private Serializer   serializer;
-    private Socket       socket;
-    private OutputStream outputStream;
-    private InputStream  inputStream;
+    private String               serverHost;
+    private int                  serverPort;
+    private Serializer           serializer;
+    private Socket               socket;
+    private CountingOutputStream outputStream;
+    private CountingInputStream  inputStream;
+
+    private Class<?>        serviceInterface;
+    private ReflectionCache reflectionCache;
+    private RpcMetrics      metrics;
+
+    private long            cacheMaxBytes;
+    private FrameSerializer frameSerializer;
+    private ResultCache     resultCache;
+
+    //Key of the cacheable call waiting for its reply and whether it was invalidated meanwhile
+    private short      pendingMethodId;
+    private ByteBuffer pendingKey;
+    private boolean    pendingInvalidated;
+
+    private SimpleRpcStream<?> openStream;
+
+    private Compression      compression;
+    private CompressionCodec compressionCodec;
+
+    private long timeoutNanos;
+
+    private SocketFactory socketFactory;
 
     /**
      * Default constructor
      *
-     * @param serverHost Host to use as a server
-     * @param serverPort Port to use at host
-     * @param serializer Serializer to use
+     * @param serverHost    Host to use as a server
+     * @param serverPort    Port to use at host
+     * @param serializer    Serializer to use
+     * @param cacheMaxBytes Memory bound of the local cache of {@link RpcCacheable} replies in bytes. Zero disables
+     *                      the cache
+     * @param compression   Compression to offer to the server or null if frames should never be compressed
+     * @param timeoutMillis Time to wait for replies to calls of methods without {@link RpcTimeout} and to batches.
+     *                      Zero means no deadline
+     * @param socketFactory Factory to create socket connected to serverHost and serverPort with or null to connect
+     *                      over TCP
      */
-    public SimpleTCPClient(String serverHost, int serverPort, Serializer serializer) {
+    public SimpleTCPClient(String serverHost, int serverPort, Serializer serializer, long cacheMaxBytes,
+                           Compression compression, long timeoutMillis, SocketFactory socketFactory) {
         super();
         this.serverHost = serverHost;
         this.serverPort = serverPort;
         this.serializer = serializer;
+        this.cacheMaxBytes = cacheMaxBytes;
+        this.compression = compression;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.socketFactory = socketFactory;
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param serverHost    Host to use as a server
+     * @param serverPort    Port to use at host
+     * @param serializer    Serializer to use
+     * @param cacheMaxBytes Memory bound of the local cache of {@link RpcCacheable} replies in bytes. Zero disables
+     *                      the cache
+     * @param compression   Compression to offer to the server or null if frames should never be compressed
+     * @param timeoutMillis Time to wait for replies to calls of methods without {@link RpcTimeout} and to batches.
+     *                      Zero means no deadline
+     */
+    public SimpleTCPClient(String serverHost, int serverPort, Serializer serializer, long cacheMaxBytes,
+                           Compression compression, long timeoutMillis) {
+        this(serverHost, serverPort, serializer, cacheMaxBytes, compression, timeoutMillis, null);
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param serverHost    Host to use as a server
+     * @param serverPort    Port to use at host
+     * @param serializer    Serializer to use
+     * @param cacheMaxBytes Memory bound of the local cache of {@link RpcCacheable} replies in bytes. Zero disables
+     *                      the cache
+     * @param compression   Compression to offer to the server or null if frames should never be compressed
+     */
+    public SimpleTCPClient(String serverHost, int serverPort, Serializer serializer, long cacheMaxBytes,
+                           Compression compression) {
+        this(serverHost, serverPort, serializer, cacheMaxBytes, compression, 0);
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param serverHost    Host to use as a server
+     * @param serverPort    Port to use at host
+     * @param serializer    Serializer to use
+     * @param cacheMaxBytes Memory bound of the local cache of {@link RpcCacheable} replies in bytes. Zero disables
+     *                      the cache
+     */
+    public SimpleTCPClient(String serverHost, int serverPort, Serializer serializer, long cacheMaxBytes) {
+        this(serverHost, serverPort, serializer, cacheMaxBytes, null);
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param serverHost Host to use as a server
+     * @param serverPort Port to use at host
+     * @param serializer Serializer to use
+     */
+    public SimpleTCPClient(String serverHost, int serverPort, Serializer serializer) {
+        this(serverHost, serverPort, serializer, 0);
     }
 
     /**
@@ -67,10 +194,35 @@ public class SimpleTCPClient implements InvocationHandler {
         if (!serviceInterface.isInterface()) {
             throw new IllegalArgumentException("serviceInterface must be of interface type!");
         }
+        this.serviceInterface = serviceInterface;
+        reflectionCache = new ReflectionCache(serviceInterface);
+        metrics = new RpcMetrics("SimpleTCPClient:" + serverHost + ":" + serverPort, reflectionCache);
         try {
-            socket = new Socket(this.serverHost, this.serverPort);
-            outputStream = socket.getOutputStream();
-            inputStream = socket.getInputStream();
+            socket = socketFactory != null ? socketFactory.createSocket(this.serverHost, this.serverPort) :
+                    new Socket(this.serverHost, this.serverPort);
+            //Buffered, so that each request leaves in a single write and does not get stuck in Nagle's algorithm
+            OutputStream socketOutputStream = new BufferedOutputStream(socket.getOutputStream());
+            InputStream socketInputStream = socket.getInputStream();
+            CompressingOutputStream compressingStream = null;
+            DecompressingInputStream decompressingStream = null;
+            if (compression != null) {
+                compressingStream = new CompressingOutputStream(socketOutputStream, compression.getThreshold(),
+                        metrics);
+                decompressingStream = new DecompressingInputStream(new BufferedInputStream(socketInputStream),
+                        compression.getMaxFrameSize(), metrics);
+                socketOutputStream = compressingStream;
+                socketInputStream = decompressingStream;
+            }
+            outputStream = new CountingOutputStream(socketOutputStream);
+            inputStream = new CountingInputStream(socketInputStream);
+            if (compression != null) {
+                negotiateCompression(compressingStream, decompressingStream);
+            }
+            if (cacheMaxBytes > 0 && reflectionCache.hasCacheableMethods() && serializer instanceof FrameSerializer) {
+                frameSerializer = (FrameSerializer) serializer;
+                resultCache = new ResultCache(reflectionCache, cacheMaxBytes);
+                subscribe();
+            }
         } catch (IOException e) {
             if (inputStream != null) {inputStream.close();}
             if (outputStream != null) {outputStream.close();}
@@ -81,6 +233,58 @@ public class SimpleTCPClient implements InvocationHandler {
         return (T) Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class[]{serviceInterface}, this);
     }
 
+    /**
+     * Offers compression to the server and starts compressing frames with the codec it picks. Servers which do not
+     * support compression reply with an error, then frames are sent raw
+     *
+     * @throws IOException Is thrown on any connection problem
+     */
+    private void negotiateCompression(CompressingOutputStream compressingStream,
+                                      DecompressingInputStream decompressingStream) throws IOException {
+        serializer.sendRpcRequest(
+                new MsgRpcRequest(0, new MsgCompressionOffer(compression.getCodecNames())), outputStream);
+        outputStream.flush();
+        MsgRpcReply msgRpcReply;
+        try {
+            msgRpcReply = serializer.receiveRpcReply(inputStream);
+        } catch (ProtocolDataException e) {
+            throw new IOException("Cannot negotiate compression: " + e.getMessage());
+        }
+        if (msgRpcReply.getErrorMessage() == null && msgRpcReply.getMethodReturnValue() != null) {
+            compressionCodec = compression.getCodec((String) msgRpcReply.getMethodReturnValue());
+            if (compressionCodec == null) {
+                throw new IOException("Server picked unknown codec " + msgRpcReply.getMethodReturnValue());
+            }
+            compressingStream.setCodec(compressionCodec);
+            decompressingStream.setCodec(compressionCodec);
+        }
+    }
+
+    /**
+     * Returns codec frames are compressed with
+     *
+     * @return Codec server picked or null if frames are not compressed
+     */
+    public CompressionCodec getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    /**
+     * Subscribes connection to cache invalidations and waits for server to confirm it
+     *
+     * @throws IOException Is thrown on any connection problem
+     */
+    private void subscribe() throws IOException {
+        frameSerializer.sendRpcRequest(
+                new MsgRpcRequest(0, MsgCacheInvalidation.SUBSCRIBE_METHOD_ID, null, null), outputStream);
+        outputStream.flush();
+        try {
+            frameSerializer.receiveRpcReply(inputStream);
+        } catch (ProtocolDataException e) {
+            throw new IOException("Cannot subscribe to cache invalidations: " + e.getMessage());
+        }
+    }
+
     /**
      * Closes socket and disconnects from server. Any calls to proxy object after this call will result in IOException.
      *
@@ -98,15 +302,309 @@ public class SimpleTCPClient implements InvocationHandler {
     @Override
     public Object invoke(Object proxy, Method method, Object[] args)
             throws RpcMethodInvocationException, IOException, ProtocolDataException {
-        serializer.sendRpcRequest(new MsgRpcRequest(method.getName(), args), outputStream);
+        closeOpenStream();
+        short methodId = reflectionCache.getMethodId(method);
+        MethodMetrics methodMetrics = metrics.getMethodMetrics(methodId);
+        long startNanos = System.nanoTime();
+        long callTimeoutNanos = reflectionCache.getTimeoutNanos(methodId, timeoutNanos);
+        MsgRpcRequest msgRpcRequest = callTimeoutNanos > 0 ?
+                new MsgRpcRequest(0, methodId, method.getName(), args, startNanos + callTimeoutNanos) :
+                new MsgRpcRequest(0, methodId, method.getName(), args);
 
-        MsgRpcReply msgRpcReply = serializer.receiveRpcReply(inputStream);
+        methodMetrics.callStarted();
+        MsgRpcReply msgRpcReply;
+        try {
+            if (resultCache != null && resultCache.isCacheable(methodId)) {
+                msgRpcReply = callCached(msgRpcRequest, methodMetrics);
+            } else {
+                msgRpcReply = call(msgRpcRequest, methodMetrics);
+            }
+            methodMetrics.recordInvoke(System.nanoTime() - startNanos, msgRpcReply.getErrorMessage() != null);
+        } catch (SocketTimeoutException e) {
+            methodMetrics.recordInvoke(System.nanoTime() - startNanos, true);
+            closeAfterTimeout();
+            throw new RpcDeadlineExceededException(String.format("Call of '%s' did not complete within %d ms, " +
+                    "connection is closed", method.getName(), TimeUnit.NANOSECONDS.toMillis(callTimeoutNanos)));
+        } catch (IOException e) {
+            methodMetrics.recordInvoke(System.nanoTime() - startNanos, true);
+            throw e;
+        } catch (ProtocolDataException e) {
+            methodMetrics.recordInvoke(System.nanoTime() - startNanos, true);
+            throw e;
+        }
         if (msgRpcReply.getErrorMessage() != null) {
-            throw new RpcMethodInvocationException(msgRpcReply.getErrorMessage());
+            throw RpcMethodInvocationException.forReply(msgRpcReply);
+        }
+        if (msgRpcReply.getStreamChunk() != null) {
+            return openStream(method, msgRpcReply.getStreamChunk());
         }
         return msgRpcReply.getMethodReturnValue();
     }
 
+    /**
+     * Wraps the first chunk of a stream into the type method returns
+     */
+    private Object openStream(Method method, MsgRpcStreamChunk firstChunk) {
+        final SimpleRpcStream<Object> stream = new SimpleRpcStream<Object>(this, firstChunk);
+        openStream = stream;
+        if (!Stream.class.isAssignableFrom(method.getReturnType())) {
+            return stream;
+        }
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(stream, Spliterator.ORDERED), false)
+                .onClose(new Runnable() {
+                    @Override
+                    public void run() {
+                        stream.close();
+                    }
+                });
+    }
+
+    private void closeOpenStream() {
+        if (openStream != null) {
+            openStream.close();
+        }
+    }
+
+    /**
+     * Receives the next reply of the open stream
+     */
+    MsgRpcReply receiveStreamReply() throws IOException, ProtocolDataException {
+        return receiveReply(null).getReply();
+    }
+
+    /**
+     * Grants credits to the open stream or cancels it
+     *
+     * @param credits Number of chunks server may send or {@link MsgStreamCredit#CANCEL}
+     */
+    void sendStreamCredit(int credits) throws IOException {
+        serializer.sendRpcRequest(new MsgRpcRequest(0, new MsgStreamCredit(credits)), outputStream);
+        outputStream.flush();
+    }
+
+    void streamClosed(SimpleRpcStream<?> stream) {
+        if (openStream == stream) {
+            openStream = null;
+        }
+    }
+
+    /**
+     * Creates a batch of calls to send in a single frame. Batched calls bypass the local cache and are not recorded to
+     * client metrics
+     *
+     * @param parallel True if server may execute calls in parallel, false if they must run one by one in order
+     * @return Empty batch
+     */
+    public <T> RpcBatch<T> newBatch(boolean parallel) {
+        if (serviceInterface == null) {
+            throw new IllegalStateException("Client is not connected!");
+        }
+        return new RpcBatch<T>((Class<T>) serviceInterface, reflectionCache, this, parallel);
+    }
+
+    /**
+     * Sends batch with the default timeout of the client. If reply does not arrive in time, connection is closed and
+     * SocketTimeoutException is thrown
+     */
+    @Override
+    public MsgRpcReply callBatch(MsgRpcRequest msgRpcRequest) throws IOException, ProtocolDataException {
+        closeOpenStream();
+        if (timeoutNanos > 0) {
+            msgRpcRequest = new MsgRpcRequest(0, msgRpcRequest.getBatch(), System.nanoTime() + timeoutNanos);
+        }
+        try {
+            return call(msgRpcRequest, null);
+        } catch (SocketTimeoutException e) {
+            closeAfterTimeout();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes connection a reply is still due on
+     */
+    private void closeAfterTimeout() {
+        try {
+            disconnect();
+        } catch (IOException e) {
+            //Connection is given up anyway
+        }
+    }
+
+    /**
+     * Makes reading the reply fail with SocketTimeoutException once deadline of the request passes
+     */
+    private void setReplyTimeout(MsgRpcRequest msgRpcRequest) throws IOException {
+        if (msgRpcRequest.hasDeadline()) {
+            long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(msgRpcRequest.getDeadlineNanos() - System.nanoTime());
+            //Zero would mean no timeout at all
+            socket.setSoTimeout((int) Math.max(1, Math.min(timeoutMillis + 1, Integer.MAX_VALUE)));
+        }
+    }
+
+    private void clearReplyTimeout(MsgRpcRequest msgRpcRequest) throws IOException {
+        if (msgRpcRequest.hasDeadline() && !socket.isClosed()) {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Sends request and receives reply to it
+     *
+     * @param methodMetrics Metrics of the method called or null if call is not recorded
+     */
+    private MsgRpcReply call(MsgRpcRequest msgRpcRequest, MethodMetrics methodMetrics)
+            throws IOException, ProtocolDataException {
+        long startNanos = System.nanoTime();
+        long bytesOut = outputStream.getByteCount();
+        serializer.sendRpcRequest(msgRpcRequest, outputStream);
+        outputStream.flush();
+        if (methodMetrics != null) {
+            methodMetrics.recordEncode(System.nanoTime() - startNanos, outputStream.getByteCount() - bytesOut);
+        }
+        setReplyTimeout(msgRpcRequest);
+        try {
+            return receiveReply(methodMetrics).getReply();
+        } finally {
+            clearReplyTimeout(msgRpcRequest);
+        }
+    }
+
+    /**
+     * Answers the call from the local cache if possible, calls server and caches its reply otherwise
+     */
+    private MsgRpcReply callCached(MsgRpcRequest msgRpcRequest, MethodMetrics methodMetrics)
+            throws IOException, ProtocolDataException {
+        long startNanos = System.nanoTime();
+        short methodId = msgRpcRequest.getMethodId();
+        byte[] requestFrame = frameSerializer.encodeRpcRequestFrame(msgRpcRequest);
+        ByteBuffer key = frameSerializer.getRpcRequestKey(requestFrame);
+
+        applyPushedInvalidations();
+        byte[] cachedFrame = resultCache.get(methodId, key);
+        if (cachedFrame != null) {
+            //Decoded each time, so that callers never share returned objects
+            return frameSerializer.decodeRpcReplyFrame(cachedFrame);
+        }
+
+        outputStream.write(requestFrame);
+        outputStream.flush();
+        methodMetrics.recordEncode(System.nanoTime() - startNanos, requestFrame.length);
+
+        pendingMethodId = methodId;
+        pendingKey = key;
+        pendingInvalidated = false;
+        ReceivedReply receivedReply;
+        setReplyTimeout(msgRpcRequest);
+        try {
+            receivedReply = receiveReply(methodMetrics);
+        } finally {
+            pendingKey = null;
+            clearReplyTimeout(msgRpcRequest);
+        }
+        //Reply computed before an invalidation of the call may already be stale
+        if (receivedReply.getReply().getErrorMessage() == null && !pendingInvalidated) {
+            resultCache.put(methodId, key, receivedReply.getFrame());
+        }
+        return receivedReply.getReply();
+    }
+
+    /**
+     * Receives reply to the call, applying cache invalidations server pushed before it
+     */
+    private ReceivedReply receiveReply(MethodMetrics methodMetrics) throws IOException, ProtocolDataException {
+        while (true) {
+            long bytesIn = inputStream.getByteCount();
+            inputStream.startMessage();
+            ReceivedReply receivedReply = receive();
+            if (receivedReply.getReply().getCacheInvalidation() != null) {
+                applyInvalidation(receivedReply.getReply().getCacheInvalidation());
+                continue;
+            }
+            if (methodMetrics != null) {
+                methodMetrics.recordDecode(System.nanoTime() - inputStream.getFirstReadNanos(),
+                        inputStream.getByteCount() - bytesIn);
+            }
+            return receivedReply;
+        }
+    }
+
+    private ReceivedReply receive() throws IOException, ProtocolDataException {
+        if (frameSerializer == null) {
+            return new ReceivedReply(null, serializer.receiveRpcReply(inputStream));
+        }
+        byte[] frame = frameSerializer.receiveRpcReplyFrame(inputStream);
+        return new ReceivedReply(frame, frameSerializer.decodeRpcReplyFrame(frame));
+    }
+
+    /**
+     * Applies invalidations which arrived since the last call. Nothing else can be pending on the connection between
+     * calls
+     */
+    private void applyPushedInvalidations() throws IOException, ProtocolDataException {
+        while (inputStream.available() > 0) {
+            MsgRpcReply msgRpcReply = receive().getReply();
+            if (msgRpcReply.getCacheInvalidation() == null) {
+                throw new ProtocolDataException("Unexpected reply with call ID " + msgRpcReply.getCallId(), null);
+            }
+            applyInvalidation(msgRpcReply.getCacheInvalidation());
+        }
+    }
+
+    private void applyInvalidation(MsgCacheInvalidation invalidation) {
+        short methodId = invalidation.getMethodId();
+        boolean pendingMethod = pendingKey != null && pendingMethodId == methodId;
+        if (invalidation.getKey() == null) {
+            resultCache.invalidate(methodId);
+            pendingInvalidated |= pendingMethod;
+        } else {
+            ByteBuffer key = ByteBuffer.wrap(invalidation.getKey());
+            resultCache.invalidate(methodId, key);
+            pendingInvalidated |= pendingMethod && key.equals(pendingKey);
+        }
+    }
+
+    /**
+     * Reply together with the frame it was decoded from. Frame is null if serializer cannot read frames
+     */
+    private static final class ReceivedReply {
+
+        private final byte[]      frame;
+        private final MsgRpcReply reply;
+
+        ReceivedReply(byte[] frame, MsgRpcReply reply) {
+            this.frame = frame;
+            this.reply = reply;
+        }
+
+        byte[] getFrame() {
+            return frame;
+        }
+
+        MsgRpcReply getReply() {
+            return reply;
+        }
+    }
+
+    /**
+     * Returns client metrics. Invoke latency of a method is the full round trip time of its calls. Metrics are not
+     * registered in JMX automatically, use {@link RpcMetrics#registerMBeans()} for that
+     *
+     * @return Metrics of the client or null if client was not connected yet
+     */
+    public RpcMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns counters of the local cache of {@link RpcCacheable} replies
+     *
+     * @return Snapshot of cache counters or null if cache is disabled
+     */
+    public ResultCacheStatistics getResultCacheStatistics() {
+        return resultCache != null ? resultCache.getStatistics() : null;
+    }
+
     /**
      * Returns socket connection status
      *
@@ -0,0 +1,149 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.compression;
+
+import ru.fractalizer.jrapidrpc.metrics.RpcMetrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream sending everything written between flushes as a single frame. Until a codec is set, data is passed
+ * through as is. Once it is, every frame gets a header: varint of its length shifted left by one, with the lowest bit
+ * set if the frame is compressed. Compressed frames carry varint of their decompressed length before compressed data.
+ * Frames shorter than threshold or not shrinking are sent raw.
+ * <p>
+ * Clients and servers flush after every message, so a frame holds a single message, but stream works with any
+ * number of them. Stream is not thread-safe.
+ */
+public class CompressingOutputStream extends FilterOutputStream {
+
+    //Buffers grown above this size for a large frame are released once it is sent
+    private static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private final int        threshold;
+    private final RpcMetrics metrics;
+
+    private CompressionCodec codec;
+    private byte[]           buffer;
+    private int              count;
+    private byte[]           compressed;
+    private final byte[]     header = new byte[10];
+
+    /**
+     * Default constructor
+     *
+     * @param out       Stream to write frames to. Should be buffered, since header and frame are written separately
+     * @param threshold Length in bytes from which frames are compressed
+     * @param metrics   Metrics to record compression to
+     */
+    public CompressingOutputStream(OutputStream out, int threshold, RpcMetrics metrics) {
+        super(out);
+        this.threshold = threshold;
+        this.metrics = metrics;
+        this.buffer = new byte[8192];
+    }
+
+    /**
+     * Starts compressing frames. Data written so far must be flushed first
+     *
+     * @param codec Codec to compress frames with
+     */
+    public void setCodec(CompressionCodec codec) {
+        if (count > 0) {
+            throw new IllegalStateException("Stream must be flushed before compression starts");
+        }
+        this.codec = codec;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            grow(count + 1);
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (count + len > buffer.length) {
+            grow(count + len);
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeFrame();
+            count = 0;
+            if (buffer.length > RETAINED_BUFFER_SIZE) {
+                buffer = new byte[RETAINED_BUFFER_SIZE];
+                compressed = null;
+            }
+        }
+        out.flush();
+    }
+
+    private void writeFrame() throws IOException {
+        if (codec == null) {
+            out.write(buffer, 0, count);
+            return;
+        }
+        if (count >= threshold) {
+            long startNanos = System.nanoTime();
+            int maxLength = codec.maxCompressedLength(count);
+            if (compressed == null || compressed.length < maxLength) {
+                compressed = new byte[maxLength];
+            }
+            int compressedLength = codec.compress(buffer, 0, count, compressed);
+            long compressNanos = System.nanoTime() - startNanos;
+            if (compressedLength < count) {
+                writeVarint((compressedLength << 1) | 1);
+                writeVarint(count);
+                out.write(compressed, 0, compressedLength);
+                metrics.recordCompressedFrame(count, compressedLength, compressNanos);
+                return;
+            }
+            metrics.recordUncompressedFrame(compressNanos);
+        } else {
+            metrics.recordUncompressedFrame(0);
+        }
+        writeVarint(count << 1);
+        out.write(buffer, 0, count);
+    }
+
+    private void writeVarint(int value) throws IOException {
+        int length = 0;
+        while ((value & ~0x7F) != 0) {
+            header[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        header[length++] = (byte) value;
+        out.write(header, 0, length);
+    }
+
+    private void grow(int minLength) {
+        byte[] grown = new byte[Math.max(minLength, buffer.length * 2)];
+        System.arraycopy(buffer, 0, grown, 0, count);
+        buffer = grown;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.compression;
+
+/**
+ * Compression settings of a client or server: codecs it supports and the size from which frames are compressed.
+ * Client offers its codecs in order of preference, server picks the first one it supports as well.
+ */
+public final class Compression {
+
+    /**
+     * Default size in bytes from which frames are compressed. Smaller frames rarely shrink enough to pay for the time
+     * spent compressing them
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    /**
+     * Default maximum size in bytes of a received frame, before and after decompression
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private final int                threshold;
+    private final int                maxFrameSize;
+    private final CompressionCodec[] codecs;
+
+    /**
+     * Default constructor
+     *
+     * @param threshold    Size in bytes from which frames are compressed. Smaller frames are sent raw
+     * @param maxFrameSize Maximum size in bytes of a received frame, before and after decompression. Larger frames
+     *                     fail with IOException before any buffer is allocated for them
+     * @param codecs       Supported codecs, most preferred first
+     */
+    public Compression(int threshold, int maxFrameSize, CompressionCodec... codecs) {
+        super();
+        if (codecs.length == 0) {
+            throw new IllegalArgumentException("At least one codec must be supported");
+        }
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("maxFrameSize must be positive!");
+        }
+        this.threshold = threshold;
+        this.maxFrameSize = maxFrameSize;
+        this.codecs = codecs.clone();
+    }
+
+    /**
+     * Default constructor. Received frames are limited to {@link #DEFAULT_MAX_FRAME_SIZE}
+     *
+     * @param threshold Size in bytes from which frames are compressed. Smaller frames are sent raw
+     * @param codecs    Supported codecs, most preferred first
+     */
+    public Compression(int threshold, CompressionCodec... codecs) {
+        this(threshold, DEFAULT_MAX_FRAME_SIZE, codecs);
+    }
+
+    /**
+     * Default constructor. Supports {@link Lz4Codec}, then {@link DeflateCodec}, with {@link #DEFAULT_THRESHOLD}
+     */
+    public Compression() {
+        this(DEFAULT_THRESHOLD, new Lz4Codec(), new DeflateCodec());
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * @return Names of supported codecs, most preferred first
+     */
+    public String[] getCodecNames() {
+        String[] names = new String[codecs.length];
+        for (int i = 0; i < codecs.length; i++) {
+            names[i] = codecs[i].getName();
+        }
+        return names;
+    }
+
+    /**
+     * @param name Name of the codec
+     * @return Supported codec with the name or null if there is none
+     */
+    public CompressionCodec getCodec(String name) {
+        for (CompressionCodec codec : codecs) {
+            if (codec.getName().equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks codec from the ones offered by the other side
+     *
+     * @param offeredNames Names of codecs offered, most preferred first
+     * @return The first codec offered which is supported as well or null if there is none
+     */
+    public CompressionCodec select(String[] offeredNames) {
+        for (String name : offeredNames) {
+            CompressionCodec codec = getCodec(name);
+            if (codec != null) {
+                return codec;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.compression;
+
+import java.io.IOException;
+
+/**
+ * Algorithm compressing frames. Client and server pick the codec by name when connecting, so implementations must
+ * have names unique among codecs of both sides. Codecs are shared by all connections and must be thread-safe.
+ */
+public interface CompressionCodec {
+
+    /**
+     * @return Name under which codec is negotiated
+     */
+    String getName();
+
+    /**
+     * Method should return the size of the buffer enough to hold compressed data of any content
+     *
+     * @param length Length of data to compress
+     * @return Maximum length of compressed data
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * Method should compress data
+     *
+     * @param src       Data to compress
+     * @param srcOffset Offset of data in src
+     * @param srcLength Length of data
+     * @param dst       Buffer to write compressed data to, at least {@link #maxCompressedLength(int)} bytes long
+     * @return Length of compressed data
+     */
+    int compress(byte[] src, int srcOffset, int srcLength, byte[] dst);
+
+    /**
+     * Method should decompress data compressed by {@link #compress(byte[], int, int, byte[])}
+     *
+     * @param src       Compressed data
+     * @param srcOffset Offset of compressed data in src
+     * @param srcLength Length of compressed data
+     * @param dst       Buffer to write decompressed data to
+     * @param dstLength Length of decompressed data
+     * @throws IOException If compressed data is malformed or does not decompress to dstLength bytes
+     */
+    void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstLength) throws IOException;
+}
@@ -0,0 +1,214 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.compression;
+
+import ru.fractalizer.jrapidrpc.metrics.RpcMetrics;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream reading frames written by {@link CompressingOutputStream}. Until a codec is set, data is passed through
+ * as is. Stream is not thread-safe.
+ */
+public class DecompressingInputStream extends FilterInputStream {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    //Buffers grown above this size for a large frame are released once it is read
+    private static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private final int        maxFrameSize;
+    private final RpcMetrics metrics;
+
+    private CompressionCodec codec;
+    private byte[]           frame = EMPTY;
+    private int              position;
+    private int              limit;
+    private byte[]           compressed = EMPTY;
+
+    /**
+     * Default constructor
+     *
+     * @param in           Stream to read frames from
+     * @param maxFrameSize Maximum size in bytes of a frame, before and after decompression. Frame length is sent by
+     *                     peer, so it is checked before a buffer is allocated for the frame
+     * @param metrics      Metrics to record decompression to
+     */
+    public DecompressingInputStream(InputStream in, int maxFrameSize, RpcMetrics metrics) {
+        super(in);
+        this.maxFrameSize = maxFrameSize;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts reading compressed frames. Everything sent before compression started must be read already
+     *
+     * @param codec Codec frames are compressed with
+     */
+    public void setCodec(CompressionCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (codec == null) {
+            return in.read();
+        }
+        if (!fill()) {
+            return -1;
+        }
+        return frame[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (codec == null) {
+            return in.read(b, off, len);
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, limit - position);
+        System.arraycopy(frame, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (codec == null) {
+            return in.skip(n);
+        }
+        if (n <= 0 || !fill()) {
+            return 0;
+        }
+        int count = (int) Math.min(n, limit - position);
+        position += count;
+        return count;
+    }
+
+    /**
+     * @return Bytes left in the current frame or, if there are none, bytes available from the underlying stream
+     */
+    @Override
+    public int available() throws IOException {
+        if (codec != null && position < limit) {
+            return limit - position;
+        }
+        return in.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Reads frames until there is data to return
+     *
+     * @return False on end of stream
+     */
+    private boolean fill() throws IOException {
+        while (position == limit) {
+            if (frame.length > RETAINED_BUFFER_SIZE) {
+                frame = EMPTY;
+            }
+            if (compressed.length > RETAINED_BUFFER_SIZE) {
+                compressed = EMPTY;
+            }
+            int header = readVarint(true);
+            if (header == -1) {
+                return false;
+            }
+            int length = checkFrameLength(header >>> 1);
+            if ((header & 1) == 0) {
+                if (frame.length < length) {
+                    frame = new byte[length];
+                }
+                readFully(frame, length);
+            } else {
+                int decompressedLength = checkFrameLength(readVarint(false));
+                if (compressed.length < length) {
+                    compressed = new byte[length];
+                }
+                readFully(compressed, length);
+                if (frame.length < decompressedLength) {
+                    frame = new byte[decompressedLength];
+                }
+                long startNanos = System.nanoTime();
+                codec.decompress(compressed, 0, length, frame, decompressedLength);
+                metrics.recordDecompressedFrame(System.nanoTime() - startNanos);
+                length = decompressedLength;
+            }
+            position = 0;
+            limit = length;
+        }
+        return true;
+    }
+
+    private int checkFrameLength(int length) throws IOException {
+        if (length > maxFrameSize) {
+            throw new IOException("Frame of " + length + " bytes exceeds maximum frame size of " + maxFrameSize +
+                    " bytes");
+        }
+        return length;
+    }
+
+    /**
+     * @param atFrameStart True if end of stream is allowed before the first byte
+     * @return Value read or -1 on end of stream at frame start
+     */
+    private int readVarint(boolean atFrameStart) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                if (atFrameStart && shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("Stream ended in the middle of a frame header");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed frame header");
+    }
+
+    private void readFully(byte[] b, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int count = in.read(b, off, len - off);
+            if (count == -1) {
+                throw new EOFException("Stream ended in the middle of a frame");
+            }
+            off += count;
+        }
+    }
+}
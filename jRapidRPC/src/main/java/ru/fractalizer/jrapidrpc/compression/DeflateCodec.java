@@ -0,0 +1,108 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.compression;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec compressing frames with deflate from java.util.zip. Compresses about twice better than {@link Lz4Codec} on
+ * text, but decompresses several times slower.
+ */
+public class DeflateCodec implements CompressionCodec {
+
+    /**
+     * Name of the codec
+     */
+    public static final String NAME = "deflate";
+
+    private final int level;
+
+    /**
+     * Default constructor
+     *
+     * @param level Compression level from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     */
+    public DeflateCodec(int level) {
+        super();
+        this.level = level;
+    }
+
+    /**
+     * Default constructor. Uses {@link Deflater#BEST_SPEED}, since frames are compressed on the call path
+     */
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        //Bound of zlib deflateBound() plus header and checksum
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 6;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(src, srcOffset, srcLength);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == dst.length) {
+                    throw new IllegalArgumentException("Buffer is shorter than maxCompressedLength()");
+                }
+                length += deflater.deflate(dst, length, dst.length - length);
+            }
+            return length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(src, srcOffset, srcLength);
+            int length = 0;
+            while (length < dstLength) {
+                int count = inflater.inflate(dst, length, dstLength - length);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+            if (length != dstLength) {
+                throw new IOException("Deflated data does not match its length of " + dstLength + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed deflated data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.compression;
+
+import java.io.IOException;
+
+/**
+ * Pure Java codec producing LZ4 blocks. Matches are found with a single hash table probe per position, which trades
+ * compression ratio for speed: compressing costs a fraction of encoding the message itself.
+ * <p>
+ * Block is a sequence of tokens. Each token carries literal length and match length in its nibbles, followed by
+ * literal length extension, literals, little-endian 16-bit match offset and match length extension. Length
+ * extensions are runs of 255 terminated by a smaller byte. The last token carries literals only.
+ */
+public class Lz4Codec implements CompressionCodec {
+
+    /**
+     * Name of the codec
+     */
+    public static final String NAME = "lz4";
+
+    private static final int MIN_MATCH     = 4;
+    private static final int MAX_OFFSET    = 65535;
+    private static final int HASH_BITS     = 12;
+    private static final int SKIP_SHIFT    = 6;
+    //Last match must start this far from the end and leave LAST_LITERALS literals after it, as LZ4 format requires
+    private static final int MATCH_LIMIT   = 12;
+    private static final int LAST_LITERALS = 5;
+
+    /**
+     * Default constructor
+     */
+    public Lz4Codec() {
+        super();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst) {
+        int srcEnd = srcOffset + srcLength;
+        int anchor = srcOffset;
+        int dstPosition = 0;
+        if (srcLength > MATCH_LIMIT) {
+            //Positions are stored plus one, so that zero means an empty slot
+            int[] table = new int[1 << HASH_BITS];
+            int matchStartLimit = srcEnd - MATCH_LIMIT;
+            int matchEndLimit = srcEnd - LAST_LITERALS;
+            int position = srcOffset;
+            int misses = 0;
+            while (position < matchStartLimit) {
+                int sequence = readInt(src, position);
+                int slot = hash(sequence);
+                int reference = table[slot] - 1;
+                table[slot] = position + 1;
+                if (reference < 0 || position - reference > MAX_OFFSET || readInt(src, reference) != sequence) {
+                    //Data which does not compress is skipped faster and faster
+                    position += 1 + (misses++ >>> SKIP_SHIFT);
+                    continue;
+                }
+                misses = 0;
+                int matchLength = MIN_MATCH;
+                while (position + matchLength < matchEndLimit && src[reference + matchLength] ==
+                        src[position + matchLength]) {
+                    matchLength++;
+                }
+                dstPosition = writeSequence(src, anchor, position - anchor, position - reference, matchLength, dst,
+                        dstPosition);
+                position += matchLength;
+                anchor = position;
+                if (position < matchStartLimit) {
+                    table[hash(readInt(src, position - 2))] = position - 1;
+                }
+            }
+        }
+        return writeSequence(src, anchor, srcEnd - anchor, 0, 0, dst, dstPosition);
+    }
+
+    /**
+     * Writes token with literals and match. Match length of zero means the last token, which has no match
+     */
+    private static int writeSequence(byte[] src, int literalOffset, int literalLength, int matchOffset,
+                                     int matchLength, byte[] dst, int dstPosition) {
+        int matchCode = matchLength > 0 ? matchLength - MIN_MATCH : 0;
+        dst[dstPosition++] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(matchCode, 15));
+        if (literalLength >= 15) {
+            dstPosition = writeLengthExtension(literalLength - 15, dst, dstPosition);
+        }
+        System.arraycopy(src, literalOffset, dst, dstPosition, literalLength);
+        dstPosition += literalLength;
+        if (matchLength == 0) {
+            return dstPosition;
+        }
+        dst[dstPosition++] = (byte) matchOffset;
+        dst[dstPosition++] = (byte) (matchOffset >>> 8);
+        if (matchCode >= 15) {
+            dstPosition = writeLengthExtension(matchCode - 15, dst, dstPosition);
+        }
+        return dstPosition;
+    }
+
+    private static int writeLengthExtension(int length, byte[] dst, int dstPosition) {
+        while (length >= 255) {
+            dst[dstPosition++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dstPosition++] = (byte) length;
+        return dstPosition;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static int readInt(byte[] src, int position) {
+        return (src[position] & 0xFF) | (src[position + 1] & 0xFF) << 8 | (src[position + 2] & 0xFF) << 16 |
+                (src[position + 3] & 0xFF) << 24;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstLength) throws IOException {
+        int srcPosition = srcOffset;
+        int srcEnd = srcOffset + srcLength;
+        int dstPosition = 0;
+        try {
+            while (true) {
+                int token = src[srcPosition++] & 0xFF;
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int value;
+                    do {
+                        value = src[srcPosition++] & 0xFF;
+                        literalLength += value;
+                    } while (value == 255);
+                }
+                if (dstPosition + literalLength > dstLength) {
+                    throw new IOException("LZ4 block decompresses to more than " + dstLength + " bytes");
+                }
+                System.arraycopy(src, srcPosition, dst, dstPosition, literalLength);
+                srcPosition += literalLength;
+                dstPosition += literalLength;
+                if (srcPosition >= srcEnd) {
+                    break;
+                }
+
+                int matchOffset = (src[srcPosition++] & 0xFF) | (src[srcPosition++] & 0xFF) << 8;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int value;
+                    do {
+                        value = src[srcPosition++] & 0xFF;
+                        matchLength += value;
+                    } while (value == 255);
+                }
+                matchLength += MIN_MATCH;
+                int reference = dstPosition - matchOffset;
+                if (matchOffset == 0 || reference < 0 || dstPosition + matchLength > dstLength) {
+                    throw new IOException("Malformed LZ4 block");
+                }
+                if (matchOffset >= matchLength) {
+                    System.arraycopy(dst, reference, dst, dstPosition, matchLength);
+                    dstPosition += matchLength;
+                } else {
+                    //Overlapping match repeats its last matchOffset bytes
+                    for (int i = 0; i < matchLength; i++) {
+                        dst[dstPosition++] = dst[reference + i];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed LZ4 block", e);
+        }
+        if (dstPosition != dstLength) {
+            throw new IOException("LZ4 block decompresses to " + dstPosition + " bytes instead of " + dstLength);
+        }
+    }
+}
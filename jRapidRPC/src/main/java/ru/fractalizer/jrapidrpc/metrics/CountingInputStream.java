@@ -0,0 +1,102 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream counting bytes read. It also remembers when the first byte of a message arrived, so that waiting
+ * for the next message is not counted as decoding time.
+ */
+public class CountingInputStream extends FilterInputStream {
+
+    private long byteCount;
+    private long firstReadNanos;
+
+    /**
+     * Default constructor
+     *
+     * @param in Stream to read from
+     */
+    public CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Starts a new message. Time of the next successful read will be returned by {@link #getFirstReadNanos()}
+     */
+    public void startMessage() {
+        firstReadNanos = 0;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} of the first successful read since {@link #startMessage()}
+     */
+    public long getFirstReadNanos() {
+        return firstReadNanos;
+    }
+
+    /**
+     * @return Number of bytes read so far
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value >= 0) {
+            counted(1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        if (count > 0) {
+            counted(count);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long count = super.skip(n);
+        if (count > 0) {
+            counted(count);
+        }
+        return count;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void counted(long count) {
+        if (firstReadNanos == 0) {
+            firstReadNanos = System.nanoTime();
+        }
+        byteCount += count;
+    }
+}
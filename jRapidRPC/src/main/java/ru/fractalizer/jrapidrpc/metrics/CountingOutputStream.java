@@ -0,0 +1,59 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream counting bytes written
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+    private long byteCount;
+
+    /**
+     * Default constructor
+     *
+     * @param out Stream to write to
+     */
+    public CountingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * @return Number of bytes written so far
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        byteCount++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        byteCount += len;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe latency histogram with fixed memory footprint. Recording does not allocate. Values are bucketed
+ * log-linearly: every power of two range is split into 8 buckets, so percentiles are accurate within 12.5%.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS  = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT     = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong      count   = new AtomicLong(0);
+    private final AtomicLong      total   = new AtomicLong(0);
+    private final AtomicLong      max     = new AtomicLong(0);
+
+    /**
+     * Default constructor
+     */
+    public LatencyHistogram() {
+        super();
+    }
+
+    /**
+     * Records a single measurement
+     *
+     * @param nanos Measured time in nanoseconds. Negative values are recorded as zero
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketIndex(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long currentMax;
+        while (nanos > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return Number of measurements recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Takes a snapshot of the histogram. Measurements recorded concurrently may be partially visible
+     *
+     * @param unit Time unit of snapshot values
+     * @return Histogram snapshot
+     */
+    public LatencySnapshot getSnapshot(TimeUnit unit) {
+        long[] counts = new long[BUCKET_COUNT];
+        long snapshotCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            snapshotCount += counts[i];
+        }
+        double nanosPerUnit = unit.toNanos(1);
+        long snapshotTotal = total.get();
+        return new LatencySnapshot(snapshotCount,
+                snapshotCount == 0 ? 0 : snapshotTotal / nanosPerUnit / snapshotCount,
+                percentile(counts, snapshotCount, 0.5) / nanosPerUnit,
+                percentile(counts, snapshotCount, 0.9) / nanosPerUnit,
+                percentile(counts, snapshotCount, 0.99) / nanosPerUnit,
+                percentile(counts, snapshotCount, 0.999) / nanosPerUnit,
+                max.get() / nanosPerUnit);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @return Middle of the value range covered by bucket
+     */
+    private static double bucketValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lowerBound = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return lowerBound + (1L << shift) / 2.0;
+    }
+
+    private static double percentile(long[] counts, long totalCount, double quantile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * totalCount);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bucketValue(i);
+            }
+        }
+        return bucketValue(counts.length - 1);
+    }
+}
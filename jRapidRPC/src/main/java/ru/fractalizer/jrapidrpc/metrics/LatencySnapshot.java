@@ -0,0 +1,99 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.metrics;
+
+/**
+ * Snapshot of a latency histogram. Exposed over JMX as composite data
+ */
+public final class LatencySnapshot {
+
+    private final long   count;
+    private final double mean;
+    private final double p50;
+    private final double p90;
+    private final double p99;
+    private final double p999;
+    private final double max;
+
+    LatencySnapshot(long count, double mean, double p50, double p90, double p99, double p999, double max) {
+        super();
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    /**
+     * @return Number of measurements
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return Mean value
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return Median
+     */
+    public double getP50() {
+        return p50;
+    }
+
+    /**
+     * @return 90th percentile
+     */
+    public double getP90() {
+        return p90;
+    }
+
+    /**
+     * @return 99th percentile
+     */
+    public double getP99() {
+        return p99;
+    }
+
+    /**
+     * @return 99.9th percentile
+     */
+    public double getP999() {
+        return p999;
+    }
+
+    /**
+     * @return Maximum value
+     */
+    public double getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.1f, p50=%.1f, p90=%.1f, p99=%.1f, p999=%.1f, max=%.1f", count, mean,
+                p50, p90, p99, p999, max);
+    }
+}
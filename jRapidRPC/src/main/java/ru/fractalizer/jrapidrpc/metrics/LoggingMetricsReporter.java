@@ -0,0 +1,61 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reporter writing metrics to the log at info level. Methods which were never called are skipped.
+ */
+public class LoggingMetricsReporter implements MetricsReporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoggingMetricsReporter.class);
+
+    /**
+     * Default constructor
+     */
+    public LoggingMetricsReporter() {
+        super();
+    }
+
+    @Override
+    public void report(RpcMetrics metrics) {
+        logger.info("{}: calls={}, errors={}, inFlight={}, bytesIn={}, bytesOut={}, connections={}, rejected={}, " +
+                "overloaded={}, expired={}", new Object[]{metrics.getName(), metrics.getCallCount(),
+                metrics.getErrorCount(), metrics.getInFlightCount(), metrics.getBytesIn(), metrics.getBytesOut(),
+                metrics.getOpenConnectionCount(), metrics.getRejectedConnectionCount(),
+                metrics.getOverloadedCallCount(), metrics.getExpiredCallCount()});
+        if (metrics.getCompressedFrameCount() > 0 || metrics.getUncompressedFrameCount() > 0) {
+            logger.info("{}: compressedFrames={}, uncompressedFrames={}, ratio={}, compress(us)={}, decompress(us)={}",
+                    new Object[]{metrics.getName(), metrics.getCompressedFrameCount(),
+                            metrics.getUncompressedFrameCount(), String.format("%.2f", metrics.getCompressionRatio()),
+                            metrics.getCompressionNanos() / 1000, metrics.getDecompressionNanos() / 1000});
+        }
+        for (MethodMetrics method : metrics.getMethodMetrics()) {
+            if (method.getCallCount() == 0 && method.getInFlightCount() == 0) {
+                continue;
+            }
+            logger.info("{}.{}: calls={}, errors={}, inFlight={}, invoke(us)=[{}], decode(us)=[{}], encode(us)=[{}]",
+                    new Object[]{metrics.getName(), method.getMethodName(), method.getCallCount(),
+                            method.getErrorCount(), method.getInFlightCount(), method.getInvokeLatency(),
+                            method.getDecodeLatency(), method.getEncodeLatency()});
+        }
+    }
+}
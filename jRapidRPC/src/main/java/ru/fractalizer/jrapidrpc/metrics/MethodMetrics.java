@@ -0,0 +1,154 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a single RPC method. All record methods are thread-safe and do not allocate.
+ */
+public final class MethodMetrics implements MethodMetricsMXBean {
+
+    private final String           methodName;
+    private final short            methodId;
+    private final LatencyHistogram decodeLatency;
+    private final LatencyHistogram invokeLatency;
+    private final LatencyHistogram encodeLatency;
+    private final AtomicLong       callCount;
+    private final AtomicLong       errorCount;
+    private final AtomicInteger    inFlightCount;
+    private final AtomicLong       bytesIn;
+    private final AtomicLong       bytesOut;
+
+    /**
+     * Default constructor
+     *
+     * @param methodName Name of the RPC method
+     * @param methodId   ID of the RPC method
+     */
+    MethodMetrics(String methodName, short methodId) {
+        super();
+        this.methodName = methodName;
+        this.methodId = methodId;
+        this.decodeLatency = new LatencyHistogram();
+        this.invokeLatency = new LatencyHistogram();
+        this.encodeLatency = new LatencyHistogram();
+        this.callCount = new AtomicLong(0);
+        this.errorCount = new AtomicLong(0);
+        this.inFlightCount = new AtomicInteger(0);
+        this.bytesIn = new AtomicLong(0);
+        this.bytesOut = new AtomicLong(0);
+    }
+
+    /**
+     * Records reading and deserializing of a message
+     *
+     * @param nanos Time spent
+     * @param bytes Size of the message
+     */
+    public void recordDecode(long nanos, long bytes) {
+        decodeLatency.record(nanos);
+        bytesIn.addAndGet(bytes);
+    }
+
+    /**
+     * Marks call as started. Every call must be followed by {@link #recordInvoke(long, boolean)}
+     */
+    public void callStarted() {
+        inFlightCount.incrementAndGet();
+    }
+
+    /**
+     * Records completion of a call
+     *
+     * @param nanos Time spent
+     * @param error True, if the call failed
+     */
+    public void recordInvoke(long nanos, boolean error) {
+        invokeLatency.record(nanos);
+        callCount.incrementAndGet();
+        if (error) {
+            errorCount.incrementAndGet();
+        }
+        inFlightCount.decrementAndGet();
+    }
+
+    /**
+     * Records serializing and writing of a message
+     *
+     * @param nanos Time spent
+     * @param bytes Size of the message
+     */
+    public void recordEncode(long nanos, long bytes) {
+        encodeLatency.record(nanos);
+        bytesOut.addAndGet(bytes);
+    }
+
+    @Override
+    public String getMethodName() {
+        return methodName;
+    }
+
+    @Override
+    public short getMethodId() {
+        return methodId;
+    }
+
+    @Override
+    public long getCallCount() {
+        return callCount.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    @Override
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    @Override
+    public LatencySnapshot getDecodeLatency() {
+        return decodeLatency.getSnapshot(TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public LatencySnapshot getInvokeLatency() {
+        return invokeLatency.getSnapshot(TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public LatencySnapshot getEncodeLatency() {
+        return encodeLatency.getSnapshot(TimeUnit.MICROSECONDS);
+    }
+}
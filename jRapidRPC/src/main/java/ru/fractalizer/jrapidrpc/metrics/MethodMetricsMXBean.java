@@ -0,0 +1,75 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.metrics;
+
+/**
+ * JMX view of metrics of a single RPC method. Latencies are in microseconds
+ */
+public interface MethodMetricsMXBean {
+
+    /**
+     * @return Name of the RPC method
+     */
+    String getMethodName();
+
+    /**
+     * @return ID of the RPC method
+     */
+    short getMethodId();
+
+    /**
+     * @return Number of completed calls
+     */
+    long getCallCount();
+
+    /**
+     * @return Number of calls completed with an error
+     */
+    long getErrorCount();
+
+    /**
+     * @return Number of calls currently in progress
+     */
+    int getInFlightCount();
+
+    /**
+     * @return Number of request bytes received by server or reply bytes received by client
+     */
+    long getBytesIn();
+
+    /**
+     * @return Number of reply bytes sent by server or request bytes sent by client
+     */
+    long getBytesOut();
+
+    /**
+     * @return Time spent reading and deserializing messages
+     */
+    LatencySnapshot getDecodeLatency();
+
+    /**
+     * @return Time spent invoking service object method on server or waiting for reply on client
+     */
+    LatencySnapshot getInvokeLatency();
+
+    /**
+     * @return Time spent serializing and writing messages
+     */
+    LatencySnapshot getEncodeLatency();
+}
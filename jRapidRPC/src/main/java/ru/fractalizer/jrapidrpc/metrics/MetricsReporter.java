@@ -0,0 +1,33 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.metrics;
+
+/**
+ * Receives metrics periodically. Register implementations with
+ * {@link RpcMetrics#addReporter(MetricsReporter, long, java.util.concurrent.TimeUnit)}
+ */
+public interface MetricsReporter {
+
+    /**
+     * Called from the reporting thread every reporting period
+     *
+     * @param metrics Metrics to report
+     */
+    void report(RpcMetrics metrics);
+}
@@ -0,0 +1,433 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.fractalizer.jrapidrpc.api.MsgRpcRequest;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a server or client: per-method latency histograms and counters plus connection and executor gauges.
+ * Metrics can be published as JMX MBeans and pushed to any number of {@link MetricsReporter}s.
+ */
+public final class RpcMetrics implements RpcMetricsMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(RpcMetrics.class);
+
+    /**
+     * JMX domain under which MBeans are registered
+     */
+    public static final String JMX_DOMAIN = "ru.fractalizer.jrapidrpc";
+
+    private final String                         name;
+    private final short                          minMethodId;
+    private final MethodMetrics[]                methodsById;
+    private final HashMap<String, MethodMetrics> methodsByName;
+    private final List<MethodMetrics>            methods;
+    private final AtomicLong                     unknownMethodCount;
+    private final AtomicInteger                  openConnectionCount;
+    private final AtomicLong                     rejectedConnectionCount;
+    private final AtomicLong                     overloadedCallCount;
+    private final AtomicLong                     expiredCallCount;
+    private final AtomicLong                     compressedFrameCount;
+    private final AtomicLong                     uncompressedFrameCount;
+    private final AtomicLong                     compressionBytesIn;
+    private final AtomicLong                     compressionBytesOut;
+    private final AtomicLong                     compressionNanos;
+    private final AtomicLong                     decompressionNanos;
+    private final List<ObjectName>               registeredNames;
+    private volatile ExecutorService             executorService;
+    private ScheduledExecutorService             reportingExecutor;
+
+    /**
+     * Default constructor
+     *
+     * @param name            Name of the metrics owner. Used in MBean names and reports
+     * @param reflectionCache Reflection cache of the service interface
+     */
+    public RpcMetrics(String name, ReflectionCache reflectionCache) {
+        super();
+        this.name = name;
+        short[] methodIds = reflectionCache.getMethodIds();
+        int minId = Short.MAX_VALUE;
+        int maxId = Short.MIN_VALUE;
+        for (short methodId : methodIds) {
+            minId = Math.min(minId, methodId);
+            maxId = Math.max(maxId, methodId);
+        }
+        this.minMethodId = (short) (minId <= maxId ? minId : 0);
+        this.methodsById = new MethodMetrics[minId <= maxId ? maxId - minId + 1 : 0];
+        this.methodsByName = new HashMap<String, MethodMetrics>();
+        List<MethodMetrics> methodList = new ArrayList<MethodMetrics>();
+        for (short methodId : methodIds) {
+            MethodMetrics method = new MethodMetrics(reflectionCache.getMethodName(methodId), methodId);
+            methodsById[methodId - minMethodId] = method;
+            methodsByName.put(method.getMethodName(), method);
+            methodList.add(method);
+        }
+        this.methods = Collections.unmodifiableList(methodList);
+        this.unknownMethodCount = new AtomicLong(0);
+        this.openConnectionCount = new AtomicInteger(0);
+        this.rejectedConnectionCount = new AtomicLong(0);
+        this.overloadedCallCount = new AtomicLong(0);
+        this.expiredCallCount = new AtomicLong(0);
+        this.compressedFrameCount = new AtomicLong(0);
+        this.uncompressedFrameCount = new AtomicLong(0);
+        this.compressionBytesIn = new AtomicLong(0);
+        this.compressionBytesOut = new AtomicLong(0);
+        this.compressionNanos = new AtomicLong(0);
+        this.decompressionNanos = new AtomicLong(0);
+        this.registeredNames = new ArrayList<ObjectName>();
+    }
+
+    /**
+     * @return Name of the metrics owner
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Metrics of all RPC methods
+     */
+    public List<MethodMetrics> getMethodMetrics() {
+        return methods;
+    }
+
+    /**
+     * @param methodId ID of the method
+     * @return Metrics of the method or null if there is no RPC method with this ID
+     */
+    public MethodMetrics getMethodMetrics(short methodId) {
+        int index = methodId - minMethodId;
+        return index >= 0 && index < methodsById.length ? methodsById[index] : null;
+    }
+
+    /**
+     * @param methodName Name of the method
+     * @return Metrics of the method or null if there is no RPC method with this name
+     */
+    public MethodMetrics getMethodMetrics(String methodName) {
+        return methodsByName.get(methodName);
+    }
+
+    /**
+     * Resolves metrics of the method called by request. Unknown methods are counted. Batches have no metrics of their
+     * own, their calls are resolved one by one
+     *
+     * @param msgRpcRequest Request received
+     * @return Metrics of the method or null if request calls a method which is not an RPC method or is a batch
+     */
+    public MethodMetrics getMethodMetrics(MsgRpcRequest msgRpcRequest) {
+        if (msgRpcRequest.getBatch() != null) {
+            return null;
+        }
+        MethodMetrics method = msgRpcRequest.hasMethodId() ? getMethodMetrics(msgRpcRequest.getMethodId())
+                : getMethodMetrics(msgRpcRequest.getMethodName());
+        if (method == null) {
+            unknownMethodCount.incrementAndGet();
+        }
+        return method;
+    }
+
+    /**
+     * Sets executor which saturation is exposed through executor gauges
+     *
+     * @param executorService Executor running service object calls. Only {@link ThreadPoolExecutor} is inspected
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    /**
+     * Counts a client connection as opened
+     */
+    public void connectionOpened() {
+        openConnectionCount.incrementAndGet();
+    }
+
+    /**
+     * Counts a client connection as closed
+     */
+    public void connectionClosed() {
+        openConnectionCount.decrementAndGet();
+    }
+
+    /**
+     * Counts a client connection closed because thread pool was overflown
+     */
+    public void connectionRejected() {
+        rejectedConnectionCount.incrementAndGet();
+    }
+
+    /**
+     * Counts a call refused by admission control because server is overloaded
+     */
+    public void callOverloaded() {
+        overloadedCallCount.incrementAndGet();
+    }
+
+    /**
+     * Counts a call refused because its deadline had passed
+     */
+    public void callExpired() {
+        expiredCallCount.incrementAndGet();
+    }
+
+    /**
+     * Records a frame sent compressed
+     *
+     * @param length           Length of the frame
+     * @param compressedLength Length of the frame compressed
+     * @param nanos            Time spent compressing
+     */
+    public void recordCompressedFrame(int length, int compressedLength, long nanos) {
+        compressedFrameCount.incrementAndGet();
+        compressionBytesIn.addAndGet(length);
+        compressionBytesOut.addAndGet(compressedLength);
+        compressionNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records a frame sent raw by a connection compressing frames
+     *
+     * @param nanos Time spent compressing if frame did not shrink, 0 if it was not compressed at all
+     */
+    public void recordUncompressedFrame(long nanos) {
+        uncompressedFrameCount.incrementAndGet();
+        compressionNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records a compressed frame received
+     *
+     * @param nanos Time spent decompressing
+     */
+    public void recordDecompressedFrame(long nanos) {
+        decompressionNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public long getCallCount() {
+        long count = 0;
+        for (MethodMetrics method : methods) {
+            count += method.getCallCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getErrorCount() {
+        long count = 0;
+        for (MethodMetrics method : methods) {
+            count += method.getErrorCount();
+        }
+        return count;
+    }
+
+    @Override
+    public int getInFlightCount() {
+        int count = 0;
+        for (MethodMetrics method : methods) {
+            count += method.getInFlightCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getBytesIn() {
+        long bytes = 0;
+        for (MethodMetrics method : methods) {
+            bytes += method.getBytesIn();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getBytesOut() {
+        long bytes = 0;
+        for (MethodMetrics method : methods) {
+            bytes += method.getBytesOut();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getUnknownMethodCount() {
+        return unknownMethodCount.get();
+    }
+
+    @Override
+    public int getOpenConnectionCount() {
+        return openConnectionCount.get();
+    }
+
+    @Override
+    public long getRejectedConnectionCount() {
+        return rejectedConnectionCount.get();
+    }
+
+    @Override
+    public long getOverloadedCallCount() {
+        return overloadedCallCount.get();
+    }
+
+    @Override
+    public long getExpiredCallCount() {
+        return expiredCallCount.get();
+    }
+
+    @Override
+    public long getCompressedFrameCount() {
+        return compressedFrameCount.get();
+    }
+
+    @Override
+    public long getUncompressedFrameCount() {
+        return uncompressedFrameCount.get();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long bytesOut = compressionBytesOut.get();
+        return bytesOut > 0 ? (double) compressionBytesIn.get() / bytesOut : 0;
+    }
+
+    @Override
+    public long getCompressionNanos() {
+        return compressionNanos.get();
+    }
+
+    @Override
+    public long getDecompressionNanos() {
+        return decompressionNanos.get();
+    }
+
+    @Override
+    public int getExecutorActiveCount() {
+        ExecutorService executor = executorService;
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getActiveCount() : -1;
+    }
+
+    @Override
+    public int getExecutorQueueSize() {
+        ExecutorService executor = executorService;
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : -1;
+    }
+
+    /**
+     * Registers MBeans in the platform MBean server: one for totals and one per RPC method. MBean names are
+     * {@value #JMX_DOMAIN}:type=RpcMetrics,name=&lt;name&gt; and
+     * {@value #JMX_DOMAIN}:type=MethodMetrics,name=&lt;name&gt;,method=&lt;method name&gt;
+     *
+     * @throws JMException Is thrown if MBeans cannot be registered, for example if their names are already taken
+     */
+    public synchronized void registerMBeans() throws JMException {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        String quotedName = ObjectName.quote(name);
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=RpcMetrics,name=" + quotedName);
+            mBeanServer.registerMBean(this, objectName);
+            registeredNames.add(objectName);
+            for (MethodMetrics method : methods) {
+                objectName = new ObjectName(JMX_DOMAIN + ":type=MethodMetrics,name=" + quotedName + ",method=" +
+                        ObjectName.quote(method.getMethodName()));
+                mBeanServer.registerMBean(method, objectName);
+                registeredNames.add(objectName);
+            }
+        } catch (JMException e) {
+            unregisterMBeans();
+            throw e;
+        }
+    }
+
+    /**
+     * Unregisters MBeans registered by {@link #registerMBeans()}
+     */
+    public synchronized void unregisterMBeans() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registeredNames) {
+            try {
+                mBeanServer.unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("Unable to unregister MBean " + objectName, e);
+            }
+        }
+        registeredNames.clear();
+    }
+
+    /**
+     * Schedules reporter to be called periodically from a daemon reporting thread
+     *
+     * @param reporter Reporter to call
+     * @param period   Reporting period
+     * @param unit     Time unit of the period
+     */
+    public synchronized void addReporter(final MetricsReporter reporter, long period, TimeUnit unit) {
+        if (reportingExecutor == null) {
+            reportingExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Metrics Reporter Thread (" + name + ")");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        reportingExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reporter.report(RpcMetrics.this);
+                } catch (Exception e) {
+                    logger.warn("Metrics reporter failed", e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops reporters and unregisters MBeans. Metrics themselves keep working
+     */
+    public synchronized void close() {
+        if (reportingExecutor != null) {
+            reportingExecutor.shutdownNow();
+            reportingExecutor = null;
+        }
+        unregisterMBeans();
+    }
+}
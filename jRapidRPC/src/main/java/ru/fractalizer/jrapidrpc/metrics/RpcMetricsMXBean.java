@@ -0,0 +1,111 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.metrics;
+
+/**
+ * JMX view of metrics of a server or client, summed over all RPC methods
+ */
+public interface RpcMetricsMXBean {
+
+    /**
+     * @return Number of completed calls
+     */
+    long getCallCount();
+
+    /**
+     * @return Number of calls completed with an error
+     */
+    long getErrorCount();
+
+    /**
+     * @return Number of calls currently in progress
+     */
+    int getInFlightCount();
+
+    /**
+     * @return Number of bytes received
+     */
+    long getBytesIn();
+
+    /**
+     * @return Number of bytes sent
+     */
+    long getBytesOut();
+
+    /**
+     * @return Number of requests for methods which are not RPC methods of the service interface
+     */
+    long getUnknownMethodCount();
+
+    /**
+     * @return Number of currently open client connections
+     */
+    int getOpenConnectionCount();
+
+    /**
+     * @return Number of client connections closed because thread pool was overflown
+     */
+    long getRejectedConnectionCount();
+
+    /**
+     * @return Number of calls refused by admission control because server was overloaded
+     */
+    long getOverloadedCallCount();
+
+    /**
+     * @return Number of calls refused because their deadline had passed
+     */
+    long getExpiredCallCount();
+
+    /**
+     * @return Number of frames sent compressed
+     */
+    long getCompressedFrameCount();
+
+    /**
+     * @return Number of frames sent raw by connections compressing frames, because they were shorter than threshold
+     * or did not shrink
+     */
+    long getUncompressedFrameCount();
+
+    /**
+     * @return Total length of frames sent compressed divided by their compressed length or 0 if none were
+     */
+    double getCompressionRatio();
+
+    /**
+     * @return Time spent compressing frames in nanoseconds, including frames which did not shrink
+     */
+    long getCompressionNanos();
+
+    /**
+     * @return Time spent decompressing frames received in nanoseconds
+     */
+    long getDecompressionNanos();
+
+    /**
+     * @return Number of threads actively executing tasks or -1 if executor does not report it
+     */
+    int getExecutorActiveCount();
+
+    /**
+     * @return Number of tasks waiting in executor queue or -1 if executor does not report it
+     */
+    int getExecutorQueueSize();
+}
@@ -0,0 +1,96 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.serializer.protostuff;
+
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import java.lang.reflect.Method;
+
+/**
+ * Codecs of parameters and return values of every RPC method, built once from the service interface and looked up
+ * by method ID in a dense array
+ */
+final class MethodSchemas {
+
+    /**
+     * Codecs of a single method
+     */
+    static final class MethodSchema {
+
+        private final ValueCodec[] parameterCodecs;
+        private final ValueCodec   returnValueCodec;
+
+        MethodSchema(Method method) {
+            super();
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            parameterCodecs = new ValueCodec[parameterTypes.length];
+            for (int i = 0; i < parameterTypes.length; i++) {
+                parameterCodecs[i] = ValueCodec.forType(parameterTypes[i]);
+            }
+            //Streaming methods return their elements one by one
+            returnValueCodec = ValueCodec.forType(ReflectionCache.isStreamType(method.getReturnType()) ?
+                    ReflectionCache.getStreamElementType(method) : method.getReturnType());
+        }
+
+        int getParameterCount() {
+            return parameterCodecs.length;
+        }
+
+        ValueCodec getParameterCodec(int index) {
+            return parameterCodecs[index];
+        }
+
+        ValueCodec getReturnValueCodec() {
+            return returnValueCodec;
+        }
+    }
+
+    private final short          minMethodId;
+    private final MethodSchema[] schemasById;
+
+    /**
+     * Default constructor
+     *
+     * @param reflectionCache Reflection cache of the service interface
+     */
+    MethodSchemas(ReflectionCache reflectionCache) {
+        super();
+        short[] methodIds = reflectionCache.getMethodIds();
+        int minId = Short.MAX_VALUE;
+        int maxId = Short.MIN_VALUE;
+        for (short methodId : methodIds) {
+            minId = Math.min(minId, methodId);
+            maxId = Math.max(maxId, methodId);
+        }
+        minMethodId = (short) (minId <= maxId ? minId : 0);
+        schemasById = new MethodSchema[minId <= maxId ? maxId - minId + 1 : 0];
+        for (short methodId : methodIds) {
+            schemasById[methodId - minMethodId] = new MethodSchema(reflectionCache.getMethod(methodId));
+        }
+    }
+
+    /**
+     * @param methodId ID of the method
+     * @return Codecs of the method or null if there is no RPC method with this ID
+     */
+    MethodSchema get(short methodId) {
+        int index = methodId - minMethodId;
+        return index >= 0 && index < schemasById.length ? schemasById[index] : null;
+    }
+}
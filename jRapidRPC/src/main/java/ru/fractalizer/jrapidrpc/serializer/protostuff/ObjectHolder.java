@@ -0,0 +1,44 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.serializer.protostuff;
+
+/**
+ * Wrapper for values which cannot be encoded with a schema known in advance. protostuff-runtime writes type metadata
+ * for its only field, so any value survives the round trip
+ */
+final class ObjectHolder {
+
+    private Object value;
+
+    /**
+     * Noargs constructor for deserialization
+     */
+    public ObjectHolder() {
+        super();
+    }
+
+    public ObjectHolder(Object value) {
+        super();
+        this.value = value;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+}
@@ -18,30 +18,175 @@
 
 package ru.fractalizer.jrapidrpc.serializer.protostuff;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- * RPC reply structure ready for immediate serialization
+ * RPC reply structure ready for immediate serialization with {@link PackedRpcReplySchema}
  */
 class PackedRpcReply {
 
-    private String errorMessage;
-    private Object methodReturnValue;
+    private int     callId;
+    private short   methodId;
+    private boolean methodIdResolved;
+    private String  errorMessage;
+    private Object  methodReturnValue;
+    private boolean overloaded;
+    private boolean deadlineExceeded;
+
+    private boolean cacheInvalidation;
+    private short   invalidatedMethodId;
+    private byte[]  invalidatedKey;
+
+    private List<PackedRpcReply> batchReplies;
+
+    private boolean      streamChunk;
+    private boolean      streamLast;
+    private List<Object> streamElements;
 
-    public PackedRpcReply(String errorMessage, Object methodReturnValue) {
+    public PackedRpcReply(int callId, String errorMessage, Object methodReturnValue) {
+        this.callId = callId;
         this.errorMessage = errorMessage;
         this.methodReturnValue = methodReturnValue;
     }
 
+    public PackedRpcReply(int callId, short methodId, String errorMessage, Object methodReturnValue) {
+        this(callId, errorMessage, methodReturnValue);
+        setMethodId(methodId);
+    }
+
+    public PackedRpcReply(int callId, List<PackedRpcReply> batchReplies) {
+        this.callId = callId;
+        this.batchReplies = batchReplies;
+    }
+
+    public PackedRpcReply(int callId, short methodId, List<Object> streamElements, boolean streamLast) {
+        this(callId, methodId, null, null);
+        this.streamChunk = true;
+        this.streamElements = streamElements;
+        this.streamLast = streamLast;
+    }
+
     public PackedRpcReply() {
         super();
         this.methodReturnValue = null;
         errorMessage = null;
     }
 
+    public int getCallId() {
+        return callId;
+    }
+
+    void setCallId(int callId) {
+        this.callId = callId;
+    }
+
+    public boolean hasMethodId() {
+        return methodIdResolved;
+    }
+
+    public short getMethodId() {
+        return methodId;
+    }
+
+    void setMethodId(short methodId) {
+        this.methodId = methodId;
+        this.methodIdResolved = true;
+    }
+
     public String getErrorMessage() {
         return errorMessage;
     }
 
+    void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+
     public Object getMethodReturnValue() {
         return methodReturnValue;
     }
+
+    void setMethodReturnValue(Object methodReturnValue) {
+        this.methodReturnValue = methodReturnValue;
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    void setOverloaded(boolean overloaded) {
+        this.overloaded = overloaded;
+    }
+
+    public boolean isDeadlineExceeded() {
+        return deadlineExceeded;
+    }
+
+    void setDeadlineExceeded(boolean deadlineExceeded) {
+        this.deadlineExceeded = deadlineExceeded;
+    }
+
+    public boolean isCacheInvalidation() {
+        return cacheInvalidation;
+    }
+
+    public short getInvalidatedMethodId() {
+        return invalidatedMethodId;
+    }
+
+    void setInvalidatedMethodId(short invalidatedMethodId) {
+        this.invalidatedMethodId = invalidatedMethodId;
+        this.cacheInvalidation = true;
+    }
+
+    public byte[] getInvalidatedKey() {
+        return invalidatedKey;
+    }
+
+    void setInvalidatedKey(byte[] invalidatedKey) {
+        this.invalidatedKey = invalidatedKey;
+    }
+
+    public boolean isBatch() {
+        return batchReplies != null;
+    }
+
+    public List<PackedRpcReply> getBatchReplies() {
+        return batchReplies;
+    }
+
+    void setBatchSize(int batchSize) {
+        if (batchReplies == null) {
+            batchReplies = new ArrayList<PackedRpcReply>(batchSize);
+        }
+    }
+
+    void addBatchReply(PackedRpcReply reply) {
+        setBatchSize(0);
+        batchReplies.add(reply);
+    }
+
+    public boolean isStreamChunk() {
+        return streamChunk;
+    }
+
+    public boolean isStreamLast() {
+        return streamLast;
+    }
+
+    void setStreamLast(boolean streamLast) {
+        this.streamChunk = true;
+        this.streamLast = streamLast;
+        if (streamElements == null) {
+            streamElements = new ArrayList<Object>();
+        }
+    }
+
+    public List<Object> getStreamElements() {
+        return streamElements;
+    }
+
+    void addStreamElement(Object element) {
+        streamElements.add(element);
+    }
 }
@@ -0,0 +1,216 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.serializer.protostuff;
+
+import com.dyuproject.protostuff.Input;
+import com.dyuproject.protostuff.Output;
+import com.dyuproject.protostuff.Schema;
+
+import java.io.IOException;
+
+/**
+ * Schema of RPC reply. Call ID goes first as varint if there is any, so that it can be replaced in an encoded reply.
+ * Return value is written with the codec of the method return type if reply carries method ID, polymorphically
+ * otherwise. Cache invalidations pushed by server carry invalidated method ID and, optionally, request key instead of
+ * method ID, error and return value. Replies to batches carry the number of calls and nested replies. Stream chunks
+ * carry the last chunk flag, which always goes before elements, and elements in repeated return value fields. Null
+ * elements are written as empty markers. Calls refused by overloaded server carry error and overloaded flag, expired
+ * calls refused by server carry error and deadline exceeded flag.
+ */
+final class PackedRpcReplySchema implements Schema<PackedRpcReply> {
+
+    static final int FIELD_CALL_ID       = 1;
+    static final int FIELD_METHOD_ID     = 2;
+    static final int FIELD_ERROR_MESSAGE = 3;
+    static final int FIELD_RETURN_VALUE  = 4;
+
+    static final int FIELD_INVALIDATED_METHOD_ID = 6;
+    static final int FIELD_INVALIDATED_KEY       = 7;
+
+    static final int FIELD_BATCH_SIZE  = 8;
+    static final int FIELD_BATCH_REPLY = 9;
+
+    static final int FIELD_STREAM_LAST         = 10;
+    static final int FIELD_STREAM_NULL_ELEMENT = 11;
+
+    static final int FIELD_OVERLOADED        = 12;
+    static final int FIELD_DEADLINE_EXCEEDED = 13;
+
+    private static final ValueCodec polymorphicCodec = ValueCodec.forType(Object.class);
+
+    private final MethodSchemas methodSchemas;
+
+    PackedRpcReplySchema(MethodSchemas methodSchemas) {
+        super();
+        this.methodSchemas = methodSchemas;
+    }
+
+    @Override
+    public void writeTo(Output output, PackedRpcReply message) throws IOException {
+        if (message.getCallId() != 0) {
+            output.writeUInt32(FIELD_CALL_ID, message.getCallId(), false);
+        }
+        if (message.isCacheInvalidation()) {
+            output.writeSInt32(FIELD_INVALIDATED_METHOD_ID, message.getInvalidatedMethodId(), false);
+            if (message.getInvalidatedKey() != null) {
+                output.writeByteArray(FIELD_INVALIDATED_KEY, message.getInvalidatedKey(), false);
+            }
+            return;
+        }
+        if (message.isBatch()) {
+            output.writeUInt32(FIELD_BATCH_SIZE, message.getBatchReplies().size(), false);
+            for (PackedRpcReply reply : message.getBatchReplies()) {
+                output.writeObject(FIELD_BATCH_REPLY, reply, this, true);
+            }
+            return;
+        }
+        //Method ID is only needed to pick the codec of the return value
+        if (message.hasMethodId() && message.getMethodReturnValue() != null) {
+            output.writeSInt32(FIELD_METHOD_ID, message.getMethodId(), false);
+        }
+        if (message.isStreamChunk()) {
+            writeStreamChunk(output, message);
+            return;
+        }
+        if (message.getErrorMessage() != null) {
+            output.writeString(FIELD_ERROR_MESSAGE, message.getErrorMessage(), false);
+        }
+        if (message.isOverloaded()) {
+            output.writeBool(FIELD_OVERLOADED, true, false);
+        }
+        if (message.isDeadlineExceeded()) {
+            output.writeBool(FIELD_DEADLINE_EXCEEDED, true, false);
+        }
+        returnValueCodec(message).write(output, FIELD_RETURN_VALUE, message.getMethodReturnValue());
+    }
+
+    private void writeStreamChunk(Output output, PackedRpcReply message) throws IOException {
+        if (message.hasMethodId()) {
+            output.writeSInt32(FIELD_METHOD_ID, message.getMethodId(), false);
+        }
+        output.writeBool(FIELD_STREAM_LAST, message.isStreamLast(), false);
+        ValueCodec elementCodec = returnValueCodec(message);
+        for (Object element : message.getStreamElements()) {
+            if (element == null) {
+                output.writeBool(FIELD_STREAM_NULL_ELEMENT, true, false);
+            } else {
+                elementCodec.write(output, FIELD_RETURN_VALUE, element);
+            }
+        }
+    }
+
+    @Override
+    public void mergeFrom(Input input, PackedRpcReply message) throws IOException {
+        for (int number = input.readFieldNumber(this); number != 0; number = input.readFieldNumber(this)) {
+            switch (number) {
+                case FIELD_CALL_ID:
+                    message.setCallId(input.readUInt32());
+                    break;
+                case FIELD_METHOD_ID:
+                    message.setMethodId((short) input.readSInt32());
+                    break;
+                case FIELD_ERROR_MESSAGE:
+                    message.setErrorMessage(input.readString());
+                    break;
+                case FIELD_RETURN_VALUE:
+                case FIELD_RETURN_VALUE + 1:
+                    Object value = returnValueCodec(message).read(input, number, FIELD_RETURN_VALUE);
+                    if (message.isStreamChunk()) {
+                        message.addStreamElement(value);
+                    } else {
+                        message.setMethodReturnValue(value);
+                    }
+                    break;
+                case FIELD_INVALIDATED_METHOD_ID:
+                    message.setInvalidatedMethodId((short) input.readSInt32());
+                    break;
+                case FIELD_INVALIDATED_KEY:
+                    message.setInvalidatedKey(input.readByteArray());
+                    break;
+                case FIELD_BATCH_SIZE:
+                    message.setBatchSize(input.readUInt32());
+                    break;
+                case FIELD_BATCH_REPLY:
+                    message.addBatchReply(input.mergeObject(new PackedRpcReply(), this));
+                    break;
+                case FIELD_STREAM_LAST:
+                    message.setStreamLast(input.readBool());
+                    break;
+                case FIELD_STREAM_NULL_ELEMENT:
+                    input.readBool();
+                    message.addStreamElement(null);
+                    break;
+                case FIELD_OVERLOADED:
+                    message.setOverloaded(input.readBool());
+                    break;
+                case FIELD_DEADLINE_EXCEEDED:
+                    message.setDeadlineExceeded(input.readBool());
+                    break;
+                default:
+                    input.handleUnknownField(number, this);
+                    break;
+            }
+        }
+    }
+
+    private ValueCodec returnValueCodec(PackedRpcReply message) {
+        if (message.hasMethodId()) {
+            MethodSchemas.MethodSchema methodSchema = methodSchemas.get(message.getMethodId());
+            if (methodSchema != null) {
+                return methodSchema.getReturnValueCodec();
+            }
+        }
+        return polymorphicCodec;
+    }
+
+    @Override
+    public String getFieldName(int number) {
+        return Integer.toString(number);
+    }
+
+    @Override
+    public int getFieldNumber(String name) {
+        return Integer.parseInt(name);
+    }
+
+    @Override
+    public boolean isInitialized(PackedRpcReply message) {
+        return true;
+    }
+
+    @Override
+    public PackedRpcReply newMessage() {
+        return new PackedRpcReply();
+    }
+
+    @Override
+    public String messageName() {
+        return PackedRpcReply.class.getSimpleName();
+    }
+
+    @Override
+    public String messageFullName() {
+        return PackedRpcReply.class.getName();
+    }
+
+    @Override
+    public Class<? super PackedRpcReply> typeClass() {
+        return PackedRpcReply.class;
+    }
+}
@@ -18,15 +18,30 @@
 
 package ru.fractalizer.jrapidrpc.serializer.protostuff;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- * RPC request structure ready for immediate serialization
+ * RPC request structure ready for immediate serialization with {@link PackedRpcRequestSchema}
  */
 class PackedRpcRequest {
 
+    private int callId;
+
     private short methodId;
 
     private Object[] methodParameters;
 
+    private List<PackedRpcRequest> batchCalls;
+    private boolean                batchParallel;
+
+    private boolean streamCredit;
+    private int     streamCredits;
+
+    private List<String> compressionCodecs;
+
+    private boolean timeout;
+    private long    timeoutMicros;
 
     /**
      * Noargs constructor for deserialization
@@ -36,17 +51,123 @@ class PackedRpcRequest {
     }
 
 
-    public PackedRpcRequest(short methodId, Object[] methodParameters) {
+    public PackedRpcRequest(int callId, short methodId, Object[] methodParameters) {
         super();
+        this.callId = callId;
         this.methodId = methodId;
         this.methodParameters = methodParameters;
     }
 
+    public PackedRpcRequest(int callId, List<PackedRpcRequest> batchCalls, boolean batchParallel) {
+        super();
+        this.callId = callId;
+        this.batchCalls = batchCalls;
+        this.batchParallel = batchParallel;
+    }
+
+    public PackedRpcRequest(int callId, int streamCredits) {
+        super();
+        this.callId = callId;
+        setStreamCredits(streamCredits);
+    }
+
+    public PackedRpcRequest(int callId, short methodId, List<String> compressionCodecs) {
+        super();
+        this.callId = callId;
+        this.methodId = methodId;
+        this.compressionCodecs = compressionCodecs;
+    }
+
+    public int getCallId() {
+        return callId;
+    }
+
+    void setCallId(int callId) {
+        this.callId = callId;
+    }
+
     public short getMethodId() {
         return methodId;
     }
 
+    void setMethodId(short methodId) {
+        this.methodId = methodId;
+    }
+
     public Object[] getMethodParameters() {
         return methodParameters;
     }
+
+    void setMethodParameters(Object[] methodParameters) {
+        this.methodParameters = methodParameters;
+    }
+
+    public boolean isBatch() {
+        return batchCalls != null;
+    }
+
+    public List<PackedRpcRequest> getBatchCalls() {
+        return batchCalls;
+    }
+
+    void addBatchCall(PackedRpcRequest call) {
+        setBatch();
+        batchCalls.add(call);
+    }
+
+    public boolean isBatchParallel() {
+        return batchParallel;
+    }
+
+    void setBatchParallel(boolean batchParallel) {
+        setBatch();
+        this.batchParallel = batchParallel;
+    }
+
+    private void setBatch() {
+        if (batchCalls == null) {
+            batchCalls = new ArrayList<PackedRpcRequest>();
+        }
+    }
+
+    public boolean isStreamCredit() {
+        return streamCredit;
+    }
+
+    public int getStreamCredits() {
+        return streamCredits;
+    }
+
+    void setStreamCredits(int streamCredits) {
+        this.streamCredit = true;
+        this.streamCredits = streamCredits;
+    }
+
+    public boolean isCompressionOffer() {
+        return compressionCodecs != null;
+    }
+
+    public List<String> getCompressionCodecs() {
+        return compressionCodecs;
+    }
+
+    void addCompressionCodec(String codecName) {
+        if (compressionCodecs == null) {
+            compressionCodecs = new ArrayList<String>();
+        }
+        compressionCodecs.add(codecName);
+    }
+
+    public boolean hasTimeout() {
+        return timeout;
+    }
+
+    public long getTimeoutMicros() {
+        return timeoutMicros;
+    }
+
+    void setTimeoutMicros(long timeoutMicros) {
+        this.timeout = true;
+        this.timeoutMicros = timeoutMicros;
+    }
 }
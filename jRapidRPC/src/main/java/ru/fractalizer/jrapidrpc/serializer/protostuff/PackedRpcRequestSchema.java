@@ -0,0 +1,177 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.serializer.protostuff;
+
+import com.dyuproject.protostuff.Input;
+import com.dyuproject.protostuff.Output;
+import com.dyuproject.protostuff.ProtobufException;
+import com.dyuproject.protostuff.Schema;
+
+import java.io.IOException;
+
+/**
+ * Schema of RPC request. Method ID goes before parameters, so that reading side knows the parameter types by the time
+ * it reaches them. Parameter number i is written to field {@code FIELD_FIRST_PARAMETER + 2 * i}, or to the next one
+ * if its value does not fit the declared type, see {@link ValueCodec}. Batch carries nested requests instead of
+ * method ID and parameters. Its parallel flag is always written, so that an empty batch is still a batch. Stream
+ * credit carries only the call ID and the number of credits. Compression offer carries codec names after the
+ * reserved method ID. Time left until the deadline of a call or batch goes before everything else, so that it can be
+ * skipped together with call ID when taking the cache key of the request.
+ */
+final class PackedRpcRequestSchema implements Schema<PackedRpcRequest> {
+
+    static final int FIELD_CALL_ID         = 1;
+    static final int FIELD_METHOD_ID       = 2;
+    static final int FIELD_FIRST_PARAMETER = 3;
+
+    //Parameters take fields up to FIELD_FIRST_PARAMETER + 2 * 255 + 1, so batch fields go after them
+    static final int FIELD_BATCH_PARALLEL    = 1024;
+    static final int FIELD_BATCH_CALL        = 1025;
+    static final int FIELD_STREAM_CREDITS    = 1026;
+    static final int FIELD_COMPRESSION_CODEC = 1027;
+    static final int FIELD_TIMEOUT_MICROS    = 1028;
+
+    private final MethodSchemas methodSchemas;
+
+    PackedRpcRequestSchema(MethodSchemas methodSchemas) {
+        super();
+        this.methodSchemas = methodSchemas;
+    }
+
+    @Override
+    public void writeTo(Output output, PackedRpcRequest message) throws IOException {
+        if (message.hasTimeout()) {
+            output.writeUInt64(FIELD_TIMEOUT_MICROS, message.getTimeoutMicros(), false);
+        }
+        if (message.getCallId() != 0) {
+            output.writeUInt32(FIELD_CALL_ID, message.getCallId(), false);
+        }
+        if (message.isStreamCredit()) {
+            output.writeSInt32(FIELD_STREAM_CREDITS, message.getStreamCredits(), false);
+            return;
+        }
+        if (message.isBatch()) {
+            output.writeBool(FIELD_BATCH_PARALLEL, message.isBatchParallel(), false);
+            for (PackedRpcRequest call : message.getBatchCalls()) {
+                output.writeObject(FIELD_BATCH_CALL, call, this, true);
+            }
+            return;
+        }
+        output.writeSInt32(FIELD_METHOD_ID, message.getMethodId(), false);
+        if (message.isCompressionOffer()) {
+            for (String codecName : message.getCompressionCodecs()) {
+                output.writeString(FIELD_COMPRESSION_CODEC, codecName, true);
+            }
+            return;
+        }
+
+        Object[] parameters = message.getMethodParameters();
+        if (parameters == null) {
+            return;
+        }
+        MethodSchemas.MethodSchema methodSchema = methodSchemas.get(message.getMethodId());
+        if (methodSchema == null || parameters.length != methodSchema.getParameterCount()) {
+            throw new ProtobufException("Parameters do not match method with ID " + message.getMethodId());
+        }
+        for (int i = 0; i < parameters.length; i++) {
+            methodSchema.getParameterCodec(i).write(output, FIELD_FIRST_PARAMETER + 2 * i, parameters[i]);
+        }
+    }
+
+    @Override
+    public void mergeFrom(Input input, PackedRpcRequest message) throws IOException {
+        MethodSchemas.MethodSchema methodSchema = null;
+        Object[] parameters = null;
+        for (int number = input.readFieldNumber(this); number != 0; number = input.readFieldNumber(this)) {
+            switch (number) {
+                case FIELD_CALL_ID:
+                    message.setCallId(input.readUInt32());
+                    break;
+                case FIELD_METHOD_ID:
+                    message.setMethodId((short) input.readSInt32());
+                    methodSchema = methodSchemas.get(message.getMethodId());
+                    if (methodSchema != null) {
+                        parameters = new Object[methodSchema.getParameterCount()];
+                    }
+                    break;
+                case FIELD_BATCH_PARALLEL:
+                    message.setBatchParallel(input.readBool());
+                    break;
+                case FIELD_BATCH_CALL:
+                    message.addBatchCall(input.mergeObject(new PackedRpcRequest(), this));
+                    break;
+                case FIELD_STREAM_CREDITS:
+                    message.setStreamCredits(input.readSInt32());
+                    break;
+                case FIELD_COMPRESSION_CODEC:
+                    message.addCompressionCodec(input.readString());
+                    break;
+                case FIELD_TIMEOUT_MICROS:
+                    message.setTimeoutMicros(input.readUInt64());
+                    break;
+                default:
+                    int index = (number - FIELD_FIRST_PARAMETER) / 2;
+                    if (methodSchema == null || index < 0 || index >= parameters.length) {
+                        //Unknown method is reported by dispatcher
+                        input.handleUnknownField(number, this);
+                        break;
+                    }
+                    parameters[index] = methodSchema.getParameterCodec(index).read(input, number,
+                            FIELD_FIRST_PARAMETER + 2 * index);
+                    break;
+            }
+        }
+        message.setMethodParameters(parameters);
+    }
+
+    @Override
+    public String getFieldName(int number) {
+        return Integer.toString(number);
+    }
+
+    @Override
+    public int getFieldNumber(String name) {
+        return Integer.parseInt(name);
+    }
+
+    @Override
+    public boolean isInitialized(PackedRpcRequest message) {
+        return true;
+    }
+
+    @Override
+    public PackedRpcRequest newMessage() {
+        return new PackedRpcRequest();
+    }
+
+    @Override
+    public String messageName() {
+        return PackedRpcRequest.class.getSimpleName();
+    }
+
+    @Override
+    public String messageFullName() {
+        return PackedRpcRequest.class.getName();
+    }
+
+    @Override
+    public Class<? super PackedRpcRequest> typeClass() {
+        return PackedRpcRequest.class;
+    }
+}
@@ -18,25 +18,58 @@
 
 package ru.fractalizer.jrapidrpc.serializer.protostuff;
 
+import com.dyuproject.protostuff.ByteArrayInput;
 import com.dyuproject.protostuff.LinkedBuffer;
-import com.dyuproject.protostuff.ProtobufException;
 import com.dyuproject.protostuff.ProtostuffIOUtil;
+import com.dyuproject.protostuff.ProtostuffOutput;
 import com.dyuproject.protostuff.Schema;
-import com.dyuproject.protostuff.runtime.RuntimeSchema;
+import com.dyuproject.protostuff.WireFormat;
+import ru.fractalizer.jrapidrpc.api.BufferSerializer;
+import ru.fractalizer.jrapidrpc.api.FrameSerializer;
+import ru.fractalizer.jrapidrpc.api.MsgCacheInvalidation;
+import ru.fractalizer.jrapidrpc.api.MsgCompressionOffer;
+import ru.fractalizer.jrapidrpc.api.MsgRpcBatchReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcBatchRequest;
 import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
 import ru.fractalizer.jrapidrpc.api.MsgRpcRequest;
+import ru.fractalizer.jrapidrpc.api.MsgRpcStreamChunk;
+import ru.fractalizer.jrapidrpc.api.MsgStreamCredit;
 import ru.fractalizer.jrapidrpc.api.ProtocolDataException;
-import ru.fractalizer.jrapidrpc.api.Serializer;
+import ru.fractalizer.jrapidrpc.tools.BufferPool;
+import ru.fractalizer.jrapidrpc.tools.BufferPoolStatistics;
 import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * RPC data serializer based on http://code.google.com/p/protostuff/ library. It is thread-safe
  */
-public final class SerializerCore implements Serializer {
+public final class SerializerCore implements BufferSerializer, FrameSerializer {
+
+    /**
+     * Default maximum size of a single received frame in bytes
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Maximum size of a varint32 in bytes
+     */
+    private static final int MAX_VARINT_SIZE = 5;
+
+    private static final byte CALL_ID_REQUEST_TAG =
+            (byte) WireFormat.makeTag(PackedRpcRequestSchema.FIELD_CALL_ID, WireFormat.WIRETYPE_VARINT);
+    private static final byte CALL_ID_REPLY_TAG   =
+            (byte) WireFormat.makeTag(PackedRpcReplySchema.FIELD_CALL_ID, WireFormat.WIRETYPE_VARINT);
+    private static final int  TIMEOUT_REQUEST_TAG =
+            WireFormat.makeTag(PackedRpcRequestSchema.FIELD_TIMEOUT_MICROS, WireFormat.WIRETYPE_VARINT);
 
     /**
      * Here we cache metadata about the service class. Cache should be thread-safe
@@ -44,14 +77,14 @@ public final class SerializerCore implements Serializer {
     private ReflectionCache reflectionCache;
 
     /**
-     * Cached schema for serialized RPC request
+     * Schema for serialized RPC request. Encodes parameters with the codecs of the method called
      */
-    private Schema<PackedRpcRequest> packedRpcRequestSchema = RuntimeSchema.getSchema(PackedRpcRequest.class);
+    private Schema<PackedRpcRequest> packedRpcRequestSchema;
 
     /**
-     * Cached schema for serialized RPC reply
+     * Schema for serialized RPC reply. Encodes return value with the codec of the method called
      */
-    private Schema<PackedRpcReply> packedRpcReplySchema = RuntimeSchema.getSchema(PackedRpcReply.class);
+    private Schema<PackedRpcReply> packedRpcReplySchema;
 
     /**
      * Optimal buffer size for serializing messages
@@ -59,14 +92,17 @@ public final class SerializerCore implements Serializer {
     private int optimalBufferSize;
 
     /**
-     * Local serialization buffer for each thread
+     * Pool of serialization buffers. Buffer is taken for the time of a single message encoding or decoding. Buffers
+     * are deliberately not kept in a ThreadLocal: with a thread per connection, and even more so with a virtual thread
+     * per connection, every idle connection would hold a buffer of its own
      */
-    private ThreadLocal<LinkedBuffer> linkedBuffer = new ThreadLocal<LinkedBuffer>() {
-        @Override
-        protected LinkedBuffer initialValue() {
-            return LinkedBuffer.allocate(optimalBufferSize);
-        }
-    };
+    private BufferPool bufferPool;
+
+    /**
+     * Maximum size of a received frame. Length prefix is sent by peer, so buffer for a frame is not allocated before
+     * length is checked against it
+     */
+    private int maxFrameSize;
 
     /**
      * Default constructor
@@ -75,61 +111,620 @@ public final class SerializerCore implements Serializer {
      * @param optimalBufferSize Buffer size in bytes that is able to hold the largest message possible in this RPC protocol
      *                          If you will provide a value that is too small, several sequential linked buffers will be created
      *                          automatically (and the thing will be a little slower with that)
+     * @param bufferPool        Pool of heap buffers to take serialization buffers from. Can be shared with other
+     *                          serializers. Its largest size class should not be less than optimalBufferSize
+     * @param maxFrameSize      Maximum size of a received frame in bytes. Larger frames fail with
+     *                          {@link ProtocolDataException}
      */
-    public SerializerCore(Class<?> serviceInterface, int optimalBufferSize) {
+    public SerializerCore(Class<?> serviceInterface, int optimalBufferSize, BufferPool bufferPool,
+                          int maxFrameSize) {
         super();
+        if (bufferPool.isDirect()) {
+            throw new IllegalArgumentException("bufferPool must hold heap buffers: protostuff works with arrays only");
+        }
+        this.bufferPool = bufferPool;
         reflectionCache = new ReflectionCache(serviceInterface);
-        this.optimalBufferSize = optimalBufferSize;
+        MethodSchemas methodSchemas = new MethodSchemas(reflectionCache);
+        packedRpcRequestSchema = new PackedRpcRequestSchema(methodSchemas);
+        packedRpcReplySchema = new PackedRpcReplySchema(methodSchemas);
+        this.optimalBufferSize = Math.max(optimalBufferSize, LinkedBuffer.MIN_BUFFER_SIZE);
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Default constructor. Received frames are limited to {@link #DEFAULT_MAX_FRAME_SIZE}
+     *
+     * @param serviceInterface  An interface containing RPC methods
+     * @param optimalBufferSize Buffer size in bytes that is able to hold the largest message possible in this RPC protocol
+     *                          If you will provide a value that is too small, several sequential linked buffers will be created
+     *                          automatically (and the thing will be a little slower with that)
+     * @param bufferPool        Pool of heap buffers to take serialization buffers from. Can be shared with other
+     *                          serializers. Its largest size class should not be less than optimalBufferSize
+     */
+    public SerializerCore(Class<?> serviceInterface, int optimalBufferSize, BufferPool bufferPool) {
+        this(serviceInterface, optimalBufferSize, bufferPool, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Default constructor. Serializer gets a private buffer pool
+     *
+     * @param serviceInterface  An interface containing RPC methods
+     * @param optimalBufferSize Buffer size in bytes that is able to hold the largest message possible in this RPC protocol
+     *                          If you will provide a value that is too small, several sequential linked buffers will be created
+     *                          automatically (and the thing will be a little slower with that)
+     */
+    public SerializerCore(Class<?> serviceInterface, int optimalBufferSize) {
+        this(serviceInterface, optimalBufferSize,
+                new BufferPool(false, optimalBufferSize, Math.max(optimalBufferSize, BufferPool.DEFAULT_MAX_BUFFER_SIZE),
+                        BufferPool.DEFAULT_MAX_RETAINED_BYTES));
     }
 
+    /**
+     * Returns counters of the buffer pool serializer takes its buffers from
+     *
+     * @return Snapshot of pool counters
+     */
+    public BufferPoolStatistics getBufferPoolStatistics() {
+        return bufferPool.getStatistics();
+    }
 
     @Override
     public void sendRpcRequest(MsgRpcRequest msg, OutputStream outputStream) throws IOException {
-        LinkedBuffer linkedBuffer = this.linkedBuffer.get();
-        linkedBuffer.clear();
-        short methodId = reflectionCache.getMethodId(msg.getMethodName());
-        PackedRpcRequest packedRpcRequest = new PackedRpcRequest(methodId, msg.getMethodParameters());
-        ProtostuffIOUtil.writeDelimitedTo(outputStream, packedRpcRequest, packedRpcRequestSchema, linkedBuffer);
+        ByteBuffer buffer = bufferPool.acquire(optimalBufferSize);
+        try {
+            ProtostuffIOUtil.writeDelimitedTo(outputStream, pack(msg), packedRpcRequestSchema,
+                    LinkedBuffer.use(buffer.array()));
+        } finally {
+            bufferPool.release(buffer);
+        }
     }
 
     @Override
     public MsgRpcRequest receiveRpcRequest(InputStream inputStream) throws IOException, ProtocolDataException {
-        LinkedBuffer linkedBuffer = this.linkedBuffer.get();
-        linkedBuffer.clear();
         PackedRpcRequest packedRpcRequest = new PackedRpcRequest();
+        receiveFrame(inputStream, packedRpcRequest, packedRpcRequestSchema);
+
+        return unpack(packedRpcRequest);
+    }
 
-        //TODO: handle situation when ProtobufException is thrown by socket graceful disconnect
+    @Override
+    public void sendRpcReply(MsgRpcReply msg, OutputStream outputStream) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire(optimalBufferSize);
         try {
-            ProtostuffIOUtil.mergeDelimitedFrom(inputStream, packedRpcRequest, packedRpcRequestSchema, linkedBuffer);
-        } catch (ProtobufException e) {
-            throw new ProtocolDataException("Something is wrong with the data", e);
+            ProtostuffIOUtil.writeDelimitedTo(outputStream, pack(msg), packedRpcReplySchema,
+                    LinkedBuffer.use(buffer.array()));
+        } finally {
+            bufferPool.release(buffer);
         }
+    }
 
-        return new MsgRpcRequest(reflectionCache.getMethodName(packedRpcRequest.getMethodId()),
-                packedRpcRequest.getMethodParameters());
+    @Override
+    public MsgRpcReply receiveRpcReply(InputStream inputStream) throws IOException, ProtocolDataException {
+        PackedRpcReply packedRpcReply = new PackedRpcReply();
+        receiveFrame(inputStream, packedRpcReply, packedRpcReplySchema);
+
+        return unpack(packedRpcReply);
     }
 
     @Override
-    public void sendRpcReply(MsgRpcReply msg, OutputStream outputStream) throws IOException {
-        LinkedBuffer linkedBuffer = this.linkedBuffer.get();
-        linkedBuffer.clear();
-        PackedRpcReply packedRpcReply = new PackedRpcReply(msg.getErrorMessage(), msg.getMethodReturnValue());
-        ProtostuffIOUtil.writeDelimitedTo(outputStream, packedRpcReply, packedRpcReplySchema, linkedBuffer);
+    public ByteBuffer encodeRpcRequest(MsgRpcRequest msg, ByteBuffer buffer) throws IOException {
+        return encodeFrame(pack(msg), packedRpcRequestSchema, buffer);
     }
 
     @Override
-    public MsgRpcReply receiveRpcReply(InputStream inputStream) throws IOException, ProtocolDataException {
-        LinkedBuffer linkedBuffer = this.linkedBuffer.get();
-        linkedBuffer.clear();
+    public MsgRpcRequest decodeRpcRequest(ByteBuffer buffer) throws ProtocolDataException {
+        PackedRpcRequest packedRpcRequest = new PackedRpcRequest();
+        if (!decodeFrame(buffer, packedRpcRequest, packedRpcRequestSchema)) {
+            return null;
+        }
+        return unpack(packedRpcRequest);
+    }
+
+    @Override
+    public ByteBuffer encodeRpcReply(MsgRpcReply msg, ByteBuffer buffer) throws IOException {
+        return encodeFrame(pack(msg), packedRpcReplySchema, buffer);
+    }
+
+    @Override
+    public MsgRpcReply decodeRpcReply(ByteBuffer buffer) throws ProtocolDataException {
         PackedRpcReply packedRpcReply = new PackedRpcReply();
+        if (!decodeFrame(buffer, packedRpcReply, packedRpcReplySchema)) {
+            return null;
+        }
+        return unpack(packedRpcReply);
+    }
+
+    @Override
+    public byte[] encodeRpcRequestFrame(MsgRpcRequest msg) throws IOException {
+        return encodeFrame(pack(msg), packedRpcRequestSchema);
+    }
+
+    @Override
+    public byte[] receiveRpcRequestFrame(InputStream inputStream) throws IOException, ProtocolDataException {
+        return readFrame(inputStream);
+    }
+
+    @Override
+    public MsgRpcRequest decodeRpcRequestFrame(byte[] frame) throws ProtocolDataException {
+        int offset = bodyOffset(frame);
+        PackedRpcRequest packedRpcRequest = new PackedRpcRequest();
+        parse(frame, offset, frame.length - offset, packedRpcRequest, packedRpcRequestSchema);
+        return unpack(packedRpcRequest);
+    }
+
+    @Override
+    public ByteBuffer getRpcRequestKey(byte[] frame) throws ProtocolDataException {
+        int offset = bodyOffset(frame);
+        //Timeout and call ID go first, if there are any. The rest is method ID and parameters
+        if (offset + 1 < frame.length && frame[offset] == (byte) (TIMEOUT_REQUEST_TAG | 0x80) &&
+                frame[offset + 1] == (byte) (TIMEOUT_REQUEST_TAG >>> 7)) {
+            offset = skipVarint(frame, offset + 2);
+        }
+        if (offset < frame.length && frame[offset] == CALL_ID_REQUEST_TAG) {
+            offset = skipVarint(frame, offset + 1);
+        }
+        if (offset > frame.length) {
+            throw new ProtocolDataException("Malformed call ID", null);
+        }
+        return ByteBuffer.wrap(frame, offset, frame.length - offset).slice();
+    }
+
+    /**
+     * @return Offset right after the varint starting at offset. Greater than frame length if varint is cut off
+     */
+    private static int skipVarint(byte[] frame, int offset) {
+        while (offset < frame.length && frame[offset] < 0) {
+            offset++;
+        }
+        return offset + 1;
+    }
+
+    @Override
+    public byte[] encodeRpcReplyFrame(MsgRpcReply msg) throws IOException {
+        return encodeFrame(pack(msg), packedRpcReplySchema);
+    }
+
+    @Override
+    public byte[] receiveRpcReplyFrame(InputStream inputStream) throws IOException, ProtocolDataException {
+        return readFrame(inputStream);
+    }
+
+    @Override
+    public MsgRpcReply decodeRpcReplyFrame(byte[] frame) throws ProtocolDataException {
+        int offset = bodyOffset(frame);
+        PackedRpcReply packedRpcReply = new PackedRpcReply();
+        parse(frame, offset, frame.length - offset, packedRpcReply, packedRpcReplySchema);
+        return unpack(packedRpcReply);
+    }
+
+    @Override
+    public void sendRpcReplyFrame(byte[] frame, int callId, OutputStream outputStream) throws IOException {
+        int offset;
+        try {
+            offset = bodyOffset(frame);
+        } catch (ProtocolDataException e) {
+            throw new IOException("Reply frame is malformed", e);
+        }
+        //Call ID the frame was encoded with, if any, is replaced. Its size can change, and so can length prefix
+        int restOffset = offset;
+        if (offset < frame.length && frame[offset] == CALL_ID_REPLY_TAG) {
+            restOffset = skipVarint(frame, offset + 1);
+            if (restOffset > frame.length) {
+                throw new IOException("Reply frame is malformed");
+            }
+        }
+        int restLength = frame.length - restOffset;
+        byte[] head = new byte[2 * MAX_VARINT_SIZE + 1];
+        int headLength;
+        if (callId != 0) {
+            headLength = putVarint(head, 0, 1 + varintSize(callId) + restLength);
+            head[headLength++] = CALL_ID_REPLY_TAG;
+            headLength = putVarint(head, headLength, callId);
+        } else {
+            headLength = putVarint(head, 0, restLength);
+        }
+        outputStream.write(head, 0, headLength);
+        outputStream.write(frame, restOffset, restLength);
+    }
+
+    private PackedRpcRequest pack(MsgRpcRequest msg) {
+        if (msg.getStreamCredit() != null) {
+            return new PackedRpcRequest(msg.getCallId(), msg.getStreamCredit().getCredits());
+        }
+        if (msg.getCompressionOffer() != null) {
+            return new PackedRpcRequest(msg.getCallId(), msg.getMethodId(),
+                    Arrays.asList(msg.getCompressionOffer().getCodecNames()));
+        }
+        if (msg.getBatch() != null) {
+            MsgRpcRequest[] requests = msg.getBatch().getRequests();
+            List<PackedRpcRequest> calls = new ArrayList<PackedRpcRequest>(requests.length);
+            for (MsgRpcRequest request : requests) {
+                calls.add(pack(request));
+            }
+            return setTimeout(new PackedRpcRequest(msg.getCallId(), calls, msg.getBatch().isParallel()), msg);
+        }
+        short methodId = msg.hasMethodId() ? msg.getMethodId() : reflectionCache.getMethodId(msg.getMethodName());
+        return setTimeout(new PackedRpcRequest(msg.getCallId(), methodId, msg.getMethodParameters()), msg);
+    }
+
+    /**
+     * Deadline is sent as time left, so that clocks of client and server need not agree. Time the request spends in
+     * transit is not accounted for
+     */
+    private static PackedRpcRequest setTimeout(PackedRpcRequest packedRpcRequest, MsgRpcRequest msg) {
+        if (msg.hasDeadline()) {
+            long timeoutNanos = msg.getDeadlineNanos() - System.nanoTime();
+            packedRpcRequest.setTimeoutMicros(Math.max(0, TimeUnit.NANOSECONDS.toMicros(timeoutNanos)));
+        }
+        return packedRpcRequest;
+    }
+
+    private MsgRpcRequest unpack(PackedRpcRequest packedRpcRequest) {
+        if (packedRpcRequest.isStreamCredit()) {
+            return new MsgRpcRequest(packedRpcRequest.getCallId(),
+                    new MsgStreamCredit(packedRpcRequest.getStreamCredits()));
+        }
+        if (packedRpcRequest.isCompressionOffer()) {
+            List<String> codecNames = packedRpcRequest.getCompressionCodecs();
+            return new MsgRpcRequest(packedRpcRequest.getCallId(),
+                    new MsgCompressionOffer(codecNames.toArray(new String[codecNames.size()])));
+        }
+        if (packedRpcRequest.isBatch()) {
+            List<PackedRpcRequest> calls = packedRpcRequest.getBatchCalls();
+            MsgRpcRequest[] requests = new MsgRpcRequest[calls.size()];
+            for (int i = 0; i < requests.length; i++) {
+                requests[i] = unpack(calls.get(i));
+            }
+            MsgRpcBatchRequest batch = new MsgRpcBatchRequest(requests, packedRpcRequest.isBatchParallel());
+            if (packedRpcRequest.hasTimeout()) {
+                return new MsgRpcRequest(packedRpcRequest.getCallId(), batch, deadlineNanos(packedRpcRequest));
+            }
+            return new MsgRpcRequest(packedRpcRequest.getCallId(), batch);
+        }
+        short methodId = packedRpcRequest.getMethodId();
+        if (packedRpcRequest.hasTimeout()) {
+            return new MsgRpcRequest(packedRpcRequest.getCallId(), methodId, reflectionCache.getMethodName(methodId),
+                    packedRpcRequest.getMethodParameters(), deadlineNanos(packedRpcRequest));
+        }
+        return new MsgRpcRequest(packedRpcRequest.getCallId(), methodId, reflectionCache.getMethodName(methodId),
+                packedRpcRequest.getMethodParameters());
+    }
+
+    private static long deadlineNanos(PackedRpcRequest packedRpcRequest) {
+        return System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(packedRpcRequest.getTimeoutMicros());
+    }
+
+    private PackedRpcReply pack(MsgRpcReply msg) {
+        if (msg.getCacheInvalidation() != null) {
+            PackedRpcReply packedRpcReply = new PackedRpcReply(msg.getCallId(), null, null);
+            packedRpcReply.setInvalidatedMethodId(msg.getCacheInvalidation().getMethodId());
+            packedRpcReply.setInvalidatedKey(msg.getCacheInvalidation().getKey());
+            return packedRpcReply;
+        }
+        if (msg.getBatch() != null) {
+            MsgRpcReply[] replies = msg.getBatch().getReplies();
+            List<PackedRpcReply> packedReplies = new ArrayList<PackedRpcReply>(replies.length);
+            for (MsgRpcReply reply : replies) {
+                packedReplies.add(pack(reply));
+            }
+            return new PackedRpcReply(msg.getCallId(), packedReplies);
+        }
+        if (msg.getStreamChunk() != null) {
+            return new PackedRpcReply(msg.getCallId(), msg.getMethodId(),
+                    Arrays.asList(msg.getStreamChunk().getElements()), msg.getStreamChunk().isLast());
+        }
+        if (msg.isOverloaded()) {
+            PackedRpcReply packedRpcReply = new PackedRpcReply(msg.getCallId(), msg.getErrorMessage(), null);
+            packedRpcReply.setOverloaded(true);
+            return packedRpcReply;
+        }
+        if (msg.isDeadlineExceeded()) {
+            PackedRpcReply packedRpcReply = new PackedRpcReply(msg.getCallId(), msg.getErrorMessage(), null);
+            packedRpcReply.setDeadlineExceeded(true);
+            return packedRpcReply;
+        }
+        if (msg.hasMethodId()) {
+            return new PackedRpcReply(msg.getCallId(), msg.getMethodId(), msg.getErrorMessage(),
+                    msg.getMethodReturnValue());
+        }
+        return new PackedRpcReply(msg.getCallId(), msg.getErrorMessage(), msg.getMethodReturnValue());
+    }
+
+    private MsgRpcReply unpack(PackedRpcReply packedRpcReply) {
+        if (packedRpcReply.isCacheInvalidation()) {
+            return new MsgRpcReply(new MsgCacheInvalidation(packedRpcReply.getInvalidatedMethodId(),
+                    packedRpcReply.getInvalidatedKey()));
+        }
+        if (packedRpcReply.isBatch()) {
+            List<PackedRpcReply> packedReplies = packedRpcReply.getBatchReplies();
+            MsgRpcReply[] replies = new MsgRpcReply[packedReplies.size()];
+            for (int i = 0; i < replies.length; i++) {
+                replies[i] = unpack(packedReplies.get(i));
+            }
+            return new MsgRpcReply(packedRpcReply.getCallId(), new MsgRpcBatchReply(replies));
+        }
+        if (packedRpcReply.isStreamChunk()) {
+            Object[] elements = packedRpcReply.getStreamElements().toArray();
+            return new MsgRpcReply(packedRpcReply.getCallId(), packedRpcReply.getMethodId(),
+                    new MsgRpcStreamChunk(elements, packedRpcReply.isStreamLast()));
+        }
+        if (packedRpcReply.isOverloaded()) {
+            return new MsgRpcReply(packedRpcReply.getCallId(), packedRpcReply.getErrorMessage(), true);
+        }
+        if (packedRpcReply.isDeadlineExceeded()) {
+            return new MsgRpcReply(packedRpcReply.getCallId(), packedRpcReply.getErrorMessage(), false, true);
+        }
+        if (packedRpcReply.hasMethodId()) {
+            return new MsgRpcReply(packedRpcReply.getCallId(), packedRpcReply.getMethodId(),
+                    packedRpcReply.getErrorMessage(), packedRpcReply.getMethodReturnValue());
+        }
+        return new MsgRpcReply(packedRpcReply.getCallId(), packedRpcReply.getErrorMessage(),
+                packedRpcReply.getMethodReturnValue());
+    }
 
-        //TODO: handle situation when ProtobufException is thrown by socket graceful disconnect
+    /**
+     * Reads length-delimited message from the stream. The whole frame is read into a pooled buffer before parsing.
+     * Frames larger than the optimal buffer size get a buffer of their own, which is dropped by the pool afterwards.
+     */
+    private <T> void receiveFrame(InputStream inputStream, T message, Schema<T> schema)
+            throws IOException, ProtocolDataException {
+        int length = readFrameLength(inputStream);
+        checkFrameLength(length);
+        ByteBuffer buffer = bufferPool.acquire(Math.max(length, optimalBufferSize));
         try {
-            ProtostuffIOUtil.mergeDelimitedFrom(inputStream, packedRpcReply, packedRpcReplySchema, linkedBuffer);
-        } catch (ProtobufException e) {
+            byte[] array = buffer.array();
+            readFully(inputStream, array, 0, length);
+            parse(array, 0, length, message, schema);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Reads length-delimited message from the stream into an array of its own, together with length prefix
+     */
+    private byte[] readFrame(InputStream inputStream) throws IOException, ProtocolDataException {
+        int length = readFrameLength(inputStream);
+        checkFrameLength(length);
+        int prefixSize = varintSize(length);
+        byte[] frame = new byte[prefixSize + length];
+        for (int i = 0; i < prefixSize; i++) {
+            frame[i] = (byte) (i < prefixSize - 1 ? (length & 0x7F) | 0x80 : length);
+            length >>>= 7;
+        }
+        readFully(inputStream, frame, prefixSize, frame.length - prefixSize);
+        return frame;
+    }
+
+    private static int readFrameLength(InputStream inputStream) throws IOException, ProtocolDataException {
+        //TODO: handle situation when stream ends because of socket graceful disconnect
+        int length = 0;
+        for (int i = 0; ; i++) {
+            int b = inputStream.read();
+            if (b < 0) {
+                throw new ProtocolDataException("Something is wrong with the data",
+                        new EOFException("Stream ended before frame length prefix"));
+            }
+            length |= (b & 0x7F) << (7 * i);
+            if (b < 0x80) {
+                break;
+            }
+            if (i == MAX_VARINT_SIZE - 1) {
+                throw new ProtocolDataException("Malformed frame length prefix", null);
+            }
+        }
+        if (length < 0) {
+            throw new ProtocolDataException("Malformed frame length prefix", null);
+        }
+        return length;
+    }
+
+    private void checkFrameLength(int length) throws ProtocolDataException {
+        if (length > maxFrameSize) {
+            throw new ProtocolDataException("Frame of " + length + " bytes exceeds maximum frame size of " +
+                    maxFrameSize + " bytes", null);
+        }
+    }
+
+    private static void readFully(InputStream inputStream, byte[] array, int offset, int length)
+            throws IOException, ProtocolDataException {
+        int bytesRead = 0;
+        while (bytesRead < length) {
+            int count = inputStream.read(array, offset + bytesRead, length - bytesRead);
+            if (count < 0) {
+                throw new ProtocolDataException("Something is wrong with the data",
+                        new EOFException("Stream ended in the middle of a frame"));
+            }
+            bytesRead += count;
+        }
+    }
+
+    /**
+     * @return Offset of the frame body, right after its length prefix
+     */
+    private static int bodyOffset(byte[] frame) throws ProtocolDataException {
+        for (int i = 0; i < frame.length && i < MAX_VARINT_SIZE; i++) {
+            if (frame[i] >= 0) {
+                return i + 1;
+            }
+        }
+        throw new ProtocolDataException("Malformed frame length prefix", null);
+    }
+
+    /**
+     * Serializes message into a pooled buffer and appends it to the given buffer with varint length prefix.
+     * Protostuff can only write to byte arrays, so this is the only copy on the way to socket. With a direct buffer it
+     * replaces the copy JDK makes itself when heap buffer is written to a channel.
+     */
+    private <T> ByteBuffer encodeFrame(T message, Schema<T> schema, ByteBuffer buffer) throws IOException {
+        ByteBuffer serializationBuffer = bufferPool.acquire(optimalBufferSize);
+        try {
+            LinkedBuffer linkedBuffer = LinkedBuffer.use(serializationBuffer.array());
+            ProtostuffOutput output = new ProtostuffOutput(linkedBuffer);
+            schema.writeTo(output, message);
+            return appendFrame(linkedBuffer, output.getSize(), buffer);
+        } finally {
+            bufferPool.release(serializationBuffer);
+        }
+    }
+
+    /**
+     * Serializes message into a frame array of its own
+     */
+    private <T> byte[] encodeFrame(T message, Schema<T> schema) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire(optimalBufferSize);
+        try {
+            ByteBuffer frame = encodeFrame(message, schema, buffer);
+            return Arrays.copyOf(frame.array(), frame.position());
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private static ByteBuffer appendFrame(LinkedBuffer linkedBuffer, int size, ByteBuffer buffer) throws IOException {
+
+        int frameSize = varintSize(size) + size;
+        if (buffer.remaining() < frameSize) {
+            //Power of two, so that grown buffer can be pooled
+            int capacity = Math.max(buffer.capacity(), 16);
+            while (capacity < buffer.position() + frameSize) {
+                capacity *= 2;
+            }
+            ByteBuffer newBuffer = buffer.isDirect() ? ByteBuffer.allocateDirect(capacity) :
+                    ByteBuffer.allocate(capacity);
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+
+        while ((size & ~0x7F) != 0) {
+            buffer.put((byte) ((size & 0x7F) | 0x80));
+            size >>>= 7;
+        }
+        buffer.put((byte) size);
+        LinkedBuffer.writeTo(new ByteBufferOutputStream(buffer), linkedBuffer);
+        return buffer;
+    }
+
+    /**
+     * Deserializes length-delimited message at buffer position. Heap buffers are parsed in place, direct ones are
+     * copied to a pooled array first, because protostuff can only read from byte arrays and streams.
+     *
+     * @return True if message was read, false if buffer does not contain a complete frame yet
+     */
+    private <T> boolean decodeFrame(ByteBuffer buffer, T message, Schema<T> schema)
+            throws ProtocolDataException {
+        int position = buffer.position();
+        int limit = buffer.limit();
+
+        //Reading length prefix
+        int length = 0;
+        int prefixSize = 0;
+        while (true) {
+            if (position + prefixSize >= limit) {
+                return false;
+            }
+            byte b = buffer.get(position + prefixSize);
+            length |= (b & 0x7F) << (7 * prefixSize);
+            prefixSize++;
+            if (b >= 0) {
+                break;
+            }
+            if (prefixSize == MAX_VARINT_SIZE) {
+                throw new ProtocolDataException("Malformed frame length prefix", null);
+            }
+        }
+        if (length < 0) {
+            throw new ProtocolDataException("Malformed frame length prefix", null);
+        }
+        //Checked before waiting for the rest of the frame, as callers grow their buffers until it arrives
+        checkFrameLength(length);
+        int bodyPosition = position + prefixSize;
+        if (limit - bodyPosition < length) {
+            return false;
+        }
+
+        byte[] array;
+        int offset;
+        ByteBuffer body = null;
+        if (buffer.hasArray()) {
+            array = buffer.array();
+            offset = buffer.arrayOffset() + bodyPosition;
+        } else {
+            body = bufferPool.acquire(length);
+            buffer.position(bodyPosition);
+            buffer.get(body.array(), 0, length);
+            buffer.position(position);
+            array = body.array();
+            offset = 0;
+        }
+        try {
+            parse(array, offset, length, message, schema);
+        } finally {
+            if (body != null) {
+                bufferPool.release(body);
+            }
+        }
+
+        buffer.position(bodyPosition + length);
+        return true;
+    }
+
+    private static <T> void parse(byte[] array, int offset, int length, T message, Schema<T> schema)
+            throws ProtocolDataException {
+        ByteArrayInput input = new ByteArrayInput(array, offset, length, true);
+        try {
+            schema.mergeFrom(input, message);
+            input.checkLastTagWas(0);
+        } catch (IOException e) {
+            throw new ProtocolDataException("Something is wrong with the data", e);
+        } catch (RuntimeException e) {
+            //Array input does not check bounds while reading varints of a malformed message
             throw new ProtocolDataException("Something is wrong with the data", e);
         }
+    }
+
+    /**
+     * @return Offset right after the varint written
+     */
+    private static int putVarint(byte[] array, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            array[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        array[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
 
-        return new MsgRpcReply(packedRpcReply.getErrorMessage(), packedRpcReply.getMethodReturnValue());
+    /**
+     * Adapter letting protostuff linked buffers to be written to a byte buffer
+     */
+    private static final class ByteBufferOutputStream extends OutputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferOutputStream(ByteBuffer buffer) {
+            super();
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.put(b, off, len);
+        }
     }
 }
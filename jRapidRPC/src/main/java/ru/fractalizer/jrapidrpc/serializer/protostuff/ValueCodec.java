@@ -0,0 +1,385 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.serializer.protostuff;
+
+import com.dyuproject.protostuff.Input;
+import com.dyuproject.protostuff.Output;
+import com.dyuproject.protostuff.ProtobufException;
+import com.dyuproject.protostuff.Schema;
+import com.dyuproject.protostuff.runtime.RuntimeSchema;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Encodes values of a single declared type: a method parameter or a return value. Each value occupies one of two
+ * field numbers. The typed field holds the value written with the schema of the declared type, without any type
+ * metadata. The polymorphic field holds it inside {@link ObjectHolder}, which is used for values of other
+ * runtime classes (subclasses, implementations of declared interfaces) and for types without a fixed schema.
+ */
+abstract class ValueCodec {
+
+    private static final Schema<ObjectHolder> objectHolderSchema = RuntimeSchema.getSchema(ObjectHolder.class);
+
+    /**
+     * Returns codec for the declared type
+     *
+     * @param type Declared parameter or return type
+     * @return Codec to use
+     */
+    static ValueCodec forType(Class<?> type) {
+        if (type == int.class || type == Integer.class) {
+            return INT;
+        } else if (type == long.class || type == Long.class) {
+            return LONG;
+        } else if (type == boolean.class || type == Boolean.class) {
+            return BOOLEAN;
+        } else if (type == double.class || type == Double.class) {
+            return DOUBLE;
+        } else if (type == float.class || type == Float.class) {
+            return FLOAT;
+        } else if (type == short.class || type == Short.class) {
+            return SHORT;
+        } else if (type == byte.class || type == Byte.class) {
+            return BYTE;
+        } else if (type == char.class || type == Character.class) {
+            return CHAR;
+        } else if (type == String.class) {
+            return STRING;
+        } else if (type == byte[].class) {
+            return BYTE_ARRAY;
+        } else if (type.isEnum()) {
+            return new EnumCodec(type);
+        } else if (isMessageType(type)) {
+            return new MessageCodec(RuntimeSchema.getSchema(type));
+        }
+        return POLYMORPHIC;
+    }
+
+    /**
+     * Plain classes of the application can be written with their runtime schema. Library classes, collections and
+     * abstract types cannot, their values go to the polymorphic field.
+     */
+    private static boolean isMessageType(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && !type.isInterface() &&
+                !Modifier.isAbstract(type.getModifiers()) && !Collection.class.isAssignableFrom(type) &&
+                !Map.class.isAssignableFrom(type) && !type.getName().startsWith("java.") &&
+                !type.getName().startsWith("javax.");
+    }
+
+    /**
+     * Writes value to the typed or to the polymorphic field. Null values are not written at all
+     *
+     * @param output      Output to write to
+     * @param fieldNumber Typed field number. Polymorphic field number is the next one
+     * @param value       Value to write
+     * @throws IOException Is thrown on any transportation problem
+     */
+    final void write(Output output, int fieldNumber, Object value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        if (accepts(value)) {
+            writeTyped(output, fieldNumber, value);
+        } else {
+            output.writeObject(fieldNumber + 1, new ObjectHolder(value), objectHolderSchema, false);
+        }
+    }
+
+    /**
+     * Reads value of the typed or of the polymorphic field
+     *
+     * @param input       Input positioned right after the field tag
+     * @param fieldNumber Field number read from the tag
+     * @param typedField  Typed field number of this value
+     * @return Decoded value
+     * @throws IOException Is thrown on any transportation problem
+     */
+    final Object read(Input input, int fieldNumber, int typedField) throws IOException {
+        if (fieldNumber == typedField) {
+            return readTyped(input);
+        }
+        return input.mergeObject(new ObjectHolder(), objectHolderSchema).getValue();
+    }
+
+    /**
+     * @param value Non-null value
+     * @return True if value can be written to the typed field
+     */
+    abstract boolean accepts(Object value);
+
+    abstract void writeTyped(Output output, int fieldNumber, Object value) throws IOException;
+
+    abstract Object readTyped(Input input) throws IOException;
+
+    private static final ValueCodec INT = new ValueCodec() {
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Integer;
+        }
+
+        @Override
+        void writeTyped(Output output, int fieldNumber, Object value) throws IOException {
+            output.writeSInt32(fieldNumber, (Integer) value, false);
+        }
+
+        @Override
+        Object readTyped(Input input) throws IOException {
+            return input.readSInt32();
+        }
+    };
+
+    private static final ValueCodec LONG = new ValueCodec() {
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Long;
+        }
+
+        @Override
+        void writeTyped(Output output, int fieldNumber, Object value) throws IOException {
+            output.writeSInt64(fieldNumber, (Long) value, false);
+        }
+
+        @Override
+        Object readTyped(Input input) throws IOException {
+            return input.readSInt64();
+        }
+    };
+
+    private static final ValueCodec BOOLEAN = new ValueCodec() {
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Boolean;
+        }
+
+        @Override
+        void writeTyped(Output output, int fieldNumber, Object value) throws IOException {
+            output.writeBool(fieldNumber, (Boolean) value, false);
+        }
+
+        @Override
+        Object readTyped(Input input) throws IOException {
+            return input.readBool();
+        }
+    };
+
+    private static final ValueCodec DOUBLE = new ValueCodec() {
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Double;
+        }
+
+        @Override
+        void writeTyped(Output output, int fieldNumber, Object value) throws IOException {
+            output.writeDouble(fieldNumber, (Double) value, false);
+        }
+
+        @Override
+        Object readTyped(Input input) throws IOException {
+            return input.readDouble();
+        }
+    };
+
+    private static final ValueCodec FLOAT = new ValueCodec() {
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Float;
+        }
+
+        @Override
+        void writeTyped(Output output, int fieldNumber, Object value) throws IOException {
+            output.writeFloat(fieldNumber, (Float) value, false);
+        }
+
+        @Override
+        Object readTyped(Input input) throws IOException {
+            return input.readFloat();
+        }
+    };
+
+    private static final ValueCodec SHORT = new ValueCodec() {
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Short;
+        }
+
+        @Override
+        void writeTyped(Output output, int fieldNumber, Object value) throws IOException {
+            output.writeSInt32(fieldNumber, (Short) value, false);
+        }
+
+        @Override
+        Object readTyped(Input input) throws IOException {
+            return (short) input.readSInt32();
+        }
+    };
+
+    private static final ValueCodec BYTE = new ValueCodec() {
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Byte;
+        }
+
+        @Override
+        void writeTyped(Output output, int fieldNumber, Object value) throws IOException {
+            output.writeSInt32(fieldNumber, (Byte) value, false);
+        }
+
+        @Override
+        Object readTyped(Input input) throws IOException {
+            return (byte) input.readSInt32();
+        }
+    };
+
+    private static final ValueCodec CHAR = new ValueCodec() {
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Character;
+        }
+
+        @Override
+        void writeTyped(Output output, int fieldNumber, Object value) throws IOException {
+            output.writeUInt32(fieldNumber, (Character) value, false);
+        }
+
+        @Override
+        Object readTyped(Input input) throws IOException {
+            return (char) input.readUInt32();
+        }
+    };
+
+    private static final ValueCodec STRING = new ValueCodec() {
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof String;
+        }
+
+        @Override
+        void writeTyped(Output output, int fieldNumber, Object value) throws IOException {
+            output.writeString(fieldNumber, (String) value, false);
+        }
+
+        @Override
+        Object readTyped(Input input) throws IOException {
+            return input.readString();
+        }
+    };
+
+    private static final ValueCodec BYTE_ARRAY = new ValueCodec() {
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof byte[];
+        }
+
+        @Override
+        void writeTyped(Output output, int fieldNumber, Object value) throws IOException {
+            output.writeByteArray(fieldNumber, (byte[]) value, false);
+        }
+
+        @Override
+        Object readTyped(Input input) throws IOException {
+            return input.readByteArray();
+        }
+    };
+
+    /**
+     * Codec for types without a fixed schema. Everything goes to the polymorphic field
+     */
+    private static final ValueCodec POLYMORPHIC = new ValueCodec() {
+        @Override
+        boolean accepts(Object value) {
+            return false;
+        }
+
+        @Override
+        void writeTyped(Output output, int fieldNumber, Object value) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        Object readTyped(Input input) throws IOException {
+            throw new ProtobufException("Typed field is not expected for this value");
+        }
+    };
+
+    /**
+     * Enum constants are written by ordinal
+     */
+    private static final class EnumCodec extends ValueCodec {
+
+        private final Class<?> enumType;
+        private final Object[] constants;
+
+        EnumCodec(Class<?> enumType) {
+            super();
+            this.enumType = enumType;
+            this.constants = enumType.getEnumConstants();
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Enum && ((Enum<?>) value).getDeclaringClass() == enumType;
+        }
+
+        @Override
+        void writeTyped(Output output, int fieldNumber, Object value) throws IOException {
+            output.writeEnum(fieldNumber, ((Enum<?>) value).ordinal(), false);
+        }
+
+        @Override
+        Object readTyped(Input input) throws IOException {
+            int ordinal = input.readEnum();
+            if (ordinal < 0 || ordinal >= constants.length) {
+                throw new ProtobufException("Unknown constant " + ordinal + " of enum " + enumType.getName());
+            }
+            return constants[ordinal];
+        }
+    }
+
+    /**
+     * Application classes are written with their runtime schema, as long as value is of exactly the declared class
+     */
+    @SuppressWarnings({"unchecked"})
+    private static final class MessageCodec extends ValueCodec {
+
+        private final Schema<Object> schema;
+
+        MessageCodec(Schema<?> schema) {
+            super();
+            this.schema = (Schema<Object>) schema;
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return value.getClass() == schema.typeClass();
+        }
+
+        @Override
+        void writeTyped(Output output, int fieldNumber, Object value) throws IOException {
+            output.writeObject(fieldNumber, value, schema, false);
+        }
+
+        @Override
+        Object readTyped(Input input) throws IOException {
+            return input.mergeObject(schema.newMessage(), schema);
+        }
+    }
+}
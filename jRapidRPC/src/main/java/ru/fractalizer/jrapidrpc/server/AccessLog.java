@@ -0,0 +1,321 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous access log of RPC calls. Server threads put fixed-size call records into a preallocated lock-free ring
+ * buffer and a background thread formats and writes them to the log at info level. Calls are sampled per method;
+ * calls slower than the threshold are always logged. When the ring buffer is full, records are dropped and counted
+ * rather than slowing calls down. Record path does no string formatting and does not allocate.
+ * <p>
+ * An access log instance serves a single server. Configure it before passing to the server.
+ */
+public final class AccessLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+    /**
+     * Default number of records ring buffer holds
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Slot of the ring buffer. Fields are published by the volatile sequence write
+     */
+    private static final class Record {
+        private volatile long sequence;
+        private long          timestampMillis;
+        private InetAddress   remoteAddress;
+        private short         methodId;
+        private int           callId;
+        private long          decodeNanos;
+        private long          invokeNanos;
+        private long          encodeNanos;
+        private long          bytesIn;
+        private long          bytesOut;
+        private String        errorMessage;
+    }
+
+    private final double              defaultSamplingRate;
+    private final long                slowCallThresholdNanos;
+    private final Map<String, Double> samplingRatesByName;
+    private final Record[]            records;
+    private final int                 mask;
+    private final AtomicLong          producerSequence;
+    private final AtomicLong          droppedCount;
+    private final AtomicLong          writtenCount;
+    private long                      consumerSequence;
+
+    private ReflectionCache  reflectionCache;
+    private short            minMethodId;
+    private double[]         samplingRatesById;
+    private volatile boolean stopRequested;
+    private Thread           writerThread;
+
+    /**
+     * Default constructor
+     *
+     * @param defaultSamplingRate Share of calls to log, from 0 (none) to 1 (all). Applies to methods without own rate
+     * @param slowCallThreshold   Calls taking at least this long are always logged. Zero or negative disables it
+     * @param unit                Time unit of the threshold
+     * @param capacity            Number of records ring buffer holds. Rounded up to a power of two
+     */
+    public AccessLog(double defaultSamplingRate, long slowCallThreshold, TimeUnit unit, int capacity) {
+        super();
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be positive and not larger than 2^30!");
+        }
+        this.defaultSamplingRate = defaultSamplingRate;
+        this.slowCallThresholdNanos = slowCallThreshold > 0 ? unit.toNanos(slowCallThreshold) : Long.MAX_VALUE;
+        this.samplingRatesByName = new HashMap<String, Double>();
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.records = new Record[size];
+        for (int i = 0; i < size; i++) {
+            records[i] = new Record();
+            records[i].sequence = i;
+        }
+        this.mask = size - 1;
+        this.producerSequence = new AtomicLong(0);
+        this.droppedCount = new AtomicLong(0);
+        this.writtenCount = new AtomicLong(0);
+        this.consumerSequence = 0;
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param defaultSamplingRate     Share of calls to log, from 0 (none) to 1 (all)
+     * @param slowCallThresholdMillis Calls taking at least this many milliseconds are always logged. Zero disables it
+     */
+    public AccessLog(double defaultSamplingRate, long slowCallThresholdMillis) {
+        this(defaultSamplingRate, slowCallThresholdMillis, TimeUnit.MILLISECONDS, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Sets sampling rate of a single method. Must be called before the server is started
+     *
+     * @param methodName   Name of the RPC method
+     * @param samplingRate Share of calls to log, from 0 (none) to 1 (all)
+     * @return This access log
+     */
+    public synchronized AccessLog setSamplingRate(String methodName, double samplingRate) {
+        if (writerThread != null) {
+            throw new IllegalStateException("Access log is already started!");
+        }
+        samplingRatesByName.put(methodName, samplingRate);
+        return this;
+    }
+
+    /**
+     * Starts writer thread. Called by server on startup
+     *
+     * @param reflectionCache Reflection cache of the service interface
+     * @param serverName      Name of the server used in writer thread name
+     */
+    public synchronized void start(ReflectionCache reflectionCache, String serverName) {
+        if (writerThread != null) {
+            throw new IllegalStateException("Access log is already started!");
+        }
+        this.reflectionCache = reflectionCache;
+        short[] methodIds = reflectionCache.getMethodIds();
+        int minId = Short.MAX_VALUE;
+        int maxId = Short.MIN_VALUE;
+        for (short methodId : methodIds) {
+            minId = Math.min(minId, methodId);
+            maxId = Math.max(maxId, methodId);
+        }
+        minMethodId = (short) (minId <= maxId ? minId : 0);
+        samplingRatesById = new double[minId <= maxId ? maxId - minId + 1 : 0];
+        for (short methodId : methodIds) {
+            Double samplingRate = samplingRatesByName.get(reflectionCache.getMethodName(methodId));
+            samplingRatesById[methodId - minMethodId] = samplingRate != null ? samplingRate : defaultSamplingRate;
+        }
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, "AccessLog Writer Thread (" + serverName + ")");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Writes out records already recorded and stops writer thread. Called by server on shutdown
+     *
+     * @throws InterruptedException Thrown if there was an interruption of wait for writer thread to complete
+     */
+    public void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = writerThread;
+        }
+        if (thread == null) {
+            return;
+        }
+        stopRequested = true;
+        LockSupport.unpark(thread);
+        thread.join();
+    }
+
+    /**
+     * Records a completed call if it is sampled or slow. Safe to call from any number of threads
+     *
+     * @param remoteAddress Address of the client
+     * @param methodId      ID of the RPC method called
+     * @param callId        Call ID of the request
+     * @param decodeNanos   Time spent reading and deserializing request
+     * @param invokeNanos   Time spent in service object method
+     * @param encodeNanos   Time spent serializing and writing reply
+     * @param bytesIn       Size of the request
+     * @param bytesOut      Size of the reply
+     * @param errorMessage  Error message of the reply or null if call succeeded
+     */
+    public void record(InetAddress remoteAddress, short methodId, int callId, long decodeNanos, long invokeNanos,
+                       long encodeNanos, long bytesIn, long bytesOut, String errorMessage) {
+        if (decodeNanos + invokeNanos + encodeNanos < slowCallThresholdNanos && !isSampled(methodId)) {
+            return;
+        }
+
+        //Claiming slot
+        Record record;
+        long sequence = producerSequence.get();
+        while (true) {
+            record = records[(int) sequence & mask];
+            long difference = record.sequence - sequence;
+            if (difference == 0) {
+                if (producerSequence.compareAndSet(sequence, sequence + 1)) {
+                    break;
+                }
+                sequence = producerSequence.get();
+            } else if (difference < 0) {
+                //Writer thread has not freed this slot yet
+                droppedCount.incrementAndGet();
+                return;
+            } else {
+                sequence = producerSequence.get();
+            }
+        }
+
+        record.timestampMillis = System.currentTimeMillis();
+        record.remoteAddress = remoteAddress;
+        record.methodId = methodId;
+        record.callId = callId;
+        record.decodeNanos = decodeNanos;
+        record.invokeNanos = invokeNanos;
+        record.encodeNanos = encodeNanos;
+        record.bytesIn = bytesIn;
+        record.bytesOut = bytesOut;
+        record.errorMessage = errorMessage;
+        record.sequence = sequence + 1;
+    }
+
+    /**
+     * @return Number of records dropped because ring buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return Number of records written to the log
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    private boolean isSampled(short methodId) {
+        int index = methodId - minMethodId;
+        double samplingRate = index >= 0 && index < samplingRatesById.length ? samplingRatesById[index]
+                : defaultSamplingRate;
+        return samplingRate >= 1 || (samplingRate > 0 && ThreadLocalRandom.current().nextDouble() < samplingRate);
+    }
+
+    private void writeRecords() {
+        while (true) {
+            //Reading the flag before draining, so that nothing recorded before stop() is lost
+            boolean stopping = stopRequested;
+            if (!writeAvailableRecords() && stopping) {
+                return;
+            }
+            if (!stopping) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * @return True if at least one record was written
+     */
+    private boolean writeAvailableRecords() {
+        boolean written = false;
+        while (true) {
+            Record record = records[(int) consumerSequence & mask];
+            if (record.sequence != consumerSequence + 1) {
+                return written;
+            }
+            write(record);
+            record.remoteAddress = null;
+            record.errorMessage = null;
+            record.sequence = consumerSequence + records.length;
+            consumerSequence++;
+            written = true;
+        }
+    }
+
+    private void write(Record record) {
+        if (!logger.isInfoEnabled()) {
+            return;
+        }
+        long totalNanos = record.decodeNanos + record.invokeNanos + record.encodeNanos;
+        try {
+            logger.info(String.format("%tFT%<tT.%<tL %s %s callId=%d status=%s total=%dus decode=%dus invoke=%dus " +
+                    "encode=%dus in=%dB out=%dB%s%s", record.timestampMillis,
+                    record.remoteAddress == null ? "-" : record.remoteAddress.getHostAddress(),
+                    reflectionCache.getMethodName(record.methodId), record.callId,
+                    record.errorMessage == null ? "OK" : "ERROR", TimeUnit.NANOSECONDS.toMicros(totalNanos),
+                    TimeUnit.NANOSECONDS.toMicros(record.decodeNanos),
+                    TimeUnit.NANOSECONDS.toMicros(record.invokeNanos),
+                    TimeUnit.NANOSECONDS.toMicros(record.encodeNanos), record.bytesIn, record.bytesOut,
+                    totalNanos >= slowCallThresholdNanos ? " SLOW" : "",
+                    record.errorMessage == null ? "" : " error='" + record.errorMessage + "'"));
+            writtenCount.incrementAndGet();
+        } catch (RuntimeException e) {
+            logger.warn("Unable to write access log record", e);
+        }
+    }
+}
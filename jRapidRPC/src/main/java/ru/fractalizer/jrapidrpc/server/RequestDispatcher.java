@@ -0,0 +1,311 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server;
+
+import ru.fractalizer.jrapidrpc.api.MsgRpcBatchReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcBatchRequest;
+import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcRequest;
+import ru.fractalizer.jrapidrpc.metrics.MethodMetrics;
+import ru.fractalizer.jrapidrpc.metrics.RpcMetrics;
+import ru.fractalizer.jrapidrpc.server.admission.AdmissionControl;
+import ru.fractalizer.jrapidrpc.tools.MethodInvoker;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Dispatches deserialized RPC requests to the service object. Transport-independent, so all servers share it. It is
+ * thread-safe. Calls are not logged here, see {@link AccessLog}
+ */
+public class RequestDispatcher {
+
+    /**
+     * Error message of calls refused because their deadline had passed
+     */
+    public static final String DEADLINE_EXCEEDED_MESSAGE = "Deadline of the call passed before it was executed";
+
+    private ReflectionCache reflectionCache;
+    private Executor        batchExecutor;
+    private RpcMetrics      metrics;
+
+    private AdmissionControl admissionControl;
+
+    /**
+     * Default constructor
+     *
+     * @param reflectionCache  Reflection cache of the service interface
+     * @param batchExecutor    Executor to run calls of parallel batches on or null if batched calls always run one by
+     *                         one. Must only be set if service object is thread-safe
+     * @param metrics          Metrics to record batched, refused and expired calls to or null. Single calls are
+     *                         recorded by servers
+     * @param admissionControl Admission control to refuse calls beyond concurrency limits with or null if all calls
+     *                         are executed. Must be started
+     */
+    public RequestDispatcher(ReflectionCache reflectionCache, Executor batchExecutor, RpcMetrics metrics,
+                             AdmissionControl admissionControl) {
+        super();
+        this.reflectionCache = reflectionCache;
+        this.batchExecutor = batchExecutor;
+        this.metrics = metrics;
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * Default constructor. All calls are executed
+     *
+     * @param reflectionCache Reflection cache of the service interface
+     * @param batchExecutor   Executor to run calls of parallel batches on or null if batched calls always run one by
+     *                        one. Must only be set if service object is thread-safe
+     * @param metrics         Metrics to record batched calls to or null. Single calls are recorded by servers
+     */
+    public RequestDispatcher(ReflectionCache reflectionCache, Executor batchExecutor, RpcMetrics metrics) {
+        this(reflectionCache, batchExecutor, metrics, null);
+    }
+
+    /**
+     * Default constructor. Batched calls run one by one and are not recorded to metrics
+     *
+     * @param reflectionCache Reflection cache of the service interface
+     */
+    public RequestDispatcher(ReflectionCache reflectionCache) {
+        this(reflectionCache, null, null);
+    }
+
+    /**
+     * Calls the method annotated with {@link ru.fractalizer.jrapidrpc.api.RpcAfterConnect} if the service interface
+     * has one
+     *
+     * @param serviceObject Service object the connection is served by
+     * @param clientSocket  Connected client socket
+     * @return False if the client connection should be closed, true otherwise
+     * @throws Exception Is thrown if the after connect method cannot be called or throws itself
+     */
+    public boolean afterConnect(Object serviceObject, Socket clientSocket) throws Exception {
+        MethodInvoker afterConnectInvoker = reflectionCache.getAfterConnectInvoker();
+        if (afterConnectInvoker == null) {
+            return true;
+        }
+        try {
+            return (Boolean) afterConnectInvoker.invoke(serviceObject, new Object[]{clientSocket});
+        } catch (Exception e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new Exception(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Invokes requested method on the service object. Exceptions thrown by the method itself are reported to the
+     * client inside of the reply. Reply carries the call ID of the request. Batches get a reply for every call, see
+     * {@link MsgRpcBatchRequest}. Streaming methods are answered with an error, servers able to send streams call them
+     * with {@link #dispatchStreaming(Object, MsgRpcRequest)}. Calls whose deadline has passed are answered with an
+     * error without being executed, see {@link RpcDeadline}
+     *
+     * @param serviceObject Service object to dispatch RPC request to
+     * @param msgRpcRequest Request to dispatch
+     * @return Reply to send to the client
+     */
+    public MsgRpcReply dispatch(Object serviceObject, MsgRpcRequest msgRpcRequest) {
+        if (msgRpcRequest.getBatch() != null) {
+            return dispatchBatch(serviceObject, msgRpcRequest);
+        }
+        return invoke(serviceObject, msgRpcRequest, false, msgRpcRequest);
+    }
+
+    /**
+     * Checks if request calls a streaming method, see {@link ru.fractalizer.jrapidrpc.api.RpcStream}
+     *
+     * @param msgRpcRequest Request received
+     * @return True if request calls a streaming method
+     */
+    public boolean isStreaming(MsgRpcRequest msgRpcRequest) {
+        if (msgRpcRequest.hasMethodId()) {
+            return reflectionCache.isStreaming(msgRpcRequest.getMethodId());
+        }
+        if (msgRpcRequest.getMethodName() == null || reflectionCache.getMethodInvoker(
+                msgRpcRequest.getMethodName()) == null) {
+            return false;
+        }
+        return reflectionCache.isStreaming(reflectionCache.getMethodId(msgRpcRequest.getMethodName()));
+    }
+
+    /**
+     * Invokes streaming method on the service object. Stream is not read here, it is returned as the return value of
+     * the reply: {@link java.util.Iterator}, {@link java.util.stream.Stream} or null
+     *
+     * @param serviceObject Service object to dispatch RPC request to
+     * @param msgRpcRequest Request calling a streaming method
+     * @return Reply carrying the stream or an error
+     */
+    public MsgRpcReply dispatchStreaming(Object serviceObject, MsgRpcRequest msgRpcRequest) {
+        return invoke(serviceObject, msgRpcRequest, true, msgRpcRequest);
+    }
+
+    /**
+     * @param deadlineRequest Request carrying deadline of the call: the call itself or the batch it belongs to
+     */
+    private MsgRpcReply invoke(Object serviceObject, MsgRpcRequest msgRpcRequest, boolean streamingAllowed,
+                               MsgRpcRequest deadlineRequest) {
+        MethodInvoker invoker = msgRpcRequest.hasMethodId() ?
+                reflectionCache.getMethodInvoker(msgRpcRequest.getMethodId()) :
+                reflectionCache.getMethodInvoker(msgRpcRequest.getMethodName());
+        if (invoker == null) {
+            String method = msgRpcRequest.hasMethodId() ? "with ID " + msgRpcRequest.getMethodId() :
+                    "'" + msgRpcRequest.getMethodName() + "'";
+            return new MsgRpcReply(msgRpcRequest.getCallId(), "Unknown RPC method " + method, null);
+        }
+
+        //Reply carries method ID, so that serializer can encode return value with the method schema
+        short methodId = msgRpcRequest.hasMethodId() ? msgRpcRequest.getMethodId() :
+                reflectionCache.getMethodId(msgRpcRequest.getMethodName());
+        if (!streamingAllowed && reflectionCache.isStreaming(methodId)) {
+            return new MsgRpcReply(msgRpcRequest.getCallId(), methodId, "Method '" +
+                    reflectionCache.getMethodName(methodId) + "' returns a stream, which cannot be sent here", null);
+        }
+
+        //Nobody waits for reply to an expired call, so it is not worth executing
+        boolean hasDeadline = deadlineRequest.hasDeadline();
+        if (hasDeadline && deadlineRequest.getDeadlineNanos() - System.nanoTime() <= 0) {
+            if (metrics != null) {
+                metrics.callExpired();
+            }
+            return new MsgRpcReply(msgRpcRequest.getCallId(), DEADLINE_EXCEEDED_MESSAGE, false, true);
+        }
+
+        //Refused call is answered at once instead of waiting for others to complete
+        if (admissionControl != null && !admissionControl.tryAcquire(methodId)) {
+            if (metrics != null) {
+                metrics.callOverloaded();
+            }
+            return new MsgRpcReply(msgRpcRequest.getCallId(), AdmissionControl.OVERLOADED_MESSAGE, true);
+        }
+        long startNanos = admissionControl != null ? System.nanoTime() : 0;
+        Object methodResult;
+        if (hasDeadline) {
+            RpcDeadline.set(deadlineRequest.getDeadlineNanos());
+        }
+        try {
+            methodResult = invoker.invoke(serviceObject, msgRpcRequest.getMethodParameters());
+        } catch (Throwable e) {
+            return new MsgRpcReply(msgRpcRequest.getCallId(), methodId, e.getMessage(), null);
+        } finally {
+            if (hasDeadline) {
+                RpcDeadline.clear();
+            }
+            if (admissionControl != null) {
+                admissionControl.release(methodId, System.nanoTime() - startNanos);
+            }
+        }
+
+        return new MsgRpcReply(msgRpcRequest.getCallId(), methodId, null, methodResult);
+    }
+
+    private MsgRpcReply dispatchBatch(final Object serviceObject, final MsgRpcRequest msgRpcRequest) {
+        MsgRpcBatchRequest batch = msgRpcRequest.getBatch();
+        MsgRpcRequest[] requests = batch.getRequests();
+        MsgRpcReply[] replies = new MsgRpcReply[requests.length];
+        if (batchExecutor == null || !batch.isParallel() || requests.length < 2) {
+            for (int i = 0; i < requests.length; i++) {
+                replies[i] = dispatchBatchedCall(serviceObject, requests[i], msgRpcRequest);
+            }
+            return new MsgRpcReply(msgRpcRequest.getCallId(), new MsgRpcBatchReply(replies));
+        }
+
+        List<FutureTask<MsgRpcReply>> calls = new ArrayList<FutureTask<MsgRpcReply>>(requests.length);
+        for (final MsgRpcRequest request : requests) {
+            calls.add(new FutureTask<MsgRpcReply>(new Callable<MsgRpcReply>() {
+                @Override
+                public MsgRpcReply call() {
+                    return dispatchBatchedCall(serviceObject, request, msgRpcRequest);
+                }
+            }));
+        }
+        //The first call is left to the calling thread
+        for (int i = 1; i < calls.size(); i++) {
+            try {
+                batchExecutor.execute(calls.get(i));
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        //Calling thread runs every call not started by the executor yet, so batch completes even if it is saturated.
+        //Running a started or completed call again does nothing
+        for (FutureTask<MsgRpcReply> call : calls) {
+            call.run();
+        }
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = await(calls.get(i), requests[i]);
+        }
+        return new MsgRpcReply(msgRpcRequest.getCallId(), new MsgRpcBatchReply(replies));
+    }
+
+    /**
+     * Dispatches a call of the batch. Unexpected exceptions only fail the call itself. Deadline of the batch applies
+     * to calls without a deadline of their own
+     */
+    private MsgRpcReply dispatchBatchedCall(Object serviceObject, MsgRpcRequest msgRpcRequest,
+                                            MsgRpcRequest batchRequest) {
+        if (msgRpcRequest.getBatch() != null) {
+            return new MsgRpcReply(msgRpcRequest.getCallId(), "Nested batches are not supported", null);
+        }
+        MethodMetrics methodMetrics = metrics != null ? metrics.getMethodMetrics(msgRpcRequest) : null;
+        if (methodMetrics != null) {
+            methodMetrics.callStarted();
+        }
+        long startNanos = System.nanoTime();
+        MsgRpcReply msgRpcReply;
+        try {
+            msgRpcReply = invoke(serviceObject, msgRpcRequest, false,
+                    msgRpcRequest.hasDeadline() ? msgRpcRequest : batchRequest);
+        } catch (RuntimeException e) {
+            msgRpcReply = new MsgRpcReply(msgRpcRequest.getCallId(), "Unexpected exception: " + e, null);
+        }
+        if (methodMetrics != null) {
+            methodMetrics.recordInvoke(System.nanoTime() - startNanos, msgRpcReply.getErrorMessage() != null);
+        }
+        return msgRpcReply;
+    }
+
+    private static MsgRpcReply await(FutureTask<MsgRpcReply> call, MsgRpcRequest msgRpcRequest) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return call.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return new MsgRpcReply(msgRpcRequest.getCallId(), "Unexpected exception: " + e.getCause(), null);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
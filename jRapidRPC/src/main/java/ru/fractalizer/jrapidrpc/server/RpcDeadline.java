@@ -0,0 +1,74 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline of the RPC call being executed by the current thread, see {@link ru.fractalizer.jrapidrpc.api.RpcTimeout}.
+ * Service objects may check it to give up long work nobody waits for anymore, or to pass the time left on to calls of
+ * other services. Calls are not interrupted when their deadline passes. Deadline is only known while service method
+ * runs on the thread server called it on.
+ */
+public final class RpcDeadline {
+
+    //Set for the time of a call and removed right after it, so it holds nothing between calls
+    private static final ThreadLocal<Long> deadlineNanos = new ThreadLocal<Long>();
+
+    private RpcDeadline() {
+        super();
+    }
+
+    /**
+     * @return True if the call being executed has a deadline
+     */
+    public static boolean isSet() {
+        return deadlineNanos.get() != null;
+    }
+
+    /**
+     * Returns time left until the deadline of the call being executed
+     *
+     * @param unit Time unit of the result
+     * @return Time left, negative if deadline has passed, Long.MAX_VALUE if call has no deadline
+     */
+    public static long getRemaining(TimeUnit unit) {
+        Long deadline = deadlineNanos.get();
+        if (deadline == null) {
+            return Long.MAX_VALUE;
+        }
+        return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return True if the call being executed has a deadline and it has passed
+     */
+    public static boolean isExpired() {
+        Long deadline = deadlineNanos.get();
+        return deadline != null && deadline - System.nanoTime() <= 0;
+    }
+
+    static void set(long deadline) {
+        deadlineNanos.set(deadline);
+    }
+
+    static void clear() {
+        deadlineNanos.remove();
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server.admission;
+
+import ru.fractalizer.jrapidrpc.api.RpcOverloadedException;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control of RPC calls. Calls beyond the concurrency limit of the server, or of the method called, are not
+ * executed: client gets an immediate "overloaded" reply, see {@link RpcOverloadedException}, instead of waiting in an
+ * unbounded queue. Limits adapt to latency of completed calls, see {@link GradientLimit}, or
+ * stay fixed, see {@link FixedLimit}. Admission is lock-free unless the limit itself takes a lock to adapt.
+ * <p>
+ * An admission control instance serves a single server. Configure it before passing to the server.
+ */
+public final class AdmissionControl {
+
+    /**
+     * Error message of calls refused
+     */
+    public static final String OVERLOADED_MESSAGE = "Server is overloaded, call was not executed";
+
+    /**
+     * Admission state of a method with a limit of its own
+     */
+    private static final class MethodAdmission {
+        private final ConcurrencyLimit limit;
+        private final AtomicInteger    inFlightCount = new AtomicInteger(0);
+        private final AtomicLong       rejectedCount = new AtomicLong(0);
+
+        private MethodAdmission(ConcurrencyLimit limit) {
+            this.limit = limit;
+        }
+    }
+
+    private final ConcurrencyLimit              limit;
+    private final AtomicInteger                 inFlightCount;
+    private final AtomicLong                    rejectedCount;
+    private final Map<String, ConcurrencyLimit> methodLimitsByName;
+
+    private ReflectionCache   reflectionCache;
+    private short             minMethodId;
+    private MethodAdmission[] methodsById;
+
+    /**
+     * Default constructor
+     *
+     * @param limit Limit of all calls to the server or null if only methods with own limits are limited
+     */
+    public AdmissionControl(ConcurrencyLimit limit) {
+        super();
+        this.limit = limit;
+        this.inFlightCount = new AtomicInteger(0);
+        this.rejectedCount = new AtomicLong(0);
+        this.methodLimitsByName = new HashMap<String, ConcurrencyLimit>();
+    }
+
+    /**
+     * Default constructor. All calls to the server are limited by a {@link GradientLimit} with default settings
+     */
+    public AdmissionControl() {
+        this(new GradientLimit());
+    }
+
+    /**
+     * Sets limit of a single method. Calls of the method have to fit into both server and method limits. Must be
+     * called before the server is started
+     *
+     * @param methodName Name of the RPC method
+     * @param limit      Limit of concurrent calls of the method
+     * @return This admission control
+     */
+    public synchronized AdmissionControl setMethodLimit(String methodName, ConcurrencyLimit limit) {
+        if (reflectionCache != null) {
+            throw new IllegalStateException("Admission control is already started!");
+        }
+        methodLimitsByName.put(methodName, limit);
+        return this;
+    }
+
+    /**
+     * Resolves methods with own limits. Called by server on startup
+     *
+     * @param reflectionCache Reflection cache of the service interface
+     * @throws IllegalArgumentException If a method with own limit is not an RPC method of the service interface
+     */
+    public synchronized void start(ReflectionCache reflectionCache) {
+        if (this.reflectionCache != null) {
+            throw new IllegalStateException("Admission control is already started!");
+        }
+        short[] methodIds = reflectionCache.getMethodIds();
+        int minId = Short.MAX_VALUE;
+        int maxId = Short.MIN_VALUE;
+        for (short methodId : methodIds) {
+            minId = Math.min(minId, methodId);
+            maxId = Math.max(maxId, methodId);
+        }
+        minMethodId = (short) (minId <= maxId ? minId : 0);
+        methodsById = new MethodAdmission[minId <= maxId ? maxId - minId + 1 : 0];
+        for (Map.Entry<String, ConcurrencyLimit> methodLimit : methodLimitsByName.entrySet()) {
+            if (reflectionCache.getMethodInvoker(methodLimit.getKey()) == null) {
+                throw new IllegalArgumentException("Limited method '" + methodLimit.getKey() +
+                        "' is not an RPC method");
+            }
+            short methodId = reflectionCache.getMethodId(methodLimit.getKey());
+            methodsById[methodId - minMethodId] = new MethodAdmission(methodLimit.getValue());
+        }
+        this.reflectionCache = reflectionCache;
+    }
+
+    /**
+     * Admits a call if it fits into the limits. Every call admitted must be released with
+     * {@link #release(short, long)}. Safe to call from any number of threads
+     *
+     * @param methodId ID of the RPC method called
+     * @return True if call is admitted, false if it must be refused
+     */
+    public boolean tryAcquire(short methodId) {
+        if (limit != null && !tryAcquire(inFlightCount, limit)) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        MethodAdmission method = getMethodAdmission(methodId);
+        if (method != null && !tryAcquire(method.inFlightCount, method.limit)) {
+            if (limit != null) {
+                inFlightCount.decrementAndGet();
+            }
+            method.rejectedCount.incrementAndGet();
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean tryAcquire(AtomicInteger inFlightCount, ConcurrencyLimit limit) {
+        int max = limit.getLimit();
+        while (true) {
+            int current = inFlightCount.get();
+            if (current >= max) {
+                return false;
+            }
+            if (inFlightCount.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a call admitted and feeds its latency to the limits
+     *
+     * @param methodId ID of the RPC method called
+     * @param nanos    Time the call took
+     */
+    public void release(short methodId, long nanos) {
+        if (limit != null) {
+            limit.onSample(nanos, inFlightCount.getAndDecrement());
+        }
+        MethodAdmission method = getMethodAdmission(methodId);
+        if (method != null) {
+            method.limit.onSample(nanos, method.inFlightCount.getAndDecrement());
+        }
+    }
+
+    private MethodAdmission getMethodAdmission(short methodId) {
+        int index = methodId - minMethodId;
+        return methodsById != null && index >= 0 && index < methodsById.length ? methodsById[index] : null;
+    }
+
+    /**
+     * @return Current limit of all calls to the server or -1 if they are not limited
+     */
+    public int getLimit() {
+        return limit != null ? limit.getLimit() : -1;
+    }
+
+    /**
+     * @return Number of calls admitted and not released yet
+     */
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    /**
+     * @return Number of calls refused, either by server or by method limits
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns current limit of a method
+     *
+     * @param methodName Name of the RPC method
+     * @return Current limit of the method or -1 if it has no limit of its own
+     */
+    public int getMethodLimit(String methodName) {
+        MethodAdmission method = getMethodAdmission(methodName);
+        return method != null ? method.limit.getLimit() : -1;
+    }
+
+    /**
+     * Returns number of calls of a method refused
+     *
+     * @param methodName Name of the RPC method
+     * @return Number of calls refused by the method limit or 0 if method has no limit of its own
+     */
+    public long getMethodRejectedCount(String methodName) {
+        MethodAdmission method = getMethodAdmission(methodName);
+        return method != null ? method.rejectedCount.get() : 0;
+    }
+
+    private MethodAdmission getMethodAdmission(String methodName) {
+        if (reflectionCache == null || reflectionCache.getMethodInvoker(methodName) == null) {
+            return null;
+        }
+        return getMethodAdmission(reflectionCache.getMethodId(methodName));
+    }
+}
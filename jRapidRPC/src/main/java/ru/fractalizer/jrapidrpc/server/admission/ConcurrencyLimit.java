@@ -0,0 +1,41 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server.admission;
+
+/**
+ * Limit of concurrent calls enforced by {@link AdmissionControl}. Limit may adapt to latency of completed calls.
+ * Implementations must be thread-safe. A limit instance serves a single admission control.
+ */
+public interface ConcurrencyLimit {
+
+    /**
+     * Returns current limit. Called for every call admitted, so it should be cheap
+     *
+     * @return Maximum number of calls allowed to run concurrently
+     */
+    int getLimit();
+
+    /**
+     * Records a completed call
+     *
+     * @param nanos    Time the call took
+     * @param inFlight Number of calls running when it completed, including itself
+     */
+    void onSample(long nanos, int inFlight);
+}
@@ -0,0 +1,49 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server.admission;
+
+/**
+ * Concurrency limit which never changes
+ */
+public final class FixedLimit implements ConcurrencyLimit {
+
+    private final int limit;
+
+    /**
+     * Default constructor
+     *
+     * @param limit Maximum number of calls allowed to run concurrently
+     */
+    public FixedLimit(int limit) {
+        super();
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive!");
+        }
+        this.limit = limit;
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public void onSample(long nanos, int inFlight) {
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server.admission;
+
+/**
+ * Concurrency limit adapting to latency of calls, in the style of gradient algorithms of TCP congestion control.
+ * Latency of recent calls (short-term average) is compared with latency of calls that did not wait for anything,
+ * estimated as the fastest call seen lately. While they are close, server keeps up and limit grows by a queue
+ * allowance of square root of the limit. Once recent calls get slower than tolerated, calls queue up inside the
+ * server and limit shrinks in proportion, by at most a half at a time.
+ * <p>
+ * Limit only grows while at least half of it is in use: latency of a lightly loaded server tells nothing about how
+ * many calls it can take. The fastest call is looked for over two consecutive windows of calls, so that the estimate
+ * follows a service which got slower for good instead of shrinking the limit forever.
+ */
+public final class GradientLimit implements ConcurrencyLimit {
+
+    /**
+     * Default limit before any calls complete
+     */
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+
+    /**
+     * Default lower bound of the limit
+     */
+    public static final int DEFAULT_MIN_LIMIT = 4;
+
+    /**
+     * Default upper bound of the limit
+     */
+    public static final int DEFAULT_MAX_LIMIT = 1000;
+
+    /**
+     * Default ratio of recent to unloaded latency tolerated before limit shrinks
+     */
+    public static final double DEFAULT_RTT_TOLERANCE = 1.5;
+
+    /**
+     * Number of calls recent latency is averaged over
+     */
+    private static final int SHORT_WINDOW = 10;
+
+    /**
+     * Number of calls in a window the fastest call is looked for over
+     */
+    private static final int MIN_RTT_WINDOW = 1000;
+
+    /**
+     * Share of a new limit estimate applied at once
+     */
+    private static final double SMOOTHING = 0.2;
+
+    private final int    minLimit;
+    private final int    maxLimit;
+    private final double rttTolerance;
+
+    private double estimatedLimit;
+    private double shortRtt;
+    private double previousMinRtt = Double.MAX_VALUE;
+    private double currentMinRtt  = Double.MAX_VALUE;
+    private int    windowSamples;
+
+    private volatile int limit;
+
+    /**
+     * Default constructor
+     *
+     * @param initialLimit Limit before any calls complete
+     * @param minLimit     Lower bound of the limit
+     * @param maxLimit     Upper bound of the limit
+     * @param rttTolerance Ratio of recent to unloaded latency tolerated before limit shrinks. At least 1
+     */
+    public GradientLimit(int initialLimit, int minLimit, int maxLimit, double rttTolerance) {
+        super();
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 0 < minLimit <= initialLimit <= maxLimit");
+        }
+        if (rttTolerance < 1) {
+            throw new IllegalArgumentException("rttTolerance must not be less than 1!");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.rttTolerance = rttTolerance;
+        this.estimatedLimit = initialLimit;
+        this.limit = initialLimit;
+    }
+
+    /**
+     * Default constructor. Limit starts at {@value #DEFAULT_INITIAL_LIMIT} and stays between
+     * {@value #DEFAULT_MIN_LIMIT} and {@value #DEFAULT_MAX_LIMIT}
+     */
+    public GradientLimit() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT, DEFAULT_RTT_TOLERANCE);
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public synchronized void onSample(long nanos, int inFlight) {
+        double rtt = Math.max(nanos, 1);
+        shortRtt = (shortRtt == 0) ? rtt : shortRtt + (rtt - shortRtt) / SHORT_WINDOW;
+        currentMinRtt = Math.min(currentMinRtt, rtt);
+        if (++windowSamples == MIN_RTT_WINDOW) {
+            previousMinRtt = currentMinRtt;
+            currentMinRtt = Double.MAX_VALUE;
+            windowSamples = 0;
+        }
+        double minRtt = Math.min(previousMinRtt, currentMinRtt);
+        if (inFlight < estimatedLimit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, rttTolerance * minRtt / shortRtt));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        limit = (int) estimatedLimit;
+    }
+}
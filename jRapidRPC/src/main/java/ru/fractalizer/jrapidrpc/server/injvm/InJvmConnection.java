@@ -0,0 +1,129 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server.injvm;
+
+import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcRequest;
+import ru.fractalizer.jrapidrpc.metrics.MethodMetrics;
+import ru.fractalizer.jrapidrpc.metrics.RpcMetrics;
+import ru.fractalizer.jrapidrpc.server.RequestDispatcher;
+
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client connection to {@link InJvmServer}. Requests are dispatched on the calling thread and objects they carry are
+ * handed to the service object as they are, so copying them, if needed, is up to the client. It is thread-safe. If
+ * connection has a service object of its own, its calls are executed one at a time.
+ */
+public final class InJvmConnection {
+
+    private final InJvmServer       server;
+    private final RequestDispatcher requestDispatcher;
+    private final Object            serviceObject;
+    private final ReentrantLock     callLock;
+    private final RpcMetrics        metrics;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Default constructor
+     *
+     * @param server            Server connection belongs to
+     * @param requestDispatcher Dispatcher of the server
+     * @param serviceObject     Service object to dispatch RPC requests to
+     * @param exclusive         True if service object belongs to this connection only and must not be called
+     *                          concurrently
+     * @param metrics           Metrics to record calls to
+     */
+    InJvmConnection(InJvmServer server, RequestDispatcher requestDispatcher, Object serviceObject, boolean exclusive,
+                    RpcMetrics metrics) {
+        super();
+        this.server = server;
+        this.requestDispatcher = requestDispatcher;
+        this.serviceObject = serviceObject;
+        //Lock rather than monitor, so that virtual threads calling service object do not pin their carriers
+        this.callLock = exclusive ? new ReentrantLock() : null;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Invokes requested method on the service object, see {@link RequestDispatcher#dispatch(Object, MsgRpcRequest)}.
+     * Streaming methods are invoked too, reply carries the stream service object returned
+     *
+     * @param msgRpcRequest Request to dispatch
+     * @return Reply to the request
+     * @throws IOException Is thrown if connection is closed
+     */
+    public MsgRpcReply call(MsgRpcRequest msgRpcRequest) throws IOException {
+        if (closed) {
+            throw new IOException("Connection to in-JVM server '" + server.getAddress() + "' is closed");
+        }
+        if (callLock == null) {
+            return dispatch(msgRpcRequest);
+        }
+        callLock.lock();
+        try {
+            return dispatch(msgRpcRequest);
+        } finally {
+            callLock.unlock();
+        }
+    }
+
+    private MsgRpcReply dispatch(MsgRpcRequest msgRpcRequest) {
+        MethodMetrics methodMetrics = metrics.getMethodMetrics(msgRpcRequest);
+        if (methodMetrics != null) {
+            methodMetrics.callStarted();
+        }
+        long startNanos = System.nanoTime();
+        MsgRpcReply msgRpcReply;
+        try {
+            msgRpcReply = requestDispatcher.isStreaming(msgRpcRequest) ?
+                    requestDispatcher.dispatchStreaming(serviceObject, msgRpcRequest) :
+                    requestDispatcher.dispatch(serviceObject, msgRpcRequest);
+        } catch (RuntimeException e) {
+            //Caller shares the thread with the server, so it gets the failure instead of a closed connection
+            msgRpcReply = new MsgRpcReply(msgRpcRequest.getCallId(), "Unexpected exception: " + e, null);
+        }
+        if (methodMetrics != null) {
+            methodMetrics.recordInvoke(System.nanoTime() - startNanos, msgRpcReply.getErrorMessage() != null);
+        }
+        return msgRpcReply;
+    }
+
+    /**
+     * Closes connection. Calls in progress complete, any further calls fail with IOException
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        server.closed(this);
+    }
+
+    /**
+     * Returns connection status
+     *
+     * @return True if connection is closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server.injvm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.fractalizer.jrapidrpc.api.ServerStartupException;
+import ru.fractalizer.jrapidrpc.metrics.RpcMetrics;
+import ru.fractalizer.jrapidrpc.server.RequestDispatcher;
+import ru.fractalizer.jrapidrpc.server.admission.AdmissionControl;
+import ru.fractalizer.jrapidrpc.server.simple.ThreadModelType;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import javax.management.JMException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server living in the same JVM as its clients. There are no sockets: server is registered under a logical address,
+ * and {@link ru.fractalizer.jrapidrpc.client.injvm.InJvmClient} connected to that address hands requests straight to
+ * the dispatcher. Calls run on the calling thread. Whether arguments and return values are copied through a serializer
+ * or passed by reference is up to the client.
+ * <p>
+ * Method annotated with {@link ru.fractalizer.jrapidrpc.api.RpcAfterConnect} is called with null socket, since there is
+ * none.
+ */
+public class InJvmServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(InJvmServer.class);
+
+    private static final ConcurrentMap<String, InJvmServer> servers = new ConcurrentHashMap<String, InJvmServer>();
+
+    private String            address;
+    private ThreadModelType   threadModelType;
+    private ExecutorService   batchExecutorService;
+    private AdmissionControl  admissionControl;
+    private RequestDispatcher requestDispatcher;
+    private Class<?>          serviceObjectClass;
+    private Object            serviceObjectSingleton;
+    private RpcMetrics        metrics;
+
+    private final Set<InJvmConnection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<InJvmConnection, Boolean>());
+
+    private volatile boolean isTerminateRequested = false;
+
+    /**
+     * InJvm server class
+     *
+     * @param address              Logical address clients connect to. Must be unique within the JVM
+     * @param threadModelType      Threading model to use. Instance per thread means instance per client connection,
+     *                             calls of a connection are then executed one at a time
+     * @param batchExecutorService Executor to run calls of parallel batches on or null if batched calls always run one
+     *                             by one. Only used with singleton service object
+     * @param admissionControl     Admission control to refuse calls beyond concurrency limits with or null if all calls
+     *                             are executed. Must not be shared with other servers
+     */
+    public InJvmServer(String address, ThreadModelType threadModelType, ExecutorService batchExecutorService,
+                       AdmissionControl admissionControl) {
+        super();
+        if (address == null) {
+            throw new IllegalArgumentException("address must not be null!");
+        }
+        this.address = address;
+        this.threadModelType = threadModelType;
+        this.batchExecutorService = batchExecutorService;
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * InJvm server class. Batched calls run one by one and all calls are executed
+     *
+     * @param address         Logical address clients connect to. Must be unique within the JVM
+     * @param threadModelType Threading model to use. Instance per thread means instance per client connection, calls
+     *                        of a connection are then executed one at a time
+     */
+    public InJvmServer(String address, ThreadModelType threadModelType) {
+        this(address, threadModelType, null, null);
+    }
+
+    /**
+     * Method starts the server. Service object singleton is created if needed and server is registered under its
+     * address. Server metrics are registered as JMX MBeans, see {@link RpcMetrics#registerMBeans()}
+     *
+     * @param serviceInterface   An interface which is used in RPC communication (must be implemented by @see serviceObjectClass type)
+     * @param serviceObjectClass Object type which instance is supposed to receive RPC requests
+     * @throws ServerStartupException In case something goes wrong, for example address is already taken
+     */
+    public <T, V extends T> void start(Class<T> serviceInterface, Class<V> serviceObjectClass)
+            throws ServerStartupException {
+        ReflectionCache reflectionCache = new ReflectionCache(serviceInterface);
+        this.serviceObjectClass = serviceObjectClass;
+
+        switch (this.threadModelType) {
+            case Singleton:
+                try {
+                    serviceObjectSingleton = serviceObjectClass.newInstance();
+                } catch (InstantiationException e) {
+                    throw new ServerStartupException("Cannot create service object singleton instance!", e);
+                } catch (IllegalAccessException e) {
+                    throw new ServerStartupException("Cannot create service object singleton instance!", e);
+                }
+                break;
+            case InstancePerThread:
+                serviceObjectSingleton = null;
+                break;
+            default:
+                throw new ServerStartupException("Unknown threading model!");
+        }
+
+        String name = "InJvmServer:" + address;
+        metrics = new RpcMetrics(name, reflectionCache);
+        metrics.setExecutorService(batchExecutorService);
+        if (admissionControl != null) {
+            admissionControl.start(reflectionCache);
+        }
+        //Batched calls may only run in parallel on a service object shared by all threads
+        requestDispatcher = new RequestDispatcher(reflectionCache,
+                threadModelType == ThreadModelType.Singleton ? batchExecutorService : null, metrics,
+                admissionControl);
+
+        if (servers.putIfAbsent(address, this) != null) {
+            throw new ServerStartupException("Address '" + address + "' is already taken by another server!");
+        }
+        try {
+            metrics.registerMBeans();
+        } catch (JMException e) {
+            logger.warn("Unable to register metrics MBeans", e);
+        }
+    }
+
+    /**
+     * This method unregisters the server and closes all client connections. Calls in progress complete, but any
+     * further calls fail with IOException. Blocks (for a specified number of milliseconds) until batch executor
+     * completes
+     *
+     * @param millis Milliseconds to give batched calls to complete
+     * @throws InterruptedException Thrown if there was an interruption of wait for threads to complete
+     */
+    public void shutdown(long millis) throws InterruptedException {
+        isTerminateRequested = true;
+        servers.remove(address, this);
+        for (InJvmConnection connection : new ArrayList<InJvmConnection>(connections)) {
+            connection.close();
+        }
+        if (batchExecutorService != null) {
+            batchExecutorService.shutdown();
+            if (!batchExecutorService.awaitTermination(millis, TimeUnit.MILLISECONDS)) {
+                batchExecutorService.shutdownNow();
+            }
+        }
+        metrics.close();
+    }
+
+    /**
+     * Connects to the server registered under the address
+     *
+     * @param address Logical address of the server
+     * @return New connection to the server
+     * @throws ConnectException Is thrown if there is no server at the address or service object refused connection
+     */
+    public static InJvmConnection connect(String address) throws ConnectException {
+        InJvmServer server = servers.get(address);
+        if (server == null) {
+            throw new ConnectException("There is no in-JVM server at address '" + address + "'");
+        }
+        return server.accept();
+    }
+
+    /**
+     * Lists addresses of the servers running in this JVM
+     *
+     * @return Addresses servers are registered under
+     */
+    public static List<String> getAddresses() {
+        return new ArrayList<String>(servers.keySet());
+    }
+
+    private InJvmConnection accept() throws ConnectException {
+        Object serviceObject;
+        switch (this.threadModelType) {
+            case Singleton:
+                serviceObject = serviceObjectSingleton;
+                break;
+            case InstancePerThread:
+                try {
+                    serviceObject = serviceObjectClass.newInstance();
+                } catch (Exception e) {
+                    logger.error("Exception while calling serviceObjectClass.newInstance()!", e);
+                    throw new ConnectException("Server cannot create service object for the connection");
+                }
+                break;
+            default:
+                throw new ConnectException("Unknown threading model!");
+        }
+
+        try {
+            if (!requestDispatcher.afterConnect(serviceObject, null)) {
+                logger.info("afterConnectMethod method returned false. Refusing client connection.");
+                throw new ConnectException("Service object refused connection");
+            }
+        } catch (ConnectException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("Exception while calling afterConnectMethod on serviceObject!", e);
+            throw new ConnectException("Service object failed to accept connection: " + e.getMessage());
+        }
+
+        InJvmConnection connection = new InJvmConnection(this, requestDispatcher, serviceObject,
+                threadModelType == ThreadModelType.InstancePerThread, metrics);
+        connections.add(connection);
+        metrics.connectionOpened();
+        //Server might have been shut down meanwhile and missed this connection
+        if (isTerminateRequested) {
+            connection.close();
+            throw new ConnectException("Server at address '" + address + "' is shut down");
+        }
+        return connection;
+    }
+
+    /**
+     * Called by connection once it is closed
+     *
+     * @param connection Connection closed
+     */
+    void closed(InJvmConnection connection) {
+        if (connections.remove(connection)) {
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Returns logical address of the server
+     *
+     * @return Address clients connect to
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns server metrics. Use {@link RpcMetrics#addReporter} to have them reported periodically
+     *
+     * @return Metrics of the server or null if server was not started yet
+     */
+    public RpcMetrics getMetrics() {
+        return metrics;
+    }
+}
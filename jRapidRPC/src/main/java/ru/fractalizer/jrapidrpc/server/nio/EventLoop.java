@@ -0,0 +1,204 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server.nio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector thread. Accepts connections (if server channel is registered with it), reads and frames requests and
+ * flushes replies for the connections it owns. Never calls service object code itself.
+ */
+class EventLoop implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventLoop.class);
+
+    private final NioTCPServer    server;
+    private final Selector        selector;
+    private final Queue<Runnable> tasks;
+    private volatile boolean      stopRequested;
+    private Thread                thread;
+
+    /**
+     * Default constructor
+     *
+     * @param server Server this loop belongs to
+     * @throws IOException Is thrown if selector cannot be opened
+     */
+    EventLoop(NioTCPServer server) throws IOException {
+        super();
+        this.server = server;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.stopRequested = false;
+    }
+
+    /**
+     * Starts loop thread
+     *
+     * @param threadName Name of the loop thread
+     */
+    void start(String threadName) {
+        thread = new Thread(this, threadName);
+        thread.start();
+    }
+
+    /**
+     * Requests loop to close all its connections and exit. Blocks until loop thread terminates.
+     *
+     * @throws InterruptedException Thrown if there was an interruption of wait for loop thread to complete
+     */
+    void stop() throws InterruptedException {
+        stopRequested = true;
+        selector.wakeup();
+        thread.join();
+    }
+
+    /**
+     * Schedules a task to be run on the loop thread
+     *
+     * @param task Task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers server channel to accept connections on this loop
+     *
+     * @param serverChannel Non-blocking server channel
+     * @throws ClosedChannelException Is thrown if channel is already closed
+     */
+    void registerAcceptor(ServerSocketChannel serverChannel) throws ClosedChannelException {
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Takes ownership over a freshly accepted client channel
+     *
+     * @param channel       Non-blocking client channel
+     * @param serviceObject Service object to dispatch requests of this client to
+     */
+    void registerConnection(final SocketChannel channel, final Object serviceObject) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                NioConnection connection = new NioConnection(server, EventLoop.this, channel, serviceObject);
+                try {
+                    connection.setSelectionKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                } catch (ClosedChannelException e) {
+                    connection.close();
+                    return;
+                }
+                //After connect method goes first
+                server.submit(connection);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        logger.info("Event loop thread started");
+
+        while (!stopRequested) {
+            try {
+                //Tasks scheduled from the loop thread itself do not wake selector up
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                logger.error("Exception while selector.select()", e);
+                break;
+            }
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept((ServerSocketChannel) key.channel());
+                    continue;
+                }
+                NioConnection connection = (NioConnection) key.attachment();
+                if (key.isReadable()) {
+                    connection.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        //Closing everything we own
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null) {
+                ((NioConnection) key.attachment()).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("Unable to properly close selector", e);
+        }
+        logger.info("Event loop thread terminated");
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+                if (channel == null) {
+                    return;
+                }
+                channel.configureBlocking(false);
+            } catch (ClosedChannelException e) {
+                logger.info("Server channel closed: shutdown requested by server");
+                return;
+            } catch (IOException e) {
+                logger.error("Exception while serverChannel.accept()", e);
+                return;
+            }
+            server.accepted(channel);
+        }
+    }
+}
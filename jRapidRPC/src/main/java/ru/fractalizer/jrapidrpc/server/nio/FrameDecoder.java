@@ -0,0 +1,96 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server.nio;
+
+import ru.fractalizer.jrapidrpc.api.ProtocolDataException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts varint length-delimited frames (the framing used by library serializers) out of a read buffer
+ */
+final class FrameDecoder {
+
+    /**
+     * Maximum size of a varint32 in bytes
+     */
+    private static final int MAX_VARINT_SIZE = 5;
+
+    /**
+     * Frames larger than this are treated as garbage
+     */
+    private final int maxFrameSize;
+
+    /**
+     * Default constructor
+     *
+     * @param maxFrameSize Maximum allowed frame size in bytes
+     */
+    FrameDecoder(int maxFrameSize) {
+        super();
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Tries to extract the next complete frame from the buffer. The frame is returned together with its length prefix,
+     * so it can be fed to {@link ru.fractalizer.jrapidrpc.api.Serializer} as is. If there is no complete frame in the
+     * buffer, its position is left untouched.
+     *
+     * @param buffer Buffer in read mode
+     * @return The frame including length prefix or null if more data is needed
+     * @throws ProtocolDataException If length prefix is malformed or frame is too large
+     */
+    byte[] nextFrame(ByteBuffer buffer) throws ProtocolDataException {
+        int frameSize = peekFrameSize(buffer);
+        if (frameSize < 0 || buffer.remaining() < frameSize) {
+            return null;
+        }
+        byte[] frame = new byte[frameSize];
+        buffer.get(frame);
+        return frame;
+    }
+
+    /**
+     * Returns the full size (length prefix included) of the frame at buffer position
+     *
+     * @param buffer Buffer in read mode
+     * @return Full frame size or -1 if the length prefix itself is not complete yet
+     * @throws ProtocolDataException If length prefix is malformed or frame is too large
+     */
+    int peekFrameSize(ByteBuffer buffer) throws ProtocolDataException {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        int length = 0;
+        for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+            if (position + i >= limit) {
+                return -1;
+            }
+            byte b = buffer.get(position + i);
+            length |= (b & 0x7F) << (7 * i);
+            if (b >= 0) {
+                if (length < 0 || length > maxFrameSize) {
+                    throw new ProtocolDataException("Frame of " + length + " bytes exceeds the limit of " +
+                            maxFrameSize + " bytes", null);
+                }
+                return length + i + 1;
+            }
+        }
+        throw new ProtocolDataException("Malformed frame length prefix", null);
+    }
+}
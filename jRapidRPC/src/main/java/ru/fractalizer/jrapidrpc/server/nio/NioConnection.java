@@ -0,0 +1,424 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server.nio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.fractalizer.jrapidrpc.api.BufferSerializer;
+import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcRequest;
+import ru.fractalizer.jrapidrpc.api.ProtocolDataException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * State of a single client connection. Reading, framing and decoding happen on the owning {@link EventLoop} thread.
+ * Dispatching and encoding happen on executor thread when connection is submitted as a job. Requests of one
+ * connection are processed one at a time and in order, so service object sees the same call sequence as with
+ * {@link ru.fractalizer.jrapidrpc.server.simple.SimpleTCPServer}.
+ * <p>
+ * Connection stops reading while too many requests wait for dispatch or too many reply bytes wait for a slow client
+ * to take them, and resumes once they drain, so a client sending faster than it is served can not exhaust the heap.
+ */
+class NioConnection implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioConnection.class);
+
+    /**
+     * Initial size of the read buffer. It grows on demand to fit the largest frame
+     */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * Size of the pooled buffer a reply is encoded to. Serializer allocates a larger one if reply does not fit
+     */
+    private static final int REPLY_BUFFER_SIZE = 1024;
+
+    /**
+     * Number of decoded requests waiting for dispatch at which connection stops reading
+     */
+    private static final int MAX_PENDING_REQUESTS = 64;
+
+    /**
+     * Number of reply bytes waiting to be flushed at which connection stops reading
+     */
+    private static final long MAX_PENDING_REPLY_BYTES = 1024 * 1024;
+
+    private final NioTCPServer  server;
+    private final EventLoop     eventLoop;
+    private final SocketChannel channel;
+    private final Object        serviceObject;
+    private final FrameDecoder  frameDecoder;
+    private SelectionKey        selectionKey;
+    private ByteBuffer          readBuffer;
+
+    /**
+     * Serializer working with buffers directly or null if server serializer supports only streams
+     */
+    private final BufferSerializer bufferSerializer;
+
+    /**
+     * Requests waiting to be dispatched. Guarded by this
+     */
+    private final Queue<MsgRpcRequest> pendingRequests = new ArrayDeque<MsgRpcRequest>();
+
+    /**
+     * True while connection is submitted to executor. Guarded by this
+     */
+    private boolean dispatching;
+
+    /**
+     * Replies waiting to be flushed to socket. Guarded by itself
+     */
+    private final Queue<ByteBuffer> pendingReplies = new ArrayDeque<ByteBuffer>();
+
+    /**
+     * Bytes of pending replies not written yet. Guarded by pendingReplies
+     */
+    private long pendingReplyBytes;
+
+    private volatile boolean afterConnectCalled;
+    private volatile boolean closed;
+
+    /**
+     * Default constructor
+     *
+     * @param server        Server this connection belongs to
+     * @param eventLoop     Event loop owning this connection
+     * @param channel       Non-blocking client channel
+     * @param serviceObject Service object to dispatch RPC requests to
+     */
+    NioConnection(NioTCPServer server, EventLoop eventLoop, SocketChannel channel, Object serviceObject) {
+        super();
+        this.server = server;
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.serviceObject = serviceObject;
+        this.frameDecoder = new FrameDecoder(server.getMaxFrameSize());
+        //Heap buffer, so that requests can be decoded right from its array
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.bufferSerializer = server.getSerializer() instanceof BufferSerializer ?
+                (BufferSerializer) server.getSerializer() : null;
+        this.dispatching = true; //Connection is submitted right after registration to call after connect method
+        this.afterConnectCalled = false;
+        this.closed = false;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Called by event loop when channel has data to read
+     */
+    void onReadable() {
+        int bytesRead;
+        try {
+            bytesRead = channel.read(readBuffer);
+        } catch (IOException e) {
+            //Client reset connection
+            close();
+            return;
+        }
+        if (bytesRead < 0) {
+            //Graceful disconnect
+            close();
+            return;
+        }
+        processFrames();
+    }
+
+    /**
+     * Decodes complete frames of read buffer until connection has too much pending, then stops or resumes reading.
+     * Frames left in buffer are decoded once pending requests and replies drain. Called on event loop thread
+     */
+    private void processFrames() {
+        if (closed) {
+            return;
+        }
+        readBuffer.flip();
+        boolean submit = false;
+        try {
+            int frameSize = frameDecoder.peekFrameSize(readBuffer);
+            while (frameSize >= 0 && readBuffer.remaining() >= frameSize && !isBackedUp()) {
+                MsgRpcRequest msgRpcRequest = decode(readBuffer);
+                synchronized (this) {
+                    pendingRequests.add(msgRpcRequest);
+                    if (!dispatching) {
+                        dispatching = true;
+                        submit = true;
+                    }
+                }
+                frameSize = frameDecoder.peekFrameSize(readBuffer);
+            }
+
+            //Making room for the rest of incomplete frame
+            if (frameSize > readBuffer.capacity()) {
+                ByteBuffer newBuffer = ByteBuffer.allocate(frameSize);
+                newBuffer.put(readBuffer);
+                readBuffer = newBuffer;
+            } else if (!readBuffer.hasRemaining() && readBuffer.capacity() > READ_BUFFER_SIZE) {
+                //Large frame is gone, so is the buffer grown for it
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            } else {
+                readBuffer.compact();
+            }
+        } catch (Exception e) {
+            logger.error("Error receiving RPC request stream", e);
+            close();
+            return;
+        }
+
+        updateInterestOps();
+        if (submit) {
+            server.submit(this);
+        }
+    }
+
+    /**
+     * @return True if connection should not read more requests until pending ones drain
+     */
+    private boolean isBackedUp() {
+        synchronized (this) {
+            if (pendingRequests.size() >= MAX_PENDING_REQUESTS) {
+                return true;
+            }
+        }
+        synchronized (pendingReplies) {
+            return pendingReplyBytes >= MAX_PENDING_REPLY_BYTES;
+        }
+    }
+
+    /**
+     * Reads while connection is not backed up and writes while there are pending replies. Called on event loop thread
+     */
+    private void updateInterestOps() {
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        int interestOps = isBackedUp() ? 0 : SelectionKey.OP_READ;
+        synchronized (pendingReplies) {
+            if (!pendingReplies.isEmpty()) {
+                interestOps |= SelectionKey.OP_WRITE;
+            }
+        }
+        selectionKey.interestOps(interestOps);
+    }
+
+    /**
+     * Has event loop decode requests left in read buffer and resume reading. Called once pending requests or replies
+     * drop below their limit
+     */
+    private void resumeReading() {
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                processFrames();
+            }
+        });
+    }
+
+    /**
+     * Called by event loop when channel is ready to accept more reply data
+     */
+    void onWritable() {
+        boolean wasBackedUp;
+        boolean isBackedUp;
+        synchronized (pendingReplies) {
+            wasBackedUp = pendingReplyBytes >= MAX_PENDING_REPLY_BYTES;
+            try {
+                ByteBuffer reply;
+                while ((reply = pendingReplies.peek()) != null) {
+                    pendingReplyBytes -= channel.write(reply);
+                    if (reply.hasRemaining()) {
+                        break;
+                    }
+                    recycle(pendingReplies.poll());
+                }
+            } catch (IOException e) {
+                logger.error("Error sending RPC reply", e);
+                close();
+                return;
+            }
+            isBackedUp = pendingReplyBytes >= MAX_PENDING_REPLY_BYTES;
+        }
+        if (wasBackedUp && !isBackedUp) {
+            processFrames();
+        } else {
+            updateInterestOps();
+        }
+    }
+
+    /**
+     * Dispatch job. Drains pending requests in order and exits when there is nothing left to do
+     */
+    @Override
+    public void run() {
+        if (!afterConnectCalled) {
+            try {
+                if (!server.getRequestDispatcher().afterConnect(serviceObject, channel.socket())) {
+                    logger.info("afterConnectMethod method returned false. Closing client connection.");
+                    close();
+                    return;
+                }
+            } catch (Exception e) {
+                logger.error("Exception while calling afterConnectMethod on serviceObject!", e);
+                close();
+                return;
+            }
+            afterConnectCalled = true;
+        }
+
+        while (!closed && !server.IsTerminateRequested()) {
+            MsgRpcRequest msgRpcRequest;
+            boolean resume;
+            synchronized (this) {
+                msgRpcRequest = pendingRequests.poll();
+                if (msgRpcRequest == null) {
+                    dispatching = false;
+                    return;
+                }
+                resume = pendingRequests.size() == MAX_PENDING_REQUESTS - 1;
+            }
+            if (resume) {
+                resumeReading();
+            }
+
+            //Invoking method
+            MsgRpcReply rpcReply;
+            try {
+                rpcReply = server.getRequestDispatcher().dispatch(serviceObject, msgRpcRequest);
+            } catch (Exception e) {
+                logger.error("Unexpected exception when invoking method with name '" + msgRpcRequest.getMethodName() +
+                        "' on service object of type '" + serviceObject.getClass().getName() + "'", e);
+                close();
+                return;
+            }
+
+            //Sending reply
+            try {
+                write(encode(rpcReply));
+            } catch (IOException e) {
+                logger.error("Error sending RPC reply for method with name + " + msgRpcRequest.getMethodName(), e);
+                close();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decodes request from the complete frame at buffer position
+     *
+     * @param buffer Read buffer in read mode
+     * @return Decoded request
+     * @throws IOException           Is thrown on any transportation problem
+     * @throws ProtocolDataException If something is wrong with protocol data on request
+     */
+    private MsgRpcRequest decode(ByteBuffer buffer) throws IOException, ProtocolDataException {
+        if (bufferSerializer != null) {
+            return bufferSerializer.decodeRpcRequest(buffer);
+        }
+        return server.getSerializer().receiveRpcRequest(new ByteArrayInputStream(frameDecoder.nextFrame(buffer)));
+    }
+
+    /**
+     * Encodes reply frame
+     *
+     * @param rpcReply Reply to encode
+     * @return Buffer with reply frame in read mode
+     * @throws IOException Is thrown if reply cannot be serialized
+     */
+    private ByteBuffer encode(MsgRpcReply rpcReply) throws IOException {
+        if (bufferSerializer == null) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            server.getSerializer().sendRpcReply(rpcReply, outputStream);
+            return ByteBuffer.wrap(outputStream.toByteArray());
+        }
+        ByteBuffer buffer = server.getBufferPool().acquire(REPLY_BUFFER_SIZE);
+        ByteBuffer replyBuffer = bufferSerializer.encodeRpcReply(rpcReply, buffer);
+        if (replyBuffer != buffer) {
+            server.getBufferPool().release(buffer);
+        }
+        replyBuffer.flip();
+        return replyBuffer;
+    }
+
+    /**
+     * Returns fully written reply buffer to the pool
+     *
+     * @param reply Reply buffer
+     */
+    private void recycle(ByteBuffer reply) {
+        if (bufferSerializer != null) {
+            server.getBufferPool().release(reply);
+        }
+    }
+
+    /**
+     * Writes reply to the channel. Whatever does not fit into socket buffer is left to event loop to flush.
+     *
+     * @param reply Encoded reply frame
+     * @throws IOException Is thrown on any transportation problem
+     */
+    private void write(ByteBuffer reply) throws IOException {
+        synchronized (pendingReplies) {
+            if (pendingReplies.isEmpty()) {
+                channel.write(reply);
+                if (!reply.hasRemaining()) {
+                    recycle(reply);
+                    return;
+                }
+            }
+            boolean wasBackedUp = pendingReplyBytes >= MAX_PENDING_REPLY_BYTES;
+            pendingReplies.add(reply);
+            pendingReplyBytes += reply.remaining();
+            //Event loop starts flushing replies and stops reading if client does not take them fast enough
+            if (pendingReplies.size() == 1 || !wasBackedUp && pendingReplyBytes >= MAX_PENDING_REPLY_BYTES) {
+                eventLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateInterestOps();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Closes client channel. Can be called from any thread
+     */
+    void close() {
+        closed = true;
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Unable to properly close client channel", e);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server.nio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.fractalizer.jrapidrpc.api.Serializer;
+import ru.fractalizer.jrapidrpc.api.ServerStartupException;
+import ru.fractalizer.jrapidrpc.server.RequestDispatcher;
+import ru.fractalizer.jrapidrpc.server.simple.TerminateSignaller;
+import ru.fractalizer.jrapidrpc.server.simple.ThreadModelType;
+import ru.fractalizer.jrapidrpc.server.simple.ThreadPoolOverflowPolicy;
+import ru.fractalizer.jrapidrpc.tools.BufferPool;
+import ru.fractalizer.jrapidrpc.tools.BufferPoolStatistics;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class implementing multithreaded server on top of non-blocking I/O. A small set of selector threads handles all
+ * client connections, so idle clients do not occupy a thread each. Only actual calls are submitted to executor.
+ */
+public class NioTCPServer implements TerminateSignaller {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioTCPServer.class);
+
+    /**
+     * Default maximum size of a single request frame in bytes
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private Serializer               serializer;
+    private int                      port;
+    private ExecutorService          executorService;
+    private ThreadModelType          threadModelType;
+    private ThreadPoolOverflowPolicy threadPoolOverflowPolicy;
+    private int                      eventLoopCount;
+    private int                      maxFrameSize;
+    private int                      backlog;
+    private InetAddress              bindAddr;
+    private BufferPool               bufferPool;
+    private ServerSocketChannel      serverChannel;
+    private EventLoop[]              eventLoops;
+    private AtomicInteger            nextEventLoop;
+    private RequestDispatcher        requestDispatcher;
+    private Class<?>                 serviceObjectClass;
+    private Object                   serviceObjectSingleton;
+
+    private volatile boolean isTerminateRequested = false;
+
+    /**
+     * NioTCP server class
+     *
+     * @param serializer               Protocol data serializer instance to use. Must be thread-safe.
+     * @param port                     TCP port on which to listen for client connections
+     * @param threadModelType          Threading model to use
+     * @param executorService          Thread pool manager to use when dispatching client requests
+     * @param threadPoolOverflowPolicy A policy to use when thread pool overflow is detected
+     * @param eventLoopCount           Number of selector threads handling socket I/O
+     * @param maxFrameSize             Maximum size of a request frame in bytes. Clients sending larger ones are dropped
+     * @param backlog                  Controls how server socket is bound. See {@link java.net.ServerSocket#ServerSocket(int, int, java.net.InetAddress)}  ServerSocket constructor} for details
+     * @param bindAddr                 Controls how server socket is bound. See {@link java.net.ServerSocket#ServerSocket(int, int, java.net.InetAddress)}  ServerSocket constructor} for details
+     * @param bufferPool               Pool to take reply buffers from. Direct pool saves a copy on socket write
+     */
+    public NioTCPServer(Serializer serializer, int port, ThreadModelType threadModelType,
+                        ExecutorService executorService, ThreadPoolOverflowPolicy threadPoolOverflowPolicy,
+                        int eventLoopCount, int maxFrameSize, int backlog, InetAddress bindAddr,
+                        BufferPool bufferPool) {
+        super();
+        if (eventLoopCount < 1) {
+            throw new IllegalArgumentException("eventLoopCount must be positive!");
+        }
+        this.serializer = serializer;
+        this.port = port;
+        this.executorService = executorService;
+        this.threadModelType = threadModelType;
+        this.threadPoolOverflowPolicy = threadPoolOverflowPolicy;
+        this.eventLoopCount = eventLoopCount;
+        this.maxFrameSize = maxFrameSize;
+        this.backlog = backlog;
+        this.bindAddr = bindAddr;
+        this.bufferPool = bufferPool;
+        this.nextEventLoop = new AtomicInteger(0);
+    }
+
+    /**
+     * NioTCP server class
+     *
+     * @param serializer               Protocol data serializer instance to use. Must be thread-safe.
+     * @param port                     TCP port on which to listen for client connections
+     * @param threadModelType          Threading model to use
+     * @param executorService          Thread pool manager to use when dispatching client requests
+     * @param threadPoolOverflowPolicy A policy to use when thread pool overflow is detected
+     * @param eventLoopCount           Number of selector threads handling socket I/O
+     * @param maxFrameSize             Maximum size of a request frame in bytes. Clients sending larger ones are dropped
+     * @param backlog                  Controls how server socket is bound. See {@link java.net.ServerSocket#ServerSocket(int, int, java.net.InetAddress)}  ServerSocket constructor} for details
+     * @param bindAddr                 Controls how server socket is bound. See {@link java.net.ServerSocket#ServerSocket(int, int, java.net.InetAddress)}  ServerSocket constructor} for details
+     */
+    public NioTCPServer(Serializer serializer, int port, ThreadModelType threadModelType,
+                        ExecutorService executorService, ThreadPoolOverflowPolicy threadPoolOverflowPolicy,
+                        int eventLoopCount, int maxFrameSize, int backlog, InetAddress bindAddr) {
+        this(serializer, port, threadModelType, executorService, threadPoolOverflowPolicy, eventLoopCount,
+                maxFrameSize, backlog, bindAddr, new BufferPool(true));
+    }
+
+    /**
+     * NioTCP server class
+     *
+     * @param serializer               Protocol data serializer instance to use. Must be thread-safe.
+     * @param port                     TCP port on which to listen for client connections
+     * @param threadModelType          Threading model to use
+     * @param executorService          Thread pool manager to use when dispatching client requests
+     * @param threadPoolOverflowPolicy A policy to use when thread pool overflow is detected
+     * @param eventLoopCount           Number of selector threads handling socket I/O
+     */
+    public NioTCPServer(Serializer serializer, int port, ThreadModelType threadModelType,
+                        ExecutorService executorService, ThreadPoolOverflowPolicy threadPoolOverflowPolicy,
+                        int eventLoopCount) {
+        this(serializer, port, threadModelType, executorService, threadPoolOverflowPolicy, eventLoopCount,
+                DEFAULT_MAX_FRAME_SIZE, 0, null);
+    }
+
+    /**
+     * NioTCP server class
+     *
+     * @param serializer      Protocol data serializer instance to use. Must be thread-safe.
+     * @param port            TCP port on which to listen for client connections
+     * @param threadModelType Threading model to use
+     * @param executorService Thread pool manager to use when dispatching client requests
+     */
+    public NioTCPServer(Serializer serializer, int port, ThreadModelType threadModelType,
+                        ExecutorService executorService) {
+        this(serializer, port, threadModelType, executorService, ThreadPoolOverflowPolicy.Terminate,
+                Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_FRAME_SIZE, 0, null);
+    }
+
+    /**
+     * NioTCP server class
+     *
+     * @param serializer      Protocol data serializer instance to use. Must be thread-safe.
+     * @param port            TCP port on which to listen for client connections
+     * @param threadModelType Threading model to use
+     */
+    public NioTCPServer(Serializer serializer, int port, ThreadModelType threadModelType) {
+        this(serializer, port, threadModelType, Executors.newCachedThreadPool(), ThreadPoolOverflowPolicy.Terminate,
+                Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_FRAME_SIZE, 0, null);
+    }
+
+    /**
+     * Method starts the server. Server channel is bound and event loop threads start to accept user connections
+     *
+     * @param serviceInterface   An interface which is used in RPC communication (must be implemented by @see serviceObjectClass type)
+     * @param serviceObjectClass Object type which instance is supposed to receive RPC requests
+     * @throws ServerStartupException In case something goes wrong...
+     */
+    public <T, V extends T> void start(Class<T> serviceInterface, Class<V> serviceObjectClass)
+            throws ServerStartupException {
+        //Batched calls may only run in parallel on a service object shared by all threads
+        this.requestDispatcher = new RequestDispatcher(new ReflectionCache(serviceInterface),
+                threadModelType == ThreadModelType.Singleton ? executorService : null, null);
+        this.serviceObjectClass = serviceObjectClass;
+
+        switch (this.threadModelType) {
+            case Singleton:
+                try {
+                    serviceObjectSingleton = serviceObjectClass.newInstance();
+                } catch (InstantiationException e) {
+                    throw new ServerStartupException("Cannot create service object singleton instance!", e);
+                } catch (IllegalAccessException e) {
+                    throw new ServerStartupException("Cannot create service object singleton instance!", e);
+                }
+                break;
+            case InstancePerThread:
+                serviceObjectSingleton = null;
+                break;
+            default:
+                throw new ServerStartupException("Unknown threading model!");
+        }
+
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().bind(new InetSocketAddress(this.bindAddr, this.port), this.backlog);
+
+            eventLoops = new EventLoop[eventLoopCount];
+            for (int i = 0; i < eventLoopCount; i++) {
+                eventLoops[i] = new EventLoop(this);
+            }
+            eventLoops[0].registerAcceptor(serverChannel);
+        } catch (IOException e) {
+            throw new ServerStartupException("Cannot create server socket!", e);
+        }
+
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i].start("NioTCPServer Event Loop Thread #" + (i + 1));
+        }
+    }
+
+    /**
+     * This method requests graceful server shutdown and blocks (for a specified number of milliseconds) until it completes
+     *
+     * @param millis Milliseconds to give active calls to complete
+     * @throws IOException          Thrown if there was an error closing server channel
+     * @throws InterruptedException Thrown if there was an interruption of wait for threads to complete
+     */
+    public void shutdown(long millis) throws IOException, InterruptedException {
+        isTerminateRequested = true;
+        serverChannel.close();
+        executorService.shutdown();
+        if (!executorService.awaitTermination(millis, TimeUnit.MILLISECONDS)) {
+            executorService.shutdownNow();
+        }
+
+        //Event loops close all remaining client connections
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.stop();
+        }
+    }
+
+    @Override
+    public final boolean IsTerminateRequested() {
+        return this.isTerminateRequested;
+    }
+
+    /**
+     * Called by accepting event loop for each new client channel
+     *
+     * @param channel Non-blocking client channel
+     */
+    void accepted(SocketChannel channel) {
+        Object serviceObject;
+        switch (this.threadModelType) {
+            case Singleton:
+                serviceObject = serviceObjectSingleton;
+                break;
+            case InstancePerThread:
+                try {
+                    serviceObject = serviceObjectClass.newInstance();
+                } catch (Exception e) {
+                    logger.error("Exception while calling serviceObjectClass.newInstance()!", e);
+                    closeChannel(channel);
+                    return;
+                }
+                break;
+            default:
+                logger.error("Unknown threading model!");
+                closeChannel(channel);
+                return;
+        }
+
+        int index = (nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length;
+        eventLoops[index].registerConnection(channel, serviceObject);
+    }
+
+    /**
+     * Submits connection dispatch job to executor, applying thread pool overflow policy if needed
+     *
+     * @param connection Connection having requests to dispatch
+     */
+    void submit(NioConnection connection) {
+        try {
+            executorService.execute(connection);
+        } catch (RejectedExecutionException e) {
+            connection.close();
+            if (executorService.isShutdown()) {
+                //Thread pool graceful shutdown
+                return;
+            }
+
+            //Pool is overflown?
+            switch (threadPoolOverflowPolicy) {
+                case Continue:
+                    break;
+                case Terminate:
+                    logger.error("Thread pool overflow. No more client connections will be accepted.");
+                    try {
+                        serverChannel.close();
+                    } catch (IOException e1) {
+                        logger.warn("Unable to close server channel properly!", e1);
+                    }
+                    break;
+                default:
+                    logger.error("Unknown threadPoolOverflowPolicy!", e);
+                    break;
+            }
+        }
+    }
+
+    Serializer getSerializer() {
+        return serializer;
+    }
+
+    RequestDispatcher getRequestDispatcher() {
+        return requestDispatcher;
+    }
+
+    int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Returns counters of the pool reply buffers are taken from
+     *
+     * @return Snapshot of pool counters
+     */
+    public BufferPoolStatistics getBufferPoolStatistics() {
+        return bufferPool.getStatistics();
+    }
+
+    private static void closeChannel(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Unable to close client channel properly!", e);
+        }
+    }
+}
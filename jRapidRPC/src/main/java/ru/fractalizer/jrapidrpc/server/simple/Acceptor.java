@@ -22,6 +22,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.fractalizer.jrapidrpc.api.Serializer;
 import ru.fractalizer.jrapidrpc.api.ServerStartupException;
+import ru.fractalizer.jrapidrpc.compression.Compression;
+import ru.fractalizer.jrapidrpc.metrics.RpcMetrics;
+import ru.fractalizer.jrapidrpc.server.AccessLog;
+import ru.fractalizer.jrapidrpc.server.RequestDispatcher;
+import ru.fractalizer.jrapidrpc.server.admission.AdmissionControl;
+import ru.fractalizer.jrapidrpc.tools.ResultCache;
 import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
 
 import java.io.IOException;
@@ -43,10 +49,18 @@ class Acceptor<T, V extends T> implements Runnable {
     private ExecutorService          executorService;
     private Serializer               serializer;
     private Class<V>                 serviceObjectClass;
-    private ReflectionCache          reflectionCache;
+    private RequestDispatcher        requestDispatcher;
     private Object                   serviceObjectSingleton;
     private ThreadModelType          threadModelType;
     private ThreadPoolOverflowPolicy threadPoolOverflowPolicy;
+    private RpcMetrics               metrics;
+    private AccessLog                accessLog;
+    private ResultCache              resultCache;
+    private Compression              compression;
+    private ExecutorService          connectionCallExecutorService;
+    private int                      maxInFlightPerConnection;
+
+    private CacheInvalidationPublisher invalidationPublisher;
 
     /**
      * Default constructor
@@ -55,15 +69,32 @@ class Acceptor<T, V extends T> implements Runnable {
      * @param serverSocket             The server socket on which to call accept() and accept client connections
      * @param threadModelType          The threading type on the service object
      * @param executorService          Thread pool to submit user threads to
+     * @param callExecutorService      Thread pool to run calls of parallel batches with
+     * @param connectionCallExecutorService Thread pool to run calls of connections executing calls in parallel with.
+     *                                 Must not be executorService: connection threads would wait for their calls
+     *                                 queued behind them
      * @param serializer               Serializer to use
-     * @param serviceInterface         The RPC interface
+     * @param reflectionCache          Reflection cache of the RPC interface
      * @param serviceObjectClass       The class of the service object which is responsible for handling client connections
      * @param threadPoolOverflowPolicy The policy in case of thread pool overflow
+     * @param metrics                  Metrics to record calls and connections to
+     * @param accessLog                Access log to record calls to or null if calls are not logged
+     * @param resultCache              Cache of replies or null if replies are not cached
+     * @param invalidationPublisher    Publisher of cache invalidations to subscribed connections
+     * @param compression              Compression to agree on with clients or null if frames are never compressed
+     * @param admissionControl         Started admission control or null if all calls are executed
+     * @param maxInFlightPerConnection Maximum number of calls of a connection executing at once on
+     *                                 connectionCallExecutorService. 1 or less if calls of a connection run one by one
+     *                                 on its thread
      * @throws ServerStartupException Is thrown in case something went wrong
      */
     Acceptor(TerminateSignaller terminateSignaller, ServerSocket serverSocket, ThreadModelType threadModelType,
-             ExecutorService executorService, Serializer serializer, Class<T> serviceInterface,
-             Class<V> serviceObjectClass, ThreadPoolOverflowPolicy threadPoolOverflowPolicy)
+             ExecutorService executorService, ExecutorService callExecutorService,
+             ExecutorService connectionCallExecutorService, Serializer serializer,
+             ReflectionCache reflectionCache, Class<V> serviceObjectClass,
+             ThreadPoolOverflowPolicy threadPoolOverflowPolicy, RpcMetrics metrics, AccessLog accessLog,
+             ResultCache resultCache, CacheInvalidationPublisher invalidationPublisher, Compression compression,
+             AdmissionControl admissionControl, int maxInFlightPerConnection)
             throws ServerStartupException {
 
         this.terminateSignaller = terminateSignaller;
@@ -71,10 +102,20 @@ class Acceptor<T, V extends T> implements Runnable {
         this.executorService = executorService;
         this.serializer = serializer;
         this.serviceObjectClass = serviceObjectClass;
-        this.reflectionCache = new ReflectionCache(serviceInterface);
+        //Batched calls may only run in parallel on a service object shared by all threads
+        this.requestDispatcher = new RequestDispatcher(reflectionCache,
+                threadModelType == ThreadModelType.Singleton ? callExecutorService : null, metrics,
+                admissionControl);
         this.serviceObjectSingleton = null;
         this.threadModelType = threadModelType;
         this.threadPoolOverflowPolicy = threadPoolOverflowPolicy;
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+        this.resultCache = resultCache;
+        this.invalidationPublisher = invalidationPublisher;
+        this.compression = compression;
+        this.connectionCallExecutorService = connectionCallExecutorService;
+        this.maxInFlightPerConnection = maxInFlightPerConnection;
 
         switch (this.threadModelType) {
             case Singleton:
@@ -118,12 +159,17 @@ class Acceptor<T, V extends T> implements Runnable {
             try {
                 switch (this.threadModelType) {
                     case Singleton:
-                        executorService.submit(new Worker(terminateSignaller, clientSocket, serializer, reflectionCache,
-                                serviceObjectSingleton));
+                        //Calls of a connection may only run in parallel on a service object shared by all threads
+                        executorService.submit(new Worker(terminateSignaller, clientSocket, serializer,
+                                requestDispatcher, serviceObjectSingleton, metrics, accessLog, resultCache,
+                                invalidationPublisher, compression,
+                                maxInFlightPerConnection > 1 ? connectionCallExecutorService : null,
+                                maxInFlightPerConnection));
                         break;
                     case InstancePerThread:
-                        executorService.submit(new Worker(terminateSignaller, clientSocket, serializer, reflectionCache,
-                                serviceObjectClass.newInstance()));
+                        executorService.submit(new Worker(terminateSignaller, clientSocket, serializer,
+                                requestDispatcher, serviceObjectClass.newInstance(), metrics, accessLog,
+                                resultCache, invalidationPublisher, compression, null, 0));
                         break;
                     default:
                         logger.error("Unknown threading model!");
@@ -136,6 +182,7 @@ class Acceptor<T, V extends T> implements Runnable {
                 }
 
                 //Pool os overflown?
+                metrics.connectionRejected();
                 switch (threadPoolOverflowPolicy) {
                     case Continue:
                         try {
@@ -0,0 +1,71 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server.simple;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps connections subscribed to cache invalidations and pushes invalidation frames to them
+ */
+class CacheInvalidationPublisher {
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheInvalidationPublisher.class);
+
+    private final Set<Worker> subscribers;
+
+    /**
+     * Default constructor
+     */
+    CacheInvalidationPublisher() {
+        super();
+        this.subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Worker, Boolean>());
+    }
+
+    void subscribe(Worker worker) {
+        subscribers.add(worker);
+    }
+
+    void unsubscribe(Worker worker) {
+        subscribers.remove(worker);
+    }
+
+    /**
+     * Writes invalidation frame to every subscribed connection. Connections which cannot be written to are closed.
+     * Blocks while a client does not read its socket and socket buffers are full
+     *
+     * @param frame Encoded invalidation
+     */
+    void publish(byte[] frame) {
+        for (Worker worker : subscribers) {
+            try {
+                worker.push(frame);
+            } catch (IOException e) {
+                logger.debug("Unable to push cache invalidation, closing client connection", e);
+                unsubscribe(worker);
+                worker.closeClientSocket();
+            }
+        }
+    }
+}
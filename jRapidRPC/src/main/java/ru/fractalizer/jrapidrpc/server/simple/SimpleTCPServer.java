@@ -18,31 +18,78 @@
 
 package ru.fractalizer.jrapidrpc.server.simple;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.fractalizer.jrapidrpc.api.FrameSerializer;
+import ru.fractalizer.jrapidrpc.api.MsgCacheInvalidation;
+import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcRequest;
+import ru.fractalizer.jrapidrpc.api.ProtocolDataException;
 import ru.fractalizer.jrapidrpc.api.Serializer;
 import ru.fractalizer.jrapidrpc.api.ServerStartupException;
+import ru.fractalizer.jrapidrpc.compression.Compression;
+import ru.fractalizer.jrapidrpc.metrics.RpcMetrics;
+import ru.fractalizer.jrapidrpc.server.AccessLog;
+import ru.fractalizer.jrapidrpc.server.admission.AdmissionControl;
+import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+import ru.fractalizer.jrapidrpc.tools.ResultCache;
+import ru.fractalizer.jrapidrpc.tools.ResultCacheStatistics;
+import ru.fractalizer.jrapidrpc.tools.VirtualThreads;
 
+import javax.management.JMException;
+import javax.net.ServerSocketFactory;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Class implementing simple multithreaded server
+ * Class implementing simple multithreaded server. Every connection is served by a thread of its own, blocked in
+ * socket reads while client is idle. To keep thousands of connections without a platform thread for each of them,
+ * pass an executor of virtual threads from {@link VirtualThreads#newThreadPerTaskExecutor(String)} on Java 21 and
+ * later. Same executor may run calls of parallel batches. Service object must not block while holding a monitor then,
+ * see {@link VirtualThreads} for details.
+ * <p>
+ * Connection thread executes calls one by one by default, so a slow call holds up all calls of the client sent after
+ * it. With a thread-safe {@link ThreadModelType#Singleton} service object and clients tagging calls with call IDs, such
+ * as {@link ru.fractalizer.jrapidrpc.client.multiplexed.MultiplexedTCPClient}, calls of a connection may run in
+ * parallel on the call executor instead, see {@link #setMaxInFlightPerConnection(int)}. Replies are sent as calls
+ * complete, in any order.
+ * <p>
+ * Optional features, such as access log, compression or admission control, are set with setters before the server is
+ * started. Server listens on a TCP port unless given a server socket factory, such as the one of
+ * {@link ru.fractalizer.jrapidrpc.transport.UnixDomainSockets} for clients on the same host.
  */
 public class SimpleTCPServer implements TerminateSignaller {
 
+    private static final Logger logger = LoggerFactory.getLogger(SimpleTCPServer.class);
+
     private Serializer               serializer;
     private int                      port;
     private ExecutorService          executorService;
+    private ExecutorService          callExecutorService;
+    private ExecutorService          connectionCallExecutorService;
+    private boolean                  isConnectionCallExecutorOwned;
     private ThreadModelType          threadModelType;
     private ThreadPoolOverflowPolicy threadPoolOverflowPolicy;
     private int                      backlog;
     private InetAddress              bindAddr;
     private ServerSocket             socket;
     private Thread                   acceptor;
+    private AccessLog                accessLog;
+    private Compression              compression;
+    private AdmissionControl         admissionControl;
+    private int                      maxInFlightPerConnection;
+    private ServerSocketFactory      serverSocketFactory;
+    private RpcMetrics               metrics;
+    private ReflectionCache          reflectionCache;
+    private ResultCache              resultCache;
+
+    private CacheInvalidationPublisher invalidationPublisher;
 
     private boolean isTerminateRequested = false;
 
@@ -68,6 +115,7 @@ public class SimpleTCPServer implements TerminateSignaller {
         this.threadPoolOverflowPolicy = threadPoolOverflowPolicy;
         this.backlog = backlog;
         this.bindAddr = bindAddr;
+        this.maxInFlightPerConnection = 1;
     }
 
     /**
@@ -126,7 +174,97 @@ public class SimpleTCPServer implements TerminateSignaller {
     }
 
     /**
-     * Methos starts the server. First a new ServerSocket is created. Then Acceptor thread is created and starts to accept user connections
+     * Sets access log to record calls to. Must be called before the server is started
+     *
+     * @param accessLog Access log or null if calls should not be logged. Must not be shared with other servers
+     * @return This server
+     */
+    public SimpleTCPServer setAccessLog(AccessLog accessLog) {
+        checkNotStarted();
+        this.accessLog = accessLog;
+        return this;
+    }
+
+    /**
+     * Sets compression to agree on with clients offering it. Must be called before the server is started
+     *
+     * @param compression Compression or null if frames are never compressed
+     * @return This server
+     */
+    public SimpleTCPServer setCompression(Compression compression) {
+        checkNotStarted();
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Sets thread pool to run calls of parallel batches and calls of connections with more than one call in flight
+     * with. Only used with {@link ThreadModelType#Singleton}, calls to service object of a connection run one by one
+     * otherwise. Must be called before the server is started
+     *
+     * @param callExecutorService Thread pool or null to run batches with the thread pool of connections and calls of
+     *                            connections with a cached thread pool of the server. Must not be the thread pool of
+     *                            connections if calls of connections run in parallel
+     * @return This server
+     */
+    public SimpleTCPServer setCallExecutorService(ExecutorService callExecutorService) {
+        checkNotStarted();
+        this.callExecutorService = callExecutorService;
+        return this;
+    }
+
+    /**
+     * Sets admission control to refuse calls beyond concurrency limits with. Must be called before the server is
+     * started
+     *
+     * @param admissionControl Admission control or null if all calls are executed. Must not be shared with other
+     *                         servers
+     * @return This server
+     */
+    public SimpleTCPServer setAdmissionControl(AdmissionControl admissionControl) {
+        checkNotStarted();
+        this.admissionControl = admissionControl;
+        return this;
+    }
+
+    /**
+     * Sets maximum number of calls of a connection running in parallel on the call executor. Connection is not read
+     * while that many of its calls are running. Only used with {@link ThreadModelType#Singleton}. Must be called before
+     * the server is started
+     *
+     * @param maxInFlightPerConnection Maximum number of calls in flight or 1 if calls of a connection run one by one,
+     *                                 which is the default
+     * @return This server
+     */
+    public SimpleTCPServer setMaxInFlightPerConnection(int maxInFlightPerConnection) {
+        checkNotStarted();
+        this.maxInFlightPerConnection = maxInFlightPerConnection;
+        return this;
+    }
+
+    /**
+     * Sets factory to create server socket with from port, backlog and bind address, such as the one of
+     * {@link ru.fractalizer.jrapidrpc.transport.UnixDomainSockets}. Must be called before the server is started
+     *
+     * @param serverSocketFactory Factory or null to listen on a TCP port
+     * @return This server
+     */
+    public SimpleTCPServer setServerSocketFactory(ServerSocketFactory serverSocketFactory) {
+        checkNotStarted();
+        this.serverSocketFactory = serverSocketFactory;
+        return this;
+    }
+
+    private void checkNotStarted() {
+        if (acceptor != null) {
+            throw new IllegalStateException("Server is already started!");
+        }
+    }
+
+    /**
+     * Methos starts the server. First a new ServerSocket is created. Then Acceptor thread is created and starts to accept user connections.
+     * Server metrics are registered as JMX MBeans named after the port (or socket file), see
+     * {@link RpcMetrics#registerMBeans()}
      *
      * @param serviceInterface   An interface which is used in RPC communication (must be implemented by @see serviceObjectClass type)
      * @param serviceObjectClass Object type which instance is supposed to receive RPC requests
@@ -134,14 +272,54 @@ public class SimpleTCPServer implements TerminateSignaller {
      */
     public <T, V extends T> void start(Class<T> serviceInterface, Class<V> serviceObjectClass)
             throws ServerStartupException {
+        if (maxInFlightPerConnection > 1 && callExecutorService == executorService) {
+            //Connection threads would wait for their calls queued behind them once the pool is busy
+            throw new IllegalStateException(
+                    "Calls of connections must not run on thread pool of connections, set another one or null");
+        }
         try {
-            socket = new ServerSocket(this.port, this.backlog, this.bindAddr);
+            socket = serverSocketFactory != null ?
+                    serverSocketFactory.createServerSocket(this.port, this.backlog, this.bindAddr) :
+                    new ServerSocket(this.port, this.backlog, this.bindAddr);
         } catch (IOException e) {
             throw new ServerStartupException("Cannot create server socket!", e);
         }
+        reflectionCache = new ReflectionCache(serviceInterface);
+        invalidationPublisher = new CacheInvalidationPublisher();
+        //Server sockets of other transports have no port, but are still bound to some address
+        String name = "SimpleTCPServer:" +
+                (socket.getLocalPort() != -1 ? socket.getLocalPort() : socket.getLocalSocketAddress());
+        metrics = new RpcMetrics(name, reflectionCache);
+        metrics.setExecutorService(executorService);
+        try {
+            metrics.registerMBeans();
+        } catch (JMException e) {
+            logger.warn("Unable to register metrics MBeans", e);
+        }
+        if (reflectionCache.hasCacheableMethods()) {
+            if (serializer instanceof FrameSerializer) {
+                resultCache = new ResultCache(reflectionCache);
+            } else {
+                logger.warn("Serializer does not implement FrameSerializer, cacheable method replies are not cached");
+            }
+        }
+        if (accessLog != null) {
+            accessLog.start(reflectionCache, name);
+        }
+        if (admissionControl != null) {
+            admissionControl.start(reflectionCache);
+        }
+        connectionCallExecutorService = callExecutorService;
+        if (maxInFlightPerConnection > 1 && connectionCallExecutorService == null) {
+            connectionCallExecutorService = Executors.newCachedThreadPool();
+            isConnectionCallExecutorOwned = true;
+        }
         acceptor = new Thread(
-                new Acceptor<T, V>(this, socket, threadModelType, executorService, serializer, serviceInterface,
-                        serviceObjectClass, threadPoolOverflowPolicy));
+                new Acceptor<T, V>(this, socket, threadModelType, executorService,
+                        callExecutorService != null ? callExecutorService : executorService,
+                        connectionCallExecutorService, serializer, reflectionCache, serviceObjectClass,
+                        threadPoolOverflowPolicy, metrics, accessLog, resultCache, invalidationPublisher, compression,
+                        admissionControl, maxInFlightPerConnection));
         acceptor.start();
     }
 
@@ -162,9 +340,92 @@ public class SimpleTCPServer implements TerminateSignaller {
 
             //Closing sockets on all unfinished jobs causing them to exit
             for (Runnable job : unfinishedJobsList) {
-                ((Worker) job).closeClientSocket();
+                if (job instanceof Worker) {
+                    ((Worker) job).closeClientSocket();
+                }
             }
         }
+        //Workers are gone, so no more batches or calls are started
+        if (callExecutorService != null && callExecutorService != executorService) {
+            callExecutorService.shutdown();
+        }
+        if (isConnectionCallExecutorOwned) {
+            connectionCallExecutorService.shutdown();
+        }
+        metrics.close();
+        if (accessLog != null) {
+            accessLog.stop();
+        }
+    }
+
+    /**
+     * Returns server metrics. Use {@link RpcMetrics#addReporter} to have them reported periodically
+     *
+     * @return Metrics of the server or null if server was not started yet
+     */
+    public RpcMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns counters of the cache of {@link ru.fractalizer.jrapidrpc.api.RpcCacheable} method replies
+     *
+     * @return Snapshot of cache counters or null if replies are not cached
+     */
+    public ResultCacheStatistics getResultCacheStatistics() {
+        return resultCache != null ? resultCache.getStatistics() : null;
+    }
+
+    /**
+     * Drops all cached replies of a method, both in server cache and in caches of subscribed clients. Clients are only
+     * notified if serializer is a {@link FrameSerializer}
+     *
+     * @param methodName Name of the RPC method
+     * @throws IOException Is thrown if invalidation cannot be encoded
+     */
+    public void invalidateCache(String methodName) throws IOException {
+        short methodId = reflectionCache.getMethodId(methodName);
+        if (resultCache != null) {
+            resultCache.invalidate(methodId);
+        }
+        publish(new MsgCacheInvalidation(methodId));
+    }
+
+    /**
+     * Drops cached reply to a single call, both in server cache and in caches of subscribed clients. Needs a
+     * {@link FrameSerializer} to find out the key of the call
+     *
+     * @param methodName Name of the RPC method
+     * @param parameters Parameters of the call
+     * @throws IOException Is thrown if invalidation cannot be encoded
+     */
+    public void invalidateCacheEntry(String methodName, Object... parameters) throws IOException {
+        if (!(serializer instanceof FrameSerializer)) {
+            throw new UnsupportedOperationException("Serializer does not implement FrameSerializer!");
+        }
+        FrameSerializer frameSerializer = (FrameSerializer) serializer;
+        short methodId = reflectionCache.getMethodId(methodName);
+        ByteBuffer key;
+        try {
+            key = frameSerializer.getRpcRequestKey(
+                    frameSerializer.encodeRpcRequestFrame(new MsgRpcRequest(0, methodId, methodName, parameters)));
+        } catch (ProtocolDataException e) {
+            throw new IOException("Cannot find out key of the call", e);
+        }
+        if (resultCache != null) {
+            resultCache.invalidate(methodId, key);
+        }
+        byte[] keyBytes = new byte[key.remaining()];
+        key.duplicate().get(keyBytes);
+        publish(new MsgCacheInvalidation(methodId, keyBytes));
+    }
+
+    private void publish(MsgCacheInvalidation cacheInvalidation) throws IOException {
+        //Invalidation is encoded once for all subscribers
+        if (serializer instanceof FrameSerializer) {
+            invalidationPublisher.publish(((FrameSerializer) serializer).encodeRpcReplyFrame(
+                    new MsgRpcReply(cacheInvalidation)));
+        }
     }
 
     @Override
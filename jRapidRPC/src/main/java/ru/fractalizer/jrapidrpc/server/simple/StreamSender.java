@@ -0,0 +1,159 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.server.simple;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
+import ru.fractalizer.jrapidrpc.api.MsgRpcRequest;
+import ru.fractalizer.jrapidrpc.api.MsgRpcStreamChunk;
+import ru.fractalizer.jrapidrpc.api.MsgStreamCredit;
+import ru.fractalizer.jrapidrpc.api.ProtocolDataException;
+import ru.fractalizer.jrapidrpc.api.Serializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
+
+/**
+ * Sends stream returned by a streaming method as chunk replies. Chunks are only sent while client has credits, see
+ * {@link MsgStreamCredit}, so elements are produced no faster than client consumes them. Until the stream ends,
+ * client sends nothing but credits of the stream.
+ */
+class StreamSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamSender.class);
+
+    /**
+     * Maximum number of elements in a chunk
+     */
+    static final int CHUNK_SIZE = 64;
+
+    private final Serializer   serializer;
+    private final InputStream  inputStream;
+    private final OutputStream outputStream;
+    private final Lock         writeLock;
+
+    /**
+     * Default constructor
+     *
+     * @param serializer   Serializer to use
+     * @param inputStream  Stream to read credits from
+     * @param outputStream Stream to send chunks to
+     * @param writeLock    Lock serializing writes to outputStream
+     */
+    StreamSender(Serializer serializer, InputStream inputStream, OutputStream outputStream, Lock writeLock) {
+        super();
+        this.serializer = serializer;
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+        this.writeLock = writeLock;
+    }
+
+    /**
+     * Sends the stream and closes it
+     *
+     * @param callId   ID of the streaming call
+     * @param methodId ID of the streaming method
+     * @param stream   {@link Iterator}, {@link Stream} or null, which is sent as an empty stream
+     * @return Error message if stream failed while producing elements, null otherwise
+     * @throws IOException           Is thrown on any connection problem
+     * @throws ProtocolDataException If client sends anything but credits of the stream
+     */
+    String send(int callId, short methodId, Object stream) throws IOException, ProtocolDataException {
+        Iterator<?> iterator;
+        AutoCloseable resource;
+        if (stream instanceof Stream) {
+            iterator = ((Stream<?>) stream).iterator();
+            resource = (Stream<?>) stream;
+        } else {
+            iterator = stream != null ? (Iterator<?>) stream : Collections.emptyIterator();
+            resource = stream instanceof AutoCloseable ? (AutoCloseable) stream : null;
+        }
+        try {
+            return send(callId, methodId, iterator);
+        } finally {
+            if (resource != null) {
+                try {
+                    resource.close();
+                } catch (Exception e) {
+                    logger.warn("Unable to close stream returned by service object", e);
+                }
+            }
+        }
+    }
+
+    private String send(int callId, short methodId, Iterator<?> iterator) throws IOException, ProtocolDataException {
+        int credits = MsgStreamCredit.INITIAL_CREDITS;
+        List<Object> elements = new ArrayList<Object>(CHUNK_SIZE);
+        while (true) {
+            //Picking up credits which already arrived, waiting for them if there are none left
+            while (credits == 0 || inputStream.available() > 0) {
+                MsgStreamCredit credit = receiveCredit(callId);
+                if (credit.isCancel()) {
+                    send(new MsgRpcReply(callId, methodId, new MsgRpcStreamChunk(new Object[0], true)));
+                    return null;
+                }
+                credits += credit.getCredits();
+            }
+
+            boolean last;
+            try {
+                while (elements.size() < CHUNK_SIZE && iterator.hasNext()) {
+                    elements.add(iterator.next());
+                }
+                last = !iterator.hasNext();
+            } catch (RuntimeException e) {
+                String errorMessage = e.getMessage() != null ? e.getMessage() : e.toString();
+                send(new MsgRpcReply(callId, methodId, errorMessage, null));
+                return errorMessage;
+            }
+            send(new MsgRpcReply(callId, methodId, new MsgRpcStreamChunk(elements.toArray(), last)));
+            if (last) {
+                return null;
+            }
+            elements.clear();
+            credits--;
+        }
+    }
+
+    private MsgStreamCredit receiveCredit(int callId) throws IOException, ProtocolDataException {
+        MsgRpcRequest msgRpcRequest = serializer.receiveRpcRequest(inputStream);
+        if (msgRpcRequest.getStreamCredit() == null || msgRpcRequest.getCallId() != callId) {
+            throw new ProtocolDataException("Expected stream credit for call " + callId, null);
+        }
+        return msgRpcRequest.getStreamCredit();
+    }
+
+    private void send(MsgRpcReply msgRpcReply) throws IOException {
+        writeLock.lock();
+        try {
+            serializer.sendRpcReply(msgRpcReply, outputStream);
+            outputStream.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
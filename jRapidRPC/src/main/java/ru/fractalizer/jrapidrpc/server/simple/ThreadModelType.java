@@ -25,6 +25,8 @@ public enum ThreadModelType {
 
     /**
      * Only one instance of service object is created. All clients access the same instance of service object.
+     * If connections are served by virtual threads, guard its shared state with locks rather than
+     * <code>synchronized</code>, see {@link ru.fractalizer.jrapidrpc.tools.VirtualThreads}.
      */
     Singleton,
 
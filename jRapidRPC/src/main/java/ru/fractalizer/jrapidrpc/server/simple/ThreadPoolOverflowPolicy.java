@@ -19,7 +19,9 @@
 package ru.fractalizer.jrapidrpc.server.simple;
 
 /**
- * Provides control over how server reacts when executorService cannot accept any more jobs
+ * Provides control over how server reacts when executorService cannot accept any more jobs. Either way is a blunt
+ * response to overload: to refuse excess calls rather than connections, give the server an unbounded executor and an
+ * {@link ru.fractalizer.jrapidrpc.server.admission.AdmissionControl}
  */
 public enum ThreadPoolOverflowPolicy {
     /**
@@ -20,36 +20,82 @@ package ru.fractalizer.jrapidrpc.server.simple;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.fractalizer.jrapidrpc.api.FrameSerializer;
+import ru.fractalizer.jrapidrpc.api.MsgCacheInvalidation;
+import ru.fractalizer.jrapidrpc.api.MsgCompressionOffer;
 import ru.fractalizer.jrapidrpc.api.MsgRpcReply;
 import ru.fractalizer.jrapidrpc.api.MsgRpcRequest;
 import ru.fractalizer.jrapidrpc.api.ProtocolDataException;
 import ru.fractalizer.jrapidrpc.api.Serializer;
-import ru.fractalizer.jrapidrpc.tools.ReflectionCache;
+import ru.fractalizer.jrapidrpc.compression.CompressingOutputStream;
+import ru.fractalizer.jrapidrpc.compression.Compression;
+import ru.fractalizer.jrapidrpc.compression.CompressionCodec;
+import ru.fractalizer.jrapidrpc.compression.DecompressingInputStream;
+import ru.fractalizer.jrapidrpc.metrics.CountingInputStream;
+import ru.fractalizer.jrapidrpc.metrics.CountingOutputStream;
+import ru.fractalizer.jrapidrpc.metrics.MethodMetrics;
+import ru.fractalizer.jrapidrpc.metrics.RpcMetrics;
+import ru.fractalizer.jrapidrpc.server.AccessLog;
+import ru.fractalizer.jrapidrpc.server.RequestDispatcher;
+import ru.fractalizer.jrapidrpc.tools.ResultCache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Thread to process client connections
+ * Thread to process client connections. By default the thread executes calls of its connection one by one: it reads a
+ * request, invokes it and writes the reply before reading the next one. If constructed with a call executor, calls
+ * carrying a call ID are submitted to it instead and the thread goes on reading, so a slow call does not hold up calls
+ * after it. Their replies are written as calls complete, matched by the client with the call ID. Calls without call ID
+ * and streaming calls still run on the connection thread.
  */
 class Worker implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(Worker.class);
 
+    /**
+     * Seconds to wait for calls of a closed connection to complete before its thread is released
+     */
+    private static final long CALL_DRAIN_TIMEOUT_SECONDS = 30;
+
     private static AtomicLong threadNumber = new AtomicLong(0);
 
     private TerminateSignaller terminateSignaller;
     private Socket             clientSocket;
     private Serializer         serializer;
-    private ReflectionCache    reflectionCache;
+    private RequestDispatcher  requestDispatcher;
     private Object             serviceObject;
+    private RpcMetrics         metrics;
+    private AccessLog          accessLog;
+    private ResultCache        resultCache;
+    private FrameSerializer    frameSerializer;
+
+    private CacheInvalidationPublisher invalidationPublisher;
+    private CountingOutputStream       outputStream;
+
+    /**
+     * Serializes writes of replies and pushed invalidations. Not a monitor: blocking socket write while holding one
+     * would pin a virtual thread to its carrier
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private Compression              compression;
+    private CompressingOutputStream  compressingStream;
+    private DecompressingInputStream decompressingStream;
 
+    private Executor  callExecutor;
+    private int       maxInFlight;
+    private Semaphore inFlight;
 
     /**
      * Default constructor
@@ -57,45 +103,90 @@ class Worker implements Runnable {
      * @param terminateSignaller Signaller to use when checking for termination requests
      * @param clientSocket       Connected client socket through which we can communicate to client
      * @param serializer         Serializer to use
-     * @param reflectionCache    Reflection cache to use
+     * @param requestDispatcher  Dispatcher to invoke service object methods with
      * @param serviceObject      Service object to dispatch RPC requests to
+     * @param metrics            Metrics to record calls to
+     * @param accessLog          Access log to record calls to or null if calls are not logged
+     * @param resultCache        Cache of replies or null if replies are not cached. If set, serializer must be a
+     *                           {@link FrameSerializer}
+     * @param invalidationPublisher Publisher to subscribe connection to if client asks for cache invalidations
+     * @param compression        Compression to agree on if client offers it or null if frames are never compressed
+     * @param callExecutor       Executor to run calls of the connection on or null if they run one by one on the
+     *                           connection thread. Service object must be thread-safe if set
+     * @param maxInFlight        Maximum number of calls of the connection running on callExecutor at once. Connection
+     *                           is not read while that many calls are running
      */
     Worker(TerminateSignaller terminateSignaller, Socket clientSocket, Serializer serializer,
-           ReflectionCache reflectionCache, Object serviceObject) {
+           RequestDispatcher requestDispatcher, Object serviceObject, RpcMetrics metrics, AccessLog accessLog,
+           ResultCache resultCache, CacheInvalidationPublisher invalidationPublisher, Compression compression,
+           Executor callExecutor, int maxInFlight) {
         super();
         this.terminateSignaller = terminateSignaller;
         this.clientSocket = clientSocket;
         this.serializer = serializer;
-        this.reflectionCache = reflectionCache;
+        this.requestDispatcher = requestDispatcher;
         this.serviceObject = serviceObject;
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+        this.resultCache = resultCache;
+        this.frameSerializer = resultCache != null ? (FrameSerializer) serializer : null;
+        this.invalidationPublisher = invalidationPublisher;
+        this.compression = compression;
+        if (callExecutor != null) {
+            this.callExecutor = callExecutor;
+            this.maxInFlight = maxInFlight;
+            this.inFlight = new Semaphore(maxInFlight);
+        }
     }
 
     @Override
     public void run() {
         Thread.currentThread().setName("SimpleTCPServer Worker Thread #" + threadNumber.incrementAndGet());
+        metrics.connectionOpened();
+        try {
+            serve();
+        } finally {
+            if (inFlight != null) {
+                awaitSubmittedCalls();
+            }
+            invalidationPublisher.unsubscribe(this);
+            metrics.connectionClosed();
+        }
+    }
 
+    private void serve() {
         //Calling prelogin method if available
-        Method afterConnectMethod = reflectionCache.getAfterConnectMethod();
-        if (afterConnectMethod != null) {
-            try {
-                if (!((Boolean) afterConnectMethod.invoke(serviceObject, clientSocket))) {
-                    logger.info("afterConnectMethod method returned false. Closing client connection and exitting.");
-                    closeClientSocket();
-                    return;
-                }
-            } catch (Exception e) {
-                logger.error("Exception while calling afterConnectMethod on serviceObject!", e);
+        try {
+            if (!requestDispatcher.afterConnect(serviceObject, clientSocket)) {
+                logger.info("afterConnectMethod method returned false. Closing client connection and exitting.");
                 closeClientSocket();
                 return;
             }
+        } catch (Exception e) {
+            logger.error("Exception while calling afterConnectMethod on serviceObject!", e);
+            closeClientSocket();
+            return;
         }
 
         //Fetching socket data streams
-        InputStream inputStream;
-        OutputStream outputStream;
+        CountingInputStream inputStream;
         try {
-            inputStream = clientSocket.getInputStream();
-            outputStream = clientSocket.getOutputStream();
+            //Stream chunks are written one after another without waiting for the client, so Nagle's algorithm would
+            //hold each of them until the previous one is acknowledged
+            clientSocket.setTcpNoDelay(true);
+            if (compression != null) {
+                //Frames are sent raw until client offers compression
+                decompressingStream = new DecompressingInputStream(
+                        new BufferedInputStream(clientSocket.getInputStream()), compression.getMaxFrameSize(), metrics);
+                compressingStream = new CompressingOutputStream(
+                        new BufferedOutputStream(clientSocket.getOutputStream()), compression.getThreshold(), metrics);
+                inputStream = new CountingInputStream(decompressingStream);
+                outputStream = new CountingOutputStream(compressingStream);
+            } else {
+                inputStream = new CountingInputStream(clientSocket.getInputStream());
+                //Buffered, so that each reply leaves in a single write
+                outputStream = new CountingOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+            }
         } catch (SocketException e) {
             //Graceful disconnect
             closeClientSocket();
@@ -105,13 +196,26 @@ class Worker implements Runnable {
             closeClientSocket();
             return;
         }
+        StreamSender streamSender = new StreamSender(serializer, inputStream, outputStream, writeLock);
 
         //Client message dispatching cycle
         while (!terminateSignaller.IsTerminateRequested()) {
             //Reading request
             MsgRpcRequest msgRpcRequest;
+            ByteBuffer cacheKey = null;
+            long bytesIn = inputStream.getByteCount();
+            inputStream.startMessage();
             try {
-                msgRpcRequest = serializer.receiveRpcRequest(inputStream);
+                if (resultCache != null) {
+                    //Encoded request is the key of the cached reply
+                    byte[] requestFrame = frameSerializer.receiveRpcRequestFrame(inputStream);
+                    msgRpcRequest = frameSerializer.decodeRpcRequestFrame(requestFrame);
+                    if (msgRpcRequest.hasMethodId() && resultCache.isCacheable(msgRpcRequest.getMethodId())) {
+                        cacheKey = frameSerializer.getRpcRequestKey(requestFrame);
+                    }
+                } else {
+                    msgRpcRequest = serializer.receiveRpcRequest(inputStream);
+                }
             } catch (ProtocolDataException e) {
                 if (clientSocket.isClosed()) {
                     logger.error("Error receiving RPC request stream", e);
@@ -124,49 +228,245 @@ class Worker implements Runnable {
                 return;
             }
 
-            logger.info("Received request to execute method '{}'", msgRpcRequest.getMethodName());
-            //Invoking method
-            Method method = reflectionCache.getMethodMethod(msgRpcRequest.getMethodName());
-            Object methodResult;
-            try {
-                methodResult = method.invoke(serviceObject, msgRpcRequest.getMethodParameters());
-            } catch (IllegalAccessException e) {
-                logger.error("IllegalAccessException when invoking method with name '" + msgRpcRequest.getMethodName() +
-                        "' on service object of type '" + serviceObject.getClass().getName() + "'", e);
-                closeClientSocket();
+            if (msgRpcRequest.hasMethodId() &&
+                    msgRpcRequest.getMethodId() == MsgCacheInvalidation.SUBSCRIBE_METHOD_ID) {
+                if (!subscribe(msgRpcRequest)) {
+                    return;
+                }
+                continue;
+            }
+            if (msgRpcRequest.getCompressionOffer() != null) {
+                if (!negotiateCompression(msgRpcRequest)) {
+                    return;
+                }
+                continue;
+            }
+            if (msgRpcRequest.getStreamCredit() != null) {
+                //Credit granted before its stream ended
+                continue;
+            }
+
+            long decodeNanos = System.nanoTime() - inputStream.getFirstReadNanos();
+            bytesIn = inputStream.getByteCount() - bytesIn;
+            if (inFlight != null && msgRpcRequest.getCallId() != 0 && !requestDispatcher.isStreaming(msgRpcRequest)) {
+                submit(msgRpcRequest, cacheKey, decodeNanos, bytesIn);
+            } else if (!execute(msgRpcRequest, cacheKey, decodeNanos, bytesIn, streamSender)) {
                 return;
+            }
+        }
+        logger.info("terminateSignaller.IsTerminateRequested() flag set. Terminating.");
+    }
+
+    /**
+     * Waits for every submitted call to reply or fail to, so that connection is not done before its calls. Gives up
+     * after {@link #CALL_DRAIN_TIMEOUT_SECONDS} or on interruption
+     */
+    private void awaitSubmittedCalls() {
+        try {
+            if (!inFlight.tryAcquire(maxInFlight, CALL_DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Calls of closed connection are still running after {} seconds",
+                        CALL_DRAIN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            } catch (InvocationTargetException e) {
-                MsgRpcReply rpcReply = new MsgRpcReply(e.getCause().getMessage(), null);
+    /**
+     * Runs the call on call executor, or on the connection thread if executor refuses it. Waits while the connection
+     * has maximum number of calls in flight
+     */
+    private void submit(final MsgRpcRequest msgRpcRequest, final ByteBuffer cacheKey, final long decodeNanos,
+                        final long bytesIn) {
+        inFlight.acquireUninterruptibly();
+        Runnable call = new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    serializer.sendRpcReply(rpcReply, outputStream);
-                } catch (IOException e1) {
-                    logger.error("Error sending RPC reply containing error data for method with name + " +
-                            msgRpcRequest.getMethodName(), e1);
-                    closeClientSocket();
-                    return;
+                    execute(msgRpcRequest, cacheKey, decodeNanos, bytesIn, null);
+                } finally {
+                    inFlight.release();
                 }
-                continue; //Attempting to continue execution
+            }
+        };
+        try {
+            callExecutor.execute(call);
+        } catch (RejectedExecutionException e) {
+            call.run();
+        }
+    }
+
+    /**
+     * Invokes the call unless its reply is cached and sends reply
+     *
+     * @param streamSender Sender of stream chunks or null if call does not return a stream
+     * @return False if connection was closed
+     */
+    private boolean execute(MsgRpcRequest msgRpcRequest, ByteBuffer cacheKey, long decodeNanos, long bytesIn,
+                            StreamSender streamSender) {
+        long decodedNanos = System.nanoTime();
+        MethodMetrics methodMetrics = metrics.getMethodMetrics(msgRpcRequest);
+        if (methodMetrics != null) {
+            methodMetrics.recordDecode(decodeNanos, bytesIn);
+            methodMetrics.callStarted();
+        }
+
+        //Invoking method unless its reply is cached. Generation is taken first, so that reply is not cached if server
+        //invalidates the method while it runs
+        long cacheGeneration = cacheKey != null ? resultCache.getGeneration(msgRpcRequest.getMethodId()) : 0;
+        byte[] replyFrame = cacheKey != null ? resultCache.get(msgRpcRequest.getMethodId(), cacheKey) : null;
+        boolean streaming = requestDispatcher.isStreaming(msgRpcRequest);
+        MsgRpcReply rpcReply = null;
+        if (replyFrame == null) {
+            try {
+                rpcReply = streaming ? requestDispatcher.dispatchStreaming(serviceObject, msgRpcRequest) :
+                        requestDispatcher.dispatch(serviceObject, msgRpcRequest);
             } catch (Exception e) {
-                logger.error("Unexpected exception when invoking method with name '" + msgRpcRequest.getMethodName() +
-                        "' on service object of type '" + serviceObject.getClass().getName() + "'", e);
+                if (methodMetrics != null) {
+                    methodMetrics.recordInvoke(System.nanoTime() - decodedNanos, true);
+                }
+                logger.error("Unexpected exception when invoking method with name '" +
+                        msgRpcRequest.getMethodName() + "' on service object of type '" +
+                        serviceObject.getClass().getName() + "'", e);
                 closeClientSocket();
-                return;
+                return false;
             }
+        }
 
-            //Sending reply
-            MsgRpcReply rpcReply = new MsgRpcReply(null, methodResult);
-            try {
-                serializer.sendRpcReply(rpcReply, outputStream);
-            } catch (IOException e) {
+        long invokedNanos = System.nanoTime();
+        String errorMessage = rpcReply != null ? rpcReply.getErrorMessage() : null;
+        if (methodMetrics != null) {
+            methodMetrics.recordInvoke(invokedNanos - decodedNanos, errorMessage != null);
+        }
+
+        //Sending reply. Cache invalidations may be pushed to the same stream from other threads
+        long bytesOut;
+        try {
+            if (streaming && errorMessage == null) {
+                bytesOut = outputStream.getByteCount();
+                errorMessage = streamSender.send(msgRpcRequest.getCallId(), rpcReply.getMethodId(),
+                        rpcReply.getMethodReturnValue());
+                bytesOut = outputStream.getByteCount() - bytesOut;
+            } else if (replyFrame == null && cacheKey != null && errorMessage == null) {
+                replyFrame = frameSerializer.encodeRpcReplyFrame(rpcReply);
+                resultCache.put(msgRpcRequest.getMethodId(), cacheKey, replyFrame, cacheGeneration);
+                bytesOut = sendReply(msgRpcRequest, null, replyFrame);
+            } else {
+                bytesOut = sendReply(msgRpcRequest, rpcReply, replyFrame);
+            }
+        } catch (IOException e) {
+            //Calls still running when connection is closed fail to reply, which is no news
+            if (!clientSocket.isClosed()) {
                 logger.error("Error sending RPC reply for method with name + " + msgRpcRequest.getMethodName(), e);
-                closeClientSocket();
-                return;
             }
-            logger.info("Sent '{}' as a result of execution of the method '{}'", methodResult,
-                    msgRpcRequest.getMethodName());
+            closeClientSocket();
+            return false;
+        } catch (ProtocolDataException e) {
+            logger.error("Unexpected request while streaming reply of method " + msgRpcRequest.getMethodName(), e);
+            closeClientSocket();
+            return false;
+        }
+
+        if (methodMetrics != null) {
+            long encodeNanos = System.nanoTime() - invokedNanos;
+            methodMetrics.recordEncode(encodeNanos, bytesOut);
+            if (accessLog != null) {
+                accessLog.record(clientSocket.getInetAddress(), methodMetrics.getMethodId(),
+                        msgRpcRequest.getCallId(), decodeNanos, invokedNanos - decodedNanos, encodeNanos, bytesIn,
+                        bytesOut, errorMessage);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends reply or, if set, cached reply frame
+     *
+     * @return Number of bytes sent
+     */
+    private long sendReply(MsgRpcRequest msgRpcRequest, MsgRpcReply rpcReply, byte[] replyFrame) throws IOException {
+        writeLock.lock();
+        try {
+            long bytesOut = outputStream.getByteCount();
+            if (replyFrame != null) {
+                frameSerializer.sendRpcReplyFrame(replyFrame, msgRpcRequest.getCallId(), outputStream);
+            } else {
+                serializer.sendRpcReply(rpcReply, outputStream);
+            }
+            outputStream.flush();
+            return outputStream.getByteCount() - bytesOut;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Subscribes connection to cache invalidations and confirms it to the client
+     *
+     * @return False if connection was closed
+     */
+    private boolean subscribe(MsgRpcRequest msgRpcRequest) {
+        invalidationPublisher.subscribe(this);
+        try {
+            writeLock.lock();
+            try {
+                serializer.sendRpcReply(new MsgRpcReply(msgRpcRequest.getCallId(), null, null), outputStream);
+                outputStream.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            logger.error("Error confirming cache invalidation subscription", e);
+            closeClientSocket();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Picks codec from the ones client offers and starts compressing frames with it. Client sends nothing else until
+     * it receives the reply, so frames it sends after the reply are the only compressed ones
+     *
+     * @return False if connection is closed
+     */
+    private boolean negotiateCompression(MsgRpcRequest msgRpcRequest) {
+        CompressionCodec codec = compression != null ?
+                compression.select(msgRpcRequest.getCompressionOffer().getCodecNames()) : null;
+        try {
+            writeLock.lock();
+            try {
+                serializer.sendRpcReply(new MsgRpcReply(msgRpcRequest.getCallId(), MsgCompressionOffer.METHOD_ID,
+                        null, codec != null ? codec.getName() : null), outputStream);
+                outputStream.flush();
+                if (codec != null) {
+                    compressingStream.setCodec(codec);
+                    decompressingStream.setCodec(codec);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            logger.error("Error replying to compression offer", e);
+            closeClientSocket();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes encoded cache invalidation to the client. Called from the thread invalidating cache
+     *
+     * @param frame Encoded invalidation
+     * @throws IOException Is thrown on any connection problem
+     */
+    void push(byte[] frame) throws IOException {
+        writeLock.lock();
+        try {
+            outputStream.write(frame);
+            outputStream.flush();
+        } finally {
+            writeLock.unlock();
         }
-        logger.info("terminateSignaller.IsTerminateRequested() flag set. Terminating.");
     }
 
     public void closeClientSocket() {
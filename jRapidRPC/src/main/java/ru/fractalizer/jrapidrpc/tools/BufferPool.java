@@ -0,0 +1,182 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.tools;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of byte buffers shared between threads. Buffers are pooled in power of two size classes between
+ * minimum and maximum buffer size. Larger buffers are allocated on demand and dropped on release, so a single large
+ * message does not keep its memory forever. Memory kept by the pool never exceeds the configured cap: buffers
+ * released above it are dropped too. Pool is thread-safe.
+ */
+public final class BufferPool {
+
+    /**
+     * Default size of the smallest size class
+     */
+    public static final int DEFAULT_MIN_BUFFER_SIZE = 512;
+
+    /**
+     * Default size of the largest size class
+     */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Default limit of memory kept by the pool
+     */
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 16 * 1024 * 1024;
+
+    private final boolean direct;
+    private final int     minBufferSize;
+    private final int     maxBufferSize;
+    private final long    maxRetainedBytes;
+
+    /**
+     * Free buffers of each size class. Used as stacks, so that recently used (and cache-hot) buffers go first
+     */
+    private final List<ConcurrentLinkedDeque<ByteBuffer>> freeBuffers;
+
+    private final AtomicLong    retainedBytes       = new AtomicLong(0);
+    private final AtomicInteger retainedBufferCount = new AtomicInteger(0);
+    private final AtomicLong    hitCount            = new AtomicLong(0);
+    private final AtomicLong    missCount           = new AtomicLong(0);
+    private final AtomicLong    trimmedCount        = new AtomicLong(0);
+
+    /**
+     * Default constructor
+     *
+     * @param direct           True to pool direct (off-heap) buffers, false to pool heap ones
+     * @param minBufferSize    Size of the smallest size class. Rounded up to a power of two
+     * @param maxBufferSize    Size of the largest size class. Rounded up to a power of two. Larger buffers are not
+     *                         pooled
+     * @param maxRetainedBytes Maximum total capacity of free buffers kept by the pool
+     */
+    public BufferPool(boolean direct, int minBufferSize, int maxBufferSize, long maxRetainedBytes) {
+        super();
+        if (minBufferSize < 1 || maxBufferSize < minBufferSize || maxBufferSize > (1 << 30)) {
+            throw new IllegalArgumentException("Buffer sizes must satisfy 0 < minBufferSize <= maxBufferSize <= 2^30");
+        }
+        this.direct = direct;
+        this.minBufferSize = roundUpToPowerOfTwo(minBufferSize);
+        this.maxBufferSize = roundUpToPowerOfTwo(maxBufferSize);
+        this.maxRetainedBytes = maxRetainedBytes;
+
+        int sizeClassCount = sizeClass(this.maxBufferSize) + 1;
+        freeBuffers = new ArrayList<ConcurrentLinkedDeque<ByteBuffer>>(sizeClassCount);
+        for (int i = 0; i < sizeClassCount; i++) {
+            freeBuffers.add(new ConcurrentLinkedDeque<ByteBuffer>());
+        }
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param direct True to pool direct (off-heap) buffers, false to pool heap ones
+     */
+    public BufferPool(boolean direct) {
+        this(direct, DEFAULT_MIN_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * Takes a buffer from the pool or allocates a new one if there is no free buffer of a suitable size
+     *
+     * @param minCapacity Minimum capacity of the buffer
+     * @return Cleared buffer. Its capacity can be larger than requested. Heap buffers are backed by an array of the
+     *         same size with zero offset
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > maxBufferSize) {
+            missCount.incrementAndGet();
+            return allocate(minCapacity);
+        }
+
+        int sizeClass = sizeClass(minCapacity);
+        ByteBuffer buffer = freeBuffers.get(sizeClass).pollFirst();
+        if (buffer == null) {
+            missCount.incrementAndGet();
+            return allocate(minBufferSize << sizeClass);
+        }
+        retainedBytes.addAndGet(-buffer.capacity());
+        retainedBufferCount.decrementAndGet();
+        hitCount.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns buffer to the pool. Buffer must not be used by the caller after that. Buffers larger than the largest
+     * size class, buffers not allocated by a pool and buffers not fitting under the memory cap are dropped.
+     *
+     * @param buffer Buffer to return
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        boolean pooled = buffer.isDirect() == direct && capacity >= minBufferSize && capacity <= maxBufferSize &&
+                Integer.bitCount(capacity) == 1 && (direct || buffer.array().length == capacity);
+        if (!pooled) {
+            trimmedCount.incrementAndGet();
+            return;
+        }
+        if (retainedBytes.addAndGet(capacity) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-capacity);
+            trimmedCount.incrementAndGet();
+            return;
+        }
+        retainedBufferCount.incrementAndGet();
+        freeBuffers.get(sizeClass(capacity)).offerFirst(buffer);
+    }
+
+    /**
+     * @return True if pool holds direct (off-heap) buffers
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Returns pool counters
+     *
+     * @return Snapshot of pool counters
+     */
+    public BufferPoolStatistics getStatistics() {
+        return new BufferPoolStatistics(hitCount.get(), missCount.get(), trimmedCount.get(),
+                retainedBufferCount.get(), retainedBytes.get());
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private int sizeClass(int capacity) {
+        if (capacity <= minBufferSize) {
+            return 0;
+        }
+        return 1 + Integer.numberOfLeadingZeros(minBufferSize) - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        return value == 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+}
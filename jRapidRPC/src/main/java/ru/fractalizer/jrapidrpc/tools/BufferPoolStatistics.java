@@ -0,0 +1,90 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.tools;
+
+/**
+ * Snapshot of buffer pool counters. Counters are cumulative since the pool was created.
+ */
+public final class BufferPoolStatistics {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long trimmedCount;
+    private final int  retainedBufferCount;
+    private final long retainedBytes;
+
+    BufferPoolStatistics(long hitCount, long missCount, long trimmedCount, int retainedBufferCount,
+                         long retainedBytes) {
+        super();
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.trimmedCount = trimmedCount;
+        this.retainedBufferCount = retainedBufferCount;
+        this.retainedBytes = retainedBytes;
+    }
+
+    /**
+     * @return Number of buffers taken from the pool
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return Number of buffers allocated, because there was no free buffer of a suitable size
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return Share of requests served from the pool, between 0 and 1
+     */
+    public double getHitRatio() {
+        long requestCount = hitCount + missCount;
+        return requestCount == 0 ? 0 : (double) hitCount / requestCount;
+    }
+
+    /**
+     * @return Number of released buffers dropped, because they were oversized or did not fit under the memory cap
+     */
+    public long getTrimmedCount() {
+        return trimmedCount;
+    }
+
+    /**
+     * @return Number of free buffers kept by the pool
+     */
+    public int getRetainedBufferCount() {
+        return retainedBufferCount;
+    }
+
+    /**
+     * @return Total capacity of free buffers kept by the pool
+     */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d, misses=%d, hitRatio=%.3f, trimmed=%d, retainedBuffers=%d, retainedBytes=%d",
+                hitCount, missCount, getHitRatio(), trimmedCount, retainedBufferCount, retainedBytes);
+    }
+}
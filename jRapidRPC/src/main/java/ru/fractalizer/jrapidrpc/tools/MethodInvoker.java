@@ -0,0 +1,37 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.tools;
+
+/**
+ * Calls a single RPC method on a service object. Instances are created once per method by {@link ReflectionCache} and
+ * are thread-safe.
+ */
+public interface MethodInvoker {
+
+    /**
+     * Calls the method
+     *
+     * @param serviceObject Object to call the method on
+     * @param args          Method arguments. May be null for methods without parameters
+     * @return Method return value, boxed if primitive. Null for void methods
+     * @throws Throwable Whatever the method throws. Is thrown as is, without wrapping into
+     *                   {@link java.lang.reflect.InvocationTargetException}
+     */
+    Object invoke(Object serviceObject, Object[] args) throws Throwable;
+}
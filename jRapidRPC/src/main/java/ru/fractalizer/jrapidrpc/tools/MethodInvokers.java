@@ -0,0 +1,285 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Creates {@link MethodInvoker}s. Where possible, an invoker is a class spun by {@link LambdaMetafactory} which calls
+ * the interface method directly, so JIT sees a plain interface call without access checks, argument array copying
+ * and exception wrapping of {@link Method#invoke(Object, Object...)}. Invokers for methods with more than
+ * {@value #MAX_DIRECT_ARITY} parameters, or for interfaces not visible from the library class loader, fall back to
+ * reflection.
+ */
+final class MethodInvokers {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodInvokers.class);
+
+    /**
+     * Maximum number of method parameters for which a direct invoker is created
+     */
+    static final int MAX_DIRECT_ARITY = 5;
+
+    private static final Class<?>[] INVOKER_INTERFACES = {Invoker0.class, Invoker1.class, Invoker2.class,
+            Invoker3.class, Invoker4.class, Invoker5.class};
+
+    private static final Class<?>[] VOID_INVOKER_INTERFACES = {VoidInvoker0.class, VoidInvoker1.class,
+            VoidInvoker2.class, VoidInvoker3.class, VoidInvoker4.class, VoidInvoker5.class};
+
+    private MethodInvokers() {
+        super();
+    }
+
+    /**
+     * Creates invoker for the method
+     *
+     * @param method Interface method to call
+     * @return Invoker for the method
+     */
+    static MethodInvoker create(Method method) {
+        if (method.getParameterTypes().length <= MAX_DIRECT_ARITY && isVisible(method)) {
+            try {
+                return createDirect(method);
+            } catch (Throwable e) {
+                logger.warn("Unable to create direct invoker for method '" + method.getName() +
+                        "', falling back to reflection", e);
+            }
+        }
+        return createReflective(method);
+    }
+
+    private static MethodInvoker createDirect(Method method) throws Throwable {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        boolean isVoid = method.getReturnType() == void.class;
+        Class<?> invokerInterface = (isVoid ? VOID_INVOKER_INTERFACES : INVOKER_INTERFACES)[parameterTypes.length];
+        Class<?> samReturnType = isVoid ? void.class : Object.class;
+
+        //Erased signature of invoker interface method and its specialization for this particular method
+        Class<?>[] samParameterTypes = new Class<?>[parameterTypes.length + 1];
+        Class<?>[] instantiatedParameterTypes = new Class<?>[parameterTypes.length + 1];
+        samParameterTypes[0] = Object.class;
+        instantiatedParameterTypes[0] = method.getDeclaringClass();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            samParameterTypes[i + 1] = Object.class;
+            instantiatedParameterTypes[i + 1] = box(parameterTypes[i]);
+        }
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle implementation = lookup.unreflect(method);
+        CallSite callSite = LambdaMetafactory.metafactory(lookup, "call", MethodType.methodType(invokerInterface),
+                MethodType.methodType(samReturnType, samParameterTypes), implementation,
+                MethodType.methodType(samReturnType, instantiatedParameterTypes));
+        return (MethodInvoker) callSite.getTarget().invoke();
+    }
+
+    private static MethodInvoker createReflective(final Method method) {
+        try {
+            method.setAccessible(true);
+        } catch (RuntimeException e) {
+            //Access checks will be done on each call then
+        }
+        return new MethodInvoker() {
+            @Override
+            public Object invoke(Object serviceObject, Object[] args) throws Throwable {
+                try {
+                    return method.invoke(serviceObject, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        };
+    }
+
+    /**
+     * Spun invoker classes live in the library class loader, so everything they refer to has to be visible from it
+     */
+    private static boolean isVisible(Method method) {
+        if (!isVisible(method.getDeclaringClass())) {
+            return false;
+        }
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            if (!isVisible(parameterType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isVisible(Class<?> type) {
+        if (type.isPrimitive()) {
+            return true;
+        }
+        try {
+            return Class.forName(type.getName(), false, MethodInvokers.class.getClassLoader()) == type;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static Class<?> box(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        }
+        if (type == int.class) {
+            return Integer.class;
+        } else if (type == long.class) {
+            return Long.class;
+        } else if (type == boolean.class) {
+            return Boolean.class;
+        } else if (type == double.class) {
+            return Double.class;
+        } else if (type == float.class) {
+            return Float.class;
+        } else if (type == short.class) {
+            return Short.class;
+        } else if (type == byte.class) {
+            return Byte.class;
+        } else {
+            return Character.class;
+        }
+    }
+
+    //Functional interfaces implemented by spun invokers, one per parameter count. Their single abstract method takes
+    //parameters one by one, so that LambdaMetafactory can cast and unbox each of them to the exact parameter type
+
+    interface Invoker0 extends MethodInvoker {
+        Object call(Object serviceObject) throws Throwable;
+
+        @Override
+        default Object invoke(Object serviceObject, Object[] args) throws Throwable {
+            return call(serviceObject);
+        }
+    }
+
+    interface Invoker1 extends MethodInvoker {
+        Object call(Object serviceObject, Object arg0) throws Throwable;
+
+        @Override
+        default Object invoke(Object serviceObject, Object[] args) throws Throwable {
+            return call(serviceObject, args[0]);
+        }
+    }
+
+    interface Invoker2 extends MethodInvoker {
+        Object call(Object serviceObject, Object arg0, Object arg1) throws Throwable;
+
+        @Override
+        default Object invoke(Object serviceObject, Object[] args) throws Throwable {
+            return call(serviceObject, args[0], args[1]);
+        }
+    }
+
+    interface Invoker3 extends MethodInvoker {
+        Object call(Object serviceObject, Object arg0, Object arg1, Object arg2) throws Throwable;
+
+        @Override
+        default Object invoke(Object serviceObject, Object[] args) throws Throwable {
+            return call(serviceObject, args[0], args[1], args[2]);
+        }
+    }
+
+    interface Invoker4 extends MethodInvoker {
+        Object call(Object serviceObject, Object arg0, Object arg1, Object arg2, Object arg3) throws Throwable;
+
+        @Override
+        default Object invoke(Object serviceObject, Object[] args) throws Throwable {
+            return call(serviceObject, args[0], args[1], args[2], args[3]);
+        }
+    }
+
+    interface Invoker5 extends MethodInvoker {
+        Object call(Object serviceObject, Object arg0, Object arg1, Object arg2, Object arg3, Object arg4)
+                throws Throwable;
+
+        @Override
+        default Object invoke(Object serviceObject, Object[] args) throws Throwable {
+            return call(serviceObject, args[0], args[1], args[2], args[3], args[4]);
+        }
+    }
+
+    interface VoidInvoker0 extends MethodInvoker {
+        void call(Object serviceObject) throws Throwable;
+
+        @Override
+        default Object invoke(Object serviceObject, Object[] args) throws Throwable {
+            call(serviceObject);
+            return null;
+        }
+    }
+
+    interface VoidInvoker1 extends MethodInvoker {
+        void call(Object serviceObject, Object arg0) throws Throwable;
+
+        @Override
+        default Object invoke(Object serviceObject, Object[] args) throws Throwable {
+            call(serviceObject, args[0]);
+            return null;
+        }
+    }
+
+    interface VoidInvoker2 extends MethodInvoker {
+        void call(Object serviceObject, Object arg0, Object arg1) throws Throwable;
+
+        @Override
+        default Object invoke(Object serviceObject, Object[] args) throws Throwable {
+            call(serviceObject, args[0], args[1]);
+            return null;
+        }
+    }
+
+    interface VoidInvoker3 extends MethodInvoker {
+        void call(Object serviceObject, Object arg0, Object arg1, Object arg2) throws Throwable;
+
+        @Override
+        default Object invoke(Object serviceObject, Object[] args) throws Throwable {
+            call(serviceObject, args[0], args[1], args[2]);
+            return null;
+        }
+    }
+
+    interface VoidInvoker4 extends MethodInvoker {
+        void call(Object serviceObject, Object arg0, Object arg1, Object arg2, Object arg3) throws Throwable;
+
+        @Override
+        default Object invoke(Object serviceObject, Object[] args) throws Throwable {
+            call(serviceObject, args[0], args[1], args[2], args[3]);
+            return null;
+        }
+    }
+
+    interface VoidInvoker5 extends MethodInvoker {
+        void call(Object serviceObject, Object arg0, Object arg1, Object arg2, Object arg3, Object arg4)
+                throws Throwable;
+
+        @Override
+        default Object invoke(Object serviceObject, Object[] args) throws Throwable {
+            call(serviceObject, args[0], args[1], args[2], args[3], args[4]);
+            return null;
+        }
+    }
+}
@@ -18,23 +18,42 @@
 
 package ru.fractalizer.jrapidrpc.tools;
 
-import com.dyuproject.protostuff.runtime.RuntimeSchema;
+import ru.fractalizer.jrapidrpc.api.MsgCacheInvalidation;
+import ru.fractalizer.jrapidrpc.api.MsgCompressionOffer;
 import ru.fractalizer.jrapidrpc.api.RpcAfterConnect;
+import ru.fractalizer.jrapidrpc.api.RpcCacheable;
 import ru.fractalizer.jrapidrpc.api.RpcMethod;
+import ru.fractalizer.jrapidrpc.api.RpcStream;
+import ru.fractalizer.jrapidrpc.api.RpcTimeout;
 
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.stream.Stream;
 
 /**
- * Class for caching object methods data
+ * Class for caching object methods data. Data keyed by method ID is kept in dense arrays indexed by
+ * {@code methodId - minMethodId}, so lookups by ID involve no hashing and no boxing.
  */
 public class ReflectionCache {
 
-    private HashMap<Short, Method> methodIdToMethod;
-    private HashMap<Short, String> methodIdToName;
+    private short           minMethodId;
+    private Method[]        methodsById;
+    private String[]        methodNamesById;
+    private MethodInvoker[] methodInvokersById;
+    private RpcCacheable[]  cacheablesById;
+    private boolean         hasCacheableMethods;
+    private boolean[]       streamingById;
+    private long[]          timeoutNanosById;
+
+    private short[]                methodIds;
     private HashMap<String, Short> methodNameToId;
+    private HashMap<Method, Short> methodToId;
 
-    private Method afterConnectMethod;
+    private Method        afterConnectMethod;
+    private MethodInvoker afterConnectInvoker;
 
     /**
      * Constructor
@@ -47,9 +66,33 @@ public class ReflectionCache {
         }
         Method[] methods = serviceInterface.getMethods();
 
-        methodIdToName = new HashMap<Short, String>(methods.length);
-        methodIdToMethod = new HashMap<Short, Method>(methods.length);
         methodNameToId = new HashMap<String, Short>(methods.length);
+        methodToId = new HashMap<Method, Short>(methods.length);
+
+        //Finding out the range of method IDs
+        int minId = Short.MAX_VALUE;
+        int maxId = Short.MIN_VALUE;
+        for (Method method : methods) {
+            RpcMethod methodIdAnnotation = method.getAnnotation(RpcMethod.class);
+            if (methodIdAnnotation != null) {
+                short methodId = methodIdAnnotation.methodId();
+                if (methodId == MsgCacheInvalidation.SUBSCRIBE_METHOD_ID || methodId == MsgCompressionOffer.METHOD_ID) {
+                    throw new ClassFormatError(String.format("Method '%s' of '%s' has ID %d, which is reserved for " +
+                            "protocol messages!", method.getName(), serviceInterface.getName(), methodId));
+                }
+                minId = Math.min(minId, methodId);
+                maxId = Math.max(maxId, methodId);
+            }
+        }
+        int tableSize = minId <= maxId ? maxId - minId + 1 : 0;
+        minMethodId = (short) (minId <= maxId ? minId : 0);
+        methodsById = new Method[tableSize];
+        methodNamesById = new String[tableSize];
+        methodInvokersById = new MethodInvoker[tableSize];
+        cacheablesById = new RpcCacheable[tableSize];
+        streamingById = new boolean[tableSize];
+        timeoutNanosById = new long[tableSize];
+        RpcTimeout interfaceTimeout = serviceInterface.getAnnotation(RpcTimeout.class);
 
         for (Method method : methods) {
 
@@ -57,26 +100,39 @@ public class ReflectionCache {
             RpcAfterConnect afterConnectAnnotation = method.getAnnotation(RpcAfterConnect.class);
             if (afterConnectAnnotation != null) {
                 this.afterConnectMethod = method;
+                this.afterConnectInvoker = MethodInvokers.create(method);
             }
 
             //Getting methodId
             RpcMethod methodIdAnnotation = method.getAnnotation(RpcMethod.class);
             if (methodIdAnnotation != null) {
-                Short methodId = methodIdAnnotation.methodId();
-
-                //Reading parameter types and their schemas
-                Class<?>[] parameterTypes = method.getParameterTypes();
-                for (Class<?> parameterType : parameterTypes) {
-                    //Caching schemas. No need to store them
-                    RuntimeSchema.getSchema(parameterType.getClass());
+                short methodId = methodIdAnnotation.methodId();
+                int index = methodId - minMethodId;
+                if (methodsById[index] != null) {
+                    throw new ClassFormatError(String.format("Methods '%s' and '%s' of '%s' have the same ID %d!",
+                            methodsById[index].getName(), method.getName(), serviceInterface.getName(), methodId));
                 }
 
                 //Putting everything to collections
-                methodIdToMethod.put(methodId, method);
-                methodIdToName.put(methodId, method.getName());
+                methodsById[index] = method;
+                methodNamesById[index] = method.getName();
+                methodInvokersById[index] = MethodInvokers.create(method);
+                streamingById[index] = isStreamType(method.getReturnType());
+                //Streams are not replied with a single frame, so they cannot be cached
+                cacheablesById[index] = streamingById[index] ? null : method.getAnnotation(RpcCacheable.class);
+                hasCacheableMethods |= cacheablesById[index] != null;
+                RpcTimeout timeout = method.getAnnotation(RpcTimeout.class);
+                timeoutNanosById[index] = toNanos(timeout != null ? timeout : interfaceTimeout);
                 methodNameToId.put(method.getName(), methodId);
+                methodToId.put(method, methodId);
             }
         }
+
+        methodIds = new short[methodToId.size()];
+        int i = 0;
+        for (Short methodId : methodToId.values()) {
+            methodIds[i++] = methodId;
+        }
     }
 
 
@@ -87,7 +143,130 @@ public class ReflectionCache {
      * @return Reflection data for a given method
      */
     public Method getMethodMethod(String methodName) {
-        return methodIdToMethod.get(methodNameToId.get(methodName));
+        return methodsById[methodNameToId.get(methodName) - minMethodId];
+    }
+
+    /**
+     * Returns reflection method info for the given method ID
+     *
+     * @param methodId Id of the method
+     * @return Reflection data for a given method or null if there is no RPC method with this ID
+     */
+    public Method getMethod(short methodId) {
+        int index = methodId - minMethodId;
+        return index >= 0 && index < methodsById.length ? methodsById[index] : null;
+    }
+
+    /**
+     * @return IDs of all RPC methods of the service interface
+     */
+    public short[] getMethodIds() {
+        return methodIds.clone();
+    }
+
+    /**
+     * Returns invoker for the given method name. Invokers are created once, when cache is constructed
+     *
+     * @param methodName The name of the method
+     * @return Invoker calling the method on a service object or null if there is no RPC method with this name
+     */
+    public MethodInvoker getMethodInvoker(String methodName) {
+        Short methodId = methodNameToId.get(methodName);
+        return methodId == null ? null : getMethodInvoker(methodId);
+    }
+
+    /**
+     * Returns invoker for the given method ID
+     *
+     * @param methodId Id of the method
+     * @return Invoker calling the method on a service object or null if there is no RPC method with this ID
+     */
+    public MethodInvoker getMethodInvoker(short methodId) {
+        int index = methodId - minMethodId;
+        return index >= 0 && index < methodInvokersById.length ? methodInvokersById[index] : null;
+    }
+
+    /**
+     * Returns caching settings of the method
+     *
+     * @param methodId Id of the method
+     * @return Annotation of the method or null if method is not cacheable or there is no RPC method with this ID
+     */
+    public RpcCacheable getCacheable(short methodId) {
+        int index = methodId - minMethodId;
+        return index >= 0 && index < cacheablesById.length ? cacheablesById[index] : null;
+    }
+
+    /**
+     * Checks if method is a streaming method, see {@link RpcStream}
+     *
+     * @param methodId Id of the method
+     * @return True if method returns a stream, false otherwise or if there is no RPC method with this ID
+     */
+    public boolean isStreaming(short methodId) {
+        int index = methodId - minMethodId;
+        return index >= 0 && index < streamingById.length && streamingById[index];
+    }
+
+    /**
+     * Returns time clients wait for replies to calls of the method, see {@link RpcTimeout}
+     *
+     * @param methodId            Id of the method
+     * @param defaultTimeoutNanos Timeout of the client, used if neither method nor service interface is annotated
+     * @return Timeout in nanoseconds, zero if calls have no deadline
+     */
+    public long getTimeoutNanos(short methodId, long defaultTimeoutNanos) {
+        int index = methodId - minMethodId;
+        long timeoutNanos = index >= 0 && index < timeoutNanosById.length ? timeoutNanosById[index] : -1;
+        return timeoutNanos >= 0 ? timeoutNanos : defaultTimeoutNanos;
+    }
+
+    /**
+     * @return Timeout set by the annotation in nanoseconds or -1 if there is no annotation
+     */
+    private static long toNanos(RpcTimeout timeout) {
+        if (timeout == null) {
+            return -1;
+        }
+        if (timeout.value() < 0) {
+            throw new ClassFormatError("Timeout of an RPC method must not be negative!");
+        }
+        return timeout.unit().toNanos(timeout.value());
+    }
+
+    /**
+     * @param type Declared return type of a method
+     * @return True if methods returning the type are streaming methods
+     */
+    public static boolean isStreamType(Class<?> type) {
+        return type == Iterator.class || type == Stream.class || type == RpcStream.class;
+    }
+
+    /**
+     * Finds out type of elements of the stream returned by a streaming method
+     *
+     * @param method Streaming method
+     * @return Type argument of the declared return type or Object if it is not a class
+     */
+    public static Class<?> getStreamElementType(Method method) {
+        Type returnType = method.getGenericReturnType();
+        if (returnType instanceof ParameterizedType) {
+            Type elementType = ((ParameterizedType) returnType).getActualTypeArguments()[0];
+            if (elementType instanceof Class) {
+                return (Class<?>) elementType;
+            }
+            if (elementType instanceof ParameterizedType) {
+                return (Class<?>) ((ParameterizedType) elementType).getRawType();
+            }
+        }
+        return Object.class;
+    }
+
+    /**
+     * @return True, if at least one RPC method is annotated with {@link RpcCacheable}
+     */
+    public boolean hasCacheableMethods() {
+        return hasCacheableMethods;
     }
 
     /**
@@ -95,22 +274,51 @@ public class ReflectionCache {
      *
      * @param methodName The name of the method
      * @return Method it
+     * @throws IllegalArgumentException If there is no RPC method with this name
      */
     public short getMethodId(String methodName) {
-        return methodNameToId.get(methodName);
+        Short methodId = methodNameToId.get(methodName);
+        if (methodId == null) {
+            throw new IllegalArgumentException(String.format("Method '%s' is not an RPC method!", methodName));
+        }
+        return methodId;
+    }
+
+    /**
+     * Returns method ID of the given interface method. Clients use it to resolve ID of the method called through
+     * proxy without looking at its name.
+     *
+     * @param method Method of the service interface
+     * @return Method ID
+     * @throws IllegalArgumentException If the method is not an RPC method of the service interface
+     */
+    public short getMethodId(Method method) {
+        Short methodId = methodToId.get(method);
+        if (methodId == null) {
+            throw new IllegalArgumentException(String.format("Method '%s' is not an RPC method!", method.getName()));
+        }
+        return methodId;
     }
 
     /**
      * Returns method name by its ID
      *
      * @param methodId Id of the method
-     * @return Method name
+     * @return Method name or null if there is no RPC method with this ID
      */
     public String getMethodName(short methodId) {
-        return methodIdToName.get(methodId);
+        int index = methodId - minMethodId;
+        return index >= 0 && index < methodNamesById.length ? methodNamesById[index] : null;
     }
 
     public Method getAfterConnectMethod() {
         return afterConnectMethod;
     }
+
+    /**
+     * @return Invoker of the method annotated with {@link RpcAfterConnect} or null if there is no such method
+     */
+    public MethodInvoker getAfterConnectInvoker() {
+        return afterConnectInvoker;
+    }
 }
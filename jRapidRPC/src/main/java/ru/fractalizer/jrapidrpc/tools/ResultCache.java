@@ -0,0 +1,353 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.tools;
+
+import ru.fractalizer.jrapidrpc.api.RpcCacheable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of encoded replies of {@link RpcCacheable} methods, used by servers and clients. Replies are keyed by method
+ * ID and encoded call parameters. Every method has its own bounded least recently used map with its own lock, so
+ * calls of different methods do not contend. Entries are evicted when the method's map is full, when their time to
+ * live runs out and, optionally, when all cached replies take more memory than allowed. It is thread-safe
+ */
+public final class ResultCache {
+
+    private static final class CachedReply {
+        private final byte[] replyFrame;
+        private final long   expiresAtNanos;
+        private final int    size;
+
+        private CachedReply(ByteBuffer key, byte[] replyFrame, long expiresAtNanos) {
+            this.replyFrame = replyFrame;
+            this.expiresAtNanos = expiresAtNanos;
+            this.size = key.remaining() + replyFrame.length;
+        }
+
+        private boolean isExpired(long nowNanos) {
+            return nowNanos - expiresAtNanos >= 0;
+        }
+    }
+
+    private final class MethodCache extends LinkedHashMap<ByteBuffer, CachedReply> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long ttlNanos;
+        private final int  maxEntries;
+
+        //Incremented by every invalidation. Guarded by the lock of the map
+        private long generation;
+
+        private MethodCache(RpcCacheable cacheable) {
+            super(16, 0.75f, true);
+            this.ttlNanos = cacheable.unit().toNanos(cacheable.ttl());
+            this.maxEntries = cacheable.maxEntries();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CachedReply> eldest) {
+            if (size() > maxEntries) {
+                byteCount.addAndGet(-eldest.getValue().size);
+                evictedCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Removes entry accounting for its size. Caller must hold the lock
+         */
+        private void removeReply(Iterator<CachedReply> iterator, CachedReply entry) {
+            iterator.remove();
+            byteCount.addAndGet(-entry.size);
+        }
+    }
+
+    private final short         minMethodId;
+    private final MethodCache[] cachesById;
+    private final long          maxBytes;
+    private final AtomicLong    byteCount;
+    private final AtomicLong    hitCount;
+    private final AtomicLong    missCount;
+    private final AtomicLong    evictedCount;
+    private final AtomicLong    expiredCount;
+    private final AtomicLong    invalidatedCount;
+
+    /**
+     * Default constructor
+     *
+     * @param reflectionCache Reflection cache of the service interface
+     * @param maxBytes        Maximum total size of cached keys and replies. Zero means no limit besides maximum number
+     *                        of entries of every method
+     */
+    public ResultCache(ReflectionCache reflectionCache, long maxBytes) {
+        super();
+        short[] methodIds = reflectionCache.getMethodIds();
+        int minId = Short.MAX_VALUE;
+        int maxId = Short.MIN_VALUE;
+        for (short methodId : methodIds) {
+            minId = Math.min(minId, methodId);
+            maxId = Math.max(maxId, methodId);
+        }
+        minMethodId = (short) (minId <= maxId ? minId : 0);
+        cachesById = new MethodCache[minId <= maxId ? maxId - minId + 1 : 0];
+        for (short methodId : methodIds) {
+            RpcCacheable cacheable = reflectionCache.getCacheable(methodId);
+            if (cacheable != null) {
+                cachesById[methodId - minMethodId] = new MethodCache(cacheable);
+            }
+        }
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        byteCount = new AtomicLong(0);
+        hitCount = new AtomicLong(0);
+        missCount = new AtomicLong(0);
+        evictedCount = new AtomicLong(0);
+        expiredCount = new AtomicLong(0);
+        invalidatedCount = new AtomicLong(0);
+    }
+
+    /**
+     * Default constructor. Cache size is limited by maximum number of entries of every method only
+     *
+     * @param reflectionCache Reflection cache of the service interface
+     */
+    public ResultCache(ReflectionCache reflectionCache) {
+        this(reflectionCache, 0);
+    }
+
+    /**
+     * @param methodId ID of the method
+     * @return True if replies of the method are cached
+     */
+    public boolean isCacheable(short methodId) {
+        return getMethodCache(methodId) != null;
+    }
+
+    /**
+     * Looks cached reply up
+     *
+     * @param methodId ID of the method called
+     * @param key      Request key, see {@link ru.fractalizer.jrapidrpc.api.FrameSerializer#getRpcRequestKey(byte[])}
+     * @return Encoded reply or null if there is no live reply for this call
+     */
+    public byte[] get(short methodId, ByteBuffer key) {
+        MethodCache methodCache = getMethodCache(methodId);
+        if (methodCache == null) {
+            return null;
+        }
+        synchronized (methodCache) {
+            CachedReply entry = methodCache.get(key);
+            if (entry != null && entry.isExpired(System.nanoTime())) {
+                methodCache.remove(key);
+                byteCount.addAndGet(-entry.size);
+                expiredCount.incrementAndGet();
+                entry = null;
+            }
+            if (entry == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            hitCount.incrementAndGet();
+            return entry.replyFrame;
+        }
+    }
+
+    /**
+     * Returns number of invalidations of the method's replies so far. Callers take it before invoking the method and
+     * pass it to {@link #put(short, ByteBuffer, byte[], long)}, so that reply computed before an invalidation is not
+     * cached after it
+     *
+     * @param methodId ID of the method
+     * @return Generation of the method's cache or 0 if method is not cacheable
+     */
+    public long getGeneration(short methodId) {
+        MethodCache methodCache = getMethodCache(methodId);
+        if (methodCache == null) {
+            return 0;
+        }
+        synchronized (methodCache) {
+            return methodCache.generation;
+        }
+    }
+
+    /**
+     * Caches reply. Does nothing if method is not cacheable
+     *
+     * @param methodId   ID of the method called
+     * @param key        Request key. Must not be modified afterwards
+     * @param replyFrame Encoded reply. Must not be modified afterwards
+     */
+    public void put(short methodId, ByteBuffer key, byte[] replyFrame) {
+        put(methodId, key, replyFrame, -1);
+    }
+
+    /**
+     * Caches reply unless method's replies were invalidated since generation was taken. Does nothing if method is not
+     * cacheable
+     *
+     * @param methodId   ID of the method called
+     * @param key        Request key. Must not be modified afterwards
+     * @param replyFrame Encoded reply. Must not be modified afterwards
+     * @param generation Value returned by {@link #getGeneration(short)} before the method was invoked or -1 to cache
+     *                   reply regardless of invalidations
+     */
+    public void put(short methodId, ByteBuffer key, byte[] replyFrame, long generation) {
+        MethodCache methodCache = getMethodCache(methodId);
+        if (methodCache == null) {
+            return;
+        }
+        long nowNanos = System.nanoTime();
+        CachedReply entry = new CachedReply(key, replyFrame, nowNanos + methodCache.ttlNanos);
+        if (entry.size > maxBytes) {
+            return;
+        }
+        synchronized (methodCache) {
+            if (generation >= 0 && generation != methodCache.generation) {
+                return;
+            }
+            //Dropping expired entries from the least recently used end
+            Iterator<CachedReply> iterator = methodCache.values().iterator();
+            while (iterator.hasNext()) {
+                CachedReply eldest = iterator.next();
+                if (!eldest.isExpired(nowNanos)) {
+                    break;
+                }
+                methodCache.removeReply(iterator, eldest);
+                expiredCount.incrementAndGet();
+            }
+            CachedReply previous = methodCache.put(key, entry);
+            byteCount.addAndGet(entry.size - (previous != null ? previous.size : 0));
+        }
+        if (byteCount.get() > maxBytes) {
+            evictToMaxBytes(methodCache);
+        }
+    }
+
+    /**
+     * Drops all cached replies of a method
+     *
+     * @param methodId ID of the method
+     */
+    public void invalidate(short methodId) {
+        MethodCache methodCache = getMethodCache(methodId);
+        if (methodCache == null) {
+            return;
+        }
+        synchronized (methodCache) {
+            methodCache.generation++;
+            Iterator<CachedReply> iterator = methodCache.values().iterator();
+            while (iterator.hasNext()) {
+                methodCache.removeReply(iterator, iterator.next());
+                invalidatedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops cached reply to a single call
+     *
+     * @param methodId ID of the method
+     * @param key      Request key of the call
+     */
+    public void invalidate(short methodId, ByteBuffer key) {
+        MethodCache methodCache = getMethodCache(methodId);
+        if (methodCache == null) {
+            return;
+        }
+        synchronized (methodCache) {
+            //Per method, so that replies to calls of the key in progress are not cached
+            methodCache.generation++;
+            CachedReply entry = methodCache.remove(key);
+            if (entry != null) {
+                byteCount.addAndGet(-entry.size);
+                invalidatedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops all cached replies
+     */
+    public void clear() {
+        for (MethodCache methodCache : cachesById) {
+            if (methodCache != null) {
+                synchronized (methodCache) {
+                    methodCache.generation++;
+                    Iterator<CachedReply> iterator = methodCache.values().iterator();
+                    while (iterator.hasNext()) {
+                        methodCache.removeReply(iterator, iterator.next());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Snapshot of cache counters
+     */
+    public ResultCacheStatistics getStatistics() {
+        int entryCount = 0;
+        for (MethodCache methodCache : cachesById) {
+            if (methodCache != null) {
+                synchronized (methodCache) {
+                    entryCount += methodCache.size();
+                }
+            }
+        }
+        return new ResultCacheStatistics(hitCount.get(), missCount.get(), evictedCount.get(), expiredCount.get(),
+                invalidatedCount.get(), entryCount, byteCount.get());
+    }
+
+    private MethodCache getMethodCache(short methodId) {
+        int index = methodId - minMethodId;
+        return index >= 0 && index < cachesById.length ? cachesById[index] : null;
+    }
+
+    /**
+     * Evicts least recently used entries, starting with the method which has just grown. Methods are locked one at a
+     * time, so that concurrent evictions cannot deadlock
+     */
+    private void evictToMaxBytes(MethodCache first) {
+        evictToMaxBytes(first, true);
+        for (MethodCache methodCache : cachesById) {
+            if (byteCount.get() <= maxBytes) {
+                return;
+            }
+            if (methodCache != null && methodCache != first) {
+                evictToMaxBytes(methodCache, false);
+            }
+        }
+    }
+
+    private void evictToMaxBytes(MethodCache methodCache, boolean keepNewest) {
+        synchronized (methodCache) {
+            Iterator<CachedReply> iterator = methodCache.values().iterator();
+            while (byteCount.get() > maxBytes && iterator.hasNext() && (!keepNewest || methodCache.size() > 1)) {
+                methodCache.removeReply(iterator, iterator.next());
+                evictedCount.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.tools;
+
+/**
+ * Snapshot of result cache counters. Counters are cumulative since the cache was created.
+ */
+public final class ResultCacheStatistics {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long evictedCount;
+    private final long expiredCount;
+    private final long invalidatedCount;
+    private final int  entryCount;
+    private final long byteCount;
+
+    ResultCacheStatistics(long hitCount, long missCount, long evictedCount, long expiredCount, long invalidatedCount,
+                          int entryCount, long byteCount) {
+        super();
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictedCount = evictedCount;
+        this.expiredCount = expiredCount;
+        this.invalidatedCount = invalidatedCount;
+        this.entryCount = entryCount;
+        this.byteCount = byteCount;
+    }
+
+    /**
+     * @return Number of calls served from the cache
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return Number of calls of cacheable methods which had to be invoked
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return Share of cacheable calls served from the cache, between 0 and 1
+     */
+    public double getHitRatio() {
+        long requestCount = hitCount + missCount;
+        return requestCount == 0 ? 0 : (double) hitCount / requestCount;
+    }
+
+    /**
+     * @return Number of replies evicted, because their method had maximum number of cached replies or cache was out of
+     *         memory
+     */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * @return Number of replies dropped, because their time to live ran out
+     */
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * @return Number of replies dropped on invalidation
+     */
+    public long getInvalidatedCount() {
+        return invalidatedCount;
+    }
+
+    /**
+     * @return Number of replies currently cached
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return Total size of cached keys and replies
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d, misses=%d, hitRatio=%.3f, evicted=%d, expired=%d, invalidated=%d, entries=%d, " +
+                "bytes=%d", hitCount, missCount, getHitRatio(), evictedCount, expiredCount, invalidatedCount,
+                entryCount, byteCount);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.tools;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads of Java 21 and later. Library is compiled for older Java, so they are looked up
+ * reflectively and {@link #isSupported()} tells whether the running JVM has them.
+ * <p>
+ * A virtual thread blocked in socket I/O releases its carrier thread, so a thread per connection costs a few hundred
+ * bytes of heap instead of a platform thread stack. It does not release the carrier while it holds a monitor
+ * (before Java 24) or runs native code: such a thread is pinned and a few of them can stall all others. Library
+ * itself never blocks in <code>synchronized</code> blocks, but service objects must follow the same rule: guard
+ * blocking calls (database, files, other services) with {@link java.util.concurrent.locks.ReentrantLock} rather than
+ * <code>synchronized</code>. Do not cache per-thread state in {@link ThreadLocal}s either, since every virtual thread
+ * gets its own copy of it. Serializers share a bounded {@link BufferPool} for that reason.
+ */
+public final class VirtualThreads {
+
+    private static final Method ofVirtualMethod;
+    private static final Method nameMethod;
+    private static final Method factoryMethod;
+    private static final Method newThreadPerTaskExecutorMethod;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builderClass.getMethod("name", String.class, long.class);
+            factory = builderClass.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            //Preview versions of Java 19 and 20 have the methods, but refuse to run them
+            ofVirtual.invoke(null);
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        ofVirtualMethod = ofVirtual;
+        nameMethod = name;
+        factoryMethod = factory;
+        newThreadPerTaskExecutorMethod = newThreadPerTaskExecutor;
+    }
+
+    private VirtualThreads() {
+        super();
+    }
+
+    /**
+     * Returns whether running JVM supports virtual threads
+     *
+     * @return True on Java 21 and later, false otherwise
+     */
+    public static boolean isSupported() {
+        return ofVirtualMethod != null;
+    }
+
+    /**
+     * Creates factory of virtual threads
+     *
+     * @param namePrefix Prefix of thread names. Threads are numbered from 1
+     * @return Factory of virtual threads
+     * @throws UnsupportedOperationException If JVM does not support virtual threads
+     */
+    public static ThreadFactory newThreadFactory(String namePrefix) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        }
+        try {
+            Object builder = nameMethod.invoke(ofVirtualMethod.invoke(null), namePrefix, 1L);
+            return (ThreadFactory) factoryMethod.invoke(builder);
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException("Unable to create virtual thread factory", e);
+        } catch (InvocationTargetException e) {
+            throw new UnsupportedOperationException("Unable to create virtual thread factory", e.getCause());
+        }
+    }
+
+    /**
+     * Creates executor starting a new virtual thread for every task. Pass it to
+     * {@link ru.fractalizer.jrapidrpc.server.simple.SimpleTCPServer} to serve every connection on a virtual thread.
+     * Executor is unbounded, so it never rejects tasks until shut down
+     *
+     * @param namePrefix Prefix of thread names. Threads are numbered from 1
+     * @return Executor running every task on a virtual thread of its own
+     * @throws UnsupportedOperationException If JVM does not support virtual threads
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        ThreadFactory threadFactory = newThreadFactory(namePrefix);
+        try {
+            return (ExecutorService) newThreadPerTaskExecutorMethod.invoke(null, threadFactory);
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException("Unable to create virtual thread executor", e);
+        } catch (InvocationTargetException e) {
+            throw new UnsupportedOperationException("Unable to create virtual thread executor", e.getCause());
+        }
+    }
+}
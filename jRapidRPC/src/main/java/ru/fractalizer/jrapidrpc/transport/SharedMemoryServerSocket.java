@@ -0,0 +1,258 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server socket accepting shared memory connections. Clients publish connection files in the directory of the server,
+ * which is watched for them, so accepting costs no polling.
+ */
+class SharedMemoryServerSocket extends ServerSocket {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedMemoryServerSocket.class);
+
+    private final File          directory;
+    private final boolean       directoryCreated;
+    private final WatchService  watchService;
+    private final long          spinNanos;
+    private final long          maxParkNanos;
+    private final SocketAddress localAddress;
+
+    //Accepting threads wait under lock rather than monitor, so that waiting virtual threads do not pin their carriers
+    private final ReentrantLock acceptLock = new ReentrantLock();
+
+    /**
+     * Connection files seen but not accepted yet. Guarded by acceptLock
+     */
+    private final ArrayDeque<File> pending = new ArrayDeque<File>();
+
+    private volatile boolean closed;
+
+    /**
+     * Default constructor
+     *
+     * @param directory        Directory clients publish connection files in
+     * @param directoryCreated True if directory was created by the server and must be deleted on close
+     * @param watchService     Service watching the directory for new files
+     * @param spinNanos        How long connections busy-spin while waiting for peer before parking
+     * @param maxParkNanos     Longest park of connections while waiting for peer
+     * @throws IOException Never thrown, declared by superclass constructor
+     */
+    private SharedMemoryServerSocket(File directory, boolean directoryCreated, WatchService watchService,
+                                     long spinNanos, long maxParkNanos) throws IOException {
+        super();
+        this.directory = directory;
+        this.directoryCreated = directoryCreated;
+        this.watchService = watchService;
+        this.spinNanos = spinNanos;
+        this.maxParkNanos = maxParkNanos;
+        this.localAddress = new DirectoryAddress(directory);
+    }
+
+    /**
+     * Starts watching the directory for connections. Connection files left by a server which did not shut down
+     * cleanly are deleted
+     *
+     * @param directory    Directory to accept connections in. Created if missing
+     * @param spinNanos    How long connections busy-spin while waiting for peer before parking
+     * @param maxParkNanos Longest park of connections while waiting for peer
+     * @return Server socket
+     * @throws IOException Is thrown if directory cannot be created or watched
+     */
+    static SharedMemoryServerSocket bind(File directory, long spinNanos, long maxParkNanos) throws IOException {
+        boolean directoryCreated = directory.mkdir();
+        if (!directory.isDirectory()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        WatchService watchService = directory.toPath().getFileSystem().newWatchService();
+        try {
+            directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        deleteConnectionFiles(directory);
+        return new SharedMemoryServerSocket(directory, directoryCreated, watchService, spinNanos, maxParkNanos);
+    }
+
+    /**
+     * Waits for a connection. Fails with SocketException once server socket is closed, as plain server sockets do.
+     * Connection files which cannot be accepted, e.g. because client gave up waiting, are skipped
+     */
+    @Override
+    public Socket accept() throws IOException {
+        acceptLock.lock();
+        try {
+            while (true) {
+                File connectionFile = nextConnectionFile();
+                try {
+                    return SharedMemorySocket.accept(connectionFile, spinNanos, maxParkNanos);
+                } catch (IOException e) {
+                    logger.warn("Unable to accept shared memory connection " + connectionFile, e);
+                }
+            }
+        } finally {
+            acceptLock.unlock();
+        }
+    }
+
+    private File nextConnectionFile() throws IOException {
+        while (pending.isEmpty()) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (ClosedWatchServiceException e) {
+                throw new SocketException("Socket is closed");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while accepting connection");
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    //Events were lost, so files are looked up
+                    File[] files = directory.listFiles();
+                    if (files != null) {
+                        for (File file : files) {
+                            if (file.getName().endsWith(SharedMemorySocket.CONNECTION_SUFFIX)) {
+                                pending.add(file);
+                            }
+                        }
+                    }
+                } else {
+                    String name = ((Path) event.context()).toString();
+                    if (name.endsWith(SharedMemorySocket.CONNECTION_SUFFIX)) {
+                        pending.add(new File(directory, name));
+                    }
+                }
+            }
+            key.reset();
+        }
+        return pending.poll();
+    }
+
+    /**
+     * Shared memory connections have no port
+     *
+     * @return -1
+     */
+    @Override
+    public int getLocalPort() {
+        return -1;
+    }
+
+    /**
+     * Shared memory connections have no IP address
+     *
+     * @return Null
+     */
+    @Override
+    public InetAddress getInetAddress() {
+        return null;
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public boolean isBound() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops accepting connections. Clients still waiting to be accepted are refused by deleting their files.
+     * Established connections are not affected
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        watchService.close();
+        deleteConnectionFiles(directory);
+        if (directoryCreated) {
+            directory.delete();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SharedMemoryServerSocket[" + directory + "]";
+    }
+
+    private static void deleteConnectionFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SharedMemorySocket.CONNECTION_SUFFIX) ||
+                    name.endsWith(SharedMemorySocket.CONNECTING_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Address of a server socket listening in a directory
+     */
+    private static class DirectoryAddress extends SocketAddress {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File directory;
+
+        DirectoryAddress(File directory) {
+            super();
+            this.directory = directory;
+        }
+
+        @Override
+        public String toString() {
+            return directory.getPath();
+        }
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Socket view of a connection through a memory-mapped file. File holds two single-producer single-consumer ring
+ * buffers, one per direction. Writer copies bytes into the ring and publishes its new tail position, reader copies
+ * them out and publishes its new head position, so no system call is made while both sides are busy.
+ * <p>
+ * File layout: header with magic number and ring capacity, the accepted flag and the closed flags of client and server,
+ * then head and tail positions of both rings, each on a cache line of its own, then ring data. Ring 0 carries bytes
+ * from client to server, ring 1 from server to client. Client and server hold a lock on a byte of the file each, which
+ * the operating system releases if their process dies, so a waiting peer can tell a silent peer from a dead one.
+ */
+class SharedMemorySocket extends Socket {
+
+    static final String CONNECTING_SUFFIX = ".tmp";
+    static final String CONNECTION_SUFFIX = ".ring";
+
+    private static final int  MAGIC                = 0x4A525043;
+    private static final int  MAGIC_OFFSET         = 0;
+    private static final int  CAPACITY_OFFSET      = 4;
+    private static final int  ACCEPTED_OFFSET      = 64;
+    private static final int  CLIENT_CLOSED_OFFSET = 128;
+    private static final int  SERVER_CLOSED_OFFSET = 192;
+    private static final int  RING_CONTROL_OFFSET  = 256;
+    private static final int  RING_CONTROL_SIZE    = 128;
+    private static final int  TAIL_OFFSET          = 64;
+    private static final int  DATA_OFFSET          = 512;
+    private static final long CLIENT_LOCK_POSITION = 0;
+    private static final long SERVER_LOCK_POSITION = 1;
+
+    //How often a waiting side checks whether the peer process is still alive
+    private static final long PEER_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final FileChannel      channel;
+    //Keeps mapping alive while its memory is accessed by address
+    private final MappedByteBuffer buffer;
+    private final int              capacity;
+    private final long             ownClosedAddress;
+    private final long             peerClosedAddress;
+    private final long             peerLockPosition;
+    private final long             inHeadAddress;
+    private final long             inTailAddress;
+    private final long             inDataAddress;
+    private final long             outHeadAddress;
+    private final long             outTailAddress;
+    private final long             outDataAddress;
+    private final InputStream      inputStream;
+    private final OutputStream     outputStream;
+
+    //Library writes under locks rather than monitors, so that waiting virtual threads do not pin their carriers
+    private final ReentrantLock readLock  = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock closeLock = new ReentrantLock();
+
+    //Guarded by readLock
+    private final SpinParkIdler readIdler;
+    private       long          inHead;
+    private       long          inTailSeen;
+
+    //Guarded by writeLock
+    private final SpinParkIdler writeIdler;
+    private       long          outTail;
+    private       long          outHeadSeen;
+
+    private volatile int     soTimeout;
+    private volatile boolean closed;
+
+    /**
+     * Default constructor
+     *
+     * @param channel      Channel of the connection file. Holds the lock of this side and is closed with the socket
+     * @param buffer       Whole connection file mapped into memory
+     * @param serverSide   True if socket is the server end of connection
+     * @param spinNanos    How long to busy-spin while waiting for peer before parking
+     * @param maxParkNanos Longest park while waiting for peer
+     */
+    private SharedMemorySocket(FileChannel channel, MappedByteBuffer buffer, boolean serverSide, long spinNanos,
+                               long maxParkNanos) {
+        super();
+        this.channel = channel;
+        this.buffer = buffer;
+        long address = UnsafeMemory.addressOf(buffer);
+        this.capacity = buffer.getInt(CAPACITY_OFFSET);
+        long clientToServer = address + RING_CONTROL_OFFSET;
+        long serverToClient = clientToServer + RING_CONTROL_SIZE;
+        long inControl = serverSide ? clientToServer : serverToClient;
+        long outControl = serverSide ? serverToClient : clientToServer;
+        this.inHeadAddress = inControl;
+        this.inTailAddress = inControl + TAIL_OFFSET;
+        this.inDataAddress = address + DATA_OFFSET + (serverSide ? 0 : capacity);
+        this.outHeadAddress = outControl;
+        this.outTailAddress = outControl + TAIL_OFFSET;
+        this.outDataAddress = address + DATA_OFFSET + (serverSide ? capacity : 0);
+        this.ownClosedAddress = address + (serverSide ? SERVER_CLOSED_OFFSET : CLIENT_CLOSED_OFFSET);
+        this.peerClosedAddress = address + (serverSide ? CLIENT_CLOSED_OFFSET : SERVER_CLOSED_OFFSET);
+        this.peerLockPosition = serverSide ? CLIENT_LOCK_POSITION : SERVER_LOCK_POSITION;
+        this.readIdler = new SpinParkIdler(spinNanos, maxParkNanos);
+        this.writeIdler = new SpinParkIdler(spinNanos, maxParkNanos);
+        this.inHead = UnsafeMemory.getLongVolatile(inHeadAddress);
+        this.inTailSeen = inHead;
+        this.outTail = UnsafeMemory.getLongVolatile(outTailAddress);
+        this.outHeadSeen = outTail;
+        this.inputStream = new RingInputStream();
+        this.outputStream = new RingOutputStream();
+    }
+
+    /**
+     * Creates connection file in server directory and waits for server to accept it. File is created under a
+     * temporary name and renamed once initialized, so that server never sees it half-written
+     *
+     * @param directory    Directory server watches
+     * @param capacity     Capacity of each ring in bytes, a power of two
+     * @param spinNanos    How long to busy-spin while waiting for peer before parking
+     * @param maxParkNanos Longest park while waiting for peer
+     * @param timeoutNanos How long to wait for server to accept connection
+     * @return Connected socket
+     * @throws IOException Is thrown if file cannot be created or server did not accept connection in time
+     */
+    static SharedMemorySocket connect(File directory, int capacity, long spinNanos, long maxParkNanos,
+                                      long timeoutNanos) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new ConnectException("No shared memory server at " + directory);
+        }
+        File connectingFile = File.createTempFile("connection", CONNECTING_SUFFIX, directory);
+        String name = connectingFile.getName();
+        File connectionFile = new File(directory,
+                name.substring(0, name.length() - CONNECTING_SUFFIX.length()) + CONNECTION_SUFFIX);
+        RandomAccessFile file = null;
+        SharedMemorySocket socket = null;
+        try {
+            file = new RandomAccessFile(connectingFile, "rw");
+            file.setLength(DATA_OFFSET + 2L * capacity);
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + 2L * capacity);
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            channel.lock(CLIENT_LOCK_POSITION, 1, false);
+            socket = new SharedMemorySocket(channel, buffer, false, spinNanos, maxParkNanos);
+            if (!connectingFile.renameTo(connectionFile)) {
+                throw new IOException("Unable to publish connection file " + connectionFile);
+            }
+
+            //Server sets the flag before deleting the file, so a file gone unaccepted means server refused it
+            long acceptedAddress = UnsafeMemory.addressOf(buffer) + ACCEPTED_OFFSET;
+            long start = System.nanoTime();
+            SpinParkIdler idler = new SpinParkIdler(spinNanos, maxParkNanos);
+            idler.reset();
+            while (UnsafeMemory.getIntVolatile(acceptedAddress) == 0) {
+                if (!connectionFile.exists() && UnsafeMemory.getIntVolatile(acceptedAddress) == 0) {
+                    throw new ConnectException("Shared memory server at " + directory + " refused connection");
+                }
+                if (System.nanoTime() - start > timeoutNanos) {
+                    throw new ConnectException("Shared memory server at " + directory + " did not accept " +
+                            "connection in time");
+                }
+                idler.idle();
+            }
+            return socket;
+        } catch (IOException e) {
+            if (socket != null) {
+                socket.close();
+            } else if (file != null) {
+                file.close();
+            }
+            if (!connectingFile.delete()) {
+                connectionFile.delete();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Accepts connection file created by a client. File is deleted once both sides have it mapped
+     *
+     * @param connectionFile File published by client
+     * @param spinNanos      How long to busy-spin while waiting for peer before parking
+     * @param maxParkNanos   Longest park while waiting for peer
+     * @return Connected socket
+     * @throws IOException Is thrown if file is gone, malformed or accepted already
+     */
+    static SharedMemorySocket accept(File connectionFile, long spinNanos, long maxParkNanos) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(connectionFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size < DATA_OFFSET) {
+                throw new IOException("Connection file " + connectionFile + " is too short");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int capacity = buffer.getInt(CAPACITY_OFFSET);
+            if (buffer.getInt(MAGIC_OFFSET) != MAGIC || Integer.bitCount(capacity) != 1 ||
+                    size != DATA_OFFSET + 2L * capacity) {
+                throw new IOException("Connection file " + connectionFile + " is malformed");
+            }
+            long acceptedAddress = UnsafeMemory.addressOf(buffer) + ACCEPTED_OFFSET;
+            if (UnsafeMemory.getIntVolatile(acceptedAddress) != 0) {
+                throw new IOException("Connection file " + connectionFile + " is accepted already");
+            }
+            channel.lock(SERVER_LOCK_POSITION, 1, false);
+            SharedMemorySocket socket = new SharedMemorySocket(channel, buffer, true, spinNanos, maxParkNanos);
+            UnsafeMemory.putIntVolatile(acceptedAddress, 1);
+            //Both sides have it mapped, so it is not needed any more
+            connectionFile.delete();
+            return socket;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        return outputStream;
+    }
+
+    /**
+     * Sets read timeout, which fails read with {@link SocketTimeoutException} and leaves socket open as TCP does
+     */
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout can't be negative");
+        }
+        soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return soTimeout;
+    }
+
+    /**
+     * Bytes are visible to peer as soon as they are written, so there is nothing to disable
+     */
+    @Override
+    public void setTcpNoDelay(boolean on) {
+    }
+
+    @Override
+    public boolean getTcpNoDelay() {
+        return true;
+    }
+
+    /**
+     * Peers of shared memory connections have no IP address
+     *
+     * @return Loopback address
+     */
+    @Override
+    public InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isBound() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Tells peer that no more bytes will come and releases the connection file. Mapping itself stays until buffer is
+     * collected, so threads still polling it fail on the closed flag rather than on unmapped memory
+     */
+    @Override
+    public void close() throws IOException {
+        closeLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            UnsafeMemory.putIntVolatile(ownClosedAddress, 1);
+            channel.close();
+        } finally {
+            closeLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SharedMemorySocket[capacity=" + capacity + "]";
+    }
+
+    /**
+     * Positions are written by peer, so a broken or hostile peer must not make copies reach outside of the ring
+     *
+     * @param tail Tail position of incoming ring as published by peer
+     * @return Number of bytes available
+     * @throws SocketException Is thrown and connection closed if peer published more bytes than ring holds or moved
+     *                         tail back
+     */
+    private long checkAvailable(long tail) throws IOException {
+        long available = tail - inHead;
+        if (available < 0 || available > capacity) {
+            close();
+            throw new SocketException("Peer published invalid ring tail " + tail + " at head " + inHead);
+        }
+        return available;
+    }
+
+    /**
+     * @param head Head position of outgoing ring as published by peer
+     * @return Number of bytes free
+     * @throws SocketException Is thrown and connection closed if peer consumed bytes not written yet or moved head
+     *                         back
+     */
+    private long checkFree(long head) throws IOException {
+        long used = outTail - head;
+        if (used < 0 || used > capacity) {
+            close();
+            throw new SocketException("Peer published invalid ring head " + head + " at tail " + outTail);
+        }
+        return capacity - used;
+    }
+
+    private void await(SpinParkIdler idler) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            //As interruptible channels do
+            close();
+            throw new InterruptedIOException("Interrupted while waiting for peer");
+        }
+        idler.idle();
+    }
+
+    /**
+     * Peer process holds a lock on its byte of the file while it lives. In the same JVM the lock is found held by
+     * lock table of the JVM instead
+     */
+    private boolean isPeerAlive() {
+        try {
+            FileLock lock = channel.tryLock(peerLockPosition, 1, false);
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private class RingInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            readLock.lock();
+            try {
+                if (closed) {
+                    throw new SocketException("Socket is closed");
+                }
+                if (len == 0) {
+                    return 0;
+                }
+                long available = inTailSeen - inHead;
+                if (available == 0) {
+                    available = awaitBytes();
+                    if (available < 0) {
+                        return -1;
+                    }
+                }
+                int length = (int) Math.min(len, available);
+                int index = (int) (inHead & (capacity - 1));
+                int first = Math.min(length, capacity - index);
+                UnsafeMemory.copyToArray(inDataAddress + index, b, off, first);
+                if (first < length) {
+                    UnsafeMemory.copyToArray(inDataAddress, b, off + first, length - first);
+                }
+                inHead += length;
+                UnsafeMemory.putOrderedLong(inHeadAddress, inHead);
+                return length;
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) checkAvailable(UnsafeMemory.getLongVolatile(inTailAddress));
+        }
+
+        /**
+         * @return Number of bytes available or -1 if peer closed connection or died
+         */
+        private long awaitBytes() throws IOException {
+            int timeout = soTimeout;
+            long start = System.nanoTime();
+            long peerChecked = start;
+            readIdler.reset();
+            while (true) {
+                if (closed) {
+                    throw new SocketException("Socket is closed");
+                }
+                long tail = UnsafeMemory.getLongVolatile(inTailAddress);
+                long available = checkAvailable(tail);
+                inTailSeen = tail;
+                if (available != 0) {
+                    return available;
+                }
+                if (UnsafeMemory.getIntVolatile(peerClosedAddress) != 0) {
+                    //Peer could write more before closing
+                    tail = UnsafeMemory.getLongVolatile(inTailAddress);
+                    available = checkAvailable(tail);
+                    inTailSeen = tail;
+                    return available != 0 ? available : -1;
+                }
+                long now = System.nanoTime();
+                if (timeout > 0 && now - start >= TimeUnit.MILLISECONDS.toNanos(timeout)) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                if (now - peerChecked >= PEER_CHECK_NANOS) {
+                    peerChecked = now;
+                    if (!isPeerAlive()) {
+                        return -1;
+                    }
+                }
+                await(readIdler);
+            }
+        }
+    }
+
+    private class RingOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeLock.lock();
+            try {
+                while (len > 0) {
+                    if (closed) {
+                        throw new SocketException("Socket is closed");
+                    }
+                    if (UnsafeMemory.getIntVolatile(peerClosedAddress) != 0) {
+                        throw new SocketException("Connection closed by peer");
+                    }
+                    long free = capacity - (outTail - outHeadSeen);
+                    if (free == 0) {
+                        free = awaitSpace();
+                    }
+                    int length = (int) Math.min(len, free);
+                    int index = (int) (outTail & (capacity - 1));
+                    int first = Math.min(length, capacity - index);
+                    UnsafeMemory.copyFromArray(b, off, outDataAddress + index, first);
+                    if (first < length) {
+                        UnsafeMemory.copyFromArray(b, off + first, outDataAddress, length - first);
+                    }
+                    outTail += length;
+                    UnsafeMemory.putOrderedLong(outTailAddress, outTail);
+                    off += length;
+                    len -= length;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private long awaitSpace() throws IOException {
+            long peerChecked = System.nanoTime();
+            writeIdler.reset();
+            while (true) {
+                long head = UnsafeMemory.getLongVolatile(outHeadAddress);
+                long free = checkFree(head);
+                outHeadSeen = head;
+                if (free > 0) {
+                    return free;
+                }
+                if (closed) {
+                    throw new SocketException("Socket is closed");
+                }
+                if (UnsafeMemory.getIntVolatile(peerClosedAddress) != 0) {
+                    throw new SocketException("Connection closed by peer");
+                }
+                long now = System.nanoTime();
+                if (now - peerChecked >= PEER_CHECK_NANOS) {
+                    peerChecked = now;
+                    if (!isPeerAlive()) {
+                        throw new SocketException("Peer process is gone");
+                    }
+                }
+                await(writeIdler);
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.transport;
+
+import javax.net.ServerSocketFactory;
+import javax.net.SocketFactory;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connections through memory-mapped files, for the lowest latency between processes on the same host. Every
+ * connection is a file holding a pair of single-producer single-consumer ring buffers, one per direction, so small
+ * calls cost no system calls at all. Put the directory of the server on a memory file system, such as
+ * <code>/dev/shm</code> on Linux, so that the files are never written to disk.
+ * <p>
+ * Factories returned here plug into {@link ru.fractalizer.jrapidrpc.client.simple.SimpleTCPClient} and
+ * {@link ru.fractalizer.jrapidrpc.server.simple.SimpleTCPServer}, which then ignore host and port, so service
+ * interface and service object stay the same. Server watches its directory for connection files published by
+ * clients. Both sides wait for each other by busy-spinning for a while, then parking for periods growing up to a
+ * maximum. Spinning threads keep their CPU cores busy, so give the server executor no more threads than there are
+ * cores to spare. Peer cannot wake a parked thread up, so the maximum park bounds the latency added to the first call
+ * after an idle period.
+ * <p>
+ * Memory is accessed with <code>sun.misc.Unsafe</code>, since Java 8 has no other way of ordering reads and writes of
+ * memory shared with other processes. {@link #isSupported()} tells whether the running JVM allows that.
+ */
+public final class SharedMemorySockets {
+
+    /**
+     * Default capacity of each ring of a connection in bytes
+     */
+    public static final int DEFAULT_RING_CAPACITY = 256 * 1024;
+
+    /**
+     * Default time in microseconds to busy-spin while waiting for peer before parking
+     */
+    public static final long DEFAULT_SPIN_MICROS = 50;
+
+    /**
+     * Default longest park in microseconds while waiting for peer
+     */
+    public static final long DEFAULT_MAX_PARK_MICROS = 1000;
+
+    /**
+     * Time in milliseconds a client waits for server to accept its connection
+     */
+    public static final long CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private SharedMemorySockets() {
+        super();
+    }
+
+    /**
+     * Returns whether running JVM allows shared memory connections
+     *
+     * @return True if shared memory can be accessed
+     */
+    public static boolean isSupported() {
+        return UnsafeMemory.isSupported();
+    }
+
+    /**
+     * Creates factory of sockets connected to server in the directory. Host and port passed to the factory are
+     * ignored
+     *
+     * @param directory     Directory server accepts connections in
+     * @param ringCapacity  Capacity of each ring of a connection in bytes, rounded up to a power of two. Frames
+     *                      larger than that are passed in parts
+     * @param spinMicros    How long to busy-spin while waiting for server before parking
+     * @param maxParkMicros Longest park while waiting for server
+     * @return Factory of client sockets
+     * @throws UnsupportedOperationException If JVM does not allow shared memory connections
+     */
+    public static SocketFactory newSocketFactory(final File directory, int ringCapacity, long spinMicros,
+                                                 long maxParkMicros) {
+        checkSupported();
+        if (ringCapacity < 1024 || ringCapacity > (1 << 30)) {
+            throw new IllegalArgumentException("ringCapacity must be between 1 KB and 1 GB!");
+        }
+        final int capacity = Integer.highestOneBit(ringCapacity - 1) << 1;
+        final long spinNanos = TimeUnit.MICROSECONDS.toNanos(spinMicros);
+        final long maxParkNanos = TimeUnit.MICROSECONDS.toNanos(maxParkMicros);
+        return new SocketFactory() {
+            @Override
+            public Socket createSocket(String host, int port) throws IOException {
+                return connect();
+            }
+
+            @Override
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                    throws IOException {
+                return connect();
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port) throws IOException {
+                return connect();
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port, InetAddress localHost, int localPort)
+                    throws IOException {
+                return connect();
+            }
+
+            private Socket connect() throws IOException {
+                return SharedMemorySocket.connect(directory, capacity, spinNanos, maxParkNanos,
+                        TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MILLIS));
+            }
+        };
+    }
+
+    /**
+     * Creates factory of sockets connected to server in the directory, with default ring capacity and waiting
+     *
+     * @param directory Directory server accepts connections in
+     * @return Factory of client sockets
+     * @throws UnsupportedOperationException If JVM does not allow shared memory connections
+     */
+    public static SocketFactory newSocketFactory(File directory) {
+        return newSocketFactory(directory, DEFAULT_RING_CAPACITY, DEFAULT_SPIN_MICROS, DEFAULT_MAX_PARK_MICROS);
+    }
+
+    /**
+     * Creates factory of server sockets accepting connections in the directory. Port, backlog and bind address passed
+     * to the factory are ignored. Directory is created if missing and deleted on close if it was created
+     *
+     * @param directory     Directory to accept connections in
+     * @param spinMicros    How long connections busy-spin while waiting for client before parking
+     * @param maxParkMicros Longest park of connections while waiting for client
+     * @return Factory of server sockets
+     * @throws UnsupportedOperationException If JVM does not allow shared memory connections
+     */
+    public static ServerSocketFactory newServerSocketFactory(final File directory, long spinMicros,
+                                                             long maxParkMicros) {
+        checkSupported();
+        final long spinNanos = TimeUnit.MICROSECONDS.toNanos(spinMicros);
+        final long maxParkNanos = TimeUnit.MICROSECONDS.toNanos(maxParkMicros);
+        return new ServerSocketFactory() {
+            @Override
+            public ServerSocket createServerSocket(int port) throws IOException {
+                return SharedMemoryServerSocket.bind(directory, spinNanos, maxParkNanos);
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+                return SharedMemoryServerSocket.bind(directory, spinNanos, maxParkNanos);
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port, int backlog, InetAddress ifAddress) throws IOException {
+                return SharedMemoryServerSocket.bind(directory, spinNanos, maxParkNanos);
+            }
+        };
+    }
+
+    /**
+     * Creates factory of server sockets accepting connections in the directory, with default waiting
+     *
+     * @param directory Directory to accept connections in
+     * @return Factory of server sockets
+     * @throws UnsupportedOperationException If JVM does not allow shared memory connections
+     */
+    public static ServerSocketFactory newServerSocketFactory(File directory) {
+        return newServerSocketFactory(directory, DEFAULT_SPIN_MICROS, DEFAULT_MAX_PARK_MICROS);
+    }
+
+    private static void checkSupported() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Shared memory connections need access to sun.misc.Unsafe");
+        }
+    }
+}
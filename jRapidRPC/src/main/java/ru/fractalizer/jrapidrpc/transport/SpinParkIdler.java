@@ -0,0 +1,79 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.transport;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waiting strategy of a thread polling shared memory. Thread busy-spins first, since the peer usually answers within
+ * microseconds, then yields for a while, then parks for exponentially growing periods up to a maximum. Peer cannot
+ * wake a parked thread up, so the maximum bounds the latency added to the first call after an idle period. On a single
+ * processor spinning would only keep the peer from running, so thread starts with yielding there.
+ */
+class SpinParkIdler {
+
+    private static final long MIN_PARK_NANOS = 1000;
+    private static final long YIELD_NANOS    = 50000;
+
+    private final long spinNanos;
+    private final long maxParkNanos;
+
+    private long spinStart;
+    private long parkNanos;
+
+    /**
+     * Default constructor
+     *
+     * @param spinNanos    How long to busy-spin before parking
+     * @param maxParkNanos Longest park
+     */
+    SpinParkIdler(long spinNanos, long maxParkNanos) {
+        super();
+        this.spinNanos = Runtime.getRuntime().availableProcessors() > 1 ? spinNanos : 0;
+        this.maxParkNanos = Math.max(maxParkNanos, MIN_PARK_NANOS);
+    }
+
+    /**
+     * Starts a new wait, spinning again
+     */
+    void reset() {
+        spinStart = System.nanoTime();
+        parkNanos = 0;
+    }
+
+    /**
+     * Waits a little once the awaited condition was found false
+     */
+    void idle() {
+        if (parkNanos == 0) {
+            long waited = System.nanoTime() - spinStart;
+            if (waited < spinNanos) {
+                return;
+            }
+            if (waited < spinNanos + YIELD_NANOS) {
+                Thread.yield();
+                return;
+            }
+            parkNanos = MIN_PARK_NANOS;
+        } else {
+            parkNanos = Math.min(parkNanos * 2, maxParkNanos);
+        }
+        LockSupport.parkNanos(parkNanos);
+    }
+}
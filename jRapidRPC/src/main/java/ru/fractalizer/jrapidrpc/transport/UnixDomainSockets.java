@@ -0,0 +1,240 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.transport;
+
+import javax.net.ServerSocketFactory;
+import javax.net.SocketFactory;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Access to Unix domain sockets of Java 16 and later. Library is compiled for older Java, so they are looked up
+ * reflectively and {@link #isSupported()} tells whether the running JVM has them.
+ * <p>
+ * Client and server on the same host talk through a socket file instead of the loopback TCP stack, which saves
+ * the TCP/IP processing of every frame. Factories returned here plug into
+ * {@link ru.fractalizer.jrapidrpc.client.simple.SimpleTCPClient} and
+ * {@link ru.fractalizer.jrapidrpc.server.simple.SimpleTCPServer}, which then ignore host and port. Sockets they
+ * create have no IP addresses: loopback address is reported for the peer, e.g. in access log. Unix domain channels
+ * have no read timeout, so sockets wait for them on selectors in non-blocking mode, which costs a selector per
+ * direction a connection has waited in.
+ */
+public final class UnixDomainSockets {
+
+    private static final ProtocolFamily unixFamily;
+    private static final Method         addressOfMethod;
+    private static final Method         openChannelMethod;
+    private static final Method         openServerChannelMethod;
+
+    static {
+        ProtocolFamily family = null;
+        Method addressOf = null;
+        Method openChannel = null;
+        Method openServerChannel = null;
+        try {
+            family = StandardProtocolFamily.valueOf("UNIX");
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openServerChannel = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+        } catch (Exception e) {
+            family = null;
+        }
+        unixFamily = family;
+        addressOfMethod = addressOf;
+        openChannelMethod = openChannel;
+        openServerChannelMethod = openServerChannel;
+    }
+
+    private UnixDomainSockets() {
+        super();
+    }
+
+    /**
+     * Returns whether running JVM supports Unix domain sockets
+     *
+     * @return True on Java 16 and later, false otherwise
+     */
+    public static boolean isSupported() {
+        return unixFamily != null;
+    }
+
+    /**
+     * Creates factory of sockets connected to the socket file. Host and port passed to the factory are ignored
+     *
+     * @param socketFile Socket file server listens on
+     * @return Factory of client sockets
+     * @throws UnsupportedOperationException If JVM does not support Unix domain sockets
+     */
+    public static SocketFactory newSocketFactory(File socketFile) {
+        final SocketAddress address = newAddress(socketFile);
+        return new SocketFactory() {
+            @Override
+            public Socket createSocket(String host, int port) throws IOException {
+                return connect(address);
+            }
+
+            @Override
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                    throws IOException {
+                return connect(address);
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port) throws IOException {
+                return connect(address);
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port, InetAddress localHost, int localPort)
+                    throws IOException {
+                return connect(address);
+            }
+        };
+    }
+
+    /**
+     * Creates factory of server sockets listening on the socket file. Port and bind address passed to the factory
+     * are ignored. Socket file left by a server which is gone is replaced, and the file is deleted when server socket
+     * is closed. Binding fails if there is another file at the path or another server listens on it
+     *
+     * @param socketFile Socket file to listen on
+     * @return Factory of server sockets
+     * @throws UnsupportedOperationException If JVM does not support Unix domain sockets
+     */
+    public static ServerSocketFactory newServerSocketFactory(final File socketFile) {
+        final SocketAddress address = newAddress(socketFile);
+        return new ServerSocketFactory() {
+            @Override
+            public ServerSocket createServerSocket() throws IOException {
+                return bind(socketFile, address, 0);
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port) throws IOException {
+                return bind(socketFile, address, 0);
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+                return bind(socketFile, address, backlog);
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port, int backlog, InetAddress ifAddress) throws IOException {
+                return bind(socketFile, address, backlog);
+            }
+        };
+    }
+
+    private static SocketAddress newAddress(File socketFile) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later");
+        }
+        try {
+            return (SocketAddress) addressOfMethod.invoke(null, socketFile.getPath());
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException("Unable to create Unix domain socket address", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException("Invalid socket file " + socketFile, e.getCause());
+        }
+    }
+
+    private static Socket connect(SocketAddress address) throws IOException {
+        SocketChannel channel = (SocketChannel) open(openChannelMethod);
+        try {
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new UnixSocket(channel);
+    }
+
+    private static ServerSocket bind(File socketFile, SocketAddress address, int backlog) throws IOException {
+        ServerSocketChannel serverChannel = (ServerSocketChannel) open(openServerChannelMethod);
+        try {
+            //File left by a server which did not shut down cleanly would fail the bind
+            if (isStale(socketFile, address) && !socketFile.delete()) {
+                throw new IOException("Unable to replace socket file " + socketFile);
+            }
+            serverChannel.bind(address, backlog);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        return new UnixServerSocket(serverChannel, socketFile);
+    }
+
+    /**
+     * Checks whether there is a socket file nobody listens on. Anything else at the path is left alone
+     *
+     * @return True if socket file can be replaced, false if there is no file
+     * @throws IOException Is thrown if path is not a socket or a server is listening on it
+     */
+    private static boolean isStale(File socketFile, SocketAddress address) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(socketFile.toPath(), BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        //Sockets are neither regular files, directories nor links
+        if (!attributes.isOther()) {
+            throw new IOException("File " + socketFile + " is not a socket");
+        }
+        SocketChannel probe = (SocketChannel) open(openChannelMethod);
+        try {
+            probe.connect(address);
+        } catch (ConnectException e) {
+            return true;
+        } finally {
+            probe.close();
+        }
+        throw new IOException("Socket file " + socketFile + " is in use by another server");
+    }
+
+    private static Object open(Method openMethod) throws IOException {
+        try {
+            return openMethod.invoke(null, unixFamily);
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException("Unable to open Unix domain socket", e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new UnsupportedOperationException("Unable to open Unix domain socket", e.getCause());
+        }
+    }
+}
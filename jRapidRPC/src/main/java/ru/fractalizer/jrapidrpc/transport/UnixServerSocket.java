@@ -0,0 +1,118 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Server socket view of a Unix domain server socket channel bound to a socket file, so that servers accepting
+ * connections from {@link ServerSocket} can use it
+ */
+class UnixServerSocket extends ServerSocket {
+
+    private final ServerSocketChannel serverChannel;
+    private final File                socketFile;
+
+    /**
+     * Default constructor
+     *
+     * @param serverChannel Bound channel in blocking mode
+     * @param socketFile    Socket file channel is bound to. Deleted on close
+     * @throws IOException Never thrown, declared by superclass constructor
+     */
+    UnixServerSocket(ServerSocketChannel serverChannel, File socketFile) throws IOException {
+        super();
+        this.serverChannel = serverChannel;
+        this.socketFile = socketFile;
+    }
+
+    /**
+     * Waits for a connection. Fails with SocketException once server socket is closed, as plain server sockets do
+     */
+    @Override
+    public Socket accept() throws IOException {
+        try {
+            return new UnixSocket(serverChannel.accept());
+        } catch (ClosedChannelException e) {
+            throw new SocketException("Socket is closed");
+        }
+    }
+
+    /**
+     * Unix domain sockets have no port
+     *
+     * @return -1
+     */
+    @Override
+    public int getLocalPort() {
+        return -1;
+    }
+
+    /**
+     * Unix domain sockets have no IP address
+     *
+     * @return Null
+     */
+    @Override
+    public InetAddress getInetAddress() {
+        return null;
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        try {
+            return serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isBound() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !serverChannel.isOpen();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (serverChannel.isOpen()) {
+            serverChannel.close();
+            if (!socketFile.delete()) {
+                throw new IOException("Unable to delete socket file " + socketFile);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UnixServerSocket[" + socketFile + "]";
+    }
+}
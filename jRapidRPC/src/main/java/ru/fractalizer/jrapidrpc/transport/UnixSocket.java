@@ -0,0 +1,371 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Socket view of a connected Unix domain socket channel, so that clients and servers written against
+ * {@link Socket} can use it. Unix domain channels have no read timeout, so channel is switched to non-blocking mode
+ * and threads wait for it on selectors, one per direction. Reading and writing are independent, so one thread may
+ * write while another is waiting to read, and a read running past its timeout leaves socket open as TCP does.
+ */
+class UnixSocket extends Socket {
+
+    private static final int READ_AHEAD_SIZE = 1024;
+
+    private final SocketChannel channel;
+    private final InputStream   inputStream;
+    private final OutputStream  outputStream;
+
+    //Library waits under locks rather than monitors, so that waiting virtual threads do not pin their carriers
+    private final ReentrantLock readLock  = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    //Opened on first wait, so that connections which never wait hold no selector. Set under read and write lock
+    private volatile Selector readSelector;
+    private volatile Selector writeSelector;
+
+    private volatile int     soTimeout;
+    private volatile boolean inputShutdown;
+    private volatile boolean outputShutdown;
+
+    /**
+     * Default constructor
+     *
+     * @param channel Connected channel. It is closed if it can not be switched to non-blocking mode
+     * @throws IOException Is thrown if channel can not be switched to non-blocking mode
+     */
+    UnixSocket(SocketChannel channel) throws IOException {
+        super();
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.channel = channel;
+        this.inputStream = new ChannelInputStream();
+        this.outputStream = new ChannelOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+        return outputStream;
+    }
+
+    /**
+     * Sets read timeout, which fails read with {@link SocketTimeoutException} and leaves socket open as TCP does
+     */
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout can't be negative");
+        }
+        soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return soTimeout;
+    }
+
+    /**
+     * Unix domain sockets do not delay small writes, so there is nothing to disable
+     */
+    @Override
+    public void setTcpNoDelay(boolean on) {
+    }
+
+    @Override
+    public boolean getTcpNoDelay() {
+        return true;
+    }
+
+    /**
+     * Peers of Unix domain sockets have no IP address
+     *
+     * @return Loopback address
+     */
+    @Override
+    public InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        try {
+            return channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isBound() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        channel.shutdownInput();
+        inputShutdown = true;
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        channel.shutdownOutput();
+        outputShutdown = true;
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return inputShutdown;
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return outputShutdown;
+    }
+
+    /**
+     * Closes channel and wakes threads waiting for it, which then fail with {@link SocketException}
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        closeSelector(readSelector);
+        closeSelector(writeSelector);
+    }
+
+    @Override
+    public String toString() {
+        return "UnixSocket[" + getRemoteSocketAddress() + "]";
+    }
+
+    /**
+     * Opens selector to wait for the channel with. Caller must hold the lock of the direction
+     *
+     * @param interestOps Operation to wait for
+     * @return Selector with the channel registered
+     * @throws SocketException Is thrown if socket is closed
+     */
+    private Selector openSelector(int interestOps) throws IOException {
+        Selector selector = Selector.open();
+        try {
+            channel.register(selector, interestOps);
+        } catch (ClosedChannelException e) {
+            selector.close();
+            throw new SocketException("Socket is closed");
+        }
+        return selector;
+    }
+
+    /**
+     * Waits until channel is ready or time runs out
+     *
+     * @param selector Selector of the direction
+     * @param millis   Longest wait or 0 to wait without limit
+     */
+    private void await(Selector selector, long millis) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            //As interruptible channels do
+            close();
+            throw new InterruptedIOException("Interrupted while waiting for peer");
+        }
+        try {
+            selector.select(millis);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new SocketException("Socket is closed");
+        }
+        if (!channel.isOpen()) {
+            throw new SocketException("Socket is closed");
+        }
+    }
+
+    private static void closeSelector(Selector selector) throws IOException {
+        if (selector != null) {
+            selector.close();
+        }
+    }
+
+    private class ChannelInputStream extends InputStream {
+
+        //Bytes read ahead by available(), returned before channel is read again. Accessed under read lock
+        private final ByteBuffer readAhead = ByteBuffer.wrap(new byte[READ_AHEAD_SIZE], 0, 0);
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            int timeout = soTimeout;
+            long start = System.nanoTime();
+            readLock.lock();
+            try {
+                if (readAhead.hasRemaining()) {
+                    int count = Math.min(len, readAhead.remaining());
+                    readAhead.get(b, off, count);
+                    return count;
+                }
+                while (true) {
+                    int count = readChannel(buffer);
+                    if (count != 0) {
+                        return count;
+                    }
+                    long waitMillis = 0;
+                    if (timeout > 0) {
+                        long leftMillis = timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                        if (leftMillis <= 0) {
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                        waitMillis = leftMillis;
+                    }
+                    if (readSelector == null) {
+                        readSelector = openSelector(SelectionKey.OP_READ);
+                        if (!channel.isOpen()) {
+                            //Closed before it could see the selector
+                            readSelector.close();
+                        }
+                    }
+                    await(readSelector, waitMillis);
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        /**
+         * Reads whatever channel has without waiting, so that callers polling for data pushed by peer see it
+         *
+         * @return Number of bytes which can be read without waiting
+         */
+        @Override
+        public int available() throws IOException {
+            readLock.lock();
+            try {
+                if (!readAhead.hasRemaining()) {
+                    readAhead.clear();
+                    try {
+                        readChannel(readAhead);
+                    } finally {
+                        readAhead.flip();
+                    }
+                }
+                return readAhead.remaining();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        private int readChannel(ByteBuffer buffer) throws IOException {
+            try {
+                return channel.read(buffer);
+            } catch (ClosedChannelException e) {
+                throw new SocketException("Socket is closed");
+            }
+        }
+    }
+
+    private class ChannelOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            writeLock.lock();
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.write(buffer) == 0) {
+                        if (writeSelector == null) {
+                            writeSelector = openSelector(SelectionKey.OP_WRITE);
+                            if (!channel.isOpen()) {
+                                //Closed before it could see the selector
+                                writeSelector.close();
+                            }
+                        }
+                        await(writeSelector, 0);
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                throw new SocketException("Socket is closed");
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+}
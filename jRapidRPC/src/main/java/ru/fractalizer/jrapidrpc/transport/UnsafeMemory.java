@@ -0,0 +1,182 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Vladislav "FractalizeR" Rastrusny
+ * Website: http://www.fractalizer.ru
+ * Email: FractalizeR@yandex.ru
+ * ========================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package ru.fractalizer.jrapidrpc.transport;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Ordered access to memory shared with other processes. Plain Java reads of a mapped buffer may be hoisted out of a
+ * polling loop and plain writes may become visible out of order, so ring positions and flags are read with volatile
+ * loads and published with ordered stores of sun.misc.Unsafe. Java 8 has no public API for either.
+ * <p>
+ * Unsafe is looked up by name and called through constant method handles, which JIT compiles into direct calls, so
+ * that the library does not depend on internal proprietary API at compile time.
+ */
+final class UnsafeMemory {
+
+    private static final MethodHandle getLong;
+    private static final MethodHandle getIntVolatile;
+    private static final MethodHandle putIntVolatile;
+    private static final MethodHandle getLongVolatile;
+    private static final MethodHandle putOrderedLong;
+    private static final MethodHandle copyMemory;
+    private static final long         addressOffset;
+    private static final long         byteArrayOffset;
+
+    static {
+        MethodHandle getLongHandle = null;
+        MethodHandle getIntVolatileHandle = null;
+        MethodHandle putIntVolatileHandle = null;
+        MethodHandle getLongVolatileHandle = null;
+        MethodHandle putOrderedLongHandle = null;
+        MethodHandle copyMemoryHandle = null;
+        long address = 0;
+        long byteArray = 0;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            address = (Long) unsafeClass.getMethod("objectFieldOffset", Field.class)
+                    .invoke(unsafe, Buffer.class.getDeclaredField("address"));
+            byteArray = (Integer) unsafeClass.getMethod("arrayBaseOffset", Class.class).invoke(unsafe, byte[].class);
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            getLongHandle = lookup.findVirtual(unsafeClass, "getLong",
+                    MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+            getIntVolatileHandle = lookup.findVirtual(unsafeClass, "getIntVolatile",
+                    MethodType.methodType(int.class, Object.class, long.class)).bindTo(unsafe);
+            putIntVolatileHandle = lookup.findVirtual(unsafeClass, "putIntVolatile",
+                    MethodType.methodType(void.class, Object.class, long.class, int.class)).bindTo(unsafe);
+            getLongVolatileHandle = lookup.findVirtual(unsafeClass, "getLongVolatile",
+                    MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+            putOrderedLongHandle = lookup.findVirtual(unsafeClass, "putOrderedLong",
+                    MethodType.methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+            copyMemoryHandle = lookup.findVirtual(unsafeClass, "copyMemory",
+                    MethodType.methodType(void.class, Object.class, long.class, Object.class, long.class, long.class))
+                    .bindTo(unsafe);
+        } catch (Exception e) {
+            getLongHandle = null;
+        }
+        getLong = getLongHandle;
+        getIntVolatile = getIntVolatileHandle;
+        putIntVolatile = putIntVolatileHandle;
+        getLongVolatile = getLongVolatileHandle;
+        putOrderedLong = putOrderedLongHandle;
+        copyMemory = copyMemoryHandle;
+        addressOffset = address;
+        byteArrayOffset = byteArray;
+    }
+
+    private UnsafeMemory() {
+        super();
+    }
+
+    /**
+     * Returns whether running JVM gives access to sun.misc.Unsafe
+     *
+     * @return True if memory can be accessed
+     */
+    static boolean isSupported() {
+        return getLong != null;
+    }
+
+    /**
+     * Returns native address of a direct buffer. Buffer must be kept reachable while the address is in use
+     *
+     * @param buffer Direct buffer
+     * @return Address of the first byte of buffer
+     */
+    static long addressOf(ByteBuffer buffer) {
+        try {
+            return (long) getLong.invokeExact((Object) buffer, addressOffset);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    static int getIntVolatile(long address) {
+        try {
+            return (int) getIntVolatile.invokeExact((Object) null, address);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    static void putIntVolatile(long address, int value) {
+        try {
+            putIntVolatile.invokeExact((Object) null, address, value);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    static long getLongVolatile(long address) {
+        try {
+            return (long) getLongVolatile.invokeExact((Object) null, address);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * Stores value after all preceding stores, without waiting for it to become visible
+     */
+    static void putOrderedLong(long address, long value) {
+        try {
+            putOrderedLong.invokeExact((Object) null, address, value);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    static void copyToArray(long address, byte[] array, int offset, int length) {
+        try {
+            copyMemory.invokeExact((Object) null, address, (Object) array, byteArrayOffset + offset, (long) length);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    static void copyFromArray(byte[] array, int offset, long address, int length) {
+        try {
+            copyMemory.invokeExact((Object) array, byteArrayOffset + offset, (Object) null, address, (long) length);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * Unsafe methods declare no checked exceptions, so whatever they throw is unchecked
+     */
+    private static RuntimeException propagate(Throwable e) {
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        return new IllegalStateException(e);
+    }
+}